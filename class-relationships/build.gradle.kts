@@ -13,8 +13,28 @@ dependencies {
     implementation(libs.calcite.core)
     implementation(libs.classgraph)
     implementation(libs.janino.commons.compiler)
+
+    testImplementation(platform(libs.junit.bom))
+    testImplementation(libs.junit.jupiter)
+    testRuntimeOnly(libs.junit.platform.launcher)
+}
+
+// The Foreign Function & Memory API ("java.lang.foreign") is a preview API in Java 21 and final from Java 22. Only the
+// off-heap storage uses it (see OffHeapMemory), and it only uses the parts that are the same in both, so the preview
+// flag is only needed on Java 21.
+val ffmIsPreview = JavaVersion.current() < JavaVersion.VERSION_22
+val previewArgs = if (ffmIsPreview) listOf("--enable-preview") else listOf()
+
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(previewArgs)
+}
+
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs(previewArgs)
 }
 
 application {
     mainClass.set("dgroomes.ClassRelationshipsRunner")
+    applicationDefaultJvmArgs = previewArgs
 }
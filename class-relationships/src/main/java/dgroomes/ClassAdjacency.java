@@ -0,0 +1,186 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class-to-class relationships of a {@link DataSet} as a graph in compressed sparse row (CSR) form.
+ * <p>
+ * A class "uses" another class if one of its fields has that type, or one of its methods returns it or takes it as a
+ * parameter. Each class has an id (its position in {@link DataSet#classes()}), and the edges out of class {@code i}
+ * are {@code targets[offsets[i]]} up to (but not including) {@code targets[offsets[i + 1]]}, sorted and without
+ * duplicates. That's two int arrays for the whole graph.
+ * <p>
+ * Questions like "which classes can String reach within three hops?" are recursive. In relational algebra they are a
+ * {@code RepeatUnion}, with a join of the reached classes to the edges on every iteration. Here they are a breadth-first
+ * search over the arrays: see {@link #traverse} and {@link EnumerableTraversal}.
+ * <p>
+ * This is also a table, {@code CLASS_EDGES(SOURCE, TARGET)}, so the edges can be queried relationally too.
+ */
+public final class ClassAdjacency extends AbstractTable implements ScannableTable {
+
+    private final String[] names;
+    private final Map<String, Integer> idsByName;
+    private final int[] offsets;
+    private final int[] targets;
+
+    private ClassAdjacency(String[] names, Map<String, Integer> idsByName, int[] offsets, int[] targets) {
+        this.names = names;
+        this.idsByName = idsByName;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static ClassAdjacency of(DataSet dataSet) {
+        List<ClassInfo> classes = dataSet.classes();
+        int classCount = classes.size();
+        var names = new String[classCount];
+        var ids = new IdentityHashMap<ClassInfo, Integer>(classCount);
+        var idsByName = new HashMap<String, Integer>(classCount * 4 / 3 + 1);
+        for (int id = 0; id < classCount; id++) {
+            names[id] = classes.get(id).NAME;
+            ids.put(classes.get(id), id);
+            idsByName.put(names[id], id);
+        }
+
+        // Count the edges out of each class, turn the counts into offsets, and then fill in the targets. The fields and
+        // methods are walked twice, but nothing is allocated per edge.
+        var offsets = new int[classCount + 1];
+        forEachEdge(dataSet, ids, (source, target) -> offsets[source + 1]++);
+        for (int i = 0; i < classCount; i++) offsets[i + 1] += offsets[i];
+        var targets = new int[offsets[classCount]];
+        var next = Arrays.copyOf(offsets, classCount);
+        forEachEdge(dataSet, ids, (source, target) -> targets[next[source]++] = target);
+
+        // Sort the edges of each class and squeeze out the duplicates (a class usually uses "String" many times)
+        int size = 0;
+        int start = 0;
+        for (int source = 0; source < classCount; source++) {
+            int end = offsets[source + 1];
+            Arrays.sort(targets, start, end);
+            offsets[source] = size;
+            for (int i = start; i < end; i++) {
+                if (i > start && targets[i] == targets[i - 1]) continue;
+                targets[size++] = targets[i];
+            }
+            start = end;
+        }
+        offsets[classCount] = size;
+
+        return new ClassAdjacency(names, Map.copyOf(idsByName), offsets, Arrays.copyOf(targets, size));
+    }
+
+    private interface EdgeConsumer {
+        void accept(int source, int target);
+    }
+
+    private static void forEachEdge(DataSet dataSet, Map<ClassInfo, Integer> ids, EdgeConsumer consumer) {
+        for (FieldInfo field : dataSet.fields()) {
+            edge(ids, field.owningClass, field.typeClass, consumer);
+        }
+        for (MethodInfo method : dataSet.methods()) {
+            edge(ids, method.owningClass, method.returnClass, consumer);
+            for (ClassInfo parameterClass : method.parameterClasses) {
+                edge(ids, method.owningClass, parameterClass, consumer);
+            }
+        }
+    }
+
+    private static void edge(Map<ClassInfo, Integer> ids, ClassInfo source, ClassInfo target, EdgeConsumer consumer) {
+        if (target == null || target == source) return;
+        consumer.accept(ids.get(source), ids.get(target));
+    }
+
+    public int classCount() {
+        return names.length;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * Breadth-first search from a class. This is called from the code that {@link EnumerableTraversal} generates.
+     *
+     * @param startName the name of the class to start from
+     * @param maxDepth  the most edges to follow
+     * @return a row of (NAME, DEPTH) for each class reached, with the fewest edges it took to reach it. The start class
+     * is the first row, at depth 0. The rows are in breadth-first order. There are none if the class isn't in the data
+     * set.
+     */
+    public Enumerable<Object[]> traverse(String startName, int maxDepth) {
+        Integer start = idsByName.get(startName);
+        if (start == null) return Linq4j.emptyEnumerable();
+
+        var depths = new int[names.length];
+        Arrays.fill(depths, -1);
+        var queue = new int[names.length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        depths[start] = 0;
+        while (head < tail) {
+            int source = queue[head++];
+            int depth = depths[source];
+            if (depth == maxDepth) continue;
+            for (int i = offsets[source]; i < offsets[source + 1]; i++) {
+                int target = targets[i];
+                if (depths[target] >= 0) continue;
+                depths[target] = depth + 1;
+                queue[tail++] = target;
+            }
+        }
+
+        var rows = new ArrayList<Object[]>(tail);
+        for (int i = 0; i < tail; i++) rows.add(new Object[]{names[queue[i]], depths[queue[i]]});
+        return Linq4j.asEnumerable(rows);
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return typeFactory.builder()
+                .add("SOURCE", SqlTypeName.VARCHAR)
+                .add("TARGET", SqlTypeName.VARCHAR)
+                .build();
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        return Statistics.of(targets.length, List.of());
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root) {
+        return Linq4j.asEnumerable(() -> new Iterator<>() {
+            int source = 0;
+            int edge = 0;
+
+            @Override
+            public boolean hasNext() {
+                return edge < targets.length;
+            }
+
+            @Override
+            public Object[] next() {
+                while (offsets[source + 1] <= edge) source++;
+                return new Object[]{names[source], names[targets[edge++]]};
+            }
+        });
+    }
+}
@@ -4,7 +4,13 @@ import io.github.classgraph.ClassGraph;
 import io.github.classgraph.ClassInfoList;
 import org.apache.calcite.adapter.enumerable.EnumerableConvention;
 import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.jdbc.CalcitePrepare;
+import org.apache.calcite.jdbc.Driver;
+import org.apache.calcite.plan.RelOptCostFactory;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptRule;
 import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.prepare.CalcitePrepareImpl;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.core.JoinRelType;
 import org.apache.calcite.schema.Schema;
@@ -12,21 +18,27 @@ import org.apache.calcite.schema.Table;
 import org.apache.calcite.schema.impl.AbstractSchema;
 import org.apache.calcite.sql.SqlNode;
 import org.apache.calcite.sql.fun.SqlLibraryOperators;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
 import org.apache.calcite.sql.parser.SqlParseException;
+import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.calcite.tools.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
+import static dgroomes.TableOverEnumerable.listAsColumnarTable;
 import static dgroomes.TableOverEnumerable.listAsTable;
 
 /**
@@ -34,18 +46,56 @@ import static dgroomes.TableOverEnumerable.listAsTable;
  */
 public class ClassRelationshipsRunner {
 
+    /**
+     * How the tables store their data.
+     */
+    public enum Storage {
+        /**
+         * Each table is a list of objects. See {@link TableOverEnumerable#listAsTable}.
+         */
+        OBJECTS,
+
+        /**
+         * Each table stores its data by column, with the strings of all the tables encoded in one shared dictionary.
+         * See {@link ColumnarTable}.
+         */
+        COLUMNAR,
+
+        /**
+         * Each table stores its data by column in off-heap memory, so the garbage collector doesn't have to trace it.
+         * See {@link OffHeapTable}.
+         */
+        OFF_HEAP
+    }
+
     private final int takeFirstNClasses;
-    public final List<ClassInfo> classes = new ArrayList<>();
-    public final List<FieldInfo> fields = new ArrayList<>();
-    public final List<MethodInfo> methods = new ArrayList<>();
+    private final Storage storage;
+    private final int ingestionThreads;
+    private final Path snapshotDirectory;
+    private final int parallelJoinThreads;
+    private final long parallelJoinThreshold;
 
     private static final Logger log = LoggerFactory.getLogger(ClassRelationshipsRunner.class);
-    private RelRunner relRunner;
+    private PlanCache planCache;
     private Planner planner;
     private FrameworkConfig frameworkConfig;
+    private List<RelOptRule> rules;
 
-    public ClassRelationshipsRunner(int takeFirstNClasses) {
+    /**
+     * @param snapshotDirectory where to keep snapshots of the data set (see {@link DataSetSnapshot}), or {@code null} to
+     *                          always scan
+     * @param parallelJoinThreads   the number of threads for a partitioned hash join (see {@link PartitionedHashJoinRule}),
+     *                              or 1 to never use one
+     * @param parallelJoinThreshold the fewest input rows for a join to be considered for a partitioned hash join
+     */
+    public ClassRelationshipsRunner(int takeFirstNClasses, Storage storage, int ingestionThreads, Path snapshotDirectory,
+                                    int parallelJoinThreads, long parallelJoinThreshold) {
         this.takeFirstNClasses = takeFirstNClasses;
+        this.storage = storage;
+        this.ingestionThreads = ingestionThreads;
+        this.snapshotDirectory = snapshotDirectory;
+        this.parallelJoinThreads = parallelJoinThreads;
+        this.parallelJoinThreshold = parallelJoinThreshold;
     }
 
     public static void main(String[] args) throws Exception {
@@ -65,15 +115,84 @@ public class ClassRelationshipsRunner {
             takeFirstNClasses = Integer.MAX_VALUE;
         }
 
-        var runner = new ClassRelationshipsRunner(takeFirstNClasses);
+        Storage storage;
+        String storageEnv = System.getenv("STORAGE");
+        if (storageEnv != null) {
+            try {
+                storage = Storage.valueOf(storageEnv);
+            } catch (IllegalArgumentException e) {
+                var msg = "The value in the environment variable 'STORAGE' ('%s') is not one of %s.".formatted(storageEnv, Arrays.toString(Storage.values()));
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            storage = Storage.OBJECTS;
+        }
+
+        int ingestionThreads;
+        String ingestionThreadsEnv = System.getenv("INGESTION_THREADS");
+        if (ingestionThreadsEnv != null) {
+            try {
+                ingestionThreads = Integer.parseInt(ingestionThreadsEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'INGESTION_THREADS' ('%s') is not a number.".formatted(ingestionThreadsEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            ingestionThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        // Snapshots are on unless turned off with "SNAPSHOT=false"
+        Path snapshotDirectory = null;
+        if (!"false".equalsIgnoreCase(System.getenv("SNAPSHOT"))) {
+            String snapshotDirectoryEnv = System.getenv("SNAPSHOT_DIR");
+            snapshotDirectory = Path.of(snapshotDirectoryEnv != null ? snapshotDirectoryEnv : "build/snapshots");
+        }
+
+        int parallelJoinThreads;
+        String parallelJoinThreadsEnv = System.getenv("PARALLEL_JOIN_THREADS");
+        if (parallelJoinThreadsEnv != null) {
+            try {
+                parallelJoinThreads = Integer.parseInt(parallelJoinThreadsEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'PARALLEL_JOIN_THREADS' ('%s') is not a number.".formatted(parallelJoinThreadsEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            parallelJoinThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        long parallelJoinThreshold;
+        String parallelJoinThresholdEnv = System.getenv("PARALLEL_JOIN_THRESHOLD");
+        if (parallelJoinThresholdEnv != null) {
+            try {
+                parallelJoinThreshold = Long.parseLong(parallelJoinThresholdEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'PARALLEL_JOIN_THRESHOLD' ('%s') is not a number.".formatted(parallelJoinThresholdEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            parallelJoinThreshold = 100_000;
+        }
+
+        var runner = new ClassRelationshipsRunner(takeFirstNClasses, storage, ingestionThreads, snapshotDirectory,
+                parallelJoinThreads, parallelJoinThreshold);
         runner.run();
     }
 
     public void run() throws Exception {
 
-        try (var connection = DriverManager.getConnection("jdbc:calcite:")) {
+        // Let the planner join to the index on CLASSES.NAME instead of building a hash table for each query
+        rules = new ArrayList<>(List.of(IndexJoinRule.INDEX_ON_RIGHT, IndexJoinRule.INDEX_ON_LEFT));
+
+        // Let the planner split a join of big inputs over threads. With one thread, that's just a slower hash join.
+        if (parallelJoinThreads > 1) rules.add(PartitionedHashJoinRule.of(parallelJoinThreshold, parallelJoinThreads));
+
+        // The off-heap tables are allocated from this memory, and it's freed when it's closed. The other storage modes
+        // don't load any class of the Foreign Function & Memory API (a preview API in Java 21). See OffHeapMemory.
+        try (var connection = connect(rules); var memory = storage == Storage.OFF_HEAP ? new OffHeapMemory() : null) {
 
-            Schema schema = buildDataSetAndSchema();
+            Schema schema = buildDataSetAndSchema(memory);
+            logMemory("after building the tables");
             var calciteConnection = connection.unwrap(CalciteConnection.class);
             calciteConnection.getRootSchema().add("CLASS_RELATIONSHIPS", schema);
             calciteConnection.setSchema("CLASS_RELATIONSHIPS");
@@ -83,37 +202,116 @@ public class ClassRelationshipsRunner {
                     .build();
             planner = Frameworks.getPlanner(frameworkConfig);
 
-            relRunner = connection.unwrap(RelRunner.class);
+            try (var planCache = new PlanCache(calciteConnection, 100, () -> 0)) {
+                this.planCache = planCache;
 
-            //            examineSqlAsRelationalExpression();
-            queryFieldsLike("%x%");
+                //            examineSqlAsRelationalExpression();
+                queryFieldsLike("%x%");
+
+                // The same query again. This time the plan comes from the plan cache, so there is no planning or code
+                // generation, just execution.
+                queryFieldsLike("%x%");
+                queryClassByName("java.lang.String");
+
+                // A pattern with a literal run of three or more characters can use the trigram index on FIELDS.NAME,
+                // so only the candidate fields are read instead of every field.
+                queryFieldsLike("%serial%");
+
+                // Which classes can "String" reach in three hops through field types and method signatures? First as
+                // a breadth-first search over the graph, and then as a recursive relational query, for comparison.
+                queryReachableClasses("java.lang.String", 3);
+                queryReachableClassesRecursively("java.lang.String", 3);
+                log.info("Plan cache: {}", planCache.stats());
+                logMemory("after the queries");
+            }
         }
     }
 
-    private Schema buildDataSetAndSchema() {
-        ClassGraph classGraph = new ClassGraph().enableSystemJarsAndModules().enableFieldInfo();
+    /**
+     * Connect to Calcite with a driver whose planners have some extra rules, on top of the ones Calcite adds itself.
+     * These are the planners that prepare the SQL queries and the relational expressions of the connection.
+     */
+    private static Connection connect(List<RelOptRule> rules) throws SQLException {
+        var driver = new Driver().withPrepareFactory(() -> new CalcitePrepareImpl() {
+            @Override
+            protected RelOptPlanner createPlanner(CalcitePrepare.Context prepareContext,
+                                                  org.apache.calcite.plan.Context externalContext, RelOptCostFactory costFactory) {
+                RelOptPlanner planner = super.createPlanner(prepareContext, externalContext, costFactory);
+                rules.forEach(planner::addRule);
+                return planner;
+            }
+        });
+        return driver.connect("jdbc:calcite:", new Properties());
+    }
 
-        ClassInfoList classInfos;
-        try (var scanResult = classGraph.scan()) {
-            classInfos = scanResult.getAllClasses();
+    /**
+     * Calcite optimizes a relational expression with the planner of the cluster it was built in, not with one of the
+     * connection's planners. So that planner gets the extra rules too.
+     */
+    private RelBuilder relBuilder() {
+        RelBuilder builder = RelBuilder.create(frameworkConfig);
+        rules.forEach(builder.getCluster().getPlanner()::addRule);
+        return builder;
+    }
+
+    /**
+     * @param memory the memory to allocate the off-heap tables from, or {@code null} if the storage isn't off-heap
+     */
+    private Schema buildDataSetAndSchema(OffHeapMemory memory) {
+        DataSet dataSet = null;
+        String fingerprint = null;
+        if (snapshotDirectory != null) {
+            var start = Instant.now();
+            fingerprint = DataSetSnapshot.fingerprint(takeFirstNClasses);
+            if (fingerprint != null) dataSet = DataSetSnapshot.load(snapshotDirectory, fingerprint);
+            if (dataSet != null) log.info("Loaded the data set from a snapshot in {}", Duration.between(start, Instant.now()));
         }
 
-        for (int i = 0; i < classInfos.size() && i < takeFirstNClasses; i++) {
-            var classInfo_ = classInfos.get(i);
-            var classInfo = new ClassInfo(classInfo_.getName());
-            for (var fieldInfo_ : classInfo_.getFieldInfo()) {
-                var fieldInfo = new FieldInfo(fieldInfo_.getName(), classInfo);
-                fields.add(fieldInfo);
+        if (dataSet == null) {
+            dataSet = scan();
+            if (fingerprint != null && DataSetSnapshot.save(snapshotDirectory, fingerprint, dataSet)) {
+                log.info("Saved a snapshot of the data set to '{}'. The next run will load it instead of scanning.", snapshotDirectory);
             }
-            classes.add(classInfo);
         }
+        var classes = dataSet.classes();
+        var fields = dataSet.fields();
+        var methods = dataSet.methods();
 
         log.info("Built the final in-memory data set. {} class, {} fields, {} methods", Util.formatInteger(classes.size()), Util.formatInteger(fields.size()), Util.formatInteger(methods.size()));
 
-        Map<String, Table> tablesByName = Map.of(
-                "CLASSES", listAsTable(classes, ClassInfo.class),
-                "FIELDS", listAsTable(fields, FieldInfo.class),
-                "METHODS", listAsTable(methods, MethodInfo.class));
+        // The class-to-class graph, for traversals. It's the same in either storage mode.
+        var start = Instant.now();
+        var adjacency = ClassAdjacency.of(dataSet);
+        log.info("Built the class graph in {}. {} edges", Duration.between(start, Instant.now()), Util.formatInteger(adjacency.edgeCount()));
+
+        Map<String, Table> tablesByName = switch (storage) {
+            case OBJECTS -> Map.of(
+                    "CLASSES", listAsTable(classes, ClassInfo.class, "NAME"),
+                    "FIELDS", listAsTable(fields, FieldInfo.class, List.of(), List.of("NAME")),
+                    "METHODS", listAsTable(methods, MethodInfo.class),
+                    "CLASS_EDGES", adjacency);
+            case COLUMNAR -> {
+                var dictionary = new StringDictionary();
+                var classesTable = listAsColumnarTable(classes, ClassInfo.class, dictionary);
+                var fieldsTable = listAsColumnarTable(fields, FieldInfo.class, dictionary);
+                var methodsTable = listAsColumnarTable(methods, MethodInfo.class, dictionary);
+                log.info("Stored the data set by column. ~{} bytes of columns and ~{} bytes of dictionary ({} distinct strings)",
+                        Util.formatInteger(classesTable.byteSize() + fieldsTable.byteSize() + methodsTable.byteSize()),
+                        Util.formatInteger(dictionary.byteSize()), Util.formatInteger(dictionary.size()));
+
+                // The tables have the data now. The field and method objects can go when this method returns. (The class
+                // objects are still referenced by the "owningClass" column.)
+                yield Map.of("CLASSES", classesTable, "FIELDS", fieldsTable, "METHODS", methodsTable, "CLASS_EDGES", adjacency);
+            }
+            case OFF_HEAP -> {
+                var classesTable = OffHeapTable.of(classes, ClassInfo.class, memory);
+                var fieldsTable = OffHeapTable.of(fields, FieldInfo.class, memory);
+                var methodsTable = OffHeapTable.of(methods, MethodInfo.class, memory);
+                log.info("Stored the data set off-heap. ~{} bytes of columns",
+                        Util.formatInteger(classesTable.byteSize() + fieldsTable.byteSize() + methodsTable.byteSize()));
+                yield Map.of("CLASSES", classesTable, "FIELDS", fieldsTable, "METHODS", methodsTable, "CLASS_EDGES", adjacency);
+            }
+        };
         return new AbstractSchema() {
             @Override
             protected Map<String, Table> getTableMap() {
@@ -123,22 +321,51 @@ public class ClassRelationshipsRunner {
     }
 
     /**
-     * Execute a relational expression over the "class relationships" data set.
+     * Log the heap in use and the garbage collections so far. Compare the storage modes with this: the off-heap tables
+     * leave the heap almost empty. The heap in use includes the garbage that hasn't been collected yet, so it's a rough
+     * number. I don't force a collection for it, because that would change the very pauses that this is here to show.
+     */
+    private static void logMemory(String when) {
+        var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        log.info("Memory {}: ~{} bytes of heap in use. {} garbage collections so far, taking {} ms", when,
+                Util.formatInteger(heap.getUsed()), Util.formatInteger(collections), Util.formatInteger(collectionMillis));
+    }
+
+    /**
+     * Scan the classpath and the JDK's modules for classes, and ingest them (see {@link DataSetIngestion}).
+     */
+    private DataSet scan() {
+        ClassGraph classGraph = new ClassGraph().enableSystemJarsAndModules().enableFieldInfo().enableMethodInfo();
+
+        try (var scanResult = classGraph.scan()) {
+            ClassInfoList classInfos = scanResult.getAllClasses();
+            var classInfosToIngest = classInfos.subList(0, Math.min(classInfos.size(), takeFirstNClasses));
+
+            var start = Instant.now();
+            var dataSet = DataSetIngestion.ingest(classInfosToIngest, ingestionThreads);
+            log.info("Ingested the classes in {} with {} threads", Duration.between(start, Instant.now()), ingestionThreads);
+            return dataSet;
+        }
+    }
+
+    /**
+     * Execute a relational expression over the "class relationships" data set. The compiled plan is cached (see
+     * {@link PlanCache}), so executing the same expression again skips the planning and code generation.
      *
      * @param relNode
      * @param rowHandler A function to handle each row of the result.
      */
-    private void query(RelNode relNode, RowHandler rowHandler) throws Exception {
+    private void query(RelNode relNode, PlanCache.RowHandler rowHandler) throws Exception {
+        // The estimate comes from the table statistics (see TableStatistics). It's what the planner has to go on.
+        log.debug("Estimated row count: {}", relNode.getCluster().getMetadataQuery().getRowCount(relNode));
         var now = Instant.now();
-        PreparedStatement preparedStatement = relRunner.prepareStatement(relNode);
-        preparedStatement.execute();
-        ResultSet resultSet = preparedStatement.getResultSet();
-        int rowCount = 0;
-        while (resultSet.next()) {
-            rowCount++;
-            rowHandler.handle(resultSet);
-        }
-        resultSet.close();
+        int rowCount = planCache.query(relNode, rowHandler);
         var end = Instant.now();
         var duration = Duration.between(now, end);
         log.info("Query executed in {}. Fetched {} rows.", duration, rowCount);
@@ -150,15 +377,17 @@ public class ClassRelationshipsRunner {
      * @param pattern the pattern to match. For example, "%x%" will match all fields whose name contains the letter 'x'.
      */
     private void queryFieldsLike(String pattern) throws Exception {
-        RelBuilder builder = RelBuilder.create(frameworkConfig);
+        // With columnar storage, join on the dictionary codes of the names instead of on the names
+        String joinSuffix = storage == Storage.COLUMNAR ? ColumnarTable.ID_SUFFIX : "";
+        RelBuilder builder = relBuilder();
         RelNode relNode = builder
                 .adoptConvention(EnumerableConvention.INSTANCE) // This is not necessary, but we know this expression is going to use the enumerable calling convention in the end.
                 .scan("CLASS_RELATIONSHIPS", "CLASSES")
                 .scan("CLASS_RELATIONSHIPS", "FIELDS")
                 .join(JoinRelType.INNER,
                         builder.equals(
-                                builder.field(2, 0, "NAME"),
-                                builder.field(2, 1, "OWNINGCLASSNAME")))
+                                builder.field(2, 0, "NAME" + joinSuffix),
+                                builder.field(2, 1, "OWNINGCLASSNAME" + joinSuffix)))
                 .project(
                         builder.field(1, "CLASSES", "NAME"),
                         builder.field(1, "FIELDS", "NAME"))
@@ -177,6 +406,61 @@ public class ClassRelationshipsRunner {
         });
     }
 
+    /**
+     * Find a class by its name. With the index on "CLASSES.NAME", this is a lookup instead of a scan.
+     */
+    private void queryClassByName(String name) throws Exception {
+        RelBuilder builder = relBuilder();
+        RelNode relNode = builder
+                .scan("CLASS_RELATIONSHIPS", "CLASSES")
+                .filter(builder.equals(builder.field("NAME"), builder.literal(name)))
+                .project(builder.field("NAME"))
+                .build();
+
+        query(relNode, resultSet -> log.info("Class '{}'", resultSet.getString(1)));
+    }
+
+    /**
+     * Count the classes that are reachable from a class, by the number of edges it takes to reach them. The traversal
+     * is one {@link EnumerableTraversal} operator over the {@link ClassAdjacency} graph.
+     */
+    private void queryReachableClasses(String start, int maxDepth) throws Exception {
+        RelBuilder builder = relBuilder();
+        RelNode edges = builder.scan("CLASS_RELATIONSHIPS", "CLASS_EDGES").build();
+        RelNode relNode = builder
+                .push(EnumerableTraversal.create(edges.getCluster(), edges.getTable(), start, maxDepth))
+                .aggregate(builder.groupKey("DEPTH"), builder.countStar("CLASSES"))
+                .sort(builder.field("DEPTH"))
+                .build();
+
+        query(relNode, resultSet -> log.info("Depth {}: {} classes (traversal)", resultSet.getInt(1), resultSet.getInt(2)));
+    }
+
+    /**
+     * The same as {@link #queryReachableClasses} but as a recursive query: each iteration joins the classes reached in
+     * the last iteration to the "CLASS_EDGES" table. A class can be reached at more than one depth, so the depth of a
+     * class is the least one.
+     */
+    private void queryReachableClassesRecursively(String start, int maxDepth) throws Exception {
+        RelBuilder builder = relBuilder();
+        RelNode relNode = builder
+                .values(new String[]{"NAME", "DEPTH"}, start, 0)
+                .project(builder.cast(builder.field("NAME"), SqlTypeName.VARCHAR), builder.field("DEPTH"))
+                .transientScan("REACHED")
+                .filter(builder.lessThan(builder.field("DEPTH"), builder.literal(maxDepth)))
+                .scan("CLASS_RELATIONSHIPS", "CLASS_EDGES")
+                .join(JoinRelType.INNER, builder.equals(builder.field(2, 0, "NAME"), builder.field(2, 1, "SOURCE")))
+                .project(builder.alias(builder.field("TARGET"), "NAME"),
+                        builder.alias(builder.call(SqlStdOperatorTable.PLUS, builder.field("DEPTH"), builder.literal(1)), "DEPTH"))
+                .repeatUnion("REACHED", false)
+                .aggregate(builder.groupKey("NAME"), builder.min("DEPTH", builder.field("DEPTH")))
+                .aggregate(builder.groupKey("DEPTH"), builder.countStar("CLASSES"))
+                .sort(builder.field("DEPTH"))
+                .build();
+
+        query(relNode, resultSet -> log.info("Depth {}: {} classes (recursive query)", resultSet.getInt(1), resultSet.getInt(2)));
+    }
+
     /**
      * It's difficult to hand-write relational algebra expressions. By contrast, it's really easy to write SQL because
      * it's a language many know and love. This method converts a SQL query to a relational algebra expression object
@@ -206,7 +490,3 @@ public class ClassRelationshipsRunner {
         }
     }
 }
-
-interface RowHandler {
-    void handle(ResultSet resultSet) throws SQLException;
-}
@@ -0,0 +1,177 @@
+package dgroomes;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics about the values of one column of a {@link TableOverEnumerable}, computed once when the table is created.
+ * See {@link TableStatistics} for how the planner gets to them.
+ * <p>
+ * The statistics are exact, not sampled, because the data is in memory and it doesn't change. They are:
+ * <ul>
+ *     <li>the number of distinct values (NDV) and the number of nulls</li>
+ *     <li>the most common values and their counts, so a skewed column (like {@code FIELDS.OWNINGCLASSNAME}, where some
+ *     classes have hundreds of fields and most have a few) is estimated per value instead of by the average</li>
+ *     <li>an equi-depth histogram: the boundaries that split the sorted values into buckets with the same number of
+ *     values each. That gives the selectivity of a range predicate.</li>
+ *     <li>whether the rows are already sorted by the column</li>
+ * </ul>
+ * The histogram and the sortedness only apply to columns whose values are {@link Comparable}.
+ */
+public final class ColumnStatistics {
+
+    private static final int MOST_COMMON_VALUES = 16;
+    private static final int HISTOGRAM_BUCKETS = 64;
+
+    private final int rowCount;
+    private final int nullCount;
+    private final int distinctValues;
+    private final Map<Object, Integer> mostCommonValues;
+    private final int mostCommonValuesCount;
+    private final @Nullable List<Comparable<Object>> histogram;
+    private final boolean sorted;
+
+    private ColumnStatistics(int rowCount, int nullCount, int distinctValues, Map<Object, Integer> mostCommonValues,
+                             @Nullable List<Comparable<Object>> histogram, boolean sorted) {
+        this.rowCount = rowCount;
+        this.nullCount = nullCount;
+        this.distinctValues = distinctValues;
+        this.mostCommonValues = mostCommonValues;
+        this.mostCommonValuesCount = mostCommonValues.values().stream().mapToInt(Integer::intValue).sum();
+        this.histogram = histogram;
+        this.sorted = sorted;
+    }
+
+    /**
+     * @param rowMaker a method handle from {@link RowAdapter#rowMaker(int[])} that makes a row of just the column
+     */
+    @SuppressWarnings("unchecked")
+    static ColumnStatistics compute(List<?> rows, MethodHandle rowMaker) {
+        var counts = new HashMap<Object, Integer>();
+        var comparableValues = new ArrayList<Comparable<Object>>(rows.size());
+        boolean comparable = true;
+        boolean sorted = true;
+        int nullCount = 0;
+        Comparable<Object> previous = null;
+
+        for (Object row : rows) {
+            Object value = RowAdapter.row(rowMaker, row)[0];
+            if (value == null) {
+                // Calcite sorts nulls last in an ascending order, so a null can be followed only by another null
+                nullCount++;
+                continue;
+            }
+            if (nullCount > 0) sorted = false;
+            counts.merge(value, 1, Integer::sum);
+
+            if (!comparable) continue;
+            if (!(value instanceof Comparable<?>)) {
+                comparable = false;
+                sorted = false;
+                comparableValues = null;
+                continue;
+            }
+            var comparableValue = (Comparable<Object>) value;
+            if (previous != null && previous.compareTo(comparableValue) > 0) sorted = false;
+            previous = comparableValue;
+            comparableValues.add(comparableValue);
+        }
+
+        // Only the values that occur more than once are worth remembering. The others are estimated by the average.
+        var mostCommonValues = new HashMap<Object, Integer>();
+        counts.entrySet().stream()
+                .filter(entry -> entry.getValue() > 1)
+                .sorted(Map.Entry.<Object, Integer>comparingByValue().reversed())
+                .limit(MOST_COMMON_VALUES)
+                .forEach(entry -> mostCommonValues.put(entry.getKey(), entry.getValue()));
+
+        List<Comparable<Object>> histogram = null;
+        if (comparable && !comparableValues.isEmpty()) {
+            if (!sorted) comparableValues.sort(Comparator.naturalOrder());
+            int buckets = Math.min(HISTOGRAM_BUCKETS, comparableValues.size());
+            var boundaries = new ArrayList<Comparable<Object>>(buckets + 1);
+            for (int i = 0; i < buckets; i++) {
+                boundaries.add(comparableValues.get((int) ((long) i * comparableValues.size() / buckets)));
+            }
+            boundaries.add(comparableValues.getLast());
+            histogram = List.copyOf(boundaries);
+        }
+
+        return new ColumnStatistics(rows.size(), nullCount, counts.size(), Map.copyOf(mostCommonValues), histogram,
+                sorted && comparable);
+    }
+
+    public int distinctValues() {
+        return distinctValues;
+    }
+
+    public int nullCount() {
+        return nullCount;
+    }
+
+    /**
+     * @return whether every value is in at most one row, and no value is null
+     */
+    public boolean unique() {
+        return nullCount == 0 && distinctValues == rowCount;
+    }
+
+    /**
+     * @return whether the rows are in ascending order of this column (with nulls last)
+     */
+    public boolean sorted() {
+        return sorted;
+    }
+
+    /**
+     * @return the fraction of the rows where the column equals the value
+     */
+    public double equalsSelectivity(@Nullable Object value) {
+        if (value == null || rowCount == 0) return 0;
+        Integer count = mostCommonValues.get(value);
+        if (count != null) return (double) count / rowCount;
+
+        // Spread the rest of the rows evenly over the rest of the values
+        int otherValues = distinctValues - mostCommonValues.size();
+        if (otherValues <= 0) return 0;
+        double otherRows = rowCount - nullCount - mostCommonValuesCount;
+        return otherRows / otherValues / rowCount;
+    }
+
+    /**
+     * @return the fraction of the rows where the column is less than the value (or less than or equal to it), or
+     * {@code null} if there is no histogram for the column
+     */
+    public @Nullable Double lessThanSelectivity(Comparable<Object> value, boolean orEqual) {
+        if (histogram == null || histogram.getFirst().getClass() != value.getClass()) return null;
+        int buckets = histogram.size() - 1;
+        double fraction;
+        if (value.compareTo(histogram.getFirst()) < 0) fraction = 0;
+        else if (value.compareTo(histogram.getLast()) > 0) fraction = 1;
+        else {
+            // The value falls into some bucket. Assume it's in the middle of it.
+            int position = Collections.binarySearch(histogram, value);
+            int bucket = position >= 0 ? position : -position - 2;
+            fraction = Math.min(1, (bucket + 0.5) / buckets);
+        }
+
+        double nonNull = (double) (rowCount - nullCount) / Math.max(1, rowCount);
+        double selectivity = fraction * nonNull;
+        if (orEqual) selectivity += equalsSelectivity(value);
+        return Math.min(nonNull, selectivity);
+    }
+
+    /**
+     * @return the fraction of the rows where the column is null
+     */
+    public double nullSelectivity() {
+        return rowCount == 0 ? 0 : (double) nullCount / rowCount;
+    }
+}
@@ -0,0 +1,279 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A table that stores its data by column instead of as a list of objects. This is the columnar counterpart of
+ * {@link TableOverEnumerable#listAsTable}. See {@link TableOverEnumerable#listAsColumnarTable}.
+ * <p>
+ * The table is built from a list of objects, and then the objects aren't needed anymore. Each field of the objects
+ * becomes a column:
+ * <ul>
+ *     <li>{@code int}, {@code long}, {@code double} and {@code boolean} fields are stored in primitive arrays</li>
+ *     <li>{@code String} fields are dictionary-encoded into an {@code int[]} of codes (see {@link StringDictionary})</li>
+ *     <li>any other field (like a reference to another object) is stored in an {@code Object[]}</li>
+ * </ul>
+ * The row type is the same as the row type of {@link TableOverEnumerable} for the same class, plus one extra
+ * {@code INTEGER} column for each string column: the dictionary code of the string, named like the string column with
+ * an "_ID" suffix. When the tables of a schema share a dictionary, joining on the "_ID" columns gives the same result as
+ * joining on the string columns, but it compares ints.
+ * <p>
+ * So a {@code FieldInfo} row, which as an object is a header, three references, and a copy of the field's name (and the
+ * name is often the same as the names of thousands of other fields), is two ints and one reference here.
+ */
+public final class ColumnarTable extends AbstractTable implements ProjectableFilterableTable {
+
+    /**
+     * The suffix of the name of the dictionary code column of a string column.
+     */
+    public static final String ID_SUFFIX = "_ID";
+
+    private sealed interface Column permits IntColumn, LongColumn, DoubleColumn, BooleanColumn, StringColumn, ObjectColumn {
+        Object get(int row);
+
+        long byteSize();
+    }
+
+    private record IntColumn(int[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+
+        public long byteSize() {
+            return 16L + 4L * values.length;
+        }
+    }
+
+    private record LongColumn(long[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+
+        public long byteSize() {
+            return 16L + 8L * values.length;
+        }
+    }
+
+    private record DoubleColumn(double[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+
+        public long byteSize() {
+            return 16L + 8L * values.length;
+        }
+    }
+
+    private record BooleanColumn(boolean[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+
+        public long byteSize() {
+            return 16L + values.length;
+        }
+    }
+
+    /**
+     * The strings are decoded on the way out. The decoded strings are the dictionary's own instances, so decoding
+     * doesn't allocate.
+     */
+    private record StringColumn(int[] codes, StringDictionary dictionary) implements Column {
+        public Object get(int row) {
+            return dictionary.decode(codes[row]);
+        }
+
+        public long byteSize() {
+            return 16L + 4L * codes.length;
+        }
+    }
+
+    /**
+     * The dictionary codes of a string column. A null string has a null code (not {@link StringDictionary#NULL}) so
+     * that nulls don't join to each other.
+     */
+    private record CodeColumn(int[] codes) {
+        Object get(int row) {
+            int code = codes[row];
+            return code == StringDictionary.NULL ? null : code;
+        }
+    }
+
+    private record ObjectColumn(Object[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+
+        public long byteSize() {
+            return 16L + 4L * values.length;
+        }
+    }
+
+    private final Class<?> elementType;
+    private final int rowCount;
+    private final Column[] columns;
+
+    /**
+     * The code columns of the string columns, in the order of the string columns. These are the columns after
+     * {@link #columns} in the row type.
+     */
+    private final CodeColumn[] codeColumns;
+    private final List<String> codeColumnNames;
+
+    private ColumnarTable(Class<?> elementType, int rowCount, Column[] columns, CodeColumn[] codeColumns,
+                          List<String> codeColumnNames) {
+        this.elementType = elementType;
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.codeColumns = codeColumns;
+        this.codeColumnNames = codeColumnNames;
+    }
+
+    /**
+     * Transpose a list of objects into columns.
+     *
+     * @param dictionary the dictionary to encode the strings with. Share it between the tables of a schema.
+     */
+    static <T> ColumnarTable of(List<T> rows, Class<T> elementType, StringDictionary dictionary) {
+        requireNonNull(rows);
+        var rowAdapter = new RowAdapter(elementType);
+        int fieldCount = rowAdapter.fieldCount();
+        int rowCount = rows.size();
+
+        var columns = new Column[fieldCount];
+        var codeColumns = new ArrayList<CodeColumn>();
+        var codeColumnNames = new ArrayList<String>();
+        for (int c = 0; c < fieldCount; c++) {
+            var field = rowAdapter.field(c);
+            Class<?> type = field.getType();
+            if (type == int.class) columns[c] = new IntColumn(new int[rowCount]);
+            else if (type == long.class) columns[c] = new LongColumn(new long[rowCount]);
+            else if (type == double.class) columns[c] = new DoubleColumn(new double[rowCount]);
+            else if (type == boolean.class) columns[c] = new BooleanColumn(new boolean[rowCount]);
+            else if (type == String.class) {
+                var stringColumn = new StringColumn(new int[rowCount], dictionary);
+                columns[c] = stringColumn;
+                codeColumns.add(new CodeColumn(stringColumn.codes()));
+                codeColumnNames.add(field.getName() + ID_SUFFIX);
+            } else columns[c] = new ObjectColumn(new Object[rowCount]);
+        }
+
+        var rowMaker = rowAdapter.rowMaker(null);
+        for (int r = 0; r < rowCount; r++) {
+            Object[] values = RowAdapter.row(rowMaker, rows.get(r));
+            for (int c = 0; c < fieldCount; c++) {
+                switch (columns[c]) {
+                    case IntColumn column -> column.values()[r] = (Integer) values[c];
+                    case LongColumn column -> column.values()[r] = (Long) values[c];
+                    case DoubleColumn column -> column.values()[r] = (Double) values[c];
+                    case BooleanColumn column -> column.values()[r] = (Boolean) values[c];
+                    case StringColumn column -> column.codes()[r] = dictionary.encode((String) values[c]);
+                    case ObjectColumn column -> column.values()[r] = values[c];
+                }
+            }
+        }
+
+        return new ColumnarTable(elementType, rowCount, columns, codeColumns.toArray(new CodeColumn[0]),
+                List.copyOf(codeColumnNames));
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the columns, not counting the shared dictionary or the objects that
+     * object columns refer to
+     */
+    public long byteSize() {
+        long bytes = 0;
+        for (Column column : columns) bytes += column.byteSize();
+        return bytes;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        var builder = typeFactory.builder();
+        builder.addAll(((JavaTypeFactory) typeFactory).createType(elementType).getFieldList());
+        for (String name : codeColumnNames) {
+            builder.add(name, typeFactory.createTypeWithNullability(typeFactory.createSqlType(SqlTypeName.INTEGER), true));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        return Statistics.of(rowCount, List.of());
+    }
+
+    /**
+     * Read the projected columns of each row. The filters are left to Calcite.
+     */
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects) {
+        int[] finalProjects = projects != null ? projects : RowAdapter.identity(columns.length + codeColumns.length);
+        return new AbstractEnumerable<>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new ColumnEnumerator(finalProjects);
+            }
+        };
+    }
+
+    private final class ColumnEnumerator implements Enumerator<Object[]> {
+
+        private final int[] projects;
+        private int row = -1;
+        private Object[] current;
+
+        ColumnEnumerator(int[] projects) {
+            this.projects = projects;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            if (++row >= rowCount) return false;
+            var values = new Object[projects.length];
+            for (int i = 0; i < projects.length; i++) {
+                int column = projects[i];
+                values[i] = column < columns.length
+                        ? columns[column].get(row)
+                        : codeColumns[column - columns.length].get(row);
+            }
+            current = values;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            row = -1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
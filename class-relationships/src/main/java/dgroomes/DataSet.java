@@ -0,0 +1,18 @@
+package dgroomes;
+
+import java.util.List;
+
+/**
+ * The "class relationships" data set: the rows of the CLASSES, FIELDS and METHODS tables. The lists are immutable.
+ * <p>
+ * The rows refer to each other directly. A field refers to its owning class object, and a method refers to its owning
+ * class, its return class and its parameter classes. Every one of those objects is in {@link #classes()}.
+ */
+public record DataSet(List<ClassInfo> classes, List<FieldInfo> fields, List<MethodInfo> methods) {
+
+    public DataSet {
+        classes = List.copyOf(classes);
+        fields = List.copyOf(fields);
+        methods = List.copyOf(methods);
+    }
+}
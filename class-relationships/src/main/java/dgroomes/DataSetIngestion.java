@@ -0,0 +1,121 @@
+package dgroomes;
+
+import io.github.classgraph.ArrayTypeSignature;
+import io.github.classgraph.ClassRefTypeSignature;
+import io.github.classgraph.MethodParameterInfo;
+import io.github.classgraph.TypeSignature;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Turn the classes that ClassGraph found into a {@link DataSet}, in parallel.
+ * <p>
+ * Reading the fields and methods of a class, and especially decoding the type descriptors of the methods, is most of
+ * the work, and every class can be done on its own. So the work goes like this:
+ * <ol>
+ *     <li>Make the {@link ClassInfo} objects and a map of them by name. This is cheap, and it has to be complete before
+ *     anything can link to a class.</li>
+ *     <li>Split the classes into chunks and fan the chunks out over a fork-join pool. Each chunk builds its own lists of
+ *     fields and methods, so the workers share nothing but the (read-only) map of classes.</li>
+ *     <li>Concatenate the chunks, in order, into an immutable snapshot.</li>
+ * </ol>
+ * The order of the rows is the same as a single-threaded loop would make: the classes in the order ClassGraph lists
+ * them (by name), and the fields and methods in the order of their class. That matters, because the tables notice when
+ * they're already sorted by a column (see {@link TableStatistics}).
+ */
+public final class DataSetIngestion {
+
+    private static final int CLASSES_PER_CHUNK = 256;
+
+    private DataSetIngestion() {}
+
+    private record Chunk(List<FieldInfo> fields, List<MethodInfo> methods) {}
+
+    /**
+     * @param classInfos the classes to ingest. The ClassGraph scan result that they came from must still be open.
+     * @param threads    the number of worker threads
+     */
+    public static DataSet ingest(List<io.github.classgraph.ClassInfo> classInfos, int threads) {
+        var classes = new ArrayList<ClassInfo>(classInfos.size());
+        var classesByName = new HashMap<String, ClassInfo>(classInfos.size() * 4 / 3 + 1);
+        for (var classInfo_ : classInfos) {
+            var classInfo = new ClassInfo(classInfo_.getName());
+            classes.add(classInfo);
+            classesByName.put(classInfo.NAME, classInfo);
+        }
+
+        int chunkCount = (classInfos.size() + CLASSES_PER_CHUNK - 1) / CLASSES_PER_CHUNK;
+        List<Chunk> chunks;
+        var pool = new ForkJoinPool(threads);
+        try {
+            // A parallel stream runs in the pool that it's started from. "toList" keeps the chunks in order.
+            chunks = pool.submit(() -> IntStream.range(0, chunkCount).parallel()
+                    .mapToObj(chunk -> {
+                        int from = chunk * CLASSES_PER_CHUNK;
+                        int to = Math.min(from + CLASSES_PER_CHUNK, classInfos.size());
+                        return ingestChunk(classInfos.subList(from, to), classes.subList(from, to), classesByName);
+                    })
+                    .toList()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ingesting the classes", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to ingest the classes", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        var fields = new ArrayList<FieldInfo>(chunks.stream().mapToInt(chunk -> chunk.fields().size()).sum());
+        var methods = new ArrayList<MethodInfo>(chunks.stream().mapToInt(chunk -> chunk.methods().size()).sum());
+        for (Chunk chunk : chunks) {
+            fields.addAll(chunk.fields());
+            methods.addAll(chunk.methods());
+        }
+        return new DataSet(classes, fields, methods);
+    }
+
+    private static Chunk ingestChunk(List<io.github.classgraph.ClassInfo> classInfos, List<ClassInfo> classes,
+                                     Map<String, ClassInfo> classesByName) {
+        var fields = new ArrayList<FieldInfo>();
+        var methods = new ArrayList<MethodInfo>();
+        for (int i = 0; i < classInfos.size(); i++) {
+            var classInfo_ = classInfos.get(i);
+            var classInfo = classes.get(i);
+            for (var fieldInfo_ : classInfo_.getFieldInfo()) {
+                var typeClass = linkedClass(fieldInfo_.getTypeDescriptor(), classesByName);
+                fields.add(new FieldInfo(fieldInfo_.getName(), classInfo, typeClass));
+            }
+
+            // Only the methods that the class declares. With the inherited ones too, every class would repeat the
+            // methods of "Object" and the table would be mostly duplicates.
+            for (var methodInfo_ : classInfo_.getDeclaredMethodInfo()) {
+                var parameterClasses = new ArrayList<ClassInfo>();
+                for (MethodParameterInfo parameterInfo : methodInfo_.getParameterInfo()) {
+                    var parameterClass = linkedClass(parameterInfo.getTypeDescriptor(), classesByName);
+                    if (parameterClass != null) parameterClasses.add(parameterClass);
+                }
+                var returnClass = linkedClass(methodInfo_.getTypeDescriptor().getResultType(), classesByName);
+                methods.add(new MethodInfo(methodInfo_.getName(), classInfo, parameterClasses, returnClass));
+            }
+        }
+        return new Chunk(fields, methods);
+    }
+
+    /**
+     * @return the class in the data set that the type refers to, or {@code null} if it's a primitive type or a class
+     * that isn't in the data set. An array type refers to its element class.
+     */
+    private static ClassInfo linkedClass(TypeSignature type, Map<String, ClassInfo> classesByName) {
+        if (type instanceof ArrayTypeSignature arrayType) type = arrayType.getElementTypeSignature();
+        if (type instanceof ClassRefTypeSignature classRefType) {
+            return classesByName.get(classRefType.getFullyQualifiedClassName());
+        }
+        return null;
+    }
+}
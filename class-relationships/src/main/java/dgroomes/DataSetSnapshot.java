@@ -0,0 +1,279 @@
+package dgroomes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A binary snapshot of a {@link DataSet} on disk, so that a run doesn't have to scan the classpath when nothing on it
+ * has changed.
+ * <p>
+ * The snapshot is keyed by a fingerprint of everything that the scan depends on: the JDK (its home, version and
+ * vendor), every entry on the classpath (its path, size and modification time), and the number of classes to take. A
+ * directory on the classpath (like {@code build/classes/java/main}) is fingerprinted by every file in it, because
+ * recompiling a class doesn't change the size or the modification time of the directory itself. The fingerprint is the
+ * file name, so a change to any of those just misses, and a new snapshot replaces the old one.
+ * <p>
+ * The format is compact because it's mostly repetition. Every string is stored once in a string table (there are many
+ * fields named "serialVersionUID" and methods named "toString"), and the rows refer to strings and classes by number:
+ * <pre>
+ * magic, format version, fingerprint
+ * strings:  count, then the length and UTF-8 bytes of each
+ * classes:  count, then the name of each
+ * fields:   count, then the name, owning class and type class (-1 for none) of each
+ * methods:  count, then the name, owning class, return class (-1 for none), parameter count and parameter classes of each
+ * </pre>
+ * The file is memory-mapped to read it, and the objects are made straight from the mapped bytes. The string table
+ * makes one {@link String} per distinct string, so the loaded data set also shares its strings.
+ */
+public final class DataSetSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(DataSetSnapshot.class);
+    private static final int MAGIC = 0x43524453; // "CRDS"
+    private static final int FORMAT_VERSION = 2;
+    private static final int NO_CLASS = -1;
+    private static final String SUFFIX = ".snapshot";
+
+    private DataSetSnapshot() {}
+
+    /**
+     * @return a fingerprint of the JDK and the classpath, and of the number of classes to take, or {@code null} if a
+     * directory on the classpath can't be listed
+     */
+    public static String fingerprint(int takeFirstNClasses) {
+        var classpath = new ArrayList<Path>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.add(Path.of(entry));
+        }
+        return fingerprint(takeFirstNClasses, classpath);
+    }
+
+    static String fingerprint(int takeFirstNClasses, List<Path> classpath) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+
+        var key = new StringBuilder();
+        key.append(FORMAT_VERSION).append('\n');
+        key.append(takeFirstNClasses).append('\n');
+        for (String property : List.of("java.home", "java.runtime.version", "java.vm.vendor")) {
+            key.append(System.getProperty(property)).append('\n');
+        }
+        for (Path entry : classpath) {
+            appendFile(key, entry.toAbsolutePath());
+            if (Files.isDirectory(entry)) {
+                try (Stream<Path> files = Files.walk(entry)) {
+                    files.filter(Files::isRegularFile).sorted().forEach(file -> appendFile(key, file.toAbsolutePath()));
+                } catch (IOException | UncheckedIOException e) {
+                    // Without a complete listing, there's no telling whether the directory changed
+                    log.warn("Failed to list the classpath directory '{}'. Not using a snapshot.", entry, e);
+                    return null;
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void appendFile(StringBuilder key, Path path) {
+        var file = path.toFile();
+        key.append(file.getPath()).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+    }
+
+    /**
+     * @return the data set in the snapshot with the fingerprint, or {@code null} if there isn't one (or it's unusable)
+     */
+    public static DataSet load(Path directory, String fingerprint) {
+        Path file = file(directory, fingerprint);
+        if (!Files.exists(file)) return null;
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                log.warn("The snapshot '{}' is not in the expected format. Ignoring it.", file);
+                return null;
+            }
+            var storedFingerprint = new byte[32];
+            buffer.get(storedFingerprint);
+            if (!HexFormat.of().formatHex(storedFingerprint).equals(fingerprint)) {
+                log.warn("The snapshot '{}' has a different fingerprint than its name. Ignoring it.", file);
+                return null;
+            }
+            return read(buffer);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            log.warn("Failed to read the snapshot '{}'. Ignoring it.", file, e);
+            return null;
+        }
+    }
+
+    private static DataSet read(ByteBuffer buffer) {
+        var strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            var bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int classCount = buffer.getInt();
+        var classes = new ArrayList<ClassInfo>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            classes.add(new ClassInfo(strings[buffer.getInt()]));
+        }
+
+        int fieldCount = buffer.getInt();
+        var fields = new ArrayList<FieldInfo>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            var name = strings[buffer.getInt()];
+            var owningClass = classes.get(buffer.getInt());
+            int typeClass = buffer.getInt();
+            fields.add(new FieldInfo(name, owningClass, typeClass == NO_CLASS ? null : classes.get(typeClass)));
+        }
+
+        int methodCount = buffer.getInt();
+        var methods = new ArrayList<MethodInfo>(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            var name = strings[buffer.getInt()];
+            var owningClass = classes.get(buffer.getInt());
+            int returnClass = buffer.getInt();
+            var parameterClasses = new ClassInfo[buffer.getInt()];
+            for (int j = 0; j < parameterClasses.length; j++) {
+                parameterClasses[j] = classes.get(buffer.getInt());
+            }
+            methods.add(new MethodInfo(name, owningClass, List.of(parameterClasses),
+                    returnClass == NO_CLASS ? null : classes.get(returnClass)));
+        }
+
+        return new DataSet(classes, fields, methods);
+    }
+
+    /**
+     * Write the data set to a snapshot with the fingerprint, and delete the older snapshots in the directory. The file is
+     * written under a temporary name and then moved into place, so a concurrent run never reads a partial snapshot.
+     * <p>
+     * Failing to write it is not fatal. The run already has its data set, and the next run just scans again.
+     *
+     * @return whether the snapshot was written
+     */
+    public static boolean save(Path directory, String fingerprint, DataSet dataSet) {
+        Path file = file(directory, fingerprint);
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, fingerprint, ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                write(out, fingerprint, dataSet);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to write the snapshot '{}'", file, e);
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // It's only a leftover temporary file
+                }
+            }
+            return false;
+        }
+        deleteOlderSnapshots(directory, file);
+        return true;
+    }
+
+    /**
+     * Each change to the classpath makes a new fingerprint, and so a new snapshot. Only the newest one is ever read
+     * again (unless the classpath changes back), so the others are deleted.
+     */
+    private static void deleteOlderSnapshots(Path directory, Path newest) {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                if (path.equals(newest) || !path.getFileName().toString().endsWith(SUFFIX)) continue;
+                try {
+                    Files.deleteIfExists(path);
+                    log.debug("Deleted the older snapshot '{}'", path);
+                } catch (IOException e) {
+                    log.warn("Failed to delete the older snapshot '{}'", path, e);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list the snapshots in '{}'", directory, e);
+        }
+    }
+
+    private static void write(DataOutputStream out, String fingerprint, DataSet dataSet) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.write(HexFormat.of().parseHex(fingerprint));
+
+        // Number the strings and the classes
+        var stringIds = new HashMap<String, Integer>();
+        var strings = new ArrayList<String>();
+        var classIds = new IdentityHashMap<ClassInfo, Integer>();
+        for (ClassInfo classInfo : dataSet.classes()) {
+            classIds.put(classInfo, classIds.size());
+            stringId(classInfo.NAME, stringIds, strings);
+        }
+        for (FieldInfo fieldInfo : dataSet.fields()) stringId(fieldInfo.NAME, stringIds, strings);
+        for (MethodInfo methodInfo : dataSet.methods()) stringId(methodInfo.name, stringIds, strings);
+
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        out.writeInt(dataSet.classes().size());
+        for (ClassInfo classInfo : dataSet.classes()) out.writeInt(stringIds.get(classInfo.NAME));
+
+        out.writeInt(dataSet.fields().size());
+        for (FieldInfo fieldInfo : dataSet.fields()) {
+            out.writeInt(stringIds.get(fieldInfo.NAME));
+            out.writeInt(classIds.get(fieldInfo.owningClass));
+            out.writeInt(fieldInfo.typeClass == null ? NO_CLASS : classIds.get(fieldInfo.typeClass));
+        }
+
+        out.writeInt(dataSet.methods().size());
+        for (MethodInfo methodInfo : dataSet.methods()) {
+            out.writeInt(stringIds.get(methodInfo.name));
+            out.writeInt(classIds.get(methodInfo.owningClass));
+            out.writeInt(methodInfo.returnClass == null ? NO_CLASS : classIds.get(methodInfo.returnClass));
+            out.writeInt(methodInfo.parameterClasses.size());
+            for (ClassInfo parameterClass : methodInfo.parameterClasses) out.writeInt(classIds.get(parameterClass));
+        }
+    }
+
+    private static void stringId(String string, Map<String, Integer> stringIds, List<String> strings) {
+        stringIds.computeIfAbsent(string, key -> {
+            strings.add(key);
+            return strings.size() - 1;
+        });
+    }
+
+    private static Path file(Path directory, String fingerprint) {
+        return directory.resolve(fingerprint + SUFFIX);
+    }
+}
@@ -0,0 +1,121 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.SingleRel;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An index nested loop join: an inner equi-join between some input (the "probe" side) and a {@link TableOverEnumerable}
+ * that has a {@link HashIndex} on the join column. Each probe row is looked up in the index.
+ * <p>
+ * The indexed table is not an input of this node. It is referenced directly, like a table scan references its table,
+ * because it is never scanned. See {@link IndexJoinRule} for when this replaces a join.
+ * <p>
+ * The code that this generates just hands the probe rows to {@link TableOverEnumerable#indexJoin}.
+ */
+public class EnumerableIndexJoin extends SingleRel implements EnumerableRel {
+
+    private final RelOptTable indexedTable;
+    private final int probeKey;
+    private final int indexColumn;
+    private final boolean indexOnLeft;
+
+    /**
+     * @param probe       the other input of the join, in the enumerable convention
+     * @param rowType     the row type of the join
+     * @param probeKey    the join column of the probe input
+     * @param indexColumn the join column of the indexed table
+     * @param indexOnLeft whether the indexed table was the left input of the join
+     */
+    public EnumerableIndexJoin(RelOptCluster cluster, RelTraitSet traits, RelNode probe, RelOptTable indexedTable,
+                               RelDataType rowType, int probeKey, int indexColumn, boolean indexOnLeft) {
+        super(cluster, traits, probe);
+        this.indexedTable = indexedTable;
+        this.rowType = rowType;
+        this.probeKey = probeKey;
+        this.indexColumn = indexColumn;
+        this.indexOnLeft = indexOnLeft;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new EnumerableIndexJoin(getCluster(), traitSet, sole(inputs), indexedTable, rowType, probeKey,
+                indexColumn, indexOnLeft);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("table", indexedTable.getQualifiedName())
+                .item("probeKey", probeKey)
+                .item("indexColumn", indexColumn)
+                .item("indexOnLeft", indexOnLeft);
+    }
+
+    /**
+     * Each probe row matches one row of the indexed table if the index is unique (a join to a key), and otherwise the
+     * average number of rows per value.
+     */
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        var index = requireNonNull(indexedTable.unwrap(TableOverEnumerable.class)).index(indexColumn);
+        double probeRows = mq.getRowCount(getInput());
+        double tableRows = indexedTable.getRowCount();
+        if (index == null || index.unique() || index.distinctValues() == 0) return probeRows;
+        return probeRows * tableRows / index.distinctValues();
+    }
+
+    /**
+     * One hash lookup per probe row, and nothing to build.
+     */
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        double probeRows = mq.getRowCount(getInput());
+        return planner.getCostFactory().makeCost(estimateRowCount(mq), probeRows, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        var builder = new BlockBuilder();
+        Result probeResult = implementor.visitChild(this, 0, (EnumerableRel) getInput(), Prefer.ARRAY);
+        Expression probe = builder.append("probe", probeResult.block);
+        // The probe rows need to be arrays so that the key can be read by position
+        probe = probeResult.physType.convertTo(probe, JavaRowFormat.ARRAY);
+        // The static type of the expression might be a subtype (like "Interpreter"). The method is looked up by type.
+        probe = Expressions.convert_(probe, Enumerable.class);
+
+        var table = requireNonNull(indexedTable.unwrap(TableOverEnumerable.class));
+        Expression tableExpression = implementor.stash(table, TableOverEnumerable.class);
+        builder.add(Expressions.return_(null, Expressions.call(tableExpression, "indexJoin", probe,
+                Expressions.constant(probeKey), Expressions.constant(indexColumn), Expressions.constant(indexOnLeft))));
+
+        // Don't let the format be "optimized" to a scalar for a single column. The rows are always arrays.
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY, false);
+        return implementor.result(physType, builder.toBlock());
+    }
+}
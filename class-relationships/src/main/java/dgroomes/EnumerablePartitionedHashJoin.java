@@ -0,0 +1,119 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.BiRel;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.util.ImmutableBitSet;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An inner equi-join that partitions both inputs and joins the partitions on many threads. See
+ * {@link PartitionedHashJoin} for the algorithm and {@link PartitionedHashJoinRule} for when this replaces a join.
+ * <p>
+ * The code that this generates just hands the rows of both inputs to {@link PartitionedHashJoin#join}.
+ */
+public class EnumerablePartitionedHashJoin extends BiRel implements EnumerableRel {
+
+    private final int[] leftKeys;
+    private final int[] rightKeys;
+    private final int threads;
+
+    /**
+     * @param rowType   the row type of the join
+     * @param leftKeys  the join columns of the left input
+     * @param rightKeys the join columns of the right input, in the same order
+     * @param threads   the number of threads to join with
+     */
+    public EnumerablePartitionedHashJoin(RelOptCluster cluster, RelTraitSet traits, RelNode left, RelNode right,
+                                         RelDataType rowType, int[] leftKeys, int[] rightKeys, int threads) {
+        super(cluster, traits, left, right);
+        this.rowType = rowType;
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+        this.threads = threads;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new EnumerablePartitionedHashJoin(getCluster(), traitSet, inputs.get(0), inputs.get(1), rowType,
+                leftKeys, rightKeys, threads);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("leftKeys", Arrays.toString(leftKeys))
+                .item("rightKeys", Arrays.toString(rightKeys))
+                .item("threads", threads);
+    }
+
+    /**
+     * The same as any inner equi-join: the product of the inputs, divided by the larger number of distinct keys.
+     */
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        double leftRows = mq.getRowCount(getLeft());
+        double rightRows = mq.getRowCount(getRight());
+        Double leftDistinct = mq.getDistinctRowCount(getLeft(), ImmutableBitSet.of(leftKeys), null);
+        Double rightDistinct = mq.getDistinctRowCount(getRight(), ImmutableBitSet.of(rightKeys), null);
+        double distinct = Math.max(leftDistinct == null ? leftRows : leftDistinct,
+                rightDistinct == null ? rightRows : rightDistinct);
+        return distinct <= 0 ? 0 : leftRows * rightRows / distinct;
+    }
+
+    /**
+     * Every input row is hashed, copied into its partition and then built or probed, but that work is split over the
+     * threads.
+     */
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        double inputRows = mq.getRowCount(getLeft()) + mq.getRowCount(getRight());
+        return planner.getCostFactory().makeCost(estimateRowCount(mq) + inputRows / threads, inputRows / threads, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        var builder = new BlockBuilder();
+        Expression left = input(implementor, builder, 0, "left");
+        Expression right = input(implementor, builder, 1, "right");
+
+        var join = new PartitionedHashJoin(leftKeys, rightKeys, threads);
+        Expression joinExpression = implementor.stash(join, PartitionedHashJoin.class);
+        builder.add(Expressions.return_(null, Expressions.call(joinExpression, "join", left, right)));
+
+        // Don't let the format be "optimized" to a scalar for a single column. The rows are always arrays.
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY, false);
+        return implementor.result(physType, builder.toBlock());
+    }
+
+    private Expression input(EnumerableRelImplementor implementor, BlockBuilder builder, int ordinal, String name) {
+        Result result = implementor.visitChild(this, ordinal, (EnumerableRel) getInput(ordinal), Prefer.ARRAY);
+        Expression input = builder.append(name, result.block);
+        // The keys are read by position, so the rows need to be arrays
+        input = result.physType.convertTo(input, JavaRowFormat.ARRAY);
+        // The static type of the expression might be a subtype (like "Interpreter"). The method is looked up by type.
+        return Expressions.convert_(input, Enumerable.class);
+    }
+}
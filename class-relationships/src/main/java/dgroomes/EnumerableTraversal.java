@@ -0,0 +1,113 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.AbstractRelNode;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A breadth-first traversal of the class-to-class graph, from one class out to some number of edges. It's a leaf: it
+ * produces rows of (NAME, DEPTH), one for each class reached, and other relational operators can take it from there.
+ * <p>
+ * The graph is a {@link ClassAdjacency}, referenced directly like a table scan references its table. The same question
+ * asked relationally is a recursive query that joins the reached classes to the edges once per level. This does the
+ * whole search on the CSR arrays instead.
+ * <p>
+ * The code that this generates just calls {@link ClassAdjacency#traverse}.
+ */
+public class EnumerableTraversal extends AbstractRelNode implements EnumerableRel {
+
+    private final RelOptTable graph;
+    private final String start;
+    private final int maxDepth;
+
+    public EnumerableTraversal(RelOptCluster cluster, RelTraitSet traits, RelOptTable graph, String start, int maxDepth) {
+        super(cluster, traits);
+        this.graph = graph;
+        this.start = start;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param graph a table that is a {@link ClassAdjacency} (for example, the table of a scan of "CLASS_EDGES")
+     */
+    public static EnumerableTraversal create(RelOptCluster cluster, RelOptTable graph, String start, int maxDepth) {
+        requireNonNull(graph.unwrap(ClassAdjacency.class), "The table is not a class adjacency graph");
+        return new EnumerableTraversal(cluster, cluster.traitSetOf(EnumerableConvention.INSTANCE), graph, start, maxDepth);
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new EnumerableTraversal(getCluster(), traitSet, graph, start, maxDepth);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        var typeFactory = getCluster().getTypeFactory();
+        return typeFactory.builder()
+                .add("NAME", SqlTypeName.VARCHAR)
+                .add("DEPTH", SqlTypeName.INTEGER)
+                .build();
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("graph", graph.getQualifiedName())
+                .item("start", start)
+                .item("maxDepth", maxDepth);
+    }
+
+    /**
+     * The average number of edges per class, to the power of the depth, but no more than the number of classes.
+     */
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        var adjacency = requireNonNull(graph.unwrap(ClassAdjacency.class));
+        double fanOut = (double) adjacency.edgeCount() / Math.max(1, adjacency.classCount());
+        return Math.min(adjacency.classCount(), Math.pow(Math.max(1, fanOut), maxDepth));
+    }
+
+    /**
+     * Each class reached is visited once, and each of its edges is looked at once.
+     */
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        var adjacency = requireNonNull(graph.unwrap(ClassAdjacency.class));
+        double rows = estimateRowCount(mq);
+        double fanOut = (double) adjacency.edgeCount() / Math.max(1, adjacency.classCount());
+        return planner.getCostFactory().makeCost(rows, rows * fanOut, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        var builder = new BlockBuilder();
+        var adjacency = requireNonNull(graph.unwrap(ClassAdjacency.class));
+        Expression adjacencyExpression = implementor.stash(adjacency, ClassAdjacency.class);
+        builder.add(Expressions.return_(null, Expressions.call(adjacencyExpression, "traverse",
+                Expressions.constant(start), Expressions.constant(maxDepth))));
+
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY, false);
+        return implementor.result(physType, builder.toBlock());
+    }
+}
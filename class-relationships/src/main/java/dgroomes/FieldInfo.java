@@ -13,9 +13,16 @@ public class FieldInfo {
      */
     public final String OWNINGCLASSNAME;
 
-    public FieldInfo(String NAME, ClassInfo owningClass) {
+    /**
+     * The class of the field's type, if it's in the data set, or {@code null}. See {@link MethodInfo#parameterClasses}
+     * for the rules.
+     */
+    public final ClassInfo typeClass;
+
+    public FieldInfo(String NAME, ClassInfo owningClass, ClassInfo typeClass) {
         this.NAME = NAME;
         this.owningClass = owningClass;
         OWNINGCLASSNAME = owningClass.NAME;
+        this.typeClass = typeClass;
     }
 }
@@ -0,0 +1,74 @@
+package dgroomes;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hash index on one column of a {@link TableOverEnumerable}. It maps each value of the column to the positions of
+ * the rows that have that value.
+ * <p>
+ * The index is built once, when the table is created, and the table never changes after that, so the index never needs
+ * to be maintained. Null values aren't indexed, because nothing is equal to null.
+ */
+public final class HashIndex {
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final int column;
+    private final Map<Object, int[]> positionsByValue;
+    private final boolean unique;
+
+    private HashIndex(int column, Map<Object, int[]> positionsByValue, boolean unique) {
+        this.column = column;
+        this.positionsByValue = positionsByValue;
+        this.unique = unique;
+    }
+
+    /**
+     * @param rowMaker a method handle from {@link RowAdapter#rowMaker(int[])} that makes a row of just the indexed
+     *                 column
+     */
+    static HashIndex build(List<?> rows, int column, MethodHandle rowMaker) {
+        var builder = new HashMap<Object, List<Integer>>();
+        for (int position = 0; position < rows.size(); position++) {
+            Object value = RowAdapter.row(rowMaker, rows.get(position))[0];
+            if (value == null) continue;
+            builder.computeIfAbsent(value, key -> new ArrayList<>(1)).add(position);
+        }
+
+        var positionsByValue = new HashMap<Object, int[]>(builder.size() * 4 / 3 + 1);
+        boolean unique = true;
+        for (var entry : builder.entrySet()) {
+            var positions = entry.getValue();
+            if (positions.size() > 1) unique = false;
+            positionsByValue.put(entry.getKey(), positions.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new HashIndex(column, positionsByValue, unique);
+    }
+
+    public int column() {
+        return column;
+    }
+
+    /**
+     * @return whether every value is in at most one row
+     */
+    public boolean unique() {
+        return unique;
+    }
+
+    public int distinctValues() {
+        return positionsByValue.size();
+    }
+
+    /**
+     * @return the positions of the rows with the value, in the order of the rows
+     */
+    public int[] lookup(Object value) {
+        if (value == null) return NO_POSITIONS;
+        return positionsByValue.getOrDefault(value, NO_POSITIONS);
+    }
+}
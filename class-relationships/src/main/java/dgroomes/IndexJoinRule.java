@@ -0,0 +1,120 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableTableScan;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.logical.LogicalJoin;
+import org.apache.calcite.rel.logical.LogicalTableScan;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.tools.RelBuilderFactory;
+
+import java.util.ArrayList;
+
+/**
+ * A planner rule that turns an inner equi-join on one column into an {@link EnumerableIndexJoin} when one side of the
+ * join is a plain scan of a {@link TableOverEnumerable} that has a {@link HashIndex} on its join column.
+ * <p>
+ * The ordinary enumerable join (a hash join or a merge join) builds a hash table over one side, or sorts both sides,
+ * for every execution. With the index, there is nothing to build. The other side of the join is just probed row by row.
+ * <p>
+ * The rule comes in two instances, for the indexed table on the right and on the left. It only matches a scan that reads
+ * the whole table; the index join produces whole rows of the indexed table, and the planner can project columns away
+ * afterward.
+ * <p>
+ * The index has no entry for null, so the rule leaves a join on {@code IS NOT DISTINCT FROM} (where null matches null)
+ * alone.
+ * <p>
+ * Calcite's JDBC driver doesn't know about this rule. {@link ClassRelationshipsRunner} adds it to the planners of its
+ * connection.
+ */
+public class IndexJoinRule extends RelRule<IndexJoinRule.Config> {
+
+    public static final IndexJoinRule INDEX_ON_RIGHT = Config.of(false).toRule();
+    public static final IndexJoinRule INDEX_ON_LEFT = Config.of(true).toRule();
+
+    protected IndexJoinRule(Config config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalJoin join = call.rel(0);
+        boolean indexOnLeft = config.indexOnLeft();
+        TableScan scan = call.rel(indexOnLeft ? 1 : 2);
+        if (join.getJoinType() != JoinRelType.INNER) return;
+        if (!(scan instanceof LogicalTableScan) && !(scan instanceof EnumerableTableScan)) return;
+
+        var table = scan.getTable().unwrap(TableOverEnumerable.class);
+        if (table == null) return;
+
+        var leftKeys = new ArrayList<Integer>();
+        var rightKeys = new ArrayList<Integer>();
+        var filterNulls = new ArrayList<Boolean>();
+        RexNode remaining = RelOptUtil.splitJoinCondition(join.getLeft(), join.getRight(), join.getCondition(),
+                leftKeys, rightKeys, filterNulls);
+        if (!remaining.isAlwaysTrue() || leftKeys.size() != 1 || !filterNulls.get(0)) return;
+        int indexColumn = indexOnLeft ? leftKeys.get(0) : rightKeys.get(0);
+        int probeKey = indexOnLeft ? rightKeys.get(0) : leftKeys.get(0);
+        if (table.index(indexColumn) == null) return;
+
+        RelNode probe = indexOnLeft ? join.getRight() : join.getLeft();
+        var traits = join.getTraitSet().replace(EnumerableConvention.INSTANCE);
+        RelNode enumerableProbe = convert(probe, probe.getTraitSet().replace(EnumerableConvention.INSTANCE));
+        call.transformTo(new EnumerableIndexJoin(join.getCluster(), traits, enumerableProbe, scan.getTable(),
+                join.getRowType(), probeKey, indexColumn, indexOnLeft));
+
+        // The join emits its rows in the order of the probe rows. If the probe is sorted by its key, then the output
+        // is sorted by the key, and so by the indexed column too (they're equal). Offer that variant as well. When
+        // the probe is a table that is already in that order (see TableStatistics), the planner can use it to drop a
+        // sort on the indexed column above the join.
+        int leftFieldCount = join.getLeft().getRowType().getFieldCount();
+        int indexColumnOutput = indexOnLeft ? indexColumn : leftFieldCount + indexColumn;
+        RelNode sortedProbe = convert(probe, probe.getTraitSet().replace(EnumerableConvention.INSTANCE)
+                .replace(RelCollations.of(probeKey)));
+        call.transformTo(new EnumerableIndexJoin(join.getCluster(), traits.replace(RelCollations.of(indexColumnOutput)), sortedProbe, scan.getTable(),
+                join.getRowType(), probeKey, indexColumn, indexOnLeft));
+    }
+
+    /**
+     * @param indexOnLeft whether to match the indexed table as the left input of the join (otherwise the right)
+     */
+    public record Config(RelBuilderFactory relBuilderFactory, String description, OperandTransform operandSupplier,
+                         boolean indexOnLeft) implements RelRule.Config {
+
+        static Config of(boolean indexOnLeft) {
+            OperandTransform scan = b -> b.operand(TableScan.class).noInputs();
+            OperandTransform any = b -> b.operand(RelNode.class).anyInputs();
+            OperandTransform operands = b -> b.operand(LogicalJoin.class)
+                    .inputs(indexOnLeft ? scan : any, indexOnLeft ? any : scan);
+            return new Config(RelFactories.LOGICAL_BUILDER,
+                    "IndexJoinRule(" + (indexOnLeft ? "left" : "right") + ")", operands, indexOnLeft);
+        }
+
+        @Override
+        public IndexJoinRule toRule() {
+            return new IndexJoinRule(this);
+        }
+
+        @Override
+        public Config withRelBuilderFactory(RelBuilderFactory relBuilderFactory) {
+            return new Config(relBuilderFactory, description, operandSupplier, indexOnLeft);
+        }
+
+        @Override
+        public Config withDescription(String description) {
+            return new Config(relBuilderFactory, description, operandSupplier, indexOnLeft);
+        }
+
+        @Override
+        public Config withOperandSupplier(OperandTransform operandSupplier) {
+            return new Config(relBuilderFactory, description, operandSupplier, indexOnLeft);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package dgroomes;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -8,11 +7,29 @@ import java.util.List;
  */
 public class MethodInfo {
     public final String name;
-    public final List<ClassInfo> parameterClasses = new ArrayList<>();
+    public final ClassInfo owningClass;
+
+    /**
+     * See {@link FieldInfo#OWNINGCLASSNAME}.
+     */
+    public final String OWNINGCLASSNAME;
+
+    /**
+     * The classes of the parameters that are in the data set, in order. A parameter of a primitive type, or of a class
+     * that wasn't scanned, has no class to refer to, so it's left out. An array parameter refers to its element class.
+     */
+    public final List<ClassInfo> parameterClasses;
+
+    /**
+     * The return class, with the same rules as the parameter classes, or {@code null}.
+     */
     public final ClassInfo returnClass;
 
-    public MethodInfo(String name, ClassInfo returnClass) {
+    public MethodInfo(String name, ClassInfo owningClass, List<ClassInfo> parameterClasses, ClassInfo returnClass) {
         this.name = name;
+        this.owningClass = owningClass;
+        OWNINGCLASSNAME = owningClass.NAME;
+        this.parameterClasses = List.copyOf(parameterClasses);
         this.returnClass = returnClass;
     }
 }
@@ -0,0 +1,28 @@
+package dgroomes;
+
+import java.lang.foreign.Arena;
+
+/**
+ * The memory that {@link OffHeapTable}s are allocated from. It's all freed at once when this is closed, and the tables
+ * can't be used after that.
+ * <p>
+ * The Foreign Function & Memory API is a preview API in Java 21, and only a class that uses it needs
+ * {@code --enable-preview} to be loaded. This class and {@link OffHeapTable} are the only ones that use it, so the
+ * other storage modes never load a preview class.
+ */
+public final class OffHeapMemory implements AutoCloseable {
+
+    /**
+     * A shared arena, because a table may be scanned from more than one thread.
+     */
+    private final Arena arena = Arena.ofShared();
+
+    Arena arena() {
+        return arena;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,400 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.SqlKind;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A table that stores its data by column, off the Java heap, in {@link MemorySegment}s. This is the off-heap
+ * counterpart of {@link ColumnarTable}. See {@link #of}.
+ * <p>
+ * The garbage collector has to trace every object on the heap, so a table of tens of millions of row objects makes for
+ * long pauses, and the heap has to be sized at a multiple of the data. Memory that's allocated from an {@link Arena} is
+ * not on the heap. The collector never looks at it, and it is freed all at once when the arena is closed (see
+ * {@link OffHeapMemory}). Each field of
+ * the objects becomes a column:
+ * <ul>
+ *     <li>{@code int}, {@code long}, {@code double} and {@code boolean} fields are stored as fixed-width values</li>
+ *     <li>{@code String} fields are stored as UTF-8 bytes. Each distinct string is stored once, and each row has the
+ *     offset and the length of its string (a length of -1 is null).</li>
+ *     <li>any other field (like a reference to another object) can't leave the heap. Each distinct value is kept once
+ *     in a pool on the heap, and each row has the position of its value in the pool. A column like
+ *     {@code FieldInfo.owningClass} has as many distinct values as there are classes, not as there are fields.</li>
+ * </ul>
+ * So the heap holds a few objects per column, however many rows there are.
+ * <p>
+ * A scan still has to hand Calcite an {@code Object[]} per row. But it only makes one for the rows that get past the
+ * filters that it understands ("column = literal", "column IS NULL" and "column IS NOT NULL"). Those are checked against
+ * the off-heap bytes directly, so a row that doesn't match isn't turned into objects at all. (The filters stay in the
+ * list, so Calcite checks them again on the rows that do match.) Strings are decoded only for the projected columns.
+ */
+public final class OffHeapTable extends AbstractTable implements ProjectableFilterableTable {
+
+    private static final int NULL_LENGTH = -1;
+    private static final int NULL_REFERENCE = -1;
+
+    private sealed interface Column permits IntColumn, LongColumn, DoubleColumn, BooleanColumn, StringColumn, ReferenceColumn {
+        Object get(long row);
+    }
+
+    private record IntColumn(MemorySegment values) implements Column {
+        public Object get(long row) {
+            return values.getAtIndex(ValueLayout.JAVA_INT, row);
+        }
+    }
+
+    private record LongColumn(MemorySegment values) implements Column {
+        public Object get(long row) {
+            return values.getAtIndex(ValueLayout.JAVA_LONG, row);
+        }
+    }
+
+    private record DoubleColumn(MemorySegment values) implements Column {
+        public Object get(long row) {
+            return values.getAtIndex(ValueLayout.JAVA_DOUBLE, row);
+        }
+    }
+
+    private record BooleanColumn(MemorySegment values) implements Column {
+        public Object get(long row) {
+            return values.get(ValueLayout.JAVA_BYTE, row) != 0;
+        }
+    }
+
+    /**
+     * @param offsets the offset of each row's string in "bytes"
+     * @param lengths the length of each row's string in bytes, or {@link #NULL_LENGTH}
+     * @param bytes   the UTF-8 bytes of the distinct strings
+     */
+    private record StringColumn(MemorySegment offsets, MemorySegment lengths, MemorySegment bytes) implements Column {
+        public Object get(long row) {
+            int length = lengths.getAtIndex(ValueLayout.JAVA_INT, row);
+            if (length == NULL_LENGTH) return null;
+            var utf8 = new byte[length];
+            MemorySegment.copy(bytes, ValueLayout.JAVA_BYTE, offsets.getAtIndex(ValueLayout.JAVA_LONG, row), utf8, 0, length);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Compare without decoding: a different length is a different string, and otherwise the bytes are compared.
+         */
+        boolean equals(long row, MemorySegment utf8) {
+            int length = lengths.getAtIndex(ValueLayout.JAVA_INT, row);
+            if (length != utf8.byteSize()) return false;
+            long offset = offsets.getAtIndex(ValueLayout.JAVA_LONG, row);
+            return MemorySegment.mismatch(bytes, offset, offset + length, utf8, 0, length) == -1;
+        }
+    }
+
+    /**
+     * @param ids  the position of each row's value in the pool, or {@link #NULL_REFERENCE}
+     * @param pool the distinct values, on the heap
+     */
+    private record ReferenceColumn(MemorySegment ids, Object[] pool) implements Column {
+        public Object get(long row) {
+            int id = ids.getAtIndex(ValueLayout.JAVA_INT, row);
+            return id == NULL_REFERENCE ? null : pool[id];
+        }
+    }
+
+    private final Class<?> elementType;
+    private final int rowCount;
+    private final Column[] columns;
+    private final long byteSize;
+
+    private OffHeapTable(Class<?> elementType, int rowCount, Column[] columns, long byteSize) {
+        this.elementType = elementType;
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * Transpose a list of objects into off-heap columns. The list isn't needed after this.
+     * <p>
+     * Unlike the other tables, this one isn't made with a factory method on {@link TableOverEnumerable}. Calcite looks
+     * at the methods of the classes in a schema, which would load {@link OffHeapMemory} (and so need
+     * {@code --enable-preview} on Java 21) in every storage mode.
+     *
+     * @param memory the memory to allocate the columns from. The table can't be used after it's closed.
+     */
+    public static <T> OffHeapTable of(List<T> rows, Class<T> elementType, OffHeapMemory memory) {
+        requireNonNull(rows);
+        Arena arena = memory.arena();
+        var rowAdapter = new RowAdapter(elementType);
+        int fieldCount = rowAdapter.fieldCount();
+        int rowCount = rows.size();
+
+        // The rows are read once into a column of values at a time. That's a transient array per column instead of all
+        // the columns of all the rows at once.
+        var columns = new Column[fieldCount];
+        long byteSize = 0;
+        for (int c = 0; c < fieldCount; c++) {
+            var rowMaker = rowAdapter.rowMaker(new int[]{c});
+            var values = new Object[rowCount];
+            for (int r = 0; r < rowCount; r++) values[r] = RowAdapter.row(rowMaker, rows.get(r))[0];
+
+            Class<?> type = rowAdapter.field(c).getType();
+            Column column;
+            if (type == int.class) {
+                var segment = allocateArray(arena, ValueLayout.JAVA_INT, rowCount);
+                for (int r = 0; r < rowCount; r++) segment.setAtIndex(ValueLayout.JAVA_INT, r, (Integer) values[r]);
+                column = new IntColumn(segment);
+            } else if (type == long.class) {
+                var segment = allocateArray(arena, ValueLayout.JAVA_LONG, rowCount);
+                for (int r = 0; r < rowCount; r++) segment.setAtIndex(ValueLayout.JAVA_LONG, r, (Long) values[r]);
+                column = new LongColumn(segment);
+            } else if (type == double.class) {
+                var segment = allocateArray(arena, ValueLayout.JAVA_DOUBLE, rowCount);
+                for (int r = 0; r < rowCount; r++) segment.setAtIndex(ValueLayout.JAVA_DOUBLE, r, (Double) values[r]);
+                column = new DoubleColumn(segment);
+            } else if (type == boolean.class) {
+                var segment = allocateArray(arena, ValueLayout.JAVA_BYTE, rowCount);
+                for (int r = 0; r < rowCount; r++) segment.set(ValueLayout.JAVA_BYTE, r, (byte) ((Boolean) values[r] ? 1 : 0));
+                column = new BooleanColumn(segment);
+            } else if (type == String.class) {
+                column = stringColumn(values, arena);
+            } else {
+                column = referenceColumn(values, arena);
+            }
+            columns[c] = column;
+            byteSize += switch (column) {
+                case IntColumn col -> col.values().byteSize();
+                case LongColumn col -> col.values().byteSize();
+                case DoubleColumn col -> col.values().byteSize();
+                case BooleanColumn col -> col.values().byteSize();
+                case StringColumn col -> col.offsets().byteSize() + col.lengths().byteSize() + col.bytes().byteSize();
+                case ReferenceColumn col -> col.ids().byteSize();
+            };
+        }
+        return new OffHeapTable(elementType, rowCount, columns, byteSize);
+    }
+
+    /**
+     * Allocate an array of the layout. {@code Arena.allocateArray} is only in the preview API of Java 21 (it's
+     * {@code allocate(layout, count)} in the final API of Java 22), so this uses the allocation by size, which is in both.
+     */
+    private static MemorySegment allocateArray(Arena arena, ValueLayout layout, long count) {
+        return arena.allocate(layout.byteSize() * count, layout.byteAlignment());
+    }
+
+    private static StringColumn stringColumn(Object[] values, Arena arena) {
+        // Number the distinct strings, and then write the bytes of each one once
+        var idsByString = new HashMap<String, Integer>();
+        var distinct = new ArrayList<byte[]>();
+        for (Object value : values) {
+            if (value == null) continue;
+            idsByString.computeIfAbsent((String) value, key -> {
+                distinct.add(key.getBytes(StandardCharsets.UTF_8));
+                return distinct.size() - 1;
+            });
+        }
+        var distinctOffsets = new long[distinct.size()];
+        long size = 0;
+        for (int i = 0; i < distinct.size(); i++) {
+            distinctOffsets[i] = size;
+            size += distinct.get(i).length;
+        }
+        var bytes = arena.allocate(Math.max(1, size));
+        for (int i = 0; i < distinct.size(); i++) {
+            byte[] utf8 = distinct.get(i);
+            MemorySegment.copy(utf8, 0, bytes, ValueLayout.JAVA_BYTE, distinctOffsets[i], utf8.length);
+        }
+
+        var offsets = allocateArray(arena, ValueLayout.JAVA_LONG, values.length);
+        var lengths = allocateArray(arena, ValueLayout.JAVA_INT, values.length);
+        for (int r = 0; r < values.length; r++) {
+            if (values[r] == null) {
+                lengths.setAtIndex(ValueLayout.JAVA_INT, r, NULL_LENGTH);
+                continue;
+            }
+            int id = idsByString.get((String) values[r]);
+            offsets.setAtIndex(ValueLayout.JAVA_LONG, r, distinctOffsets[id]);
+            lengths.setAtIndex(ValueLayout.JAVA_INT, r, distinct.get(id).length);
+        }
+        return new StringColumn(offsets, lengths, bytes);
+    }
+
+    private static ReferenceColumn referenceColumn(Object[] values, Arena arena) {
+        var idsByValue = new HashMap<Object, Integer>();
+        var pool = new ArrayList<>();
+        var ids = allocateArray(arena, ValueLayout.JAVA_INT, values.length);
+        for (int r = 0; r < values.length; r++) {
+            Object value = values[r];
+            int id = value == null ? NULL_REFERENCE : idsByValue.computeIfAbsent(value, key -> {
+                pool.add(key);
+                return pool.size() - 1;
+            });
+            ids.setAtIndex(ValueLayout.JAVA_INT, r, id);
+        }
+        return new ReferenceColumn(ids, pool.toArray());
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the off-heap bytes of the columns. The pools of the reference columns are on the heap and not counted.
+     */
+    public long byteSize() {
+        return byteSize;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return ((JavaTypeFactory) typeFactory).createType(elementType);
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        return Statistics.of(rowCount, List.of());
+    }
+
+    /**
+     * Read the projected columns of the rows that pass the filters that can be checked off-heap. All the filters are
+     * left in the list for Calcite.
+     */
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects) {
+        int[] finalProjects = projects != null ? projects : RowAdapter.identity(columns.length);
+        var predicates = new ArrayList<RowPredicate>();
+        for (RexNode filter : filters) {
+            RowPredicate predicate = predicate(filter);
+            if (predicate != null) predicates.add(predicate);
+        }
+        var finalPredicates = predicates.toArray(new RowPredicate[0]);
+        return new AbstractEnumerable<>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new ColumnEnumerator(finalProjects, finalPredicates);
+            }
+        };
+    }
+
+    private interface RowPredicate {
+        boolean test(long row);
+    }
+
+    /**
+     * @return a check of the filter against the off-heap columns, or {@code null} if it's not a filter that this
+     * understands
+     */
+    private @Nullable RowPredicate predicate(RexNode filter) {
+        if (!(filter instanceof RexCall call)) return null;
+        var operands = call.getOperands();
+
+        if (filter.isA(SqlKind.IS_NULL) || filter.isA(SqlKind.IS_NOT_NULL)) {
+            if (!(operands.get(0) instanceof RexInputRef inputRef)) return null;
+            Column column = columns[inputRef.getIndex()];
+            boolean isNull = filter.isA(SqlKind.IS_NULL);
+            return switch (column) {
+                case StringColumn col -> row -> (col.lengths().getAtIndex(ValueLayout.JAVA_INT, row) == NULL_LENGTH) == isNull;
+                case ReferenceColumn col -> row -> (col.ids().getAtIndex(ValueLayout.JAVA_INT, row) == NULL_REFERENCE) == isNull;
+                // The primitive columns are never null
+                default -> row -> !isNull;
+            };
+        }
+
+        if (!filter.isA(SqlKind.EQUALS)) return null;
+        RexNode left = operands.get(0);
+        RexNode right = operands.get(1);
+        if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            var swap = left;
+            left = right;
+            right = swap;
+        }
+        // Only a bare column and a literal of its type, like for the point lookups of TableOverEnumerable. A cast of the
+        // column compares other values than the ones in the column.
+        if (!(left instanceof RexInputRef inputRef) || !(right instanceof RexLiteral literal)) return null;
+
+        return switch (columns[inputRef.getIndex()]) {
+            case StringColumn col -> {
+                if (!(TableOverEnumerable.literalValue(literal, String.class) instanceof String value)) yield null;
+                var utf8 = MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+                yield row -> col.equals(row, utf8);
+            }
+            case IntColumn col -> {
+                if (!(TableOverEnumerable.literalValue(literal, int.class) instanceof Integer value)) yield null;
+                int finalValue = value;
+                yield row -> col.values().getAtIndex(ValueLayout.JAVA_INT, row) == finalValue;
+            }
+            case LongColumn col -> {
+                if (!(TableOverEnumerable.literalValue(literal, long.class) instanceof Long value)) yield null;
+                long finalValue = value;
+                yield row -> col.values().getAtIndex(ValueLayout.JAVA_LONG, row) == finalValue;
+            }
+            default -> null;
+        };
+    }
+
+    private final class ColumnEnumerator implements Enumerator<Object[]> {
+
+        private final int[] projects;
+        private final RowPredicate[] predicates;
+        private long row = -1;
+        private Object[] current;
+
+        ColumnEnumerator(int[] projects, RowPredicate[] predicates) {
+            this.projects = projects;
+            this.predicates = predicates;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (++row < rowCount) {
+                if (!matches(row)) continue;
+                var values = new Object[projects.length];
+                for (int i = 0; i < projects.length; i++) values[i] = columns[projects[i]].get(row);
+                current = values;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean matches(long row) {
+            for (RowPredicate predicate : predicates) {
+                if (!predicate.test(row)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            row = -1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
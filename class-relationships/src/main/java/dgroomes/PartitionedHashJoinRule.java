@@ -0,0 +1,103 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.logical.LogicalJoin;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.tools.RelBuilderFactory;
+
+import java.util.ArrayList;
+
+/**
+ * A planner rule that turns an inner equi-join of two big inputs into an {@link EnumerablePartitionedHashJoin}.
+ * <p>
+ * Splitting a join over threads has a fixed cost (the inputs are read into memory and copied into partitions, and the
+ * tasks have to be handed out), so it only pays off when there are enough rows. The rule asks the planner for the row
+ * counts of the inputs, which come from the table statistics (see {@link TableStatistics}), and only matches when the
+ * two together are at least the threshold. Below that, the ordinary single-threaded joins are left alone. Above it,
+ * both are offered and the costs decide. An {@link EnumerableIndexJoin} is usually still cheaper, because it has
+ * nothing to build.
+ * <p>
+ * Calcite's JDBC driver doesn't know about this rule. {@link ClassRelationshipsRunner} adds it to the planners of its
+ * connection.
+ */
+public class PartitionedHashJoinRule extends RelRule<PartitionedHashJoinRule.Config> {
+
+    protected PartitionedHashJoinRule(Config config) {
+        super(config);
+    }
+
+    /**
+     * @param threshold the fewest input rows (left plus right) for the rule to match
+     * @param threads   the number of threads to join with
+     */
+    public static PartitionedHashJoinRule of(double threshold, int threads) {
+        return Config.of(threshold, threads).toRule();
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalJoin join = call.rel(0);
+        if (join.getJoinType() != JoinRelType.INNER) return;
+
+        // The partitioned hash join drops the rows with a null key, which is only right for keys that are compared
+        // with "=". A key compared with IS NOT DISTINCT FROM has null match null.
+        var leftKeys = new ArrayList<Integer>();
+        var rightKeys = new ArrayList<Integer>();
+        var filterNulls = new ArrayList<Boolean>();
+        RexNode remaining = RelOptUtil.splitJoinCondition(join.getLeft(), join.getRight(), join.getCondition(),
+                leftKeys, rightKeys, filterNulls);
+        if (!remaining.isAlwaysTrue() || leftKeys.isEmpty() || filterNulls.contains(false)) return;
+
+        var mq = call.getMetadataQuery();
+        double inputRows = mq.getRowCount(join.getLeft()) + mq.getRowCount(join.getRight());
+        if (inputRows < config.threshold()) return;
+
+        // The rows come out grouped by partition, so the join makes no promise about their order
+        var traits = join.getTraitSet().replace(EnumerableConvention.INSTANCE).replace(RelCollations.EMPTY);
+        RelNode left = convert(join.getLeft(), join.getLeft().getTraitSet().replace(EnumerableConvention.INSTANCE));
+        RelNode right = convert(join.getRight(), join.getRight().getTraitSet().replace(EnumerableConvention.INSTANCE));
+        call.transformTo(new EnumerablePartitionedHashJoin(join.getCluster(), traits, left, right, join.getRowType(),
+                leftKeys.stream().mapToInt(Integer::intValue).toArray(),
+                rightKeys.stream().mapToInt(Integer::intValue).toArray(), config.threads()));
+    }
+
+    /**
+     * @param threshold the fewest input rows (left plus right) for the rule to match
+     * @param threads   the number of threads to join with
+     */
+    public record Config(RelBuilderFactory relBuilderFactory, String description, OperandTransform operandSupplier,
+                         double threshold, int threads) implements RelRule.Config {
+
+        static Config of(double threshold, int threads) {
+            OperandTransform operands = b -> b.operand(LogicalJoin.class).anyInputs();
+            return new Config(RelFactories.LOGICAL_BUILDER, "PartitionedHashJoinRule", operands, threshold, threads);
+        }
+
+        @Override
+        public PartitionedHashJoinRule toRule() {
+            return new PartitionedHashJoinRule(this);
+        }
+
+        @Override
+        public Config withRelBuilderFactory(RelBuilderFactory relBuilderFactory) {
+            return new Config(relBuilderFactory, description, operandSupplier, threshold, threads);
+        }
+
+        @Override
+        public Config withDescription(String description) {
+            return new Config(relBuilderFactory, description, operandSupplier, threshold, threads);
+        }
+
+        @Override
+        public Config withOperandSupplier(OperandTransform operandSupplier) {
+            return new Config(relBuilderFactory, description, operandSupplier, threshold, threads);
+        }
+    }
+}
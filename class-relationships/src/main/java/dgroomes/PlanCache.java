@@ -0,0 +1,302 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.tools.RelRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of the prepared statements of the queries that {@link ClassRelationshipsRunner} runs over and over, so that
+ * Calcite doesn't parse, optimize and compile them with Janino for each run. It is an LRU cache of a fixed size, keyed by
+ * the query (the normalized SQL text, or the digest of a relational expression) and the version of the schema.
+ * <p>
+ * The class-relationships schema is built once and never changes, so the runner passes a constant version. A prepared
+ * statement can only run one execution at a time, so a query whose plan is executing on another thread (or on this
+ * thread, further up the stack, when a row handler runs the same query) is prepared from scratch instead ("busy").
+ */
+public class PlanCache implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PlanCache.class);
+
+    /**
+     * @param hits      executions that reused a cached plan
+     * @param misses    executions that had to compile a plan
+     * @param busy      executions that compiled a throwaway plan because the cached one was executing
+     * @param evictions plans that were evicted to make room for others
+     */
+    public record Stats(long hits, long misses, long busy, long evictions) {}
+
+    private record Key(String query, long schemaVersion) {}
+
+    private static final class Entry {
+        final PreparedStatement statement;
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Set when the entry is evicted. If its statement is executing then (on another thread, or on the evicting thread
+         * further up the stack), the thread that is executing it closes it when it's done. See {@link #closeAll}.
+         */
+        volatile boolean evicted;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Handles each row of a result set. The result set is positioned on the row.
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        void handle(ResultSet resultSet) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface Preparer {
+        PreparedStatement prepare() throws SQLException;
+    }
+
+    private final CalciteConnection connection;
+    private final int capacity;
+    private final LongSupplier schemaVersion;
+
+    /**
+     * Guarded by itself. The map is in access order, which makes its iteration order least-recently-used first.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity      the maximum number of plans to keep
+     * @param schemaVersion the current version of the schema that the queries run against. Use a constant if the
+     *                      schema never changes.
+     */
+    public PlanCache(CalciteConnection connection, int capacity, LongSupplier schemaVersion) {
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1 but was %d".formatted(capacity));
+        this.connection = connection;
+        this.capacity = capacity;
+        this.schemaVersion = schemaVersion;
+    }
+
+    /**
+     * Execute a SQL query, with a cached plan if there is one.
+     */
+    public int query(String sql, RowHandler rowHandler) throws SQLException {
+        var key = new Key("sql:" + normalize(sql), schemaVersion.getAsLong());
+        return query(key, () -> connection.prepareStatement(sql), rowHandler);
+    }
+
+    /**
+     * Execute a relational expression, with a cached plan if there is one.
+     */
+    public int query(RelNode relNode, RowHandler rowHandler) throws SQLException {
+        var key = new Key("rel:" + RelOptUtil.toString(relNode, SqlExplainLevel.DIGEST_ATTRIBUTES), schemaVersion.getAsLong());
+        return query(key, () -> {
+            RelRunner relRunner = connection.unwrap(RelRunner.class);
+            return relRunner.prepareStatement(relNode);
+        }, rowHandler);
+    }
+
+    /**
+     * @return the number of rows
+     */
+    private int query(Key key, Preparer preparer, RowHandler rowHandler) throws SQLException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            long start = System.nanoTime();
+            entry = new Entry(preparer.prepare());
+            log.debug("Compiled a plan in {} ms for the query: {}", (System.nanoTime() - start) / 1_000_000, key.query());
+            entry = store(key, entry);
+        } else if (tryLock(entry)) {
+            try {
+                // It could have been evicted and closed since it was looked up
+                if (!entry.statement.isClosed() && !entry.evicted) {
+                    hits.incrementAndGet();
+                    return execute(entry.statement, rowHandler);
+                }
+            } finally {
+                unlock(entry);
+            }
+            misses.incrementAndGet();
+            try (var statement = preparer.prepare()) {
+                return execute(statement, rowHandler);
+            }
+        } else {
+            busy.incrementAndGet();
+            try (var statement = preparer.prepare()) {
+                return execute(statement, rowHandler);
+            }
+        }
+
+        // The entry that was just stored. It could already have been taken by another thread, or evicted and closed.
+        if (tryLock(entry)) {
+            try {
+                if (!entry.statement.isClosed() && !entry.evicted) return execute(entry.statement, rowHandler);
+            } finally {
+                unlock(entry);
+            }
+        }
+        try (var statement = preparer.prepare()) {
+            return execute(statement, rowHandler);
+        }
+    }
+
+    /**
+     * Lock the entry to execute its statement, unless another thread is executing it, or this thread is (a row handler
+     * that runs the same query).
+     */
+    private static boolean tryLock(Entry entry) {
+        return !entry.lock.isHeldByCurrentThread() && entry.lock.tryLock();
+    }
+
+    private static void unlock(Entry entry) {
+        entry.lock.unlock();
+        // Still executing further up the stack
+        if (entry.lock.isHeldByCurrentThread()) return;
+        if (entry.evicted) closeIfIdle(entry);
+    }
+
+    private static int execute(PreparedStatement statement, RowHandler rowHandler) throws SQLException {
+        int rowCount = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rowCount++;
+                rowHandler.handle(resultSet);
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * Store a new entry, evicting the least recently used entries to make room.
+     *
+     * @return the entry that is in the cache for the key. If another thread stored one first, that one wins.
+     */
+    private Entry store(Key key, Entry entry) {
+        var evicted = new ArrayList<Entry>();
+        Entry stored;
+        synchronized (entries) {
+            var existing = entries.get(key);
+            if (existing != null) {
+                evicted.add(entry);
+                stored = existing;
+            } else {
+                var iterator = entries.entrySet().iterator();
+                while (entries.size() >= capacity && iterator.hasNext()) {
+                    var eldest = iterator.next();
+                    log.debug("Evicting the plan for the query: {}", eldest.getKey().query());
+                    evicted.add(eldest.getValue());
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+                entries.put(key, entry);
+                stored = entry;
+            }
+        }
+        closeAll(evicted);
+        return stored;
+    }
+
+    /**
+     * Close the statements. A statement that is executing is closed after its execution is done, by the thread that is
+     * executing it. This never waits for the lock of an entry: the execution that holds it could be running a row handler
+     * that waits for this thread.
+     * <p>
+     * The evicted flag is set before the lock is tried, and the executing thread checks the flag after it unlocks. So
+     * either this thread gets the lock, or the executing thread sees the flag (or both, and whichever gets the lock closes
+     * the statement).
+     */
+    private static void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.evicted = true;
+            closeIfIdle(entry);
+        }
+    }
+
+    private static void closeIfIdle(Entry entry) {
+        if (!entry.lock.tryLock()) return;
+        try {
+            // If this thread is executing the statement further up the stack, it's closed when that's done
+            if (entry.lock.getHoldCount() == 1) close(entry);
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.statement.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close a cached statement", e);
+        }
+    }
+
+    /**
+     * Collapse each run of whitespace outside of quotes (string literals and quoted identifiers) into a single space,
+     * and drop a trailing semicolon (and the whitespace before it).
+     */
+    static String normalize(String sql) {
+        var normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = !normalized.isEmpty();
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                // A doubled quote is an escaped quote. It closes and reopens the quoted text, which works out the same.
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ';') end--;
+        if (end > 0 && normalized.charAt(end - 1) == ' ') end--;
+        normalized.setLength(end);
+        return normalized.toString();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.get(), misses.get(), busy.get(), evictions.get());
+    }
+
+    @Override
+    public void close() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        closeAll(all);
+    }
+}
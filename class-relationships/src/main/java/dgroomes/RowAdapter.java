@@ -0,0 +1,133 @@
+package dgroomes;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns objects into rows ({@code Object[]}) for Calcite, without reflection in the per-row path.
+ * <p>
+ * The straightforward way to turn an object into a row is to call {@link Field#get(Object)} for each field. That does
+ * access checks and unwrapping on every call, and for a big table it dominates the profile. Instead, this looks up a
+ * getter {@link MethodHandle} for each field once, and then composes the getters into a single method handle per
+ * projection that takes an object and returns the row: the getters filter the arguments of an array collector, and
+ * the one object is spread to all of them. So a scan invokes one method handle per row and that method handle does
+ * plain field reads.
+ * <p>
+ * The composed method handle isn't a compile-time constant, but the JVM "customizes" a method handle that is invoked a
+ * lot (it compiles a version of its lambda form with the bound getters as constants) and then the JIT inlines the field
+ * reads. I would have liked to use {@link java.lang.invoke.LambdaMetafactory} to spin a real class, but it only takes
+ * method handles to methods, not to field getters.
+ * <p>
+ * The composed method handles are cached per projection.
+ */
+public final class RowAdapter {
+
+    /**
+     * An array collector can't take more arguments than this. A method handle can have at most 255 parameters and the
+     * collector counts as one.
+     */
+    private static final int MAX_COMPOSED_FIELDS = 250;
+
+    private static final MethodType ROW_TYPE = MethodType.methodType(Object[].class, Object.class);
+
+    private final Field[] fields;
+    private final MethodHandle[] getters;
+    private final ConcurrentHashMap<List<Integer>, MethodHandle> rowMakers = new ConcurrentHashMap<>();
+
+    public RowAdapter(Class<?> elementType) {
+        // These are the same fields, in the same order, as the columns of the row type that the Java type factory
+        // derives for the class.
+        fields = Arrays.stream(elementType.getFields())
+                .filter(field -> !Modifier.isStatic(field.getModifiers()))
+                .toArray(Field[]::new);
+
+        var lookup = MethodHandles.publicLookup();
+        getters = new MethodHandle[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                getters[i] = lookup.unreflectGetter(fields[i]).asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("The field '%s' can't be read".formatted(fields[i]), e);
+            }
+        }
+    }
+
+    public int fieldCount() {
+        return fields.length;
+    }
+
+    public Field field(int index) {
+        return fields[index];
+    }
+
+    /**
+     * @param projects the indexes of the fields to put in the row, in order, or {@code null} for all the fields
+     * @return a method handle of type {@code (Object)Object[]} that makes a row out of an object
+     */
+    public MethodHandle rowMaker(int[] projects) {
+        if (projects == null) projects = identity(fields.length);
+        return rowMakers.computeIfAbsent(Arrays.stream(projects).boxed().toList(), this::compose);
+    }
+
+    /**
+     * Make a row out of an object.
+     *
+     * @param rowMaker a method handle from {@link #rowMaker(int[])}
+     */
+    public static Object[] row(MethodHandle rowMaker, Object object) {
+        try {
+            return (Object[]) rowMaker.invokeExact(object);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MethodHandle compose(List<Integer> projects) {
+        int count = projects.size();
+        if (count > MAX_COMPOSED_FIELDS) return loop(projects);
+
+        // (Object, Object, ...) -> Object[]
+        MethodHandle collector = MethodHandles.identity(Object[].class).asCollector(Object[].class, count);
+        var projectedGetters = new MethodHandle[count];
+        for (int i = 0; i < count; i++) projectedGetters[i] = getters[projects.get(i)];
+        // (T, T, ...) -> Object[]. Each argument goes through its getter before it is collected.
+        MethodHandle filtered = MethodHandles.filterArguments(collector, 0, projectedGetters);
+        // (T) -> Object[]. The same object is passed as every argument.
+        return MethodHandles.permuteArguments(filtered, ROW_TYPE, new int[count]);
+    }
+
+    /**
+     * For a class with too many fields to compose, fall back to a loop over the getters. That's still method handles
+     * instead of reflection, but they are invoked one at a time.
+     */
+    private MethodHandle loop(List<Integer> projects) {
+        var projectedGetters = projects.stream().map(index -> getters[index]).toArray(MethodHandle[]::new);
+        try {
+            var loop = MethodHandles.lookup().findStatic(RowAdapter.class, "loopRow",
+                    MethodType.methodType(Object[].class, MethodHandle[].class, Object.class));
+            return MethodHandles.insertArguments(loop, 0, (Object) projectedGetters);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object[] loopRow(MethodHandle[] getters, Object object) throws Throwable {
+        var row = new Object[getters.length];
+        for (int i = 0; i < getters.length; i++) row[i] = (Object) getters[i].invokeExact(object);
+        return row;
+    }
+
+    static int[] identity(int count) {
+        var identity = new int[count];
+        for (int i = 0; i < count; i++) identity[i] = i;
+        return identity;
+    }
+}
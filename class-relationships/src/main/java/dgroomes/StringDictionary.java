@@ -0,0 +1,74 @@
+package dgroomes;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A dictionary of strings, for dictionary-encoding the string columns of {@link ColumnarTable}s.
+ * <p>
+ * Each distinct string gets an int code, in the order that the strings are first seen. The data set is full of
+ * repeated strings (field names like "serialVersionUID", and the owning class name of every field is the name of a
+ * class) so each distinct string is stored once and every occurrence of it is just a code.
+ * <p>
+ * The tables of a schema should share one dictionary. Then the same string has the same code in every table, and a join
+ * on string columns can be a join on the codes instead.
+ */
+public final class StringDictionary {
+
+    /**
+     * The code of {@code null}.
+     */
+    public static final int NULL = -1;
+
+    /**
+     * Guarded by "this".
+     */
+    private final Map<String, Integer> codes = new HashMap<>();
+    private volatile String[] strings = new String[1024];
+    private int size;
+
+    /**
+     * @return the code of the string, adding it to the dictionary if it's new
+     */
+    public synchronized int encode(String string) {
+        if (string == null) return NULL;
+        Integer code = codes.get(string);
+        if (code != null) return code;
+
+        if (size == strings.length) strings = Arrays.copyOf(strings, size * 2);
+        strings[size] = string;
+        codes.put(string, size);
+        return size++;
+    }
+
+    /**
+     * @return the code of the string, or {@link #NULL} if the string isn't in the dictionary
+     */
+    public synchronized int lookup(String string) {
+        if (string == null) return NULL;
+        return codes.getOrDefault(string, NULL);
+    }
+
+    /**
+     * Decode a code. This doesn't lock, so it is cheap enough to do for every value of a scan. (A code that was handed
+     * out is always in the current array, because the array is only replaced by a bigger copy.)
+     */
+    public String decode(int code) {
+        return code == NULL ? null : strings[code];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the dictionary: the strings (assuming Latin-1 contents), the array,
+     * and the hash map entries
+     */
+    public synchronized long byteSize() {
+        long bytes = 16L + 4L * strings.length;
+        for (int i = 0; i < size; i++) bytes += 40 + strings[i].length() + 48;
+        return bytes;
+    }
+}
@@ -4,73 +4,149 @@ import org.apache.calcite.DataContext;
 import org.apache.calcite.adapter.java.AbstractQueryableTable;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.linq4j.*;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
 import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
 import org.apache.calcite.schema.*;
 import org.apache.calcite.schema.impl.AbstractTableQueryable;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.fun.SqlLikeOperator;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeName;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * Table backed by an enumerable.
+ * <p>
+ * The table is projectable: a scan only reads the fields of the columns that the query uses. The rows are made with a
+ * {@link RowAdapter}. The filters are left to Calcite, except that an equality filter on an indexed column is answered
+ * with the index, and a {@code LIKE} or {@code ILIKE} filter on a column with a {@link TrigramIndex} only looks at the
+ * rows that the trigram index says could match.
+ * <p>
+ * A table can have secondary hash indexes on some of its columns (see {@link HashIndex}). They are built once, when the
+ * table is created. Besides point lookups, an index is used to join to the table without building a hash table for
+ * each query. See {@link IndexJoinRule}.
+ * <p>
+ * The table also computes its statistics when it is created: its keys, the columns that it's already sorted by, and the
+ * number of distinct values and a histogram of each column. See {@link TableStatistics}.
  */
-public class TableOverEnumerable<T> extends AbstractQueryableTable implements Table, ScannableTable {
+public class TableOverEnumerable<T> extends AbstractQueryableTable implements Table, ProjectableFilterableTable {
+    private final List<T> rows;
     private final Enumerable<T> rowAsTEnumerable;
-    private final Enumerable<@Nullable Object[]> rowAsArrayEnumerable;
-    private final Statistic statistic;
+    private final RowAdapter rowAdapter;
+    private final TableStatistics statistics;
+    private final Map<Integer, HashIndex> indexes;
+    private final Map<Integer, TrigramIndex> trigramIndexes;
 
-    private TableOverEnumerable(Class<T> elementType, Enumerable<T> rowAsTEnumerable,
-                                Enumerable<@Nullable Object[]> rowAsArrayEnumerable, Statistic statistic) {
+    private TableOverEnumerable(Class<T> elementType, List<T> rows, Enumerable<T> rowAsTEnumerable, RowAdapter rowAdapter,
+                                TableStatistics statistics, Map<Integer, HashIndex> indexes,
+                                Map<Integer, TrigramIndex> trigramIndexes) {
         super(elementType);
+        this.rows = rows;
         this.rowAsTEnumerable = rowAsTEnumerable;
-        this.rowAsArrayEnumerable = rowAsArrayEnumerable;
-        this.statistic = statistic;
+        this.rowAdapter = rowAdapter;
+        this.statistics = statistics;
+        this.indexes = indexes;
+        this.trigramIndexes = trigramIndexes;
     }
 
     /**
      * Create a Calcite {@link Table} backed by a {@link List} of objects.
+     *
+     * @param indexedColumns the names of the columns (fields) to build a {@link HashIndex} on
      */
-    public static <T> Table listAsTable(List<T> rows, Class<T> elementType) {
+    public static <T> Table listAsTable(List<T> rows, Class<T> elementType, String... indexedColumns) {
+        return listAsTable(rows, elementType, List.of(indexedColumns), List.of());
+    }
+
+    /**
+     * Create a Calcite {@link Table} backed by a {@link List} of objects.
+     *
+     * @param indexedColumns        the names of the columns (fields) to build a {@link HashIndex} on
+     * @param trigramIndexedColumns the names of the string columns to build a {@link TrigramIndex} on
+     */
+    public static <T> Table listAsTable(List<T> rows, Class<T> elementType, List<String> indexedColumns,
+                                        List<String> trigramIndexedColumns) {
         requireNonNull(rows);
+        // The indexes refer to rows by position
+        if (!(rows instanceof RandomAccess)) rows = new ArrayList<>(rows);
 
         // This enumerable of "T" is a nice high level representation of rows of data. But, Calcite also needs a
         // somewhat more primitive enumerable of "Object[]" to be able to do its work. Each "Object[]" is the column
-        // values of a row.
+        // values of a row. The row adapter makes those (see "scan").
         Enumerable<T> rowAsTEnumerable = Linq4j.asEnumerable(rows);
-        Enumerable<Object[]> rowAsArrayEnumerable;
-
-        {
-            Field[] fields = elementType.getFields();
-            rowAsArrayEnumerable = rowAsTEnumerable.select(o -> {
-                try {
-                    Object[] objects = new Object[fields.length];
-                    for (int i = 0; i < fields.length; i++) {
-                        objects[i] = fields[i].get(o);
-                    }
-                    return objects;
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+        var rowAdapter = new RowAdapter(elementType);
+
+        var indexes = new HashMap<Integer, HashIndex>();
+        for (String indexedColumn : indexedColumns) {
+            int column = column(rowAdapter, elementType, indexedColumn);
+            indexes.put(column, HashIndex.build(rows, column, rowAdapter.rowMaker(new int[]{column})));
         }
 
-        var statistic = new Statistic() {
-            @Override
-            public Double getRowCount() {
-                return (double) rows.size();
+        var trigramIndexes = new HashMap<Integer, TrigramIndex>();
+        for (String indexedColumn : trigramIndexedColumns) {
+            int column = column(rowAdapter, elementType, indexedColumn);
+            if (rowAdapter.field(column).getType() != String.class) {
+                var msg = "The column '%s' of %s is not a string column, so it can't have a trigram index".formatted(indexedColumn, elementType.getSimpleName());
+                throw new IllegalArgumentException(msg);
             }
-        };
+            trigramIndexes.put(column, TrigramIndex.build(rows, column, rowAdapter.rowMaker(new int[]{column})));
+        }
+
+        var statistics = TableStatistics.compute(rows, rowAdapter.fieldCount(),
+                column -> rowAdapter.rowMaker(new int[]{column}));
 
-        return new TableOverEnumerable<>(elementType, rowAsTEnumerable, rowAsArrayEnumerable, statistic);
+        return new TableOverEnumerable<>(elementType, rows, rowAsTEnumerable, rowAdapter, statistics, Map.copyOf(indexes),
+                Map.copyOf(trigramIndexes));
     }
 
+    private static int column(RowAdapter rowAdapter, Class<?> elementType, String name) {
+        for (int i = 0; i < rowAdapter.fieldCount(); i++) {
+            if (rowAdapter.field(i).getName().equals(name)) return i;
+        }
+        var msg = "There is no column named '%s' to index in %s".formatted(name, elementType.getSimpleName());
+        throw new IllegalArgumentException(msg);
+    }
+
+    /**
+     * Create a Calcite {@link Table} that stores the data of a {@link List} of objects by column, with its strings
+     * encoded in the given dictionary. The list isn't needed after this. See {@link ColumnarTable}.
+     */
+    public static <T> ColumnarTable listAsColumnarTable(List<T> rows, Class<T> elementType, StringDictionary dictionary) {
+        return ColumnarTable.of(rows, elementType, dictionary);
+    }
+
+    @Override
+    public TableStatistics getStatistic() {
+        return statistics;
+    }
+
+    /**
+     * Calcite's metadata handlers for a table scan ask the table for a handler of the selectivity and of the number of
+     * distinct values. See {@link TableStatistics}.
+     */
     @Override
-    public Statistic getStatistic() {
-        return statistic;
+    public <C> @Nullable C unwrap(Class<C> aClass) {
+        if (aClass == BuiltInMetadata.RowCount.Handler.class) return aClass.cast(statistics.rowCountHandler());
+        if (aClass == BuiltInMetadata.Selectivity.Handler.class) return aClass.cast(statistics.selectivityHandler());
+        if (aClass == BuiltInMetadata.DistinctRowCount.Handler.class) {
+            return aClass.cast(statistics.distinctRowCountHandler());
+        }
+        return super.unwrap(aClass);
     }
 
     @Override
@@ -78,9 +154,137 @@ public class TableOverEnumerable<T> extends AbstractQueryableTable implements Ta
         return ((JavaTypeFactory) typeFactory).createType(elementType);
     }
 
+    /**
+     * @return the index on the column, or {@code null} if the column isn't indexed
+     */
+    public @Nullable HashIndex index(int column) {
+        return indexes.get(column);
+    }
+
+    /**
+     * @param projects the columns to fill in each row, or {@code null} for all of them
+     */
     @Override
-    public Enumerable<@Nullable Object[]> scan(DataContext root) {
-        return rowAsArrayEnumerable;
+    public Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects) {
+        MethodHandle rowMaker = rowAdapter.rowMaker(projects);
+
+        // A point lookup. The filter stays in the list, so Calcite checks it again, but it only sees the matching rows.
+        for (RexNode filter : filters) {
+            var lookup = pointLookup(filter);
+            if (lookup == null) continue;
+            int[] positions = indexes.get(lookup.column()).lookup(lookup.value());
+            return Linq4j.asEnumerable(Arrays.stream(positions)
+                    .mapToObj(position -> RowAdapter.row(rowMaker, rows.get(position)))
+                    .toList());
+        }
+
+        // A substring search. Again, the filter stays in the list. The index only narrows the rows down to the ones
+        // that have all the trigrams of the pattern, and Calcite checks the exact pattern on those.
+        for (RexNode filter : filters) {
+            int[] positions = substringSearch(filter);
+            if (positions == null) continue;
+            return Linq4j.asEnumerable(Arrays.stream(positions)
+                    .mapToObj(position -> RowAdapter.row(rowMaker, rows.get(position)))
+                    .toList());
+        }
+
+        return rowAsTEnumerable.select(row -> RowAdapter.row(rowMaker, row));
+    }
+
+    private record PointLookup(int column, Object value) {}
+
+    /**
+     * @return the lookup if the filter is "indexed column = literal", otherwise {@code null}
+     */
+    private @Nullable PointLookup pointLookup(RexNode filter) {
+        if (!filter.isA(SqlKind.EQUALS)) return null;
+        var operands = ((RexCall) filter).getOperands();
+        RexNode left = operands.get(0);
+        RexNode right = operands.get(1);
+        if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            var swap = left;
+            left = right;
+            right = swap;
+        }
+        // Only a bare column. A cast of the column (like a narrowing "CAST(NAME AS VARCHAR(9))") compares different
+        // values than the ones in the index.
+        if (!(left instanceof RexInputRef inputRef) || !(right instanceof RexLiteral literal)) return null;
+
+        int column = inputRef.getIndex();
+        if (!indexes.containsKey(column)) return null;
+        Object value = literalValue(literal, rowAdapter.field(column).getType());
+        if (value == null) return null;
+        return new PointLookup(column, value);
+    }
+
+    /**
+     * @return the value of the literal as a value of the column's Java type, or {@code null} if the literal's SQL type
+     * isn't the column's. A string literal of any length is fine: Calcite compares a CHAR literal to a VARCHAR column
+     * as the same string, without padding either one.
+     */
+    static @Nullable Object literalValue(RexLiteral literal, Class<?> type) {
+        SqlTypeName literalType = literal.getType().getSqlTypeName();
+        if (type == String.class) {
+            return literal.getType().getFamily() == SqlTypeFamily.CHARACTER ? literal.getValueAs(String.class) : null;
+        }
+        if (type == int.class || type == Integer.class) {
+            return literalType == SqlTypeName.INTEGER ? literal.getValueAs(Integer.class) : null;
+        }
+        if (type == long.class || type == Long.class) {
+            return literalType == SqlTypeName.BIGINT ? literal.getValueAs(Long.class) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the positions of the candidate rows if the filter is "trigram-indexed column LIKE/ILIKE literal" and the
+     * pattern is selective enough to use the index, otherwise {@code null}
+     */
+    private int @Nullable [] substringSearch(RexNode filter) {
+        if (!(filter instanceof RexCall call) || !call.isA(SqlKind.LIKE)) return null;
+        // "NOT LIKE" has the same kind
+        if (call.getOperator() instanceof SqlLikeOperator like && like.isNegated()) return null;
+        // A pattern with an escape character has a third operand. Those are rare, so don't bother.
+        if (call.getOperands().size() != 2) return null;
+        // Only a bare column, like for a point lookup. A padding "CAST(NAME AS CHAR(n))" has trigrams that the index
+        // doesn't.
+        if (!(call.getOperands().get(0) instanceof RexInputRef inputRef)) return null;
+        if (!(call.getOperands().get(1) instanceof RexLiteral literal)) return null;
+
+        TrigramIndex index = trigramIndexes.get(inputRef.getIndex());
+        String pattern = literal.getValueAs(String.class);
+        if (index == null || pattern == null) return null;
+        return index.candidates(pattern);
+    }
+
+    /**
+     * Join rows from another input to this table with the index on one of this table's columns. This is called from
+     * the code that {@link EnumerableIndexJoin} generates.
+     * <p>
+     * For each probe row, the index gives the positions of the matching rows of this table, so nothing is built per
+     * query. This is an inner join.
+     *
+     * @param probe       the rows of the other input
+     * @param probeKey    the column of the probe rows to look up
+     * @param indexColumn the column of this table to look it up in
+     * @param indexOnLeft whether this table is the left input of the join (then its columns come first in the output)
+     */
+    public Enumerable<Object[]> indexJoin(Enumerable<Object[]> probe, int probeKey, int indexColumn, boolean indexOnLeft) {
+        HashIndex index = requireNonNull(indexes.get(indexColumn), "There is no index on the column");
+        MethodHandle rowMaker = rowAdapter.rowMaker(null);
+        return probe.selectMany(probeRow -> {
+            int[] positions = index.lookup(probeRow[probeKey]);
+            var joined = new ArrayList<Object[]>(positions.length);
+            for (int position : positions) {
+                Object[] indexedRow = RowAdapter.row(rowMaker, rows.get(position));
+                Object[] left = indexOnLeft ? indexedRow : probeRow;
+                Object[] right = indexOnLeft ? probeRow : indexedRow;
+                var row = Arrays.copyOf(left, left.length + right.length);
+                System.arraycopy(right, 0, row, left.length, right.length);
+                joined.add(row);
+            }
+            return Linq4j.asEnumerable(joined);
+        });
     }
 
     @Override
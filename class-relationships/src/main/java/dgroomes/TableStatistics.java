@@ -0,0 +1,258 @@
+package dgroomes;
+
+import org.apache.calcite.interpreter.Bindables;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelCollation;
+import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelDistribution;
+import org.apache.calcite.rel.RelDistributions;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
+import org.apache.calcite.rel.metadata.RelMdUtil;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The statistics of a {@link TableOverEnumerable}: its row count, its keys, its sort orders, and the
+ * {@link ColumnStatistics} of each column.
+ * <p>
+ * Calcite's {@link Statistic} interface has room for the keys and the collations, but not for anything per column. How
+ * does the planner get the number of distinct values of a column, or the selectivity of a filter? The default metadata
+ * handlers for a table scan ask the table itself: they unwrap a {@link BuiltInMetadata.Selectivity.Handler} or a
+ * {@link BuiltInMetadata.DistinctRowCount.Handler} from it. So the table hands out {@link #rowCountHandler()},
+ * {@link #selectivityHandler()} and {@link #distinctRowCountHandler()}, and everything else falls back to Calcite's
+ * guesses.
+ * <p>
+ * A filter that the planner pushes into a {@link Bindables.BindableTableScan} is no longer a filter node of its own, so
+ * the only place left to estimate it is the row count of the scan.
+ * <p>
+ * The keys come from the data: a column is a key if it has no nulls and no repeated values ({@code CLASSES.NAME}).
+ * The collations also come from the data: the list might already be in order of some columns (ClassGraph lists the
+ * classes by name, and the fields in order of their class). Knowing that, the planner can drop a sort.
+ */
+public final class TableStatistics implements Statistic {
+
+    private final int rowCount;
+    private final ColumnStatistics[] columns;
+    private final List<ImmutableBitSet> keys;
+    private final List<RelCollation> collations;
+
+    private TableStatistics(int rowCount, ColumnStatistics[] columns) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+
+        var keys = new ArrayList<ImmutableBitSet>();
+        var collations = new ArrayList<RelCollation>();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].unique()) keys.add(ImmutableBitSet.of(i));
+            if (columns[i].sorted()) {
+                collations.add(RelCollations.of(new RelFieldCollation(i, RelFieldCollation.Direction.ASCENDING,
+                        RelFieldCollation.NullDirection.LAST)));
+            }
+        }
+        this.keys = List.copyOf(keys);
+        this.collations = List.copyOf(collations);
+    }
+
+    /**
+     * @param rowMakers a function from a column to a method handle that makes a row of just that column (see
+     *                  {@link RowAdapter#rowMaker(int[])})
+     */
+    static TableStatistics compute(List<?> rows, int columnCount, IntFunction<MethodHandle> rowMakers) {
+        var columns = new ColumnStatistics[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = ColumnStatistics.compute(rows, rowMakers.apply(i));
+        }
+        return new TableStatistics(rows.size(), columns);
+    }
+
+    public ColumnStatistics column(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public Double getRowCount() {
+        return (double) rowCount;
+    }
+
+    @Override
+    public boolean isKey(ImmutableBitSet columns) {
+        return keys.stream().anyMatch(columns::contains);
+    }
+
+    @Override
+    public List<ImmutableBitSet> getKeys() {
+        return keys;
+    }
+
+    @Override
+    public List<RelCollation> getCollations() {
+        return collations;
+    }
+
+    /**
+     * The rows are all in one list in one JVM.
+     */
+    @Override
+    public RelDistribution getDistribution() {
+        return RelDistributions.SINGLETON;
+    }
+
+    /**
+     * The number of rows that a scan of the table returns. That's the row count of the table, narrowed by the
+     * selectivity of the filters that were pushed down into the scan.
+     */
+    public BuiltInMetadata.RowCount.Handler rowCountHandler() {
+        return new BuiltInMetadata.RowCount.Handler() {
+            @Override
+            public Double getRowCount(RelNode scan, RelMetadataQuery mq) {
+                if (!(scan instanceof Bindables.BindableTableScan bindable)) return (double) rowCount;
+                // The pushed-down filters are in terms of the table's columns, not the scan's fields
+                return rowCount * selectivity(bindable.filters, column -> column);
+            }
+        };
+    }
+
+    /**
+     * The selectivity of a predicate over a scan of the table. Each conjunct that compares a column to a literal is
+     * estimated with the column's statistics. The conjuncts are assumed to be independent.
+     */
+    public BuiltInMetadata.Selectivity.Handler selectivityHandler() {
+        return new BuiltInMetadata.Selectivity.Handler() {
+            @Override
+            public @Nullable Double getSelectivity(RelNode scan, RelMetadataQuery mq, @Nullable RexNode predicate) {
+                if (predicate == null) return 1.0;
+                return selectivity(RelOptUtil.conjunctions(predicate), field -> tableColumn(scan, field));
+            }
+        };
+    }
+
+    /**
+     * The number of distinct values of some columns of a scan of the table. That's the column's NDV for a single
+     * column, the row count for a set of columns that includes a key, and otherwise the product of the NDVs (capped at
+     * the row count).
+     */
+    public BuiltInMetadata.DistinctRowCount.Handler distinctRowCountHandler() {
+        return new BuiltInMetadata.DistinctRowCount.Handler() {
+            @Override
+            public @Nullable Double getDistinctRowCount(RelNode scan, RelMetadataQuery mq, ImmutableBitSet groupKey,
+                                                        @Nullable RexNode predicate) {
+                double distinct = 1;
+                var tableColumns = new ArrayList<Integer>();
+                for (int field : groupKey) tableColumns.add(tableColumn(scan, field));
+                if (isKey(ImmutableBitSet.of(tableColumns))) distinct = rowCount;
+                else for (int column : tableColumns) distinct *= Math.max(1, columns[column].distinctValues());
+                distinct = Math.min(distinct, rowCount);
+
+                double selected = mq.getRowCount(scan);
+                if (predicate != null) {
+                    selected *= selectivity(RelOptUtil.conjunctions(predicate), field -> tableColumn(scan, field));
+                }
+                // Every row is there, so every value is too
+                if (selected >= rowCount) return distinct;
+                return RelMdUtil.numDistinctVals(distinct, selected);
+            }
+        };
+    }
+
+    /**
+     * @param tableColumn maps a field that the conjuncts refer to, to a column of the table
+     */
+    private double selectivity(List<RexNode> conjuncts, IntUnaryOperator tableColumn) {
+        double selectivity = 1.0;
+        for (RexNode conjunct : conjuncts) {
+            Double estimate = estimate(conjunct, tableColumn);
+            selectivity *= estimate != null ? estimate : RelMdUtil.guessSelectivity(conjunct);
+        }
+        return selectivity;
+    }
+
+    /**
+     * @return the selectivity of "column op literal" or "column IS [NOT] NULL", or {@code null} for anything else
+     */
+    @SuppressWarnings("unchecked")
+    private @Nullable Double estimate(RexNode conjunct, IntUnaryOperator tableColumn) {
+        if (!(conjunct instanceof RexCall call)) return null;
+        var operands = call.getOperands();
+
+        if (operands.size() == 1 && RexUtil.removeCast(operands.get(0)) instanceof RexInputRef ref) {
+            var column = columns[tableColumn.applyAsInt(ref.getIndex())];
+            return switch (call.getKind()) {
+                case IS_NULL -> column.nullSelectivity();
+                case IS_NOT_NULL -> 1 - column.nullSelectivity();
+                default -> null;
+            };
+        }
+
+        if (operands.size() != 2) return null;
+        SqlKind kind = call.getKind();
+        RexNode left = RexUtil.removeCast(operands.get(0));
+        RexNode right = RexUtil.removeCast(operands.get(1));
+        if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            var swap = left;
+            left = right;
+            right = swap;
+            kind = kind.reverse();
+        }
+        if (!(left instanceof RexInputRef ref) || !(right instanceof RexLiteral literal)) return null;
+
+        var column = columns[tableColumn.applyAsInt(ref.getIndex())];
+        Object value = literalValue(literal);
+        if (value == null) return null;
+        return switch (kind) {
+            case EQUALS -> column.equalsSelectivity(value);
+            case NOT_EQUALS -> 1 - column.nullSelectivity() - column.equalsSelectivity(value);
+            case LESS_THAN -> column.lessThanSelectivity((Comparable<Object>) value, false);
+            case LESS_THAN_OR_EQUAL -> column.lessThanSelectivity((Comparable<Object>) value, true);
+            case GREATER_THAN -> complement(column, column.lessThanSelectivity((Comparable<Object>) value, true));
+            case GREATER_THAN_OR_EQUAL ->
+                    complement(column, column.lessThanSelectivity((Comparable<Object>) value, false));
+            default -> null;
+        };
+    }
+
+    private static @Nullable Double complement(ColumnStatistics column, @Nullable Double selectivity) {
+        if (selectivity == null) return null;
+        return Math.max(0, 1 - column.nullSelectivity() - selectivity);
+    }
+
+    /**
+     * @return the literal as the same Java type as the column values, or {@code null} if it's not a type that the
+     * statistics know about
+     */
+    private static @Nullable Object literalValue(RexLiteral literal) {
+        return switch (literal.getType().getSqlTypeName()) {
+            case CHAR, VARCHAR -> literal.getValueAs(String.class);
+            case INTEGER -> literal.getValueAs(Integer.class);
+            case BIGINT -> literal.getValueAs(Long.class);
+            case DOUBLE -> literal.getValueAs(Double.class);
+            case BOOLEAN -> literal.getValueAs(Boolean.class);
+            default -> null;
+        };
+    }
+
+    /**
+     * The scan might have been narrowed to some of the columns. Map a field of the scan to a column of the table.
+     */
+    private static int tableColumn(RelNode scan, int field) {
+        if (scan instanceof Bindables.BindableTableScan bindable && !bindable.projects.isEmpty()) {
+            return bindable.projects.get(field);
+        }
+        return field;
+    }
+}
@@ -0,0 +1,131 @@
+package dgroomes;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A trigram index on a string column of a {@link TableOverEnumerable}, for substring searches like
+ * {@code NAME ILIKE '%serial%'}.
+ * <p>
+ * For every three-character substring (trigram) of every value, the index has the sorted positions of the rows whose
+ * value contains it. A value that contains "serial" must contain "ser", "eri", "ria" and "ial", so the rows that can
+ * match are the intersection of those four lists. That is usually a tiny fraction of the table. The intersection is a
+ * superset of the matches (the trigrams could be in the wrong order or far apart), so the exact predicate still has to
+ * be checked on each candidate.
+ * <p>
+ * The values are lowercased before they are split into trigrams, so the same index serves case-sensitive
+ * {@code LIKE} and case-insensitive {@code ILIKE}.
+ * <p>
+ * A pattern only narrows the search if it has a literal run of at least three characters between its wildcards. A
+ * pattern like {@code '%x%'} can't use the index, and {@link #candidates} returns {@code null} for it.
+ */
+public final class TrigramIndex {
+
+    private final int column;
+    private final Map<Long, int[]> positionsByTrigram;
+
+    private TrigramIndex(int column, Map<Long, int[]> positionsByTrigram) {
+        this.column = column;
+        this.positionsByTrigram = positionsByTrigram;
+    }
+
+    /**
+     * @param rowMaker a method handle from {@link RowAdapter#rowMaker(int[])} that makes a row of just the indexed
+     *                 column, which must be a string column
+     */
+    static TrigramIndex build(List<?> rows, int column, MethodHandle rowMaker) {
+        var builder = new HashMap<Long, Postings>();
+        for (int position = 0; position < rows.size(); position++) {
+            var value = (String) RowAdapter.row(rowMaker, rows.get(position))[0];
+            if (value == null) continue;
+            var lower = value.toLowerCase(Locale.ROOT);
+            for (int i = 0; i + 3 <= lower.length(); i++) {
+                // The positions are visited in order, so each list comes out sorted. A trigram that repeats within a
+                // value would add the same position twice in a row; skip that.
+                builder.computeIfAbsent(trigram(lower, i), key -> new Postings()).addIfNew(position);
+            }
+        }
+
+        var positionsByTrigram = new HashMap<Long, int[]>(builder.size() * 4 / 3 + 1);
+        builder.forEach((trigram, postings) -> positionsByTrigram.put(trigram, postings.toArray()));
+        return new TrigramIndex(column, positionsByTrigram);
+    }
+
+    public int column() {
+        return column;
+    }
+
+    /**
+     * @param likePattern a SQL {@code LIKE} pattern, without an escape character
+     * @return the sorted positions of the rows that might match the pattern, or {@code null} if the pattern has no
+     * literal run long enough to narrow the search
+     */
+    public int[] candidates(String likePattern) {
+        var lists = new ArrayList<int[]>();
+        for (String run : likePattern.toLowerCase(Locale.ROOT).split("[%_]")) {
+            for (int i = 0; i + 3 <= run.length(); i++) {
+                int[] positions = positionsByTrigram.get(trigram(run, i));
+                // A trigram that is in no value means nothing can match
+                if (positions == null) return new int[0];
+                lists.add(positions);
+            }
+        }
+        if (lists.isEmpty()) return null;
+
+        // Intersect from the shortest list up, so the intermediate results are as small as they can be
+        lists.sort(Comparator.comparingInt(positions -> positions.length));
+        int[] result = lists.getFirst();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        var result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Pack three 16-bit chars into a long.
+     */
+    private static long trigram(String string, int start) {
+        return ((long) string.charAt(start) << 32) | ((long) string.charAt(start + 1) << 16) | string.charAt(start + 2);
+    }
+
+    /**
+     * A growable, sorted list of row positions.
+     */
+    private static final class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        void addIfNew(int position) {
+            if (size > 0 && positions[size - 1] == position) return;
+            if (size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
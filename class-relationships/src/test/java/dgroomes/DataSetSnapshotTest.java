@@ -0,0 +1,185 @@
+package dgroomes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A classpath directory (like {@code build/classes/java/main}) doesn't change when a class in it is recompiled, so the
+ * fingerprint has to change with the files inside it. A snapshot that can't be used has to read as no snapshot.
+ */
+class DataSetSnapshotTest {
+
+    private static final FileTime COMPILED_AT = FileTime.from(Instant.parse("2024-01-01T00:00:00Z"));
+
+    @TempDir
+    Path classes;
+
+    @TempDir
+    Path snapshots;
+
+    private Path writeClass(String name, String content) throws IOException {
+        Path file = classes.resolve("dgroomes").resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, COMPILED_AT);
+        return file;
+    }
+
+    private String fingerprint() {
+        String fingerprint = DataSetSnapshot.fingerprint(10, List.of(classes));
+        assertNotNull(fingerprint);
+        return fingerprint;
+    }
+
+    @Test
+    void sameFilesSameFingerprint() throws IOException {
+        writeClass("A.class", "a");
+
+        assertEquals(fingerprint(), fingerprint());
+    }
+
+    @Test
+    void recompiledClassChangesTheFingerprint() throws IOException {
+        Path file = writeClass("A.class", "a");
+        String before = fingerprint();
+
+        Files.setLastModifiedTime(file, FileTime.from(COMPILED_AT.toInstant().plusSeconds(60)));
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    void addedClassChangesTheFingerprint() throws IOException {
+        writeClass("A.class", "a");
+        String before = fingerprint();
+
+        writeClass("B.class", "b");
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    void numberOfClassesIsPartOfTheFingerprint() throws IOException {
+        writeClass("A.class", "a");
+
+        assertNotEquals(DataSetSnapshot.fingerprint(10, List.of(classes)), DataSetSnapshot.fingerprint(20, List.of(classes)));
+    }
+
+    private static DataSet dataSet() {
+        var string = new ClassInfo("java.lang.String");
+        var object = new ClassInfo("java.lang.Object");
+        var fields = List.of(
+                new FieldInfo("value", string, null),
+                new FieldInfo("serialVersionUID", string, null),
+                new FieldInfo("serialVersionUID", object, string));
+        var methods = List.of(
+                new MethodInfo("toString", string, List.of(), string),
+                new MethodInfo("equals", object, List.of(object), null),
+                new MethodInfo("regionMatches", string, List.of(string, string), null));
+        return new DataSet(List.of(string, object), fields, methods);
+    }
+
+    @Test
+    void loadWhatWasSaved() throws IOException {
+        writeClass("A.class", "a");
+        String fingerprint = fingerprint();
+        DataSetSnapshot.save(snapshots, fingerprint, dataSet());
+
+        DataSet loaded = DataSetSnapshot.load(snapshots, fingerprint);
+
+        assertNotNull(loaded);
+        assertEquals(List.of("java.lang.String", "java.lang.Object"), loaded.classes().stream().map(c -> c.NAME).toList());
+        var string = loaded.classes().get(0);
+        var object = loaded.classes().get(1);
+
+        assertEquals(List.of("value", "serialVersionUID", "serialVersionUID"), loaded.fields().stream().map(f -> f.NAME).toList());
+        assertSame(string, loaded.fields().get(0).owningClass);
+        assertNull(loaded.fields().get(0).typeClass);
+        assertSame(object, loaded.fields().get(2).owningClass);
+        assertSame(string, loaded.fields().get(2).typeClass);
+        // Each string is stored once, so the loaded rows share it
+        assertSame(loaded.fields().get(1).NAME, loaded.fields().get(2).NAME);
+
+        assertEquals(List.of("toString", "equals", "regionMatches"), loaded.methods().stream().map(m -> m.name).toList());
+        assertSame(string, loaded.methods().get(0).returnClass);
+        assertEquals(List.of(), loaded.methods().get(0).parameterClasses);
+        assertNull(loaded.methods().get(1).returnClass);
+        assertEquals(List.of(object), loaded.methods().get(1).parameterClasses);
+        assertEquals(List.of(string, string), loaded.methods().get(2).parameterClasses);
+    }
+
+    @Test
+    void missingSnapshotLoadsAsNull() throws IOException {
+        writeClass("A.class", "a");
+
+        assertNull(DataSetSnapshot.load(snapshots, fingerprint()));
+    }
+
+    @Test
+    void snapshotWithAnotherFingerprintLoadsAsNull() throws IOException {
+        writeClass("A.class", "a");
+        String fingerprint = fingerprint();
+        DataSetSnapshot.save(snapshots, fingerprint, dataSet());
+        String otherFingerprint = DataSetSnapshot.fingerprint(20, List.of(classes));
+
+        // As if the file was renamed or copied
+        Files.copy(snapshots.resolve(fingerprint + ".snapshot"), snapshots.resolve(otherFingerprint + ".snapshot"));
+
+        assertNull(DataSetSnapshot.load(snapshots, otherFingerprint));
+    }
+
+    @Test
+    void truncatedSnapshotLoadsAsNull() throws IOException {
+        writeClass("A.class", "a");
+        String fingerprint = fingerprint();
+        DataSetSnapshot.save(snapshots, fingerprint, dataSet());
+        Path file = snapshots.resolve(fingerprint + ".snapshot");
+        byte[] bytes = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+
+        assertNull(DataSetSnapshot.load(snapshots, fingerprint));
+    }
+
+    @Test
+    void savingANewSnapshotDeletesTheOlderOnes() throws IOException {
+        writeClass("A.class", "a");
+        String olderFingerprint = fingerprint();
+        assertTrue(DataSetSnapshot.save(snapshots, olderFingerprint, dataSet()));
+        Path unrelated = Files.writeString(snapshots.resolve("README.txt"), "not a snapshot");
+
+        writeClass("A.class", "recompiled");
+        String fingerprint = fingerprint();
+        assertTrue(DataSetSnapshot.save(snapshots, fingerprint, dataSet()));
+
+        assertFalse(Files.exists(snapshots.resolve(olderFingerprint + ".snapshot")));
+        assertTrue(Files.exists(unrelated));
+        assertNotNull(DataSetSnapshot.load(snapshots, fingerprint));
+    }
+
+    @Test
+    void failingToSaveIsNotAnError() throws IOException {
+        writeClass("A.class", "a");
+        // A file where the directory should be, so the directory can't be created
+        Path notADirectory = Files.writeString(snapshots.resolve("taken"), "");
+
+        assertFalse(DataSetSnapshot.save(notADirectory, fingerprint(), dataSet()));
+        assertNull(DataSetSnapshot.load(notADirectory, fingerprint()));
+    }
+}
@@ -0,0 +1,129 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.hep.HepPlanner;
+import org.apache.calcite.plan.hep.HepProgram;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelRoot;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.runtime.Hook;
+import org.apache.calcite.schema.impl.AbstractSchema;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.tools.FrameworkConfig;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.tools.RelRunner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static dgroomes.TableOverEnumerable.listAsTable;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The index has no entry for null, so a join where null matches null must not become an index join.
+ */
+class IndexJoinRuleTest {
+
+    private Connection connection;
+    private FrameworkConfig frameworkConfig;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        var string = new ClassInfo("java.lang.String");
+        var unnamed = new ClassInfo(null);
+        var classes = List.of(string, unnamed);
+        var fields = List.of(new FieldInfo("value", string, null), new FieldInfo("hash", string, null),
+                new FieldInfo("orphan", unnamed, null));
+
+        connection = DriverManager.getConnection("jdbc:calcite:");
+        var rootSchema = connection.unwrap(CalciteConnection.class).getRootSchema();
+        var schema = rootSchema.add("TEST", new AbstractSchema());
+        schema.add("CLASSES", listAsTable(classes, ClassInfo.class, "NAME"));
+        schema.add("FIELDS", listAsTable(fields, FieldInfo.class));
+        frameworkConfig = Frameworks.newConfigBuilder().defaultSchema(rootSchema).build();
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    /**
+     * Join the fields to their classes, with the indexed "CLASSES" table on the right.
+     */
+    private RelNode join(RelBuilder builder, SqlOperator operator) {
+        builder.scan("TEST", "FIELDS").scan("TEST", "CLASSES");
+        return builder
+                .join(JoinRelType.INNER, builder.call(operator,
+                        builder.field(2, 0, "OWNINGCLASSNAME"),
+                        builder.field(2, 1, "NAME")))
+                .project(builder.field(1, "FIELDS", "NAME"), builder.field(1, "CLASSES", "NAME"))
+                .build();
+    }
+
+    /**
+     * @param plan the plan that the planner chose
+     * @param rows the rows of the result, sorted by the field name
+     */
+    private record Run(String plan, List<List<Object>> rows) {}
+
+    private Run execute(SqlOperator operator) throws SQLException {
+        RelBuilder builder = RelBuilder.create(frameworkConfig);
+        builder.getCluster().getPlanner().addRule(IndexJoinRule.INDEX_ON_RIGHT);
+        builder.getCluster().getPlanner().addRule(IndexJoinRule.INDEX_ON_LEFT);
+        var plan = new AtomicReference<String>();
+        var rows = new ArrayList<List<Object>>();
+        var hook = Hook.PLAN_BEFORE_IMPLEMENTATION.addThread((RelRoot root) -> plan.set(RelOptUtil.toString(root.rel)));
+        try (var statement = connection.unwrap(RelRunner.class).prepareStatement(join(builder, operator));
+             var resultSet = statement.executeQuery()) {
+            while (resultSet.next()) rows.add(Arrays.asList(resultSet.getString(1), resultSet.getString(2)));
+        } finally {
+            hook.close();
+        }
+        rows.sort(Comparator.comparing(row -> (String) row.getFirst()));
+        return new Run(plan.get(), rows);
+    }
+
+    /**
+     * Apply just the rule, on a cluster with a Hep planner. When Calcite plans the whole query, it turns IS NOT DISTINCT
+     * FROM into "=" before the rule would see it, so that can't show what the rule does with a null-safe key.
+     */
+    private String planWithOnlyTheRule(SqlOperator operator) {
+        var planner = new HepPlanner(HepProgram.builder().addRuleInstance(IndexJoinRule.INDEX_ON_RIGHT).build());
+        RelNode join = Frameworks.withPlanner((cluster, relOptSchema, rootSchema) -> {
+            var hepCluster = RelOptCluster.create(planner, cluster.getRexBuilder());
+            return join(RelBuilder.proto(frameworkConfig.getContext()).create(hepCluster, relOptSchema), operator);
+        }, frameworkConfig);
+        planner.setRoot(join);
+        return RelOptUtil.toString(planner.findBestExp());
+    }
+
+    @Test
+    void nullKeysDontMatchInAnIndexJoin() throws SQLException {
+        var run = execute(SqlStdOperatorTable.EQUALS);
+
+        assertTrue(run.plan().contains("EnumerableIndexJoin"), run.plan());
+        assertEquals(List.of(List.of("hash", "java.lang.String"), List.of("value", "java.lang.String")), run.rows());
+    }
+
+    @Test
+    void isNotDistinctFromIsLeftAlone() {
+        assertTrue(planWithOnlyTheRule(SqlStdOperatorTable.EQUALS).contains("EnumerableIndexJoin"));
+        assertFalse(planWithOnlyTheRule(SqlStdOperatorTable.IS_NOT_DISTINCT_FROM).contains("EnumerableIndexJoin"));
+    }
+}
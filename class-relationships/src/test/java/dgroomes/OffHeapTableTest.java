@@ -0,0 +1,74 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.schema.impl.AbstractSchema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static dgroomes.TableOverEnumerable.listAsTable;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * The off-heap scan checks some of the filters itself, so it must return the same rows as a table on the heap.
+ */
+class OffHeapTableTest {
+
+    private OffHeapMemory memory;
+    private Connection connection;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        var string = new ClassInfo("java.lang.String");
+        var object = new ClassInfo("java.lang.Object");
+        var fields = List.of(new FieldInfo("value", string, null), new FieldInfo("hash", string, null),
+                new FieldInfo("lock", object, object));
+
+        memory = new OffHeapMemory();
+        connection = DriverManager.getConnection("jdbc:calcite:");
+        var rootSchema = connection.unwrap(CalciteConnection.class).getRootSchema();
+        var offHeap = rootSchema.add("OFF_HEAP", new AbstractSchema());
+        offHeap.add("FIELDS", OffHeapTable.of(fields, FieldInfo.class, memory));
+        var heap = rootSchema.add("HEAP", new AbstractSchema());
+        heap.add("FIELDS", listAsTable(fields, FieldInfo.class));
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+        memory.close();
+    }
+
+    private List<String> names(String schema, String condition) throws SQLException {
+        var names = new ArrayList<String>();
+        try (var statement = connection.createStatement();
+             var resultSet = statement.executeQuery("select NAME from %s.FIELDS where %s order by NAME".formatted(schema, condition))) {
+            while (resultSet.next()) names.add(resultSet.getString(1));
+        }
+        return names;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "OWNINGCLASSNAME = 'java.lang.String'",
+            "'java.lang.Object' = OWNINGCLASSNAME",
+            "NAME is not null",
+            // A cast of the column compares other values than the ones in the column
+            "cast(OWNINGCLASSNAME as varchar(9)) = 'java.lang'",
+            "cast(NAME as varchar(2)) = 'va'",
+    })
+    void sameRowsAsOnTheHeap(String condition) throws SQLException {
+        List<String> expected = names("HEAP", condition);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, names("OFF_HEAP", condition));
+    }
+}
@@ -0,0 +1,142 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.hep.HepPlanner;
+import org.apache.calcite.plan.hep.HepProgram;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.schema.impl.AbstractSchema;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.tools.FrameworkConfig;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.RelBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static dgroomes.TableOverEnumerable.listAsTable;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionedHashJoinTest {
+
+    /**
+     * Rows of a key column that is sometimes null, a second key column, and a payload.
+     */
+    private static Object[][] rows(Random random, int count, String payloadPrefix) {
+        var rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            Integer key = random.nextInt(20) == 0 ? null : random.nextInt(500);
+            rows[i] = new Object[]{key, "k" + random.nextInt(3), payloadPrefix + i};
+        }
+        return rows;
+    }
+
+    /**
+     * The rows of a nested loop join with "=" on the keys, counted. Null doesn't equal anything.
+     */
+    private static Map<List<Object>, Long> nestedLoopJoin(Object[][] left, Object[][] right, int[] leftKeys, int[] rightKeys) {
+        var rows = new ArrayList<List<Object>>();
+        for (Object[] leftRow : left) {
+            for (Object[] rightRow : right) {
+                boolean match = true;
+                for (int i = 0; i < leftKeys.length && match; i++) {
+                    Object value = leftRow[leftKeys[i]];
+                    match = value != null && Objects.equals(value, rightRow[rightKeys[i]]);
+                }
+                if (match) {
+                    var row = new ArrayList<>(Arrays.asList(leftRow));
+                    row.addAll(Arrays.asList(rightRow));
+                    rows.add(row);
+                }
+            }
+        }
+        return count(rows);
+    }
+
+    private static Map<List<Object>, Long> count(List<List<Object>> rows) {
+        return rows.stream().collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+    }
+
+    private static Map<List<Object>, Long> partitionedHashJoin(Object[][] left, Object[][] right, int[] leftKeys,
+                                                              int[] rightKeys, int threads) {
+        var join = new PartitionedHashJoin(leftKeys, rightKeys, threads);
+        return count(join.join(left, right).stream().map(Arrays::asList).toList());
+    }
+
+    @Test
+    void sameRowsAsANestedLoopJoin() {
+        var random = new Random(42);
+        // Enough rows for each thread to get a chunk of its own when partitioning
+        Object[][] left = rows(random, 20_000, "left-");
+        Object[][] right = rows(random, 2_000, "right-");
+        int[] leftKeys = {0, 1};
+        int[] rightKeys = {0, 1};
+
+        var expected = nestedLoopJoin(left, right, leftKeys, rightKeys);
+
+        assertEquals(expected, partitionedHashJoin(left, right, leftKeys, rightKeys, 4));
+        assertEquals(expected, partitionedHashJoin(left, right, leftKeys, rightKeys, 1));
+        // The smaller side is the build side, whichever side that is
+        assertEquals(nestedLoopJoin(right, left, rightKeys, leftKeys), partitionedHashJoin(right, left, rightKeys, leftKeys, 4));
+    }
+
+    @Test
+    void nullKeysAreDropped() {
+        Object[][] left = {{null, "a"}, {1, "b"}};
+        Object[][] right = {{null, "c"}, {1, "d"}};
+
+        var rows = new PartitionedHashJoin(new int[]{0}, new int[]{0}, 2).join(left, right);
+
+        assertEquals(1, rows.size());
+        assertEquals(List.of(1, "b", 1, "d"), Arrays.asList(rows.getFirst()));
+    }
+
+    /**
+     * Apply just the rule (with no threshold), on a cluster with a Hep planner. When Calcite plans the whole query, it
+     * turns IS NOT DISTINCT FROM into "=" before the rule would see it.
+     */
+    private static String planWithOnlyTheRule(SqlOperator operator) throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:calcite:")) {
+            var rootSchema = connection.unwrap(CalciteConnection.class).getRootSchema();
+            var schema = rootSchema.add("TEST", new AbstractSchema());
+            var string = new ClassInfo("java.lang.String");
+            schema.add("CLASSES", listAsTable(List.of(string), ClassInfo.class));
+            schema.add("FIELDS", listAsTable(List.of(new FieldInfo("value", string, null)), FieldInfo.class));
+            FrameworkConfig frameworkConfig = Frameworks.newConfigBuilder().defaultSchema(rootSchema).build();
+
+            var planner = new HepPlanner(HepProgram.builder().addRuleInstance(PartitionedHashJoinRule.of(0, 4)).build());
+            RelNode join = Frameworks.withPlanner((cluster, relOptSchema, ignored) -> {
+                var builder = RelBuilder.proto(frameworkConfig.getContext())
+                        .create(RelOptCluster.create(planner, cluster.getRexBuilder()), relOptSchema);
+                builder.scan("TEST", "FIELDS").scan("TEST", "CLASSES");
+                return builder
+                        .join(JoinRelType.INNER, builder.call(operator,
+                                builder.field(2, 0, "OWNINGCLASSNAME"),
+                                builder.field(2, 1, "NAME")))
+                        .build();
+            }, frameworkConfig);
+            planner.setRoot(join);
+            return RelOptUtil.toString(planner.findBestExp());
+        }
+    }
+
+    @Test
+    void ruleLeavesIsNotDistinctFromAlone() throws SQLException {
+        assertTrue(planWithOnlyTheRule(SqlStdOperatorTable.EQUALS).contains("EnumerablePartitionedHashJoin"));
+        assertFalse(planWithOnlyTheRule(SqlStdOperatorTable.IS_NOT_DISTINCT_FROM).contains("EnumerablePartitionedHashJoin"));
+    }
+}
@@ -0,0 +1,140 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PlanCacheTest {
+
+    private CalciteConnection connection;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:calcite:").unwrap(CalciteConnection.class);
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    private static List<Integer> query(PlanCache planCache, String sql) throws SQLException {
+        var values = new ArrayList<Integer>();
+        planCache.query(sql, resultSet -> values.add(resultSet.getInt(1)));
+        return values;
+    }
+
+    @Test
+    void normalizeCollapsesWhitespaceOutsideOfQuotes() {
+        assertEquals("select a from t where b = 1", PlanCache.normalize("  select a\n  from t\twhere b =  1 ;"));
+        assertEquals("select 'a  b', \"c\n d\" from t", PlanCache.normalize("select  'a  b',  \"c\n d\"  from t"));
+    }
+
+    @Test
+    void normalizeHandlesEscapedQuotes() {
+        assertEquals("select 'it''s  here' from t", PlanCache.normalize("select  'it''s  here'   from t"));
+    }
+
+    @Test
+    void queriesThatDifferOnlyInWhitespaceShareAPlan() throws SQLException {
+        try (var planCache = new PlanCache(connection, 10, () -> 0)) {
+            assertEquals(List.of(1), query(planCache, "select 1"));
+            assertEquals(List.of(1), query(planCache, "select\n  1;"));
+
+            assertEquals(new PlanCache.Stats(1, 1, 0, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedPlanIsEvicted() throws SQLException {
+        try (var planCache = new PlanCache(connection, 2, () -> 0)) {
+            query(planCache, "select 1");
+            query(planCache, "select 2");
+            query(planCache, "select 1");
+            // This evicts "select 2", which is the least recently used
+            query(planCache, "select 3");
+            query(planCache, "select 1");
+            assertEquals(List.of(2), query(planCache, "select 2"));
+
+            assertEquals(new PlanCache.Stats(2, 4, 0, 2), planCache.stats());
+        }
+    }
+
+    @Test
+    void newSchemaVersionNeedsANewPlan() throws SQLException {
+        var version = new AtomicLong();
+        try (var planCache = new PlanCache(connection, 10, version::get)) {
+            query(planCache, "select 1");
+            version.incrementAndGet();
+            query(planCache, "select 1");
+
+            assertEquals(new PlanCache.Stats(0, 2, 0, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void planThatIsExecutingIsNotShared() throws SQLException {
+        try (var planCache = new PlanCache(connection, 10, () -> 0)) {
+            query(planCache, "select 1");
+            var inner = new ArrayList<Integer>();
+            // The same query, while the cached plan is executing
+            planCache.query("select 1", resultSet -> inner.addAll(query(planCache, "select 1")));
+
+            assertEquals(List.of(1), inner);
+            assertEquals(new PlanCache.Stats(1, 1, 1, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void planThatIsEvictedWhileItIsExecutingFinishesFirst() throws SQLException {
+        try (var planCache = new PlanCache(connection, 1, () -> 0)) {
+            var outer = new ArrayList<Integer>();
+            // The inner query evicts the plan of the outer one, which still has rows to go
+            planCache.query("values 1, 2, 3", resultSet -> {
+                outer.add(resultSet.getInt(1));
+                query(planCache, "select " + resultSet.getInt(1));
+            });
+
+            assertEquals(List.of(1, 2, 3), outer);
+            assertEquals(List.of(1, 2, 3), query(planCache, "values 1, 2, 3"));
+            assertEquals(new PlanCache.Stats(0, 5, 0, 4), planCache.stats());
+        }
+    }
+
+    @Test
+    void evictingAPlanThatAnotherThreadIsExecutingDoesNotWait() throws Exception {
+        try (var planCache = new PlanCache(connection, 1, () -> 0)) {
+            var other = Executors.newSingleThreadExecutor();
+            try {
+                var outer = new ArrayList<Integer>();
+                // The row handler waits for a query on another thread, which evicts the plan that is executing here
+                planCache.query("values 1, 2", resultSet -> {
+                    outer.add(resultSet.getInt(1));
+                    if (outer.size() > 1) return;
+                    try {
+                        assertEquals(List.of(3), other.submit(() -> query(planCache, "select 3")).get(10, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                });
+
+                assertEquals(List.of(1, 2), outer);
+                assertEquals(new PlanCache.Stats(0, 2, 0, 1), planCache.stats());
+                assertEquals(List.of(1, 2), query(planCache, "values 1, 2"));
+            } finally {
+                other.shutdownNow();
+            }
+        }
+    }
+}
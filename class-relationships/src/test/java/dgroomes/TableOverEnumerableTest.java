@@ -0,0 +1,69 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.schema.impl.AbstractSchema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static dgroomes.TableOverEnumerable.listAsTable;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * An index only narrows down the rows that Calcite checks the filter on, so a table with indexes must return the same
+ * rows as a table without them.
+ */
+class TableOverEnumerableTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        var classes = List.of(new ClassInfo("java.lang.String"), new ClassInfo("java.lang.Object"),
+                new ClassInfo("java.util.List"));
+
+        connection = DriverManager.getConnection("jdbc:calcite:");
+        var rootSchema = connection.unwrap(CalciteConnection.class).getRootSchema();
+        var indexed = rootSchema.add("INDEXED", new AbstractSchema());
+        indexed.add("CLASSES", listAsTable(classes, ClassInfo.class, List.of("NAME"), List.of("NAME")));
+        var plain = rootSchema.add("PLAIN", new AbstractSchema());
+        plain.add("CLASSES", listAsTable(classes, ClassInfo.class));
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    private List<String> names(String schema, String condition) throws SQLException {
+        var names = new ArrayList<String>();
+        try (var statement = connection.createStatement();
+             var resultSet = statement.executeQuery("select NAME from %s.CLASSES where %s order by NAME".formatted(schema, condition))) {
+            while (resultSet.next()) names.add(resultSet.getString(1));
+        }
+        return names;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "NAME = 'java.lang.String'",
+            "'java.util.List' = NAME",
+            "NAME like '%Str%'",
+            // A cast of the column compares other values than the ones in the index
+            "cast(NAME as varchar(9)) = 'java.lang'",
+    })
+    void sameRowsWithAndWithoutIndexes(String condition) throws SQLException {
+        List<String> expected = names("PLAIN", condition);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, names("INDEXED", condition));
+    }
+}
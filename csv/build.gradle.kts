@@ -12,6 +12,15 @@ dependencies {
     implementation(libs.slf4j.simple)
     implementation(libs.calcite.file)
     implementation(libs.calcite.core)
+    implementation(libs.aircompressor)
+
+    testImplementation(platform(libs.junit.bom))
+    testImplementation(libs.junit.jupiter)
+    testRuntimeOnly(libs.junit.platform.launcher)
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 application {
@@ -0,0 +1,343 @@
+package dgroomes;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The contents of a CSV file, parsed once and held in memory as typed columns.
+ * <p>
+ * {@code INTEGER} and {@code BIGINT} columns are primitive {@code int[]} and {@code long[]} arrays, and string columns
+ * are dictionary-encoded: an {@code int[]} of codes into an array of the distinct strings. This is much more compact
+ * than a list of {@code Object[]} rows, and a scan over it is a walk over arrays instead of text parsing. See
+ * {@link CsvColumnCache}.
+ * <p>
+ * The columns can also be backed by a memory-mapped {@link CsvSidecar} file instead of by heap arrays. Those are the
+ * {@code Mapped*} column types.
+ *
+ * @param stamp the stamp of the file that the data was loaded from
+ */
+record ColumnarCsvData(FileStamp stamp, int rowCount, Column[] columns) {
+
+    /**
+     * A column of values.
+     */
+    sealed interface Column {
+
+        /**
+         * @return the value in Calcite's representation (a boxed primitive, or a String)
+         */
+        Object get(int row);
+
+        /**
+         * A rough estimate of the heap used by the column. This is what the memory cap of the cache is measured in. The
+         * pages of a memory-mapped column are managed by the operating system, so they don't count.
+         */
+        long byteSize();
+
+        default boolean test(int row, CsvFilter filter) {
+            return filter.test(get(row));
+        }
+    }
+
+    record IntColumn(int[] values, BitSet nulls) implements Column {
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        public boolean test(int row, CsvFilter filter) {
+            if (nulls != null && nulls.get(row)) return false;
+            return filter.test(values[row]);
+        }
+
+        @Override
+        public long byteSize() {
+            return 4L * values.length;
+        }
+    }
+
+    record LongColumn(long[] values, BitSet nulls) implements Column {
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        public boolean test(int row, CsvFilter filter) {
+            if (nulls != null && nulls.get(row)) return false;
+            return filter.test(values[row]);
+        }
+
+        @Override
+        public long byteSize() {
+            return 8L * values.length;
+        }
+    }
+
+    /**
+     * @param codes      an index into {@code dictionary} for each row, or {@code -1} for null
+     * @param dictionary the distinct values
+     */
+    record DictionaryColumn(int[] codes, String[] dictionary) implements Column {
+        @Override
+        public Object get(int row) {
+            int code = codes[row];
+            return code < 0 ? null : dictionary[code];
+        }
+
+        @Override
+        public long byteSize() {
+            long size = 4L * codes.length;
+            for (String value : dictionary) size += 40 + value.length();
+            return size;
+        }
+    }
+
+    record MappedIntColumn(IntBuffer values, BitSet nulls) implements Column {
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values.get(row);
+        }
+
+        @Override
+        public boolean test(int row, CsvFilter filter) {
+            if (nulls != null && nulls.get(row)) return false;
+            return filter.test(values.get(row));
+        }
+
+        @Override
+        public long byteSize() {
+            return nulls == null ? 0 : nulls.size() / 8;
+        }
+    }
+
+    record MappedLongColumn(LongBuffer values, BitSet nulls) implements Column {
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values.get(row);
+        }
+
+        @Override
+        public boolean test(int row, CsvFilter filter) {
+            if (nulls != null && nulls.get(row)) return false;
+            return filter.test(values.get(row));
+        }
+
+        @Override
+        public long byteSize() {
+            return nulls == null ? 0 : nulls.size() / 8;
+        }
+    }
+
+    record MappedDictionaryColumn(IntBuffer codes, String[] dictionary) implements Column {
+        @Override
+        public Object get(int row) {
+            int code = codes.get(row);
+            return code < 0 ? null : dictionary[code];
+        }
+
+        @Override
+        public long byteSize() {
+            long size = 0;
+            for (String value : dictionary) size += 40 + value.length();
+            return size;
+        }
+    }
+
+    /**
+     * A fallback for the types that don't get a specialized representation (doubles, dates, etc.).
+     */
+    record ObjectColumn(Object[] values) implements Column {
+        @Override
+        public Object get(int row) {
+            return values[row];
+        }
+
+        @Override
+        public long byteSize() {
+            return 24L * values.length;
+        }
+    }
+
+    long byteSize() {
+        long size = 0;
+        for (Column column : columns) size += column.byteSize();
+        return size;
+    }
+
+    /**
+     * Build the columns by reading every row of the file.
+     */
+    static ColumnarCsvData load(FileStamp stamp, Enumerable<Object[]> rows, List<RelDataType> fieldTypes) {
+        var builders = new ColumnBuilder[fieldTypes.size()];
+        for (int i = 0; i < builders.length; i++) {
+            builders[i] = switch (fieldTypes.get(i).getSqlTypeName()) {
+                case INTEGER -> new IntColumnBuilder();
+                case BIGINT -> new LongColumnBuilder();
+                case CHAR, VARCHAR -> new DictionaryColumnBuilder();
+                default -> new ObjectColumnBuilder();
+            };
+        }
+
+        int rowCount = 0;
+        try (Enumerator<Object[]> enumerator = rows.enumerator()) {
+            while (enumerator.moveNext()) {
+                Object[] row = enumerator.current();
+                for (int i = 0; i < builders.length; i++) builders[i].add(row[i]);
+                rowCount++;
+            }
+        }
+
+        var columns = new Column[builders.length];
+        for (int i = 0; i < columns.length; i++) columns[i] = builders[i].build();
+        return new ColumnarCsvData(stamp, rowCount, columns);
+    }
+
+    /**
+     * Scan the columns with a projection and filters, like {@link CsvRowReader} does for the file.
+     */
+    Enumerable<Object[]> scan(int[] projects, List<CsvFilter> filters, AtomicBoolean cancelFlag) {
+        int[] projectedColumns = projects != null ? projects : CsvRowReader.identity(columns.length);
+        CsvFilter[] filterArray = filters.toArray(new CsvFilter[0]);
+        return new AbstractEnumerable<>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new Enumerator<>() {
+                    private int row = -1;
+                    private Object[] current;
+
+                    @Override
+                    public Object[] current() {
+                        return current;
+                    }
+
+                    @Override
+                    public boolean moveNext() {
+                        rows:
+                        while (++row < rowCount) {
+                            if (cancelFlag.get()) return false;
+                            for (CsvFilter filter : filterArray) {
+                                if (!columns[filter.column()].test(row, filter)) continue rows;
+                            }
+                            var values = new Object[projectedColumns.length];
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = columns[projectedColumns[i]].get(row);
+                            }
+                            current = values;
+                            return true;
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public void reset() {
+                        row = -1;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+
+    private interface ColumnBuilder {
+        void add(Object value);
+
+        Column build();
+    }
+
+    private static final class IntColumnBuilder implements ColumnBuilder {
+        private int[] values = new int[1024];
+        private BitSet nulls;
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            if (value == null) {
+                if (nulls == null) nulls = new BitSet();
+                nulls.set(size);
+            } else {
+                values[size] = (Integer) value;
+            }
+            size++;
+        }
+
+        @Override
+        public Column build() {
+            return new IntColumn(Arrays.copyOf(values, size), nulls);
+        }
+    }
+
+    private static final class LongColumnBuilder implements ColumnBuilder {
+        private long[] values = new long[1024];
+        private BitSet nulls;
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            if (value == null) {
+                if (nulls == null) nulls = new BitSet();
+                nulls.set(size);
+            } else {
+                values[size] = (Long) value;
+            }
+            size++;
+        }
+
+        @Override
+        public Column build() {
+            return new LongColumn(Arrays.copyOf(values, size), nulls);
+        }
+    }
+
+    private static final class DictionaryColumnBuilder implements ColumnBuilder {
+        private final Map<String, Integer> codesByValue = new HashMap<>();
+        private int[] codes = new int[1024];
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == codes.length) codes = Arrays.copyOf(codes, size * 2);
+            codes[size++] = value == null ? -1 : codesByValue.computeIfAbsent((String) value, v -> codesByValue.size());
+        }
+
+        @Override
+        public Column build() {
+            var dictionary = new String[codesByValue.size()];
+            codesByValue.forEach((value, code) -> dictionary[code] = value);
+            return new DictionaryColumn(Arrays.copyOf(codes, size), dictionary);
+        }
+    }
+
+    private static final class ObjectColumnBuilder implements ColumnBuilder {
+        private Object[] values = new Object[1024];
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        @Override
+        public Column build() {
+            return new ObjectColumn(Arrays.copyOf(values, size));
+        }
+    }
+}
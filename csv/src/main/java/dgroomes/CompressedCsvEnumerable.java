@@ -0,0 +1,344 @@
+package dgroomes;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link org.apache.calcite.linq4j.Enumerable} over the rows of a compressed CSV file (see {@link CsvCompression}).
+ * <p>
+ * The decompressed bytes arrive as a sequence of chunks, and the chunks are cut wherever the compressor happened to cut
+ * them, not at line breaks. So each chunk is parsed like this: the bytes up to the first line break (the "head") finish
+ * the line that the previous chunk started, the whole lines in the middle are parsed by themselves, and the bytes after
+ * the last line break (the "tail") start a line that the next chunk finishes. The enumerator stitches the tail of each
+ * chunk to the head of the next.
+ * <p>
+ * In parallel mode, when the file is made of independently compressed blocks, each block is decompressed and its whole
+ * lines are parsed as a task on a {@link ForkJoinPool}, a bounded number of blocks ahead of the enumerator. On a disk
+ * that is slower than the CPUs, this can read a table faster than from the uncompressed file, because there are several
+ * times fewer bytes to read and the decompression is spread over all the cores. Otherwise (one block, sequential mode,
+ * or a compressed file over 2 GiB, which is more than one buffer can map), the file is decompressed as one stream on
+ * the calling thread.
+ */
+class CompressedCsvEnumerable extends AbstractEnumerable<Object[]> {
+
+    private static final Logger log = LoggerFactory.getLogger(CompressedCsvEnumerable.class);
+
+    /**
+     * The size of the chunks of decompressed bytes in the sequential mode.
+     */
+    private static final int STREAM_CHUNK_SIZE = 1024 * 1024;
+
+    private final Path path;
+    private final CsvCompression compression;
+    private final CsvFieldConverter[] converters;
+    private final int[] projects;
+    private final List<CsvFilter> filters;
+    private final AtomicBoolean cancelFlag;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool the pool to decompress blocks on, or {@code null} to decompress the file on the calling thread
+     */
+    CompressedCsvEnumerable(Path path, CsvCompression compression, CsvFieldConverter[] converters, int[] projects,
+                            List<CsvFilter> filters, AtomicBoolean cancelFlag, ForkJoinPool pool) {
+        this.path = path;
+        this.compression = compression;
+        this.converters = converters;
+        this.projects = projects;
+        this.filters = filters;
+        this.cancelFlag = cancelFlag;
+        this.pool = pool;
+    }
+
+    @Override
+    public Enumerator<Object[]> enumerator() {
+        try {
+            if (pool != null) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    if (channel.size() <= Integer.MAX_VALUE) {
+                        // The mapping stays valid after the channel is closed
+                        MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        var blocks = compression.blocks(file);
+                        if (blocks.size() > 1) {
+                            log.debug("Decompressing the {} blocks of '{}' in parallel", blocks.size(), path);
+                            return new StitchingEnumerator(new BlockChunks(file, blocks));
+                        }
+                    }
+                }
+            }
+            return new StitchingEnumerator(new StreamChunks(compression.decompress(Files.newInputStream(path))));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open '%s' for a compressed scan".formatted(path), e);
+        }
+    }
+
+    private CsvRowReader newReader() {
+        return new CsvRowReader(converters, projects, filters, null);
+    }
+
+    /**
+     * A piece of the decompressed bytes.
+     *
+     * @param head          the bytes up to and including the first line break, or all the bytes if there is none
+     * @param rows          the rows of the whole lines after the head
+     * @param tail          the bytes after the last line break
+     * @param hasLineBreak  whether the chunk has a line break at all
+     */
+    private record Chunk(byte[] head, Object[][] rows, byte[] tail, boolean hasLineBreak) {}
+
+    private static Chunk parseChunk(byte[] bytes, int length, CsvRowReader reader, AtomicBoolean cancelFlag) {
+        int first = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                first = i;
+                break;
+            }
+        }
+        if (first < 0) return new Chunk(Arrays.copyOf(bytes, length), new Object[0][], new byte[0], false);
+
+        int last = first;
+        for (int i = length - 1; i > first; i--) {
+            if (bytes[i] == '\n') {
+                last = i;
+                break;
+            }
+        }
+        var middle = ByteBuffer.wrap(bytes, first + 1, last - first).slice();
+        return new Chunk(Arrays.copyOf(bytes, first + 1), reader.readRows(middle, cancelFlag),
+                Arrays.copyOfRange(bytes, last + 1, length), true);
+    }
+
+    /**
+     * The chunks of the decompressed file, in order.
+     */
+    private interface ChunkSource extends AutoCloseable {
+
+        /**
+         * @return the next chunk, or {@code null} at the end of the file
+         */
+        Chunk next() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Decompresses the file as one stream, on the calling thread.
+     */
+    private class StreamChunks implements ChunkSource {
+
+        private final InputStream in;
+        private final CsvRowReader reader = newReader();
+        private final byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+
+        StreamChunks(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public Chunk next() throws IOException {
+            int length = in.readNBytes(buffer, 0, buffer.length);
+            if (length == 0) return null;
+            return parseChunk(buffer, length, reader, cancelFlag);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Decompresses blocks of the file on the pool, a bounded number ahead of the enumerator.
+     * <p>
+     * A gzip block boundary can be false (see {@link CsvCompression#blocks}). Then the block before it fails to
+     * decompress, because it ends in the middle of a member. When that happens, the block is merged with the blocks
+     * after it until it decompresses. The speculative results for the blocks that were merged away are thrown out.
+     */
+    private class BlockChunks implements ChunkSource {
+
+        private record InFlight(CsvCompression.Block block, ForkJoinTask<Chunk> task) {}
+
+        private final MappedByteBuffer file;
+        private final List<CsvCompression.Block> blocks;
+        private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        private final int maxInFlight;
+        private int nextBlock;
+
+        BlockChunks(MappedByteBuffer file, List<CsvCompression.Block> blocks) {
+            this.file = file;
+            this.blocks = blocks;
+            this.maxInFlight = Math.max(2, pool.getParallelism() * 2);
+            submitBlocks();
+        }
+
+        private void submitBlocks() {
+            while (inFlight.size() < maxInFlight && nextBlock < blocks.size()) {
+                var block = blocks.get(nextBlock++);
+                inFlight.add(new InFlight(block, pool.submit(() -> decompressAndParse(block))));
+            }
+        }
+
+        private Chunk decompressAndParse(CsvCompression.Block block) throws IOException {
+            var bytes = compression.decompress(file, block);
+            return parseChunk(bytes, bytes.length, newReader(), cancelFlag);
+        }
+
+        @Override
+        public Chunk next() throws IOException {
+            var head = inFlight.poll();
+            if (head == null) return null;
+
+            Chunk chunk;
+            try {
+                chunk = head.task().join();
+            } catch (RuntimeException e) {
+                chunk = merge(head.block());
+            }
+            submitBlocks();
+            return chunk;
+        }
+
+        private Chunk merge(CsvCompression.Block failed) throws IOException {
+            var merged = failed;
+            while (true) {
+                CsvCompression.Block next;
+                var speculative = inFlight.poll();
+                if (speculative != null) {
+                    speculative.task().cancel(false);
+                    next = speculative.block();
+                } else if (nextBlock < blocks.size()) {
+                    next = blocks.get(nextBlock++);
+                } else {
+                    // It was the last block, so this wasn't a false boundary. The file is corrupt.
+                    return decompressAndParse(merged);
+                }
+                merged = new CsvCompression.Block(merged.start(), next.end());
+                log.debug("A block boundary of '{}' was false. Retrying with the merged block {}", path, merged);
+                try {
+                    return decompressAndParse(merged);
+                } catch (IOException e) {
+                    // Keep merging
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            inFlight.forEach(entry -> entry.task().cancel(false));
+            inFlight.clear();
+        }
+    }
+
+    /**
+     * Stitches the lines that span chunks back together and hands out the rows. The first line of the file is the
+     * header, so it is skipped.
+     */
+    private class StitchingEnumerator implements Enumerator<Object[]> {
+
+        private final ChunkSource chunks;
+        private final CsvRowReader reader = newReader();
+        private final ByteArrayOutputStream carry = new ByteArrayOutputStream();
+        private boolean headerPending = true;
+        private boolean exhausted;
+        private Object[][] stitched = new Object[0][];
+        private Object[][] rows = new Object[0][];
+        private int rowIndex = -1;
+        private Object[] current;
+
+        StitchingEnumerator(ChunkSource chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (true) {
+                if (cancelFlag.get()) return false;
+                // Rows are handed out from "stitched" (the line finished by a chunk's head) and then from "rows" (the
+                // chunk's own lines)
+                if (++rowIndex < stitched.length + rows.length) {
+                    current = rowIndex < stitched.length ? stitched[rowIndex] : rows[rowIndex - stitched.length];
+                    return true;
+                }
+                if (exhausted) return false;
+
+                Chunk chunk;
+                try {
+                    chunk = chunks.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to decompress '%s'".formatted(path), e);
+                }
+                rowIndex = -1;
+                if (chunk == null) {
+                    // The last line may not have a line break
+                    exhausted = true;
+                    stitched = finishLine();
+                    rows = new Object[0][];
+                    continue;
+                }
+
+                carry.writeBytes(chunk.head());
+                if (!chunk.hasLineBreak()) {
+                    stitched = new Object[0][];
+                    rows = new Object[0][];
+                    continue;
+                }
+                stitched = finishLine();
+                rows = chunk.rows();
+                carry.writeBytes(chunk.tail());
+            }
+        }
+
+        /**
+         * @return the row of the carried line (none if it is the header, blank, or filtered out)
+         */
+        private Object[][] finishLine() {
+            if (carry.size() == 0) return new Object[0][];
+            var line = carry.toByteArray();
+            carry.reset();
+            if (headerPending) {
+                headerPending = false;
+                return new Object[0][];
+            }
+            return reader.readRows(ByteBuffer.wrap(line), cancelFlag);
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            try {
+                chunks.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package dgroomes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * An in-memory cache of CSV tables in columnar form (see {@link ColumnarCsvData}), shared by the tables of a
+ * {@link CsvSchema}.
+ * <p>
+ * A table is loaded on its first scan and then served from memory until its file changes. The cache has a memory cap.
+ * When loading a table pushes the total over the cap, the least recently used tables are evicted. A table that is
+ * bigger than the whole cap is never retained; it is loaded for the scan that asked for it and then dropped.
+ * <p>
+ * Optionally, the cache persists each table it loads as a {@link CsvSidecar} file next to the CSV file. After a
+ * restart, a table whose sidecar is still valid is memory-mapped from the sidecar instead of being parsed again.
+ */
+public class CsvColumnCache {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvColumnCache.class);
+
+    private final long capacityBytes;
+    private final boolean sidecars;
+
+    /**
+     * Guarded by itself. The map is in access order, which makes its iteration order least-recently-used first.
+     */
+    private final LinkedHashMap<String, ColumnarCsvData> dataByTable = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * One lock per table, so that two scans of the same table don't both load it, but loading one table doesn't block
+     * scans of another.
+     */
+    private final ConcurrentHashMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    public CsvColumnCache(long capacityBytes) {
+        this(capacityBytes, false);
+    }
+
+    /**
+     * @param sidecars whether to read and write {@link CsvSidecar} files
+     */
+    public CsvColumnCache(long capacityBytes, boolean sidecars) {
+        this.capacityBytes = capacityBytes;
+        this.sidecars = sidecars;
+    }
+
+    boolean sidecars() {
+        return sidecars;
+    }
+
+    /**
+     * Get the data for a table, loading it if it is not cached or if the cached data is for a different version of the
+     * file.
+     *
+     * @param table  the key of the table. This is the path of its file.
+     * @param stamp  the current stamp of the table's file
+     * @param loader loads the table from its file
+     */
+    ColumnarCsvData get(String table, FileStamp stamp, Supplier<ColumnarCsvData> loader) {
+        ColumnarCsvData data = lookup(table, stamp);
+        if (data != null) return data;
+
+        synchronized (loadLocks.computeIfAbsent(table, key -> new Object())) {
+            data = lookup(table, stamp);
+            if (data != null) return data;
+
+            long start = System.nanoTime();
+            data = loader.get();
+            log.debug("Loaded '{}' into the column cache in {} ms ({} rows, ~{} bytes)", table,
+                    (System.nanoTime() - start) / 1_000_000, data.rowCount(), data.byteSize());
+            store(table, data);
+            return data;
+        }
+    }
+
+    /**
+     * Drop a table from the cache.
+     */
+    public void invalidate(String table) {
+        synchronized (dataByTable) {
+            var removed = dataByTable.remove(table);
+            if (removed != null) totalBytes -= removed.byteSize();
+        }
+    }
+
+    private ColumnarCsvData lookup(String table, FileStamp stamp) {
+        synchronized (dataByTable) {
+            var data = dataByTable.get(table);
+            return data != null && data.stamp().equals(stamp) ? data : null;
+        }
+    }
+
+    private void store(String table, ColumnarCsvData data) {
+        long bytes = data.byteSize();
+        synchronized (dataByTable) {
+            var previous = dataByTable.remove(table);
+            if (previous != null) totalBytes -= previous.byteSize();
+
+            if (bytes > capacityBytes) {
+                log.warn("The table '{}' (~{} bytes) is bigger than the column cache capacity ({} bytes). It won't be cached.",
+                        table, bytes, capacityBytes);
+                return;
+            }
+
+            var iterator = dataByTable.entrySet().iterator();
+            while (totalBytes + bytes > capacityBytes && iterator.hasNext()) {
+                var eldest = iterator.next();
+                log.debug("Evicting '{}' from the column cache", eldest.getKey());
+                totalBytes -= eldest.getValue().byteSize();
+                iterator.remove();
+            }
+
+            dataByTable.put(table, data);
+            totalBytes += bytes;
+        }
+    }
+}
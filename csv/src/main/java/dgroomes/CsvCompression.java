@@ -0,0 +1,213 @@
+package dgroomes;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The compression formats that a CSV file can be stored in, by file name suffix.
+ * <p>
+ * A compressed file can be read as one stream, but then the decompression is single-threaded and it is usually the
+ * bottleneck. Both formats allow a file to be a concatenation of independently compressed pieces: gzip "members" (this
+ * is what {@code bgzip}, and {@code cat a.gz b.gz}, produce) and zstd "frames" (this is what {@code zstd} produces for
+ * big inputs with {@code -B} or with the seekable format). Each piece can be decompressed on its own thread. See
+ * {@link #blocks(ByteBuffer)} and {@link CompressedCsvEnumerable}.
+ * <p>
+ * Zstd comes from the pure-Java <a href="https://github.com/airlift/aircompressor">aircompressor</a> library.
+ */
+enum CsvCompression {
+
+    NONE(".csv"),
+    GZIP(".csv.gz"),
+    ZSTD(".csv.zst");
+
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private final String suffix;
+
+    CsvCompression(String suffix) {
+        this.suffix = suffix;
+    }
+
+    String suffix() {
+        return suffix;
+    }
+
+    /**
+     * @return the compression of a CSV file, by its name, or {@code null} if it is not a CSV file
+     */
+    static CsvCompression of(Path path) {
+        var fileName = path.getFileName().toString();
+        for (CsvCompression compression : values()) {
+            if (fileName.endsWith(compression.suffix)) return compression;
+        }
+        return null;
+    }
+
+    /**
+     * Wrap a stream of the file's bytes in a stream of the decompressed bytes.
+     */
+    InputStream decompress(InputStream in) throws IOException {
+        return switch (this) {
+            case NONE -> in;
+            // GZIPInputStream reads all the members of a multi-member file, one after the other
+            case GZIP -> new GZIPInputStream(in, 64 * 1024);
+            case ZSTD -> new ZstdInputStream(in);
+        };
+    }
+
+    /**
+     * @return the first line of the decompressed file (the header), without the line break
+     */
+    byte[] firstLine(Path path) throws IOException {
+        try (var in = decompress(new BufferedInputStream(Files.newInputStream(path)))) {
+            var line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') line.write(b);
+            return line.toByteArray();
+        }
+    }
+
+    /**
+     * A byte range of the compressed file that is one or more whole gzip members or zstd frames.
+     */
+    record Block(int start, int end) {}
+
+    /**
+     * Split the compressed file into blocks that can be decompressed independently.
+     * <p>
+     * For zstd, the frame boundaries are exact. A frame is a header followed by a chain of blocks that each state their
+     * size, so walking from frame to frame only reads a few bytes per block.
+     * <p>
+     * A gzip member doesn't state its compressed size, so the boundaries are found by looking for the bytes that start
+     * a member header. Those bytes can also happen to appear inside the compressed data. A false boundary is found out
+     * when one of its neighboring blocks fails to decompress, and then the blocks are merged. See
+     * {@link CompressedCsvEnumerable}.
+     *
+     * @return the blocks, or a single block for the whole file if it can't be split
+     */
+    List<Block> blocks(ByteBuffer file) {
+        int size = file.limit();
+        return switch (this) {
+            case NONE -> List.of(new Block(0, size));
+            case GZIP -> gzipBlocks(file, size);
+            case ZSTD -> zstdBlocks(file, size);
+        };
+    }
+
+    private static List<Block> gzipBlocks(ByteBuffer file, int size) {
+        var starts = new ArrayList<Integer>();
+        starts.add(0);
+        for (int i = 1; i + 10 <= size; i++) {
+            if (file.get(i) != (byte) 0x1f || file.get(i + 1) != (byte) 0x8b || file.get(i + 2) != 8) continue;
+            // The reserved flag bits must be zero, and the OS byte is 0-13 or 255 ("unknown")
+            int flags = file.get(i + 3) & 0xff;
+            int os = file.get(i + 9) & 0xff;
+            if ((flags & 0xe0) == 0 && (os <= 13 || os == 255)) starts.add(i);
+        }
+        return toBlocks(starts, size);
+    }
+
+    private static List<Block> zstdBlocks(ByteBuffer file, int size) {
+        var littleEndian = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        var starts = new ArrayList<Integer>();
+        int position = 0;
+        while (position + 8 <= size) {
+            starts.add(position);
+            int magic = littleEndian.getInt(position);
+            if ((magic & 0xFFFFFFF0) == 0x184D2A50) {
+                // A skippable frame: magic, 4-byte size, then that many bytes
+                position += 8 + littleEndian.getInt(position + 4);
+                continue;
+            }
+            if (magic != ZSTD_MAGIC) return List.of(new Block(0, size));
+
+            int descriptor = file.get(position + 4) & 0xff;
+            int contentSizeFlag = descriptor >>> 6;
+            boolean singleSegment = (descriptor & 0x20) != 0;
+            boolean checksum = (descriptor & 0x04) != 0;
+            int dictionaryIdFlag = descriptor & 0x03;
+            int headerSize = 1
+                    + (singleSegment ? 0 : 1)
+                    + new int[]{0, 1, 2, 4}[dictionaryIdFlag]
+                    + new int[]{singleSegment ? 1 : 0, 2, 4, 8}[contentSizeFlag];
+            position += 4 + headerSize;
+
+            while (true) {
+                if (position + 3 > size) return List.of(new Block(0, size));
+                int blockHeader = (file.get(position) & 0xff) | (file.get(position + 1) & 0xff) << 8 | (file.get(position + 2) & 0xff) << 16;
+                boolean last = (blockHeader & 1) != 0;
+                int type = (blockHeader >>> 1) & 3;
+                int blockSize = blockHeader >>> 3;
+                // An RLE block is a single byte repeated blockSize times
+                position += 3 + (type == 1 ? 1 : blockSize);
+                if (last) break;
+            }
+            if (checksum) position += 4;
+        }
+        return toBlocks(starts, size);
+    }
+
+    private static List<Block> toBlocks(List<Integer> starts, int size) {
+        var blocks = new ArrayList<Block>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            blocks.add(new Block(starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : size));
+        }
+        return blocks;
+    }
+
+    /**
+     * Decompress one block.
+     *
+     * @throws IOException if the block is not one or more whole members/frames (e.g. it was cut at a false boundary)
+     */
+    byte[] decompress(ByteBuffer file, Block block) throws IOException {
+        var slice = file.slice(block.start(), block.end() - block.start());
+        try (var in = decompress(new ByteBufferInputStream(slice))) {
+            var out = new ByteArrayOutputStream(Math.max(64, (block.end() - block.start()) * 4));
+            in.transferTo(out);
+            if (slice.hasRemaining()) throw new IOException("The block has trailing bytes that aren't a member/frame");
+            return out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            // Zstd reports corrupt input with unchecked exceptions
+            throw e instanceof IOException io ? io : new IOException(e);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
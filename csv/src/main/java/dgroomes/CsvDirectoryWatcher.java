@@ -0,0 +1,102 @@
+package dgroomes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the directory of a {@link CsvSchema} with a {@link WatchService} and refreshes the schema's tables as CSV
+ * files are added, removed and changed. See {@link CsvSchema#watch()}.
+ * <p>
+ * The events are handled on a single daemon thread. Handling an event only touches the table of the file in the event,
+ * and the table map is swapped in without locking, so queries that are already running don't wait on the watcher.
+ * <p>
+ * Files that land in the directory are often written over several steps (created, then written in chunks), so a file
+ * can produce a burst of events. Each one is handled on its own; that's cheap because refreshing a table just drops its
+ * cached data, and the data is only reloaded by the next scan.
+ */
+public final class CsvDirectoryWatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvDirectoryWatcher.class);
+
+    private final CsvSchema schema;
+    private final Path directory;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private CsvDirectoryWatcher(CsvSchema schema, Path directory, WatchService watchService) {
+        this.schema = schema;
+        this.directory = directory;
+        this.watchService = watchService;
+        this.thread = Thread.ofPlatform().name("csv-directory-watcher").daemon().unstarted(this::run);
+    }
+
+    static CsvDirectoryWatcher start(CsvSchema schema, Path directory) {
+        WatchService watchService;
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to watch the directory '%s'".formatted(directory), e);
+        }
+
+        var watcher = new CsvDirectoryWatcher(schema, directory, watchService);
+        watcher.thread.start();
+        // A file could have come or gone between when the schema was created and when the directory was registered.
+        schema.refreshAll();
+        log.debug("Watching the directory '{}'", directory);
+        return watcher;
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW) {
+                        log.debug("Events for the directory '{}' were lost. Refreshing all the tables.", directory);
+                        schema.refreshAll();
+                    } else {
+                        var path = directory.resolve((Path) event.context());
+                        log.trace("{} {}", event.kind(), path);
+                        schema.refresh(path);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Failed to handle the event {} for '{}'", event.kind(), event.context(), e);
+                }
+            }
+
+            if (!key.reset()) {
+                log.warn("The directory '{}' can't be watched anymore", directory);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package dgroomes;
+
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Converts the raw text of a CSV field into the Java value that Calcite expects for the field's SQL type.
+ * <p>
+ * Calcite's {@link org.apache.calcite.adapter.file.CsvEnumerator} has the same logic in its row converter, but that
+ * class is package-private, so I can't re-use it when I parse the file myself. This mirrors its behavior: an empty
+ * string is {@code null} for every non-string type, and date/time values are stored in Calcite's internal
+ * representation (days since the epoch, milliseconds of the day, and milliseconds since the epoch).
+ */
+@FunctionalInterface
+interface CsvFieldConverter {
+
+    Object convert(String text);
+
+    DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    static CsvFieldConverter of(RelDataType fieldType) {
+        return switch (fieldType.getSqlTypeName()) {
+            case BOOLEAN -> text -> text.isEmpty() ? null : Boolean.parseBoolean(text);
+            case TINYINT -> text -> text.isEmpty() ? null : Byte.parseByte(text);
+            case SMALLINT -> text -> text.isEmpty() ? null : Short.parseShort(text);
+            case INTEGER -> text -> text.isEmpty() ? null : Integer.parseInt(text);
+            case BIGINT -> text -> text.isEmpty() ? null : Long.parseLong(text);
+            case REAL, FLOAT -> text -> text.isEmpty() ? null : Float.parseFloat(text);
+            case DOUBLE -> text -> text.isEmpty() ? null : Double.parseDouble(text);
+            case DECIMAL -> text -> text.isEmpty() ? null : new BigDecimal(text);
+            case DATE -> text -> text.isEmpty() ? null : (int) LocalDate.parse(text).toEpochDay();
+            case TIME -> text -> text.isEmpty() ? null : LocalTime.parse(text).toSecondOfDay() * 1000;
+            case TIMESTAMP -> text -> text.isEmpty() ? null : LocalDateTime.parse(text, TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+            default -> text -> text;
+        };
+    }
+
+    static CsvFieldConverter[] of(List<RelDataType> fieldTypes) {
+        var converters = new CsvFieldConverter[fieldTypes.size()];
+        for (int i = 0; i < converters.length; i++) {
+            converters[i] = of(fieldTypes.get(i));
+        }
+        return converters;
+    }
+}
@@ -0,0 +1,167 @@
+package dgroomes;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A simple comparison between a column and a constant, like {@code POPULATION > 30000}, that a {@link CsvTable} can
+ * evaluate by itself while it reads a row.
+ * <p>
+ * The planner hands a {@link org.apache.calcite.schema.ProjectableFilterableTable} its filters as a list of
+ * {@link RexNode} conjuncts. Those expressions can be arbitrarily complex, but I only care about the common case of
+ * "column, comparison operator, literal" (in either order). Anything else is left in the list for Calcite to evaluate.
+ *
+ * @param column the index of the column in the table's row type
+ * @param kind   one of {@code =, <>, <, <=, >, >=}, already flipped so that the column is on the left-hand side
+ * @param value  the literal, as the same Java type that {@link CsvFieldConverter} produces for the column
+ */
+record CsvFilter(int column, SqlKind kind, Comparable<Object> value) {
+
+    /**
+     * Evaluate the filter against the converted value of the column. Like SQL, a comparison with {@code null} is never
+     * true.
+     */
+    boolean test(Object columnValue) {
+        if (columnValue == null) return false;
+        return matches(value.compareTo(columnValue));
+    }
+
+    /**
+     * A primitive variant of {@link #test(Object)} for integer columns, so that a value doesn't need to be boxed to be
+     * tested. The literal of a filter on an integer column is always an integer type (see {@link #literalValue}).
+     */
+    boolean test(long columnValue) {
+        return matches(Long.compare(((Number) value).longValue(), columnValue));
+    }
+
+    /**
+     * @param c the result of comparing the literal to the column value. Because the literal is on the left, the signs
+     *          are reversed relative to the operator.
+     */
+    private boolean matches(int c) {
+        return switch (kind) {
+            case EQUALS -> c == 0;
+            case NOT_EQUALS -> c != 0;
+            case LESS_THAN -> c > 0;
+            case LESS_THAN_OR_EQUAL -> c >= 0;
+            case GREATER_THAN -> c < 0;
+            case GREATER_THAN_OR_EQUAL -> c <= 0;
+            default -> throw new IllegalStateException("Unexpected filter kind: " + kind);
+        };
+    }
+
+    /**
+     * Translate the filter conjuncts that can be translated, and remove them from {@code filters}. That is the contract
+     * of {@link org.apache.calcite.schema.ProjectableFilterableTable#scan}: whatever is left in the list is evaluated by
+     * Calcite.
+     */
+    static List<CsvFilter> pushDown(List<RexNode> filters, List<RelDataType> fieldTypes) {
+        List<CsvFilter> pushed = new ArrayList<>();
+        for (Iterator<RexNode> iterator = filters.iterator(); iterator.hasNext(); ) {
+            CsvFilter filter = tryCreate(iterator.next(), fieldTypes);
+            if (filter != null) {
+                pushed.add(filter);
+                iterator.remove();
+            }
+        }
+        return pushed;
+    }
+
+    /**
+     * Try to translate a filter expression into a {@link CsvFilter}.
+     *
+     * @return the translated filter, or {@code null} if the expression is not a supported comparison
+     */
+    static CsvFilter tryCreate(RexNode node, List<RelDataType> fieldTypes) {
+        if (!(node instanceof RexCall call) || call.getOperands().size() != 2) return null;
+
+        SqlKind kind = call.getKind();
+        if (!SqlKind.COMPARISON.contains(kind) || kind == SqlKind.IS_DISTINCT_FROM || kind == SqlKind.IS_NOT_DISTINCT_FROM) {
+            return null;
+        }
+
+        RexNode left = call.getOperands().get(0);
+        RexNode right = call.getOperands().get(1);
+        if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            kind = kind.reverse();
+            RexNode swap = left;
+            left = right;
+            right = swap;
+        }
+        if (!(left instanceof RexInputRef ref) || !(right instanceof RexLiteral literal) || literal.isNull()) {
+            return null;
+        }
+
+        SqlTypeName columnType = fieldTypes.get(ref.getIndex()).getSqlTypeName();
+        Comparable<Object> value = literalValue(columnType, literal);
+        if (value == null) return null;
+        return new CsvFilter(ref.getIndex(), kind, value);
+    }
+
+    /**
+     * Convert the literal to the Java type of the column. I'm careful to only do this when it is lossless. For example,
+     * an INTEGER column compared to the literal {@code 2.5} is left for Calcite.
+     */
+    @SuppressWarnings("unchecked")
+    private static Comparable<Object> literalValue(SqlTypeName columnType, RexLiteral literal) {
+        SqlTypeName literalType = literal.getTypeName();
+        Object value;
+        switch (columnType) {
+            case TINYINT, SMALLINT, INTEGER, BIGINT -> {
+                if (!SqlTypeName.INT_TYPES.contains(literalType) && literalType != SqlTypeName.DECIMAL) return null;
+                BigDecimal decimal = literal.getValueAs(BigDecimal.class);
+                long longValue;
+                try {
+                    longValue = decimal.longValueExact();
+                } catch (ArithmeticException e) {
+                    return null;
+                }
+                value = switch (columnType) {
+                    case TINYINT -> {
+                        if (longValue != (byte) longValue) yield null;
+                        yield (byte) longValue;
+                    }
+                    case SMALLINT -> {
+                        if (longValue != (short) longValue) yield null;
+                        yield (short) longValue;
+                    }
+                    case INTEGER -> {
+                        if (longValue != (int) longValue) yield null;
+                        yield (int) longValue;
+                    }
+                    default -> longValue;
+                };
+            }
+            case DOUBLE -> {
+                if (!SqlTypeName.NUMERIC_TYPES.contains(literalType)) return null;
+                value = literal.getValueAs(Double.class);
+            }
+            case CHAR, VARCHAR -> {
+                if (!SqlTypeName.CHAR_TYPES.contains(literalType)) return null;
+                value = literal.getValueAs(String.class);
+            }
+            case BOOLEAN -> {
+                if (literalType != SqlTypeName.BOOLEAN) return null;
+                value = literal.getValueAs(Boolean.class);
+            }
+            case DATE -> {
+                if (literalType != SqlTypeName.DATE) return null;
+                value = literal.getValueAs(Integer.class);
+            }
+            default -> {
+                return null;
+            }
+        }
+        return (Comparable<Object>) value;
+    }
+}
@@ -0,0 +1,164 @@
+package dgroomes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A small CSV tokenizer that works directly over the bytes of a {@link ByteBuffer} (typically a memory-mapped region
+ * of a file) instead of over a {@link java.io.Reader}.
+ * <p>
+ * The official CSV adapter uses opencsv, which wants a character stream and a single reader thread. I want to parse
+ * independent byte ranges of the same file on different threads, so I need something that can start at an arbitrary
+ * line boundary. The supported dialect is intentionally small: comma separators, optional double-quoted fields with
+ * {@code ""} as an escaped quote, and {@code \n} or {@code \r\n} line endings. Quoted fields that contain line breaks
+ * are not supported because a line break is how a byte range finds its first full row.
+ * <p>
+ * Instances are not thread-safe. Use one parser per thread.
+ */
+final class CsvLineParser {
+
+    private final boolean[] wanted;
+    private final int lastWanted;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Create a parser that decodes every field.
+     */
+    CsvLineParser() {
+        this(null);
+    }
+
+    /**
+     * Create a parser that only decodes the fields flagged in {@code wanted}. The other fields are stepped over without
+     * creating a {@link String}, and the rest of the line after the last wanted field is not tokenized at all.
+     *
+     * @param wanted the fields to decode, by column index, or {@code null} to decode every field
+     */
+    CsvLineParser(boolean[] wanted) {
+        this.wanted = wanted;
+        int last = Integer.MAX_VALUE;
+        if (wanted != null) {
+            last = -1;
+            for (int i = 0; i < wanted.length; i++) {
+                if (wanted[i]) last = i;
+            }
+        }
+        this.lastWanted = last;
+    }
+
+    /**
+     * Tokenize the line that starts at {@code position} into {@code fields}. Extra fields on the line are ignored and
+     * missing (or unwanted) fields are left {@code null}.
+     *
+     * @return the position of the first byte of the next line (or {@code limit} if this was the last line)
+     */
+    int parseLine(ByteBuffer buffer, int position, int limit, String[] fields) {
+        Arrays.fill(fields, null);
+        int column = 0;
+        int i = position;
+        while (true) {
+            if (column > lastWanted) return nextLine(buffer, i, limit);
+
+            String value;
+            if (wanted != null && (column >= wanted.length || !wanted[column])) {
+                i = skipField(buffer, i, limit);
+                value = null;
+            } else if (i < limit && buffer.get(i) == '"') {
+                int length = 0;
+                i++;
+                while (i < limit) {
+                    byte b = buffer.get(i);
+                    if (b == '"') {
+                        if (i + 1 < limit && buffer.get(i + 1) == '"') {
+                            length = append(length, b);
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    length = append(length, b);
+                    i++;
+                }
+                // Skip anything between the closing quote and the next separator
+                while (i < limit && buffer.get(i) != ',' && buffer.get(i) != '\n') i++;
+                value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            } else {
+                int start = i;
+                while (i < limit) {
+                    byte b = buffer.get(i);
+                    if (b == ',' || b == '\n') break;
+                    i++;
+                }
+                int end = i;
+                if (end > start && buffer.get(end - 1) == '\r') end--;
+                value = decode(buffer, start, end);
+            }
+
+            if (column < fields.length) fields[column] = value;
+            column++;
+
+            if (i >= limit) return limit;
+            if (buffer.get(i) == '\n') return i + 1;
+            i++; // Skip the comma
+        }
+    }
+
+    /**
+     * Step over one field without decoding it.
+     *
+     * @return the position of the separator or line break that ends the field
+     */
+    private static int skipField(ByteBuffer buffer, int i, int limit) {
+        boolean quoted = false;
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (b == ',' || b == '\n')) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Is the line that starts at {@code position} empty? Blank lines (often a trailing one) are skipped, like opencsv
+     * does.
+     */
+    static boolean isBlankLine(ByteBuffer buffer, int position, int limit) {
+        if (position >= limit) return true;
+        byte b = buffer.get(position);
+        return b == '\n' || (b == '\r' && (position + 1 >= limit || buffer.get(position + 1) == '\n'));
+    }
+
+    /**
+     * @return the position just after the next {@code \n} at or after {@code position}, or {@code limit} if there is
+     * no line break left in the buffer
+     */
+    static int nextLine(ByteBuffer buffer, int position, int limit) {
+        for (int i = position; i < limit; i++) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return limit;
+    }
+
+    private String decode(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        ensureCapacity(length);
+        buffer.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int append(int length, byte b) {
+        ensureCapacity(length + 1);
+        scratch[length] = b;
+        return length + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (scratch.length < capacity) scratch = Arrays.copyOf(scratch, Math.max(capacity, scratch.length * 2));
+    }
+}
@@ -0,0 +1,88 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.file.CsvEnumerator;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.util.Source;
+import org.apache.calcite.util.Sources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread-safe cache of the metadata that a {@link CsvTable} derives from its file's header: the row type, the field
+ * types and a converter for each field.
+ * <p>
+ * Deducing the row type means opening the file and reading the header. That is cheap once, but not for every one of
+ * hundreds of short queries per second. The cache is keyed by the file's {@link FileStamp}, so when the file is
+ * replaced or appended to, the next lookup re-reads the header. Lookups on the happy path are a {@code stat} call and a
+ * volatile read, with no locking.
+ */
+final class CsvMetadataCache {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvMetadataCache.class);
+
+    /**
+     * The metadata derived from the header of a CSV file.
+     */
+    record Metadata(RelDataType rowType, List<RelDataType> fieldTypes, CsvFieldConverter[] converters) {}
+
+    private record Entry(Metadata metadata, FileStamp stamp) {}
+
+    private final Source source;
+    private volatile Entry entry;
+
+    CsvMetadataCache(Source source) {
+        this.source = source;
+    }
+
+    Metadata get(JavaTypeFactory typeFactory) {
+        // Sources that aren't local files (e.g. URLs) can't be stat-ed, so their metadata is cached for good.
+        FileStamp stamp = source.fileOpt().map(file -> FileStamp.of(file.toPath())).orElse(null);
+
+        Entry current = entry;
+        if (current != null && (stamp == null || stamp.equals(current.stamp()))) return current.metadata();
+
+        synchronized (this) {
+            current = entry;
+            if (current != null && (stamp == null || stamp.equals(current.stamp()))) return current.metadata();
+
+            log.debug("Deducing the row type of '{}'", source.path());
+            List<RelDataType> fieldTypes = new ArrayList<>();
+            RelDataType rowType = CsvEnumerator.deduceRowType(typeFactory, headerSource(), fieldTypes, false);
+            var metadata = new Metadata(rowType, List.copyOf(fieldTypes), CsvFieldConverter.of(fieldTypes));
+            entry = new Entry(metadata, stamp);
+            return metadata;
+        }
+    }
+
+    /**
+     * Calcite's CSV reader can read a gzip file by itself, but not a zstd file. So for a compressed file, I decompress
+     * just the header and let Calcite deduce the row type from that.
+     */
+    private Source headerSource() {
+        var file = source.fileOpt();
+        if (file.isEmpty()) return source;
+        Path path = file.get().toPath();
+        CsvCompression compression = CsvCompression.of(path);
+        if (compression == null || compression == CsvCompression.NONE) return source;
+        try {
+            return Sources.of(new String(compression.firstLine(path), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the header of '%s'".formatted(path), e);
+        }
+    }
+
+    /**
+     * Forget the cached metadata so the next lookup re-reads the header.
+     */
+    void invalidate() {
+        entry = null;
+    }
+}
@@ -0,0 +1,45 @@
+package dgroomes;
+
+/**
+ * Options for how the tables of a {@link CsvSchema} read their CSV files.
+ * <p>
+ * The defaults are the simplest behavior: each scan reads its file sequentially, nothing is cached in memory, the
+ * planner gets no statistics, and nothing is written next to the CSV files.
+ *
+ * @param scanMode    how a table reads its file when it is scanned
+ * @param columnCache an in-memory cache that the tables load themselves into on first access and serve later scans
+ *                    from, or {@code null} to always read the files. See {@link CsvColumnCache}.
+ * @param statistics  whether to collect (and persist) planner statistics for each table. See {@link CsvStatistics}.
+ * @param streams     whether to register a "_STREAM" companion of each table for {@code SELECT STREAM} queries. See
+ *                    {@link CsvStreamTable}.
+ * @param zoneMaps    whether to build (and persist) a zone map of each table on its first full scan, and skip parts of
+ *                    the file with it in later filtered scans. This only applies to the memory-mapped scan modes. See
+ *                    {@link CsvZoneMap}.
+ */
+public record CsvOptions(CsvTable.ScanMode scanMode, CsvColumnCache columnCache, boolean statistics, boolean streams,
+                         boolean zoneMaps) {
+
+    public static CsvOptions defaults() {
+        return new CsvOptions(CsvTable.ScanMode.SEQUENTIAL, null, false, false, false);
+    }
+
+    public CsvOptions withScanMode(CsvTable.ScanMode scanMode) {
+        return new CsvOptions(scanMode, columnCache, statistics, streams, zoneMaps);
+    }
+
+    public CsvOptions withColumnCache(CsvColumnCache columnCache) {
+        return new CsvOptions(scanMode, columnCache, statistics, streams, zoneMaps);
+    }
+
+    public CsvOptions withStatistics(boolean statistics) {
+        return new CsvOptions(scanMode, columnCache, statistics, streams, zoneMaps);
+    }
+
+    public CsvOptions withStreams(boolean streams) {
+        return new CsvOptions(scanMode, columnCache, statistics, streams, zoneMaps);
+    }
+
+    public CsvOptions withZoneMaps(boolean zoneMaps) {
+        return new CsvOptions(scanMode, columnCache, statistics, streams, zoneMaps);
+    }
+}
@@ -0,0 +1,459 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.util.Sources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A table backed by a directory of CSV files, like {@code ZIPS/part-0001.csv ... ZIPS/part-0256.csv}. Each file is a
+ * partition of the table.
+ * <p>
+ * Partitions can be nested in "key=value" directories, like {@code ZIPS/state=CO/part-0001.csv}. Each key becomes a
+ * {@code VARCHAR} column of the table, after the columns of the files, and every row of a partition has the values from
+ * the partition's path. A filter on a partition column, like {@code STATE = 'CO'}, is evaluated once per partition
+ * instead of once per row, and the partitions that don't match aren't read at all.
+ * <p>
+ * The files must all have the same header. The row type comes from the first file (in path order).
+ * <p>
+ * Each partition is scanned by its own {@link CsvTable}, which keeps its own cached metadata, zone map and so on. The
+ * partitions are scanned concurrently on the common fork-join pool, with at most as many partitions in flight as the
+ * pool has threads. Like {@link MappedCsvEnumerable}, the rows are handed back in partition order. A partition's rows
+ * are streamed in chunks through a small bounded queue, so a scan never holds more than a few chunks per partition in
+ * memory, no matter how big the files are.
+ * <p>
+ * The listing of the partitions is cached. Adding, removing or renaming a file changes the last-modified time of its
+ * directory, so the listing is only redone when the last-modified time of one of the directories has changed (or when
+ * the schema's watcher says so, see {@link #invalidate()}). Checking that is a {@code stat} call per directory, instead
+ * of a walk of the whole tree, for each of the several times that planning a query asks for the row type and the
+ * statistics.
+ */
+final class CsvPartitionedTable extends AbstractTable implements ProjectableFilterableTable {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvPartitionedTable.class);
+
+    /**
+     * @param values the value of each partition column, or {@code null} if the path doesn't have the key
+     */
+    private record Partition(CsvTable table, String[] values) {}
+
+    /**
+     * @param directories the last-modified time of each directory of the tree, from just before it was listed
+     */
+    private record Layout(List<Partition> partitions, List<String> partitionColumns, Map<Path, FileTime> directories) {
+
+        boolean isCurrent() {
+            for (var directory : directories.entrySet()) {
+                try {
+                    if (!Files.getLastModifiedTime(directory.getKey()).equals(directory.getValue())) return false;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The rows of a partition are handed from the task that scans it to the enumerator in chunks of this many rows.
+     */
+    private static final int CHUNK_ROWS = 1024;
+
+    /**
+     * The most chunks of a partition that can wait for the enumerator. The task that scans the partition waits when
+     * there are this many.
+     */
+    private static final int CHUNKS_AHEAD = 4;
+
+    private final Path directory;
+    private final CsvOptions options;
+    private final Map<Path, CsvTable> tables = new ConcurrentHashMap<>();
+    private volatile Layout layout;
+
+    CsvPartitionedTable(Path directory, CsvOptions options) {
+        this.directory = directory;
+        this.options = options;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * Forget the listing of the partitions, so that the next lookup lists them again.
+     */
+    void invalidate() {
+        layout = null;
+    }
+
+    /**
+     * @return the partitions of the table, listed again only if a directory has changed since the last listing
+     */
+    private Layout layout() {
+        Layout current = layout;
+        if (current != null && current.isCurrent()) return current;
+        synchronized (this) {
+            current = layout;
+            if (current != null && current.isCurrent()) return current;
+            current = listLayout();
+            layout = current;
+            return current;
+        }
+    }
+
+    /**
+     * List the partitions of the table. The {@link CsvTable} of a file is reused for as long as the file is there.
+     */
+    private Layout listLayout() {
+        log.debug("Listing the partitions in '{}'", directory);
+        var files = new ArrayList<Path>();
+        var directories = new HashMap<Path, FileTime>();
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    directories.put(dir, attrs.lastModifiedTime());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && CsvCompression.of(file) != null) files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list the partitions in '%s'".formatted(directory), e);
+        }
+        files.sort(null);
+        tables.keySet().retainAll(files);
+
+        var keyValuesByFile = new ArrayList<Map<String, String>>();
+        var columns = new LinkedHashSet<String>();
+        for (Path file : files) {
+            var keyValues = new LinkedHashMap<String, String>();
+            for (Path segment : directory.relativize(file.getParent() == null ? file : file.getParent())) {
+                var text = segment.toString();
+                int equals = text.indexOf('=');
+                if (equals <= 0) continue;
+                keyValues.put(text.substring(0, equals).toUpperCase(), text.substring(equals + 1));
+            }
+            keyValuesByFile.add(keyValues);
+            columns.addAll(keyValues.keySet());
+        }
+
+        var partitionColumns = List.copyOf(columns);
+        var partitions = new ArrayList<Partition>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            var table = tables.computeIfAbsent(files.get(i), file -> new CsvTable(Sources.of(file.toFile()), options));
+            var keyValues = keyValuesByFile.get(i);
+            var values = new String[partitionColumns.size()];
+            for (int c = 0; c < values.length; c++) values[c] = keyValues.get(partitionColumns.get(c));
+            partitions.add(new Partition(table, values));
+        }
+        return new Layout(partitions, partitionColumns, Map.copyOf(directories));
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return rowType(typeFactory, layout());
+    }
+
+    private static RelDataType rowType(RelDataTypeFactory typeFactory, Layout layout) {
+        var builder = typeFactory.builder();
+        if (!layout.partitions().isEmpty()) {
+            builder.addAll(layout.partitions().getFirst().table().getRowType(typeFactory).getFieldList());
+        }
+        for (String column : layout.partitionColumns()) {
+            builder.add(column, typeFactory.createTypeWithNullability(typeFactory.createSqlType(SqlTypeName.VARCHAR), true));
+        }
+        return builder.build();
+    }
+
+    /**
+     * With statistics enabled, the row count is the sum of the row counts of the partitions.
+     */
+    @Override
+    public Statistic getStatistic() {
+        if (!options.statistics()) return Statistics.UNKNOWN;
+        double rowCount = 0;
+        for (Partition partition : layout().partitions()) {
+            Double partitionRowCount = partition.table().getStatistic().getRowCount();
+            if (partitionRowCount == null) return Statistics.UNKNOWN;
+            rowCount += partitionRowCount;
+        }
+        return Statistics.of(rowCount, List.of());
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root, List<RexNode> filters, int[] projects) {
+        JavaTypeFactory typeFactory = root.getTypeFactory();
+        AtomicBoolean cancelFlag = DataContext.Variable.CANCEL_FLAG.get(root);
+        var layout = layout();
+        RelDataType rowType = rowType(typeFactory, layout);
+        int dataColumnCount = rowType.getFieldCount() - layout.partitionColumns().size();
+        if (projects == null) projects = CsvRowReader.identity(rowType.getFieldCount());
+
+        // Split the filters into the ones on the partition columns, which prune partitions, and the ones on the data
+        // columns, which each partition's scan evaluates.
+        List<RelDataType> fieldTypes = rowType.getFieldList().stream().map(RelDataTypeField::getType).toList();
+        var partitionFilters = new ArrayList<CsvFilter>();
+        var dataFilters = new ArrayList<CsvFilter>();
+        for (CsvFilter filter : CsvFilter.pushDown(filters, fieldTypes)) {
+            (filter.column() < dataColumnCount ? dataFilters : partitionFilters).add(filter);
+        }
+
+        var matching = new ArrayList<Partition>();
+        for (Partition partition : layout.partitions()) {
+            if (matches(partition, partitionFilters, dataColumnCount)) matching.add(partition);
+        }
+        log.debug("Scanning {} of the {} partitions of '{}' with projects {}, partition filters {}, data filters {} and remaining filters {}",
+                matching.size(), layout.partitions().size(), directory, Arrays.toString(projects), partitionFilters, dataFilters, filters);
+
+        // The data columns to read from each partition, and where each output column comes from
+        int[] finalProjects = projects;
+        int[] dataProjects = Arrays.stream(projects).filter(column -> column < dataColumnCount).toArray();
+        return new AbstractEnumerable<>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new PartitionEnumerator(matching, partition -> partition.table()
+                        .scan(typeFactory, dataFilters, dataProjects, cancelFlag)
+                        .select(row -> assemble(row, partition, finalProjects, dataColumnCount))
+                        .enumerator(), cancelFlag);
+            }
+        };
+    }
+
+    private static boolean matches(Partition partition, List<CsvFilter> partitionFilters, int dataColumnCount) {
+        for (CsvFilter filter : partitionFilters) {
+            if (!filter.test(partition.values()[filter.column() - dataColumnCount])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param dataRow the projected data columns of a row of the partition, in the order they appear in {@code projects}
+     */
+    private static Object[] assemble(Object[] dataRow, Partition partition, int[] projects, int dataColumnCount) {
+        var row = new Object[projects.length];
+        int dataIndex = 0;
+        for (int i = 0; i < projects.length; i++) {
+            int column = projects[i];
+            row[i] = column < dataColumnCount ? dataRow[dataIndex++] : partition.values()[column - dataColumnCount];
+        }
+        return row;
+    }
+
+    private interface PartitionScan {
+        Enumerator<Object[]> rows(Partition partition);
+    }
+
+    /**
+     * Hands back the rows of each partition in order, while the next few partitions are scanned ahead of it on the
+     * common pool.
+     * <p>
+     * Each partition that is in flight has a task that scans it, and a bounded queue of chunks of its rows. The
+     * enumerator takes the chunks of the oldest partition. The task of a partition further ahead fills its queue and
+     * then waits (as a {@link ForkJoinPool.ManagedBlocker}, so that the pool can make up for the waiting thread).
+     */
+    private static final class PartitionEnumerator implements Enumerator<Object[]> {
+
+        /**
+         * Some rows of a partition, or the end of the partition ({@link #LAST}), or the failure of its scan.
+         */
+        private record Chunk(Object[][] rows, Throwable failure) {
+            static final Chunk LAST = new Chunk(new Object[0][], null);
+        }
+
+        private record Feed(ArrayBlockingQueue<Chunk> chunks, ForkJoinTask<?> task) {}
+
+        private final List<Partition> partitions;
+        private final PartitionScan scan;
+        private final AtomicBoolean cancelFlag;
+        private final ArrayDeque<Feed> inFlight = new ArrayDeque<>();
+        private final int maxInFlight = ForkJoinPool.getCommonPoolParallelism();
+        private volatile boolean closed;
+        private int nextPartition;
+        private Object[][] rows = new Object[0][];
+        private int rowIndex = -1;
+        private Object[] current;
+
+        PartitionEnumerator(List<Partition> partitions, PartitionScan scan, AtomicBoolean cancelFlag) {
+            this.partitions = partitions;
+            this.scan = scan;
+            this.cancelFlag = cancelFlag;
+            submitPartitions();
+        }
+
+        private void submitPartitions() {
+            while (inFlight.size() < maxInFlight && nextPartition < partitions.size()) {
+                var partition = partitions.get(nextPartition++);
+                var chunks = new ArrayBlockingQueue<Chunk>(CHUNKS_AHEAD);
+                inFlight.add(new Feed(chunks, ForkJoinPool.commonPool().submit(() -> produce(partition, chunks))));
+            }
+        }
+
+        /**
+         * Scan a partition into its queue. This runs on the pool.
+         */
+        private void produce(Partition partition, ArrayBlockingQueue<Chunk> chunks) {
+            try (var enumerator = scan.rows(partition)) {
+                var buffer = new Object[CHUNK_ROWS][];
+                int count = 0;
+                while (!closed && enumerator.moveNext()) {
+                    buffer[count++] = enumerator.current();
+                    if (count == CHUNK_ROWS) {
+                        put(chunks, new Chunk(buffer, null));
+                        buffer = new Object[CHUNK_ROWS][];
+                        count = 0;
+                    }
+                }
+                if (count > 0) put(chunks, new Chunk(Arrays.copyOf(buffer, count), null));
+                put(chunks, Chunk.LAST);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                try {
+                    put(chunks, new Chunk(null, e));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Put a chunk on a queue, waiting for room. Once the enumerator is closed, nobody takes from the queues anymore,
+         * so the chunk is dropped.
+         */
+        private void put(ArrayBlockingQueue<Chunk> chunks, Chunk chunk) throws InterruptedException {
+            if (closed) return;
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                boolean done;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (!done) {
+                        chunks.put(chunk);
+                        done = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    if (!done) done = chunks.offer(chunk);
+                    return done;
+                }
+            });
+        }
+
+        private static Chunk take(ArrayBlockingQueue<Chunk> chunks) {
+            var taker = new ForkJoinPool.ManagedBlocker() {
+                Chunk chunk;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (chunk == null) chunk = chunks.take();
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    if (chunk == null) chunk = chunks.poll();
+                    return chunk != null;
+                }
+            };
+            try {
+                ForkJoinPool.managedBlock(taker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the rows of a partition", e);
+            }
+            return taker.chunk;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (true) {
+                if (cancelFlag.get()) return false;
+                if (++rowIndex < rows.length) {
+                    current = rows[rowIndex];
+                    return true;
+                }
+                var feed = inFlight.peek();
+                if (feed == null) return false;
+                var chunk = take(feed.chunks());
+                if (chunk.failure() != null) {
+                    if (chunk.failure() instanceof RuntimeException e) throw e;
+                    if (chunk.failure() instanceof Error e) throw e;
+                    throw new IllegalStateException("Failed to scan a partition", chunk.failure());
+                }
+                if (chunk == Chunk.LAST) {
+                    inFlight.poll();
+                    submitPartitions();
+                }
+                rows = chunk.rows();
+                rowIndex = -1;
+            }
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stop the scans. A task that is waiting for room in its queue gets it when the queue is cleared, and then sees
+         * that the enumerator is closed.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            for (Feed feed : inFlight) {
+                feed.task().cancel(false);
+                feed.chunks().clear();
+            }
+            inFlight.clear();
+        }
+    }
+}
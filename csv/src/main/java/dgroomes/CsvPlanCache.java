@@ -0,0 +1,402 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.sql.SqlIdentifier;
+import org.apache.calcite.sql.SqlNode;
+import org.apache.calcite.sql.parser.SqlParseException;
+import org.apache.calcite.sql.parser.SqlParser;
+import org.apache.calcite.sql.util.SqlShuttle;
+import org.apache.calcite.tools.RelRunner;
+import org.apache.calcite.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache of compiled query plans for a Calcite connection.
+ * <p>
+ * Every time a SQL string or a relational expression is prepared, Calcite parses it, validates it, optimizes it and
+ * generates and compiles Java code for it with Janino. For the short queries in this project, that takes much longer
+ * than actually running the query. But a JDBC {@link PreparedStatement} holds on to its compiled plan and can be
+ * executed again and again, and each execution scans the tables again. So this cache keeps the prepared statements,
+ * keyed by the query.
+ * <p>
+ * The key of a SQL query is the SQL text with the runs of whitespace (outside of quotes) collapsed, so that the same
+ * query formatted differently is still a hit. The key of a relational expression is its digest, which is its plan
+ * printed without the IDs of the nodes.
+ * <p>
+ * A plan has the row types of its tables baked into it. When a table comes or goes, or its file changes, only the plans
+ * that read that table are thrown away. Each plan remembers the
+ * versions (see {@link CsvSchema#tableVersion(String)}) of the tables it reads, as they were when it was compiled, and a
+ * lookup that finds a plan with an out-of-date table version treats it as a miss. The tables of a relational expression
+ * are its scans. The tables of a SQL query are found by parsing it, and any identifier in it counts, which may include
+ * a column that happens to have the name of a table. That only costs a recompile now and then.
+ * <p>
+ * The cache holds at most a fixed number of plans and evicts the least recently used one. An evicted statement is
+ * closed.
+ * <p>
+ * A prepared statement can only run one execution at a time. When a plan is already executing on another thread (or on
+ * this thread, further up the stack, when a row handler runs the same query), the query is prepared from scratch for
+ * this execution instead (that is counted as "busy"). Two threads that
+ * miss on the same query at the same time may both compile it; only one of the plans is kept.
+ */
+public final class CsvPlanCache implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvPlanCache.class);
+
+    /**
+     * Handles each row of a result set. The result set is positioned on the row.
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        void handle(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * @param hits      executions that reused a cached plan
+     * @param misses    executions that had to compile a plan
+     * @param busy      executions that compiled a throwaway plan because the cached one was executing
+     * @param evictions plans that were evicted to make room for others
+     */
+    public record Stats(long hits, long misses, long busy, long evictions) {}
+
+    private record Key(String query) {}
+
+    private static final class Entry {
+        final PreparedStatement statement;
+        final Map<String, Long> tableVersions;
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Set when the entry is evicted. If its statement is executing then (on another thread, or on the evicting thread
+         * further up the stack), the thread that is executing it closes it when it's done. See {@link #closeAll}.
+         */
+        volatile boolean evicted;
+
+        /**
+         * @param tableVersions the versions of the tables that the plan reads, from before it was compiled
+         */
+        Entry(PreparedStatement statement, Map<String, Long> tableVersions) {
+            this.statement = statement;
+            this.tableVersions = tableVersions;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Preparer {
+        PreparedStatement prepare() throws SQLException;
+    }
+
+    private final CalciteConnection connection;
+    private final int capacity;
+    private final ToLongFunction<String> tableVersion;
+
+    /**
+     * Guarded by itself. The map is in access order, which makes its iteration order least-recently-used first.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cache for a schema that never changes.
+     *
+     * @param capacity the maximum number of plans to keep
+     */
+    public CsvPlanCache(CalciteConnection connection, int capacity) {
+        this(connection, capacity, tableName -> 0);
+    }
+
+    /**
+     * A cache for a {@link CsvSchema}, which may change.
+     *
+     * @param capacity the maximum number of plans to keep
+     */
+    public CsvPlanCache(CalciteConnection connection, int capacity, CsvSchema schema) {
+        this(connection, capacity, schema::tableVersion);
+    }
+
+    /**
+     * @param capacity     the maximum number of plans to keep
+     * @param tableVersion the current version of a table, by its name. See {@link CsvSchema#tableVersion(String)}.
+     */
+    public CsvPlanCache(CalciteConnection connection, int capacity, ToLongFunction<String> tableVersion) {
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1 but was %d".formatted(capacity));
+        this.connection = connection;
+        this.capacity = capacity;
+        this.tableVersion = tableVersion;
+    }
+
+    /**
+     * Execute a SQL query, with a cached plan if there is one.
+     */
+    public int query(String sql, RowHandler rowHandler) throws SQLException {
+        var key = new Key("sql:" + normalize(sql));
+        return query(key, tableNames(sql), () -> connection.prepareStatement(sql), rowHandler);
+    }
+
+    /**
+     * Execute a relational expression, with a cached plan if there is one.
+     */
+    public int query(RelNode relNode, RowHandler rowHandler) throws SQLException {
+        var key = new Key("rel:" + RelOptUtil.toString(relNode, SqlExplainLevel.DIGEST_ATTRIBUTES));
+        var tableNames = new HashSet<String>();
+        RelOptUtil.findTables(relNode).forEach(table -> tableNames.add(Util.last(table.getQualifiedName())));
+        return query(key, tableNames, () -> {
+            // This is the tricky bit that was really hard to discover. This RelRunner API is the thing that lets us
+            // run relational expressions. But, actually getting a handle on it is tricky. We have to call "unwrap"
+            // on the JDBC "Connection" object. But to be fair, the "unwrap" JavaDoc says the method is used "to allow
+            // access to non-standard methods" and so this is an idiomatic way to do it.
+            RelRunner relRunner = connection.unwrap(RelRunner.class);
+            return relRunner.prepareStatement(relNode);
+        }, rowHandler);
+    }
+
+    /**
+     * @param tableNames the names of the tables that the query may read
+     * @return the number of rows
+     */
+    private int query(Key key, Set<String> tableNames, Preparer preparer, RowHandler rowHandler) throws SQLException {
+        Entry entry;
+        Entry stale = null;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && !isCurrent(entry)) {
+                entries.remove(key);
+                stale = entry;
+                entry = null;
+            }
+        }
+        if (stale != null) {
+            log.debug("Dropping the plan for the query because a table it reads has changed: {}", key.query());
+            closeAll(List.of(stale));
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            // Take the versions before compiling, so that a change that lands during the compilation makes it stale
+            var tableVersions = new HashMap<String, Long>();
+            for (String tableName : tableNames) tableVersions.put(tableName, tableVersion.applyAsLong(tableName));
+            long start = System.nanoTime();
+            entry = new Entry(preparer.prepare(), Map.copyOf(tableVersions));
+            log.debug("Compiled a plan in {} ms for the query: {}", (System.nanoTime() - start) / 1_000_000, key.query());
+            entry = store(key, entry);
+        } else if (tryLock(entry)) {
+            try {
+                // It could have been evicted and closed since it was looked up
+                if (!entry.statement.isClosed() && !entry.evicted) {
+                    hits.incrementAndGet();
+                    return execute(entry.statement, rowHandler);
+                }
+            } finally {
+                unlock(entry);
+            }
+            misses.incrementAndGet();
+            try (var statement = preparer.prepare()) {
+                return execute(statement, rowHandler);
+            }
+        } else {
+            busy.incrementAndGet();
+            try (var statement = preparer.prepare()) {
+                return execute(statement, rowHandler);
+            }
+        }
+
+        // The entry that was just stored. It could already have been taken by another thread, or evicted and closed.
+        if (tryLock(entry)) {
+            try {
+                if (!entry.statement.isClosed() && !entry.evicted) return execute(entry.statement, rowHandler);
+            } finally {
+                unlock(entry);
+            }
+        }
+        try (var statement = preparer.prepare()) {
+            return execute(statement, rowHandler);
+        }
+    }
+
+    private boolean isCurrent(Entry entry) {
+        for (var tableVersion : entry.tableVersions.entrySet()) {
+            if (this.tableVersion.applyAsLong(tableVersion.getKey()) != tableVersion.getValue()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lock the entry to execute its statement, unless another thread is executing it, or this thread is (a row handler
+     * that runs the same query).
+     */
+    private static boolean tryLock(Entry entry) {
+        return !entry.lock.isHeldByCurrentThread() && entry.lock.tryLock();
+    }
+
+    private static void unlock(Entry entry) {
+        entry.lock.unlock();
+        // Still executing further up the stack
+        if (entry.lock.isHeldByCurrentThread()) return;
+        if (entry.evicted) closeIfIdle(entry);
+    }
+
+    private static int execute(PreparedStatement statement, RowHandler rowHandler) throws SQLException {
+        int rowCount = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rowCount++;
+                rowHandler.handle(resultSet);
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * Store a new entry, evicting the least recently used entries to make room.
+     *
+     * @return the entry that is in the cache for the key. If another thread stored one first, that one wins.
+     */
+    private Entry store(Key key, Entry entry) {
+        var evicted = new ArrayList<Entry>();
+        Entry stored;
+        synchronized (entries) {
+            var existing = entries.get(key);
+            if (existing != null) {
+                evicted.add(entry);
+                stored = existing;
+            } else {
+                var iterator = entries.entrySet().iterator();
+                while (entries.size() >= capacity && iterator.hasNext()) {
+                    var eldest = iterator.next();
+                    log.debug("Evicting the plan for the query: {}", eldest.getKey().query());
+                    evicted.add(eldest.getValue());
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+                entries.put(key, entry);
+                stored = entry;
+            }
+        }
+        closeAll(evicted);
+        return stored;
+    }
+
+    /**
+     * Close the statements. A statement that is executing is closed after its execution is done, by the thread that is
+     * executing it. This never waits for the lock of an entry: the execution that holds it could be running a row handler
+     * that waits for this thread.
+     * <p>
+     * The evicted flag is set before the lock is tried, and the executing thread checks the flag after it unlocks. So
+     * either this thread gets the lock, or the executing thread sees the flag (or both, and whichever gets the lock closes
+     * the statement).
+     */
+    private static void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.evicted = true;
+            closeIfIdle(entry);
+        }
+    }
+
+    private static void closeIfIdle(Entry entry) {
+        if (!entry.lock.tryLock()) return;
+        try {
+            // If this thread is executing the statement further up the stack, it's closed when that's done
+            if (entry.lock.getHoldCount() == 1) close(entry);
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.statement.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close a cached statement", e);
+        }
+    }
+
+    /**
+     * @return the last part of every identifier in the query, which includes the names of the tables it reads. If the
+     * query can't be parsed, it won't compile either, so it doesn't matter what this returns.
+     */
+    private Set<String> tableNames(String sql) {
+        SqlNode node;
+        try {
+            node = SqlParser.create(sql, SqlParser.config().withLex(connection.config().lex())).parseQuery();
+        } catch (SqlParseException e) {
+            return Set.of();
+        }
+        var names = new HashSet<String>();
+        node.accept(new SqlShuttle() {
+            @Override
+            public SqlNode visit(SqlIdentifier identifier) {
+                names.add(Util.last(identifier.names));
+                return identifier;
+            }
+        });
+        return names;
+    }
+
+    /**
+     * Collapse each run of whitespace outside of quotes (string literals and quoted identifiers) into a single space,
+     * and drop a trailing semicolon (and the whitespace before it).
+     */
+    static String normalize(String sql) {
+        var normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = !normalized.isEmpty();
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                // A doubled quote is an escaped quote. It closes and reopens the quoted text, which works out the same.
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ';') end--;
+        if (end > 0 && normalized.charAt(end - 1) == ' ') end--;
+        normalized.setLength(end);
+        return normalized.toString();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.get(), misses.get(), busy.get(), evictions.get());
+    }
+
+    @Override
+    public void close() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        closeAll(all);
+    }
+}
@@ -0,0 +1,121 @@
+package dgroomes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the rows of a scan, with its projection and filters pushed down, out of a buffer of CSV lines.
+ * <p>
+ * This is where the pushdown pays off. Only the projected and filtered columns are decoded and converted. The filters
+ * are evaluated on the converted values before the output row is allocated, so rows that don't match cost no
+ * {@code Object[]} at all.
+ * <p>
+ * Instances are not thread-safe. Use one reader per thread.
+ */
+final class CsvRowReader {
+
+    private final CsvFieldConverter[] converters;
+    private final int[] projects;
+    private final CsvFilter[] filters;
+    private final CsvLineParser parser;
+    private final String[] fields;
+    private final boolean[] zoneColumns;
+    private final long[] zoneMins;
+    private final long[] zoneMaxes;
+
+    /**
+     * @param converters  a converter for each column of the table
+     * @param projects    the columns of the output row, by column index, or {@code null} for all columns
+     * @param filters     the filters that a row must pass
+     * @param zoneColumns the integer-valued columns to track the min/max values of, for a {@link CsvZoneMap}, or
+     *                    {@code null} to not track any
+     */
+    CsvRowReader(CsvFieldConverter[] converters, int[] projects, List<CsvFilter> filters, boolean[] zoneColumns) {
+        this.converters = converters;
+        this.projects = projects != null ? projects : identity(converters.length);
+        this.filters = filters.toArray(new CsvFilter[0]);
+        this.fields = new String[converters.length];
+        this.zoneColumns = zoneColumns;
+        this.zoneMins = new long[converters.length];
+        this.zoneMaxes = new long[converters.length];
+        Arrays.fill(zoneMins, Long.MAX_VALUE);
+        Arrays.fill(zoneMaxes, Long.MIN_VALUE);
+
+        boolean[] wanted = new boolean[converters.length];
+        for (int project : this.projects) wanted[project] = true;
+        for (CsvFilter filter : this.filters) wanted[filter.column()] = true;
+        if (zoneColumns != null) {
+            for (int i = 0; i < zoneColumns.length; i++) wanted[i] |= zoneColumns[i];
+        }
+        this.parser = new CsvLineParser(wanted);
+    }
+
+    /**
+     * Read all the rows in the buffer. The buffer must start at the beginning of a line.
+     */
+    Object[][] readRows(ByteBuffer buffer, AtomicBoolean cancelFlag) {
+        var rows = new ArrayList<Object[]>();
+        int limit = buffer.limit();
+        int position = 0;
+        while (position < limit && !cancelFlag.get()) {
+            if (CsvLineParser.isBlankLine(buffer, position, limit)) {
+                position = CsvLineParser.nextLine(buffer, position, limit);
+                continue;
+            }
+            position = parser.parseLine(buffer, position, limit, fields);
+            if (zoneColumns != null) trackZones();
+            if (!passesFilters()) continue;
+
+            var row = new Object[projects.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = convert(projects[i]);
+            }
+            rows.add(row);
+        }
+        return rows.toArray(new Object[0][]);
+    }
+
+    /**
+     * The min value of each tracked column over all the rows read (filtered out or not), or {@link Long#MAX_VALUE} if
+     * the column had no non-null values.
+     */
+    long[] zoneMins() {
+        return zoneMins;
+    }
+
+    long[] zoneMaxes() {
+        return zoneMaxes;
+    }
+
+    private void trackZones() {
+        for (int i = 0; i < zoneColumns.length; i++) {
+            if (!zoneColumns[i] || fields[i] == null) continue;
+            Object value = convert(i);
+            if (value == null) continue;
+            long longValue = ((Number) value).longValue();
+            if (longValue < zoneMins[i]) zoneMins[i] = longValue;
+            if (longValue > zoneMaxes[i]) zoneMaxes[i] = longValue;
+        }
+    }
+
+    private boolean passesFilters() {
+        for (CsvFilter filter : filters) {
+            if (!filter.test(convert(filter.column()))) return false;
+        }
+        return true;
+    }
+
+    private Object convert(int column) {
+        var text = fields[column];
+        return text == null ? null : converters[column].convert(text);
+    }
+
+    static int[] identity(int size) {
+        var identity = new int[size];
+        for (int i = 0; i < size; i++) identity[i] = i;
+        return identity;
+    }
+}
@@ -11,8 +11,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -21,11 +28,80 @@ import java.util.Locale;
 public class CsvRunner {
 
     private static final Logger log = LoggerFactory.getLogger(CsvRunner.class);
-    private Connection connection;
+    private final CsvOptions options;
+    private final int planCacheSize;
     private CalciteConnection calciteConnection;
+    private CsvSchema geographiesSchema;
+    private CsvPlanCache planCache;
+
+    /**
+     * @param planCacheSize the number of compiled query plans to keep (see {@link CsvPlanCache})
+     */
+    public CsvRunner(CsvOptions options, int planCacheSize) {
+        this.options = options;
+        this.planCacheSize = planCacheSize;
+    }
 
     public static void main(String[] args) throws SQLException {
-        new CsvRunner().run();
+        CsvTable.ScanMode scanMode;
+        String scanModeEnv = System.getenv("SCAN_MODE");
+
+        if (scanModeEnv != null) {
+            try {
+                scanMode = CsvTable.ScanMode.valueOf(scanModeEnv);
+            } catch (IllegalArgumentException e) {
+                var msg = "The value in the environment variable 'SCAN_MODE' ('%s') is not one of %s.".formatted(scanModeEnv, Arrays.toString(CsvTable.ScanMode.values()));
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            scanMode = CsvTable.ScanMode.SEQUENTIAL;
+        }
+
+        // The in-memory column cache is opt-in. Its capacity is given in megabytes. The cache can also persist the
+        // tables as binary sidecar files next to the CSV files, so that they load quickly after a restart.
+        CsvColumnCache columnCache = null;
+        String columnCacheEnv = System.getenv("COLUMN_CACHE_MB");
+        if (columnCacheEnv != null) {
+            try {
+                columnCache = new CsvColumnCache(Long.parseLong(columnCacheEnv) * 1024 * 1024,
+                        Boolean.parseBoolean(System.getenv("COLUMN_SIDECARS")));
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'COLUMN_CACHE_MB' ('%s') is not a number.".formatted(columnCacheEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+
+        int planCacheSize = 100;
+        String planCacheSizeEnv = System.getenv("PLAN_CACHE_SIZE");
+        if (planCacheSizeEnv != null) {
+            try {
+                planCacheSize = Integer.parseInt(planCacheSizeEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'PLAN_CACHE_SIZE' ('%s') is not a number.".formatted(planCacheSizeEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+
+        boolean statistics = Boolean.parseBoolean(System.getenv("STATISTICS"));
+        boolean streams = Boolean.parseBoolean(System.getenv("STREAM"));
+        boolean zoneMaps = Boolean.parseBoolean(System.getenv("ZONE_MAPS"));
+
+        var options = CsvOptions.defaults()
+                .withScanMode(scanMode)
+                .withColumnCache(columnCache)
+                .withStatistics(statistics)
+                .withStreams(streams)
+                .withZoneMaps(zoneMaps);
+        var runner = new CsvRunner(options, planCacheSize);
+        runner.run();
+
+        if (streams) {
+            runner.tailZips();
+        }
+
+        if (Boolean.parseBoolean(System.getenv("WATCH"))) {
+            runner.watchDirectory();
+        }
     }
 
     void run() throws SQLException {
@@ -35,12 +111,16 @@ public class CsvRunner {
         try (var connection = DriverManager.getConnection("jdbc:calcite:");
              var calciteConnection = connection.unwrap(CalciteConnection.class)) {
 
-            this.connection = connection;
             this.calciteConnection = calciteConnection;
             setupSchema();
-            selectAllZips();
-            populationByCity();
-            zipsHighPopulation();
+            try (var planCache = new CsvPlanCache(calciteConnection, planCacheSize, geographiesSchema)) {
+                this.planCache = planCache;
+                selectAllZips();
+                populationByCity();
+                zipsHighPopulation();
+                zipsInColorado();
+                refreshDashboard();
+            }
         }
     }
 
@@ -51,46 +131,168 @@ public class CsvRunner {
      */
     private void setupSchema() throws SQLException {
         // Create a schema and register it with the connection
-        CsvSchema geographiesSchema = CsvSchema.create(new File("geographies-data"));
+        geographiesSchema = CsvSchema.create(new File("geographies-data"), options);
         calciteConnection.getRootSchema().add("GEOGRAPHIES", geographiesSchema);
         calciteConnection.setSchema("GEOGRAPHIES");
     }
 
     private void selectAllZips() throws SQLException {
         log.info("Select all ZIP codes and their populations...");
-        Statement statement = calciteConnection.createStatement();
-        ResultSet resultSet = statement.executeQuery("select * from zips");
-        while (resultSet.next()) {
+        planCache.query("select * from zips", resultSet -> {
             var zipCode = resultSet.getInt("zip_code");
             var population = resultSet.getInt("population");
             log.info("ZIP code: {}, population: {}", zipCode, formatInteger(population));
-        }
-        resultSet.close();
-        statement.close();
+        });
 
         log.info("");
     }
 
+    private static final String POPULATION_BY_CITY_SQL = """
+            select c.name,
+                   c.state_code,
+                   sum(z.population) as population
+            from cities as c
+                     join zips z on c.oid = z.city_oid
+            group by c.name, c.state_code
+            order by population desc""";
+
     private void populationByCity() throws SQLException {
         log.info("Sum up the population of each city...");
-        Statement statement = calciteConnection.createStatement();
-        ResultSet resultSet = statement.executeQuery("""
-                select c.name,
-                       c.state_code,
-                       sum(z.population) as population
-                from cities as c
-                         join zips z on c.oid = z.city_oid
-                group by c.name, c.state_code
-                order by population desc""");
-
-        while (resultSet.next()) {
+        planCache.query(POPULATION_BY_CITY_SQL, resultSet -> {
             var population = resultSet.getInt("population");
             var name = resultSet.getString("name");
             var stateCode = resultSet.getString("state_code");
             log.info("Population of {} ({}): {}", name, stateCode, formatInteger(population));
+        });
+        log.info("");
+    }
+
+    /**
+     * Run the same queries again, like a dashboard that refreshes itself. The plans were compiled the first time, so
+     * these executions come from the plan cache and only scan the tables.
+     */
+    private void refreshDashboard() throws SQLException {
+        log.info("Refresh the dashboard a few times...");
+        for (int i = 1; i <= 3; i++) {
+            long start = System.nanoTime();
+            int zips = planCache.query("select * from zips", resultSet -> {});
+            int cities = planCache.query(POPULATION_BY_CITY_SQL, resultSet -> {});
+            log.info("Refresh {}: {} ZIPs and {} cities in {} ms", i, zips, cities, (System.nanoTime() - start) / 1_000_000);
+        }
+        log.info("Plan cache: {}", planCache.stats());
+        log.info("");
+    }
+
+    /**
+     * The ZIPS_BY_STATE table is a directory of CSV files, partitioned by state (see {@link CsvPartitionedTable}). The
+     * filter on the STATE partition column means only the files under "state=CO" are read.
+     */
+    private void zipsInColorado() throws SQLException {
+        log.info("Find the ZIPs in Colorado (a partitioned table)...");
+        planCache.query("""
+                select zip_code, population, state
+                from zips_by_state
+                where state = 'CO'""", resultSet -> {
+            var zipCode = resultSet.getInt("zip_code");
+            var population = resultSet.getInt("population");
+            var state = resultSet.getString("state");
+            log.info("ZIP code: {} ({}), population: {}", zipCode, state, formatInteger(population));
+        });
+        log.info("");
+    }
+
+    /**
+     * Tail an append-only CSV file with {@code SELECT STREAM} queries, and keep a running sum of the population of each
+     * city without re-reading the rows that were already summed.
+     * <p>
+     * The demo appends rows to a copy of the ZIPs file in a temporary directory, so that the real data is left alone.
+     */
+    void tailZips() throws SQLException {
+        log.info("Tail the ZIPs file and keep a running sum of the population of each city...");
+        Path directory;
+        Path zips;
+        try {
+            directory = Files.createTempDirectory("geographies-stream");
+            zips = Files.copy(Path.of("geographies-data", "ZIPS.csv"), directory.resolve("ZIPS.csv"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to copy the ZIPs file to a temporary directory", e);
+        }
+
+        try (var connection = DriverManager.getConnection("jdbc:calcite:");
+             var calciteConnection = connection.unwrap(CalciteConnection.class)) {
+
+            calciteConnection.getRootSchema().add("LIVE_GEOGRAPHIES", CsvSchema.create(directory.toFile(), options));
+            calciteConnection.setSchema("LIVE_GEOGRAPHIES");
+
+            var populationByCity = new CsvRunningAggregate(List.of("CITY_OID"), "POPULATION");
+            var sql = "select stream city_oid, population from zips_stream";
+            try (Statement statement = calciteConnection.createStatement()) {
+                int rows = populationByCity.apply(statement.executeQuery(sql));
+                log.info("Summed {} rows. Population by city OID: {}", rows, populationByCity.totals());
+
+                log.info("Appending two ZIPs to the file...");
+                Files.writeString(zips, "80303,20000,1\n80304,10000,2\n", StandardOpenOption.APPEND);
+
+                rows = populationByCity.apply(statement.executeQuery(sql));
+                log.info("Summed {} new rows. Population by city OID: {}", rows, populationByCity.totals());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to '%s'".formatted(zips), e);
+            }
+        }
+        log.info("");
+    }
+
+    /**
+     * Watch a directory of CSV files, and query a table that lands in the directory after the schema was created,
+     * without rebuilding the schema or reconnecting.
+     * <p>
+     * Like {@link #tailZips()}, this works in a temporary directory so that the real data is left alone.
+     */
+    void watchDirectory() throws SQLException {
+        log.info("Watch a directory and query a CSV file that lands in it...");
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("geographies-watch");
+            Files.copy(Path.of("geographies-data", "ZIPS.csv"), directory.resolve("ZIPS.csv"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to copy the ZIPs file to a temporary directory", e);
+        }
+
+        var schema = CsvSchema.create(directory.toFile(), options);
+        CsvDirectoryWatcher watcher = schema.watch();
+        try (var connection = DriverManager.getConnection("jdbc:calcite:");
+             var calciteConnection = connection.unwrap(CalciteConnection.class)) {
+
+            // Calcite caches the table names of a schema unless told not to. The watched schema's tables come and go.
+            var schemaPlus = calciteConnection.getRootSchema().add("WATCHED_GEOGRAPHIES", schema);
+            schemaPlus.setCacheEnabled(false);
+            calciteConnection.setSchema("WATCHED_GEOGRAPHIES");
+
+            log.info("Tables: {}", schemaPlus.getTableNames());
+            Path states = directory.resolve("STATES.csv");
+            Files.writeString(states, "CODE:string,NAME:string\nCO,Colorado\nGA,Georgia\n");
+            log.info("Wrote '{}'. Waiting for the table to show up...", states.getFileName());
+
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (schemaPlus.getTable("STATES") == null) {
+                if (System.nanoTime() > deadline) throw new IllegalStateException("The STATES table never showed up");
+                Thread.sleep(50);
+            }
+            log.info("Tables: {}", schemaPlus.getTableNames());
+
+            try (Statement statement = calciteConnection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select code, name from states")) {
+                while (resultSet.next()) {
+                    log.info("State: {} ({})", resultSet.getString("name"), resultSet.getString("code"));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watcher.close();
         }
-        resultSet.close();
-        statement.close();
         log.info("");
     }
 
@@ -142,7 +344,7 @@ public class CsvRunner {
      * to write, relational expressions are better for machines to write. It's good to understand that Calcite's {@link CalciteConnection}
      * lets us do either. It's especially useful to have a working example because the API is indirect and you might
      * never discover it. Specifically, we have to call {@link CalciteConnection#unwrap(Class)} and pass it {@link RelRunner}
-     * to get a handle on a special object that can run relational expressions.
+     * to get a handle on a special object that can run relational expressions. See {@link CsvPlanCache#query(RelNode, CsvPlanCache.RowHandler)}.
      */
     private void zipsHighPopulation() {
         log.info("Find high population ZIPs...");
@@ -168,24 +370,12 @@ public class CsvRunner {
         }
 
         try {
-            RelRunner relRunner;
-            {
-                // This is the tricky bit that was really hard to discover. This RelRunner API is the thing that lets us
-                // run relational expressions. But, actually getting a handle on it is tricky. We have to call "unwrap"
-                // on the JDBC "Connection" object. But to be fair, the "unwrap" JavaDoc says the method is used "to allow
-                // access to non-standard methods" and so this is an idiomatic way to do it.
-                relRunner = connection.unwrap(RelRunner.class);
-            }
-
-            PreparedStatement preparedStatement = relRunner.prepareStatement(node);
-            preparedStatement.execute();
-            ResultSet resultSet = preparedStatement.getResultSet();
-            while (resultSet.next()) {
+            // The plan cache runs the expression with a RelRunner and keeps the compiled plan for next time
+            planCache.query(node, resultSet -> {
                 var zipCode = resultSet.getInt("zip_code");
                 var population = resultSet.getInt("population");
                 log.info("ZIP code: {}, population: {}", zipCode, formatInteger(population));
-            }
-            resultSet.close();
+            });
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
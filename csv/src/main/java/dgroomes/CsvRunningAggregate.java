@@ -0,0 +1,76 @@
+package dgroomes;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A running {@code count(*)} and {@code sum(..)}, grouped by some columns, that is maintained incrementally from the
+ * results of {@code SELECT STREAM} queries.
+ * <p>
+ * Calcite only allows aggregation over a stream when the {@code GROUP BY} has a monotonic expression (like a
+ * {@code FLOOR(rowtime TO HOUR)} window), and the CSV files don't have one. But the point of tailing a file is that the
+ * totals over the whole file don't need to be recomputed after each append anyway. The previous totals plus the totals
+ * of the new rows are the new totals. So instead of a {@code GROUP BY}, select the group and sum columns from the
+ * stream and fold each batch of new rows into one of these.
+ * <p>
+ * For example, a running sum of the population of each city:
+ * <pre>{@code
+ * var populationByCity = new CsvRunningAggregate(List.of("CITY_OID"), "POPULATION");
+ * populationByCity.apply(statement.executeQuery("select stream city_oid, population from zips_stream"));
+ * // ... rows are appended to ZIPS.csv ...
+ * populationByCity.apply(statement.executeQuery("select stream city_oid, population from zips_stream"));
+ * }</pre>
+ */
+public final class CsvRunningAggregate {
+
+    /**
+     * @param count the number of rows in the group
+     * @param sum   the sum of the non-null values of the summed column
+     */
+    public record Totals(long count, long sum) {}
+
+    private final List<String> groupColumns;
+    private final String sumColumn;
+    private final Map<List<Object>, Totals> totals = new LinkedHashMap<>();
+
+    /**
+     * @param groupColumns the labels of the columns to group by
+     * @param sumColumn    the label of an integer column to sum
+     */
+    public CsvRunningAggregate(List<String> groupColumns, String sumColumn) {
+        this.groupColumns = List.copyOf(groupColumns);
+        this.sumColumn = sumColumn;
+    }
+
+    /**
+     * Fold the rows of the result set into the totals.
+     *
+     * @return the number of rows
+     */
+    public synchronized int apply(ResultSet resultSet) throws SQLException {
+        int rows = 0;
+        while (resultSet.next()) {
+            var group = new ArrayList<>(groupColumns.size());
+            for (String column : groupColumns) group.add(resultSet.getObject(column));
+
+            long value = resultSet.getLong(sumColumn);
+            boolean isNull = resultSet.wasNull();
+            totals.merge(Collections.unmodifiableList(group), new Totals(1, isNull ? 0 : value),
+                    (a, b) -> new Totals(a.count() + b.count(), a.sum() + b.sum()));
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * @return a snapshot of the totals of each group, in the order the groups were first seen
+     */
+    public synchronized Map<List<Object>, Totals> totals() {
+        return new LinkedHashMap<>(totals);
+    }
+}
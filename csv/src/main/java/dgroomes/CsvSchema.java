@@ -2,7 +2,6 @@ package dgroomes;
 
 import org.apache.calcite.schema.Table;
 import org.apache.calcite.schema.impl.AbstractSchema;
-import org.apache.calcite.util.Source;
 import org.apache.calcite.util.Sources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,23 +13,49 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This is a Calcite {@link org.apache.calcite.schema.Schema} that is backed by CSV files. Each CSV file represents a
  * table.
+ * <p>
+ * The table map is copy-on-write. Readers (the planner, on every query) just read the current immutable map. A change
+ * to the set of tables builds a new map and swaps it in with a compare-and-set, so nobody ever waits on a lock. That's
+ * what makes it possible to {@link #watch()} the directory and add, remove and refresh tables while queries run.
  */
 public class CsvSchema extends AbstractSchema {
 
     private static final Logger log = LoggerFactory.getLogger(CsvSchema.class);
-    private final Map<String, Table> tableMap;
 
     /**
-     * Create a CSV schema by scanning a directory for CSV files. Each CSV file represents a table.
+     * The suffix of the name of the stream companion of a table. See {@link CsvOptions#streams()}.
+     */
+    public static final String STREAM_SUFFIX = "_STREAM";
+
+    private final AtomicReference<Map<String, Table>> tableMap;
+    private final Map<String, Long> tableVersions = new ConcurrentHashMap<>();
+    private final File directory;
+    private final CsvOptions options;
+
+    /**
+     * Create a CSV schema by scanning a directory for CSV files. Each CSV file (compressed or not) represents a table,
+     * and so does each sub-folder of CSV files (see {@link CsvPartitionedTable}).
      */
     public static CsvSchema create(File directory) {
+        return create(directory, CsvOptions.defaults());
+    }
+
+    /**
+     * Create a CSV schema by scanning a directory for CSV files. Each table reads its file according to the given
+     * options.
+     */
+    public static CsvSchema create(File directory, CsvOptions options) {
         if (!directory.exists()) throw new AssertionError("There is no file named '%s'".formatted(directory));
         if (!directory.isDirectory()) throw new AssertionError("The file '%s' is not a directory".formatted(directory));
 
@@ -43,17 +68,21 @@ public class CsvSchema extends AbstractSchema {
                 public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
                     log.trace("Visiting file: {}", path);
 
-                    var fileName = path.getFileName().toString();
-                    if (!fileName.endsWith(".csv")) return FileVisitResult.CONTINUE;
+                    // A sub-folder is a partitioned table. At the max depth, the visitor visits sub-folders as files.
+                    if (attrs.isDirectory()) {
+                        var tableName = path.getFileName().toString();
+                        log.debug("Adding partitioned table '{}' to the schema", tableName);
+                        _tableMap.put(tableName, new CsvPartitionedTable(path, options));
+                        return FileVisitResult.CONTINUE;
+                    }
 
-                    File file = path.toFile();
-                    Source source = Sources.of(file);
-
-                    // The file name without the ".csv" suffix is the table name
-                    var tableName = fileName.substring(0, fileName.length() - 4);
+                    var tableName = tableName(path);
+                    // If the table has more than one file, the first of them that was visited already added it
+                    if (tableName == null || _tableMap.containsKey(tableName)) return FileVisitResult.CONTINUE;
 
                     log.debug("Adding table '{}' to the schema", tableName);
-                    _tableMap.put(tableName, new CsvTable(source));
+                    var file = tableFile(directory.toPath(), tableName);
+                    putTable(_tableMap, tableName, new CsvTable(Sources.of(file.toFile()), options), options);
                     return FileVisitResult.CONTINUE;
                 }
             });
@@ -62,15 +91,187 @@ public class CsvSchema extends AbstractSchema {
             throw new RuntimeException(msg, e);
         }
 
-        return new CsvSchema(Map.copyOf(_tableMap));
+        return new CsvSchema(Map.copyOf(_tableMap), directory, options);
     }
 
     public CsvSchema(Map<String, Table> tableMap) {
-        this.tableMap = tableMap;
+        this(tableMap, null, CsvOptions.defaults());
+    }
+
+    private CsvSchema(Map<String, Table> tableMap, File directory, CsvOptions options) {
+        this.tableMap = new AtomicReference<>(tableMap);
+        this.directory = directory;
+        this.options = options;
     }
 
     @Override
     protected Map<String, Table> getTableMap() {
-        return tableMap;
+        return tableMap.get();
+    }
+
+    /**
+     * @return a number that goes up every time the table is added, removed, or refreshed because its file changed, or 0
+     * if nothing like that has happened to a table of that name. Only the plans that read the table need to be thrown
+     * away when it changes (see {@link CsvPlanCache}).
+     */
+    public long tableVersion(String tableName) {
+        return tableVersions.getOrDefault(tableName, 0L);
+    }
+
+    /**
+     * Bump the version of a table, and of its stream companion.
+     */
+    private void bumpTableVersion(String tableName) {
+        tableVersions.merge(tableName, 1L, Long::sum);
+        tableVersions.merge(tableName + STREAM_SUFFIX, 1L, Long::sum);
+    }
+
+    /**
+     * Watch the directory for CSV files that are added, removed or replaced, and update the tables in place.
+     * <p>
+     * Note that Calcite caches the table names of a schema by default. Disable that with
+     * {@link org.apache.calcite.schema.SchemaPlus#setCacheEnabled(boolean)} on the registered schema, or new tables won't
+     * be found.
+     *
+     * @return the watcher. Close it to stop watching.
+     */
+    public CsvDirectoryWatcher watch() {
+        if (directory == null) throw new IllegalStateException("This schema was not created from a directory");
+        return CsvDirectoryWatcher.start(this, directory.toPath());
+    }
+
+    /**
+     * @return the table name for a CSV file, which is the file name without the ".csv" suffix (or ".csv.gz", etc. See
+     * {@link CsvCompression}), or {@code null} if the file is not a CSV file
+     */
+    static String tableName(Path path) {
+        var compression = CsvCompression.of(path);
+        if (compression == null) return null;
+        var fileName = path.getFileName().toString();
+        return fileName.substring(0, fileName.length() - compression.suffix().length());
+    }
+
+    /**
+     * Two files can have the same table name, like "ZIPS.csv" and "ZIPS.csv.gz". Then the table reads the first of them
+     * in the order of {@link CsvCompression} (the uncompressed one), no matter which one was found first, and the others
+     * are ignored with a warning.
+     *
+     * @return the file that the table reads, or {@code null} if there is none
+     */
+    private static Path tableFile(Path directory, String tableName) {
+        var files = new ArrayList<Path>();
+        for (CsvCompression compression : CsvCompression.values()) {
+            var file = directory.resolve(tableName + compression.suffix());
+            if (Files.isRegularFile(file)) files.add(file);
+        }
+        if (files.isEmpty()) return null;
+        if (files.size() > 1) {
+            log.warn("The files {} all have the table name '{}'. Reading '{}' and ignoring the others.", files,
+                    tableName, files.getFirst());
+        }
+        return files.getFirst();
+    }
+
+    private static void putTable(Map<String, Table> map, String tableName, CsvTable table, CsvOptions options) {
+        map.put(tableName, table);
+        if (options.streams() && table.streamTable() != null) map.put(tableName + STREAM_SUFFIX, table.streamTable());
+    }
+
+    /**
+     * Bring the table of a CSV file up to date with the file: add it if the file is new, remove it if the file is gone,
+     * or drop its cached data if the file changed. The other tables are left alone.
+     */
+    void refresh(Path path) {
+        if (Files.isDirectory(path)) {
+            var tableName = path.getFileName().toString();
+            if (tableMap.get().get(tableName) instanceof CsvPartitionedTable existing) {
+                existing.invalidate();
+                bumpTableVersion(tableName);
+                return;
+            }
+
+            log.debug("Adding partitioned table '{}' to the schema", tableName);
+            var table = new CsvPartitionedTable(path, options);
+            tableMap.updateAndGet(map -> {
+                var copy = new HashMap<>(map);
+                copy.put(tableName, table);
+                return Map.copyOf(copy);
+            });
+            bumpTableVersion(tableName);
+            return;
+        }
+
+        var tableName = tableName(path);
+        if (tableName == null) {
+            // Maybe it was a sub-folder that is gone now. A partitioned table notices by itself when its files change
+            // (see CsvPartitionedTable), so they don't need to be watched. Only the sub-folder itself.
+            var folderName = path.getFileName().toString();
+            if (!Files.exists(path) && tableMap.get().get(folderName) instanceof CsvPartitionedTable) {
+                log.debug("Removing partitioned table '{}' from the schema", folderName);
+                tableMap.updateAndGet(map -> {
+                    var copy = new HashMap<>(map);
+                    copy.remove(folderName);
+                    return Map.copyOf(copy);
+                });
+                bumpTableVersion(folderName);
+            }
+            return;
+        }
+
+        // The file that changed may not be the one that the table reads (see tableFile)
+        var file = tableFile(directory.toPath(), tableName);
+        if (file != null) {
+            var existing = tableMap.get().get(tableName);
+            if (existing instanceof CsvTable table && table.source().file().toPath().equals(file)) {
+                if (!file.equals(path)) return;
+                log.debug("Refreshing table '{}'", tableName);
+                table.invalidate();
+                bumpTableVersion(tableName);
+                return;
+            }
+
+            log.debug("Adding table '{}' to the schema", tableName);
+            var table = new CsvTable(Sources.of(file.toFile()), options);
+            tableMap.updateAndGet(map -> {
+                var copy = new HashMap<>(map);
+                copy.remove(tableName + STREAM_SUFFIX);
+                putTable(copy, tableName, table, options);
+                return Map.copyOf(copy);
+            });
+            bumpTableVersion(tableName);
+            if (existing instanceof CsvTable replaced) replaced.invalidate();
+        } else {
+            var removed = tableMap.get().get(tableName);
+            if (removed == null) return;
+
+            log.debug("Removing table '{}' from the schema", tableName);
+            tableMap.updateAndGet(map -> {
+                var copy = new HashMap<>(map);
+                copy.remove(tableName);
+                copy.remove(tableName + STREAM_SUFFIX);
+                return Map.copyOf(copy);
+            });
+            bumpTableVersion(tableName);
+            if (removed instanceof CsvTable table) table.invalidate();
+        }
+    }
+
+    /**
+     * Refresh every table, and pick up or drop any CSV files that came or went. This is the fallback for when the
+     * watcher may have missed events.
+     */
+    void refreshAll() {
+        var paths = new HashSet<Path>();
+        try (var files = Files.list(directory.toPath())) {
+            files.forEach(paths::add);
+        } catch (IOException e) {
+            log.warn("Failed to list the directory '{}'", directory, e);
+            return;
+        }
+        for (Table table : tableMap.get().values()) {
+            if (table instanceof CsvTable csvTable) csvTable.source().fileOpt().ifPresent(file -> paths.add(file.toPath()));
+            if (table instanceof CsvPartitionedTable partitionedTable) paths.add(partitionedTable.directory());
+        }
+        paths.forEach(this::refresh);
     }
 }
@@ -0,0 +1,268 @@
+package dgroomes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes a binary, columnar copy of a CSV file (a "sidecar") that lives next to it. For example,
+ * {@code ZIPS.csv} gets {@code ZIPS.csv.columns}.
+ * <p>
+ * Parsing the text of a big CSV file is the dominant cost of the first query after a restart. The sidecar holds the
+ * same data as {@link ColumnarCsvData}, but in a form that can be memory-mapped and used as-is: integer columns are
+ * read straight out of the mapped pages, and only the (small) string dictionaries are decoded up front. So opening a
+ * table takes milliseconds regardless of how many rows it has.
+ * <p>
+ * The sidecar records the size and last-modified time of the CSV file it was written from, and a checksum of the CSV
+ * header. If any of them no longer match, the sidecar is stale and the CSV file is parsed again (and a fresh sidecar
+ * written). The layout is:
+ * <pre>
+ * magic            8 bytes, "CSVCOLS1"
+ * source size      long
+ * source mtime     long (nanoseconds)
+ * header checksum  long (CRC32 of the CSV header line)
+ * row count        int
+ * column count     int
+ * for each column: kind (byte), block offset (long), block length (long)
+ * column blocks
+ * </pre>
+ * Each column block is one of:
+ * <pre>
+ * INT    null word count (int), null bitmap words (long...), values (int...)
+ * LONG   null word count (int), null bitmap words (long...), values (long...)
+ * DICT   entry count (int), entries (byte length (int), UTF-8 bytes...), codes (int...)
+ * </pre>
+ * All numbers are little-endian. Only tables whose columns are all integers or strings get a sidecar. Other column
+ * types have no compact binary form here, so those tables always read the CSV.
+ */
+final class CsvSidecar {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvSidecar.class);
+
+    static final String SUFFIX = ".columns";
+    private static final byte[] MAGIC = "CSVCOLS1".getBytes(StandardCharsets.US_ASCII);
+    private static final int FIXED_HEADER_SIZE = MAGIC.length + 8 + 8 + 8 + 4 + 4;
+    private static final int COLUMN_DESCRIPTOR_SIZE = 1 + 8 + 8;
+
+    private static final byte KIND_INT = 1;
+    private static final byte KIND_LONG = 2;
+    private static final byte KIND_DICT = 3;
+
+    private CsvSidecar() {}
+
+    static Path sidecarPath(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Memory-map the sidecar of a CSV file.
+     *
+     * @return the data, or {@code null} if there is no sidecar or it is stale
+     */
+    static ColumnarCsvData read(Path csv, FileStamp stamp) {
+        Path sidecar = sidecarPath(csv);
+        if (!Files.exists(sidecar)) return null;
+
+        try (var channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            if (channel.size() < FIXED_HEADER_SIZE) return stale(sidecar, "it is truncated");
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            var magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) return stale(sidecar, "it is not a sidecar file");
+            if (header.getLong() != stamp.size() || header.getLong() != stamp.lastModifiedNanos()) {
+                return stale(sidecar, "the CSV file has changed since it was written");
+            }
+            if (header.getLong() != headerChecksum(csv)) return stale(sidecar, "the CSV header has changed");
+            int rowCount = header.getInt();
+            int columnCount = header.getInt();
+
+            var descriptors = channel.map(FileChannel.MapMode.READ_ONLY, FIXED_HEADER_SIZE, (long) columnCount * COLUMN_DESCRIPTOR_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            var columns = new ColumnarCsvData.Column[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                byte kind = descriptors.get();
+                long offset = descriptors.getLong();
+                long length = descriptors.getLong();
+                var block = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+                columns[i] = readColumn(kind, block, rowCount);
+            }
+
+            log.debug("Opened the sidecar '{}' ({} rows)", sidecar, rowCount);
+            return new ColumnarCsvData(stamp, rowCount, columns);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the sidecar '%s'".formatted(sidecar), e);
+        }
+    }
+
+    private static ColumnarCsvData stale(Path sidecar, String reason) {
+        log.debug("Ignoring the sidecar '{}' because {}", sidecar, reason);
+        return null;
+    }
+
+    private static ColumnarCsvData.Column readColumn(byte kind, ByteBuffer block, int rowCount) {
+        return switch (kind) {
+            case KIND_INT -> {
+                BitSet nulls = readNulls(block);
+                yield new ColumnarCsvData.MappedIntColumn(block.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), nulls);
+            }
+            case KIND_LONG -> {
+                BitSet nulls = readNulls(block);
+                yield new ColumnarCsvData.MappedLongColumn(block.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(), nulls);
+            }
+            case KIND_DICT -> {
+                var dictionary = new String[block.getInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    var bytes = new byte[block.getInt()];
+                    block.get(bytes);
+                    dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+                yield new ColumnarCsvData.MappedDictionaryColumn(block.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), dictionary);
+            }
+            default -> throw new IllegalStateException("Unknown column kind: " + kind);
+        };
+    }
+
+    private static BitSet readNulls(ByteBuffer block) {
+        var words = new long[block.getInt()];
+        for (int i = 0; i < words.length; i++) words[i] = block.getLong();
+        return words.length == 0 ? null : BitSet.valueOf(words);
+    }
+
+    /**
+     * Write the sidecar of a CSV file. The sidecar is written to a temporary file and then moved into place, so a reader
+     * never sees a partially written sidecar.
+     *
+     * @return {@code false} if the data can't be written as a sidecar
+     */
+    static boolean write(Path csv, ColumnarCsvData data) {
+        var blocks = new ByteBuffer[data.columns().length];
+        var kinds = new byte[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            switch (data.columns()[i]) {
+                case ColumnarCsvData.IntColumn column -> {
+                    kinds[i] = KIND_INT;
+                    blocks[i] = intBlock(column);
+                }
+                case ColumnarCsvData.LongColumn column -> {
+                    kinds[i] = KIND_LONG;
+                    blocks[i] = longBlock(column);
+                }
+                case ColumnarCsvData.DictionaryColumn column -> {
+                    kinds[i] = KIND_DICT;
+                    blocks[i] = dictionaryBlock(column);
+                }
+                default -> {
+                    log.debug("Not writing a sidecar for '{}' because column {} has no binary form", csv, i);
+                    return false;
+                }
+            }
+            if (blocks[i] == null) {
+                log.debug("Not writing a sidecar for '{}' because column {} is too big for one block", csv, i);
+                return false;
+            }
+        }
+
+        Path sidecar = sidecarPath(csv);
+        try {
+            var header = ByteBuffer.allocate(FIXED_HEADER_SIZE + blocks.length * COLUMN_DESCRIPTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putLong(data.stamp().size());
+            header.putLong(data.stamp().lastModifiedNanos());
+            header.putLong(headerChecksum(csv));
+            header.putInt(data.rowCount());
+            header.putInt(blocks.length);
+            long offset = header.capacity();
+            for (int i = 0; i < blocks.length; i++) {
+                header.put(kinds[i]);
+                header.putLong(offset);
+                header.putLong(blocks[i].remaining());
+                offset += blocks[i].remaining();
+            }
+            header.flip();
+
+            Path temporary = Files.createTempFile(sidecar.toAbsolutePath().getParent(), sidecar.getFileName().toString(), ".tmp");
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                for (ByteBuffer block : blocks) writeFully(channel, block);
+            }
+            Files.move(temporary, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote the sidecar '{}' ({} bytes)", sidecar, offset);
+            return true;
+        } catch (IOException e) {
+            // A sidecar is only an optimization, so failing to write one is not fatal.
+            log.warn("Failed to write the sidecar '{}'", sidecar, e);
+            return false;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static ByteBuffer intBlock(ColumnarCsvData.IntColumn column) {
+        long[] nullWords = column.nulls() == null ? new long[0] : column.nulls().toLongArray();
+        long size = 4L + 8L * nullWords.length + 4L * column.values().length;
+        if (size > Integer.MAX_VALUE) return null;
+        var block = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt(nullWords.length);
+        for (long word : nullWords) block.putLong(word);
+        block.asIntBuffer().put(column.values());
+        return block.position(0);
+    }
+
+    private static ByteBuffer longBlock(ColumnarCsvData.LongColumn column) {
+        long[] nullWords = column.nulls() == null ? new long[0] : column.nulls().toLongArray();
+        long size = 4L + 8L * nullWords.length + 8L * column.values().length;
+        if (size > Integer.MAX_VALUE) return null;
+        var block = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt(nullWords.length);
+        for (long word : nullWords) block.putLong(word);
+        block.asLongBuffer().put(column.values());
+        return block.position(0);
+    }
+
+    private static ByteBuffer dictionaryBlock(ColumnarCsvData.DictionaryColumn column) {
+        var encoded = new byte[column.dictionary().length][];
+        long size = 4L + 4L * column.codes().length;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = column.dictionary()[i].getBytes(StandardCharsets.UTF_8);
+            size += 4L + encoded[i].length;
+        }
+        if (size > Integer.MAX_VALUE) return null;
+        var block = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt(encoded.length);
+        for (byte[] bytes : encoded) {
+            block.putInt(bytes.length);
+            block.put(bytes);
+        }
+        block.asIntBuffer().put(column.codes());
+        return block.position(0);
+    }
+
+    /**
+     * A CRC32 checksum of the first line of the CSV file.
+     */
+    static long headerChecksum(Path csv) {
+        try {
+            var crc = new CRC32();
+            crc.update(CsvCompression.of(csv).firstLine(csv));
+            return crc.getValue();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the header of '%s'".formatted(csv), e);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package dgroomes;
+
+import org.apache.calcite.interpreter.Bindables;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
+import org.apache.calcite.rel.metadata.RelMdUtil;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Planner statistics for a CSV table: the row count, the unique keys, and per-column distinct counts and min/max values.
+ * <p>
+ * Without statistics, Calcite assumes every table has 100 rows. That is how it ends up building the hash table of a
+ * join on the big side. The row count and the keys are what the planner reads through {@link Statistic}. Calcite's
+ * {@link Statistic} interface has no slot for distinct counts or min/max values. Instead, the default metadata handlers
+ * for a table scan ask the table for a handler of their own, so {@link CsvTable} hands out the row count, selectivity
+ * and distinct row count handlers made here. They use the distinct counts and the min/max values to estimate filters,
+ * including the ones that were pushed down into the scan.
+ * <p>
+ * The statistics are collected with a full scan of the file and persisted next to it (e.g. {@code ZIPS.csv.stats}),
+ * keyed by the file's {@link FileStamp}, so they are only recomputed when the file changes.
+ *
+ * @param stamp   the stamp of the file the statistics were collected from
+ * @param columns the statistics of each column
+ */
+record CsvStatistics(FileStamp stamp, double rowCount, List<ImmutableBitSet> keys,
+                     List<ColumnStatistics> columns) implements Statistic {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvStatistics.class);
+
+    static final String SUFFIX = ".stats";
+
+    /**
+     * Finding out whether a column is unique means remembering every value seen so far. Past this many rows, I give up
+     * and don't declare any keys. Most non-key columns are disqualified early by a duplicate, so this only costs memory
+     * for columns that really are unique (or nearly so).
+     */
+    static final int KEY_DETECTION_LIMIT = 1_000_000;
+
+    /**
+     * @param distinctCount the number of distinct non-null values. This is exact for columns with fewer than
+     *                      {@link DistinctCounter#K} distinct values and an estimate otherwise.
+     * @param min           the smallest non-null value, or {@code null} if there are none
+     * @param max           the largest non-null value, or {@code null} if there are none
+     */
+    record ColumnStatistics(double distinctCount, Comparable<?> min, Comparable<?> max) {
+
+        /**
+         * @return the fraction of the rows where the column equals the literal, assuming that every distinct value is
+         * as common as the others
+         */
+        double equalsSelectivity(RexLiteral literal) {
+            Double value = number(literal);
+            if (value != null && min instanceof Number lo && max instanceof Number hi
+                    && (value < lo.doubleValue() || value > hi.doubleValue())) {
+                return 0;
+            }
+            return distinctCount < 1 ? 0 : 1 / distinctCount;
+        }
+
+        /**
+         * @return the fraction of the rows where the column is less than the literal, assuming that the values are
+         * spread evenly between the min and the max, or {@code null} if the column or the literal isn't a number
+         */
+        Double lessThanSelectivity(RexLiteral literal) {
+            Double value = number(literal);
+            if (value == null || !(min instanceof Number lo) || !(max instanceof Number hi)) return null;
+            if (value <= lo.doubleValue()) return 0.0;
+            if (value > hi.doubleValue()) return 1.0;
+            return (value - lo.doubleValue()) / (hi.doubleValue() - lo.doubleValue());
+        }
+
+        private static Double number(RexLiteral literal) {
+            if (!SqlTypeName.NUMERIC_TYPES.contains(literal.getTypeName())) return null;
+            BigDecimal value = literal.getValueAs(BigDecimal.class);
+            return value == null ? null : value.doubleValue();
+        }
+    }
+
+    @Override
+    public Double getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public boolean isKey(ImmutableBitSet columns) {
+        for (ImmutableBitSet key : keys) {
+            if (columns.contains(key)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public List<ImmutableBitSet> getKeys() {
+        return keys;
+    }
+
+    /**
+     * The number of rows that a scan of the table returns. That's the row count of the table, narrowed by the
+     * selectivity of the filters that were pushed down into the scan.
+     */
+    BuiltInMetadata.RowCount.Handler rowCountHandler() {
+        return new BuiltInMetadata.RowCount.Handler() {
+            @Override
+            public Double getRowCount(RelNode scan, RelMetadataQuery mq) {
+                if (!(scan instanceof Bindables.BindableTableScan bindable)) return rowCount;
+                // The pushed-down filters are in terms of the table's columns, not the scan's fields
+                return rowCount * selectivity(bindable.filters, column -> column);
+            }
+        };
+    }
+
+    /**
+     * The selectivity of a predicate over a scan of the table. The conjuncts are assumed to be independent.
+     */
+    BuiltInMetadata.Selectivity.Handler selectivityHandler() {
+        return new BuiltInMetadata.Selectivity.Handler() {
+            @Override
+            public Double getSelectivity(RelNode scan, RelMetadataQuery mq, RexNode predicate) {
+                if (predicate == null) return 1.0;
+                return selectivity(RelOptUtil.conjunctions(predicate), field -> tableColumn(scan, field));
+            }
+        };
+    }
+
+    /**
+     * The number of distinct values of some fields of a scan of the table. That's the row count for a set of columns
+     * that includes a key, and otherwise the product of the distinct counts, capped at the row count. When only some of
+     * the rows are selected, it's how many of those distinct values are expected to be among them.
+     */
+    BuiltInMetadata.DistinctRowCount.Handler distinctRowCountHandler() {
+        return new BuiltInMetadata.DistinctRowCount.Handler() {
+            @Override
+            public Double getDistinctRowCount(RelNode scan, RelMetadataQuery mq, ImmutableBitSet groupKey, RexNode predicate) {
+                var tableColumns = new ArrayList<Integer>();
+                for (int field : groupKey) tableColumns.add(tableColumn(scan, field));
+                double distinct = 1;
+                if (isKey(ImmutableBitSet.of(tableColumns))) distinct = rowCount;
+                else for (int column : tableColumns) distinct *= Math.max(1, columns.get(column).distinctCount());
+                distinct = Math.min(distinct, rowCount);
+
+                double selected = mq.getRowCount(scan);
+                if (predicate != null) {
+                    selected *= selectivity(RelOptUtil.conjunctions(predicate), field -> tableColumn(scan, field));
+                }
+                // Every row is there, so every value is too
+                if (selected >= rowCount) return distinct;
+                return RelMdUtil.numDistinctVals(distinct, selected);
+            }
+        };
+    }
+
+    /**
+     * @param tableColumn maps a field that the conjuncts refer to, to a column of the table
+     */
+    private double selectivity(List<RexNode> conjuncts, IntUnaryOperator tableColumn) {
+        double selectivity = 1.0;
+        for (RexNode conjunct : conjuncts) {
+            Double estimate = estimate(conjunct, tableColumn);
+            selectivity *= estimate != null ? estimate : RelMdUtil.guessSelectivity(conjunct);
+        }
+        return selectivity;
+    }
+
+    /**
+     * @return the selectivity of "column op literal", or {@code null} for anything else
+     */
+    private Double estimate(RexNode conjunct, IntUnaryOperator tableColumn) {
+        if (!(conjunct instanceof RexCall call) || call.getOperands().size() != 2) return null;
+        SqlKind kind = call.getKind();
+        RexNode left = RexUtil.removeCast(call.getOperands().get(0));
+        RexNode right = RexUtil.removeCast(call.getOperands().get(1));
+        if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            var swap = left;
+            left = right;
+            right = swap;
+            kind = kind.reverse();
+        }
+        if (!(left instanceof RexInputRef ref) || !(right instanceof RexLiteral literal) || literal.isNull()) return null;
+
+        int column = tableColumn.applyAsInt(ref.getIndex());
+        if (column >= columns.size()) return null;
+        ColumnStatistics statistics = columns.get(column);
+        Double lessThan = statistics.lessThanSelectivity(literal);
+        return switch (kind) {
+            case EQUALS -> statistics.equalsSelectivity(literal);
+            case NOT_EQUALS -> 1 - statistics.equalsSelectivity(literal);
+            case LESS_THAN, LESS_THAN_OR_EQUAL -> lessThan;
+            case GREATER_THAN, GREATER_THAN_OR_EQUAL -> lessThan == null ? null : 1 - lessThan;
+            default -> null;
+        };
+    }
+
+    /**
+     * The scan might have been narrowed to some of the columns. Map a field of the scan to a column of the table.
+     */
+    private static int tableColumn(RelNode scan, int field) {
+        if (scan instanceof Bindables.BindableTableScan bindable && !bindable.projects.isEmpty()) {
+            return bindable.projects.get(field);
+        }
+        return field;
+    }
+
+    /**
+     * Collect statistics by reading every row.
+     */
+    static CsvStatistics collect(FileStamp stamp, Enumerable<Object[]> rows, int columnCount) {
+        var counters = new DistinctCounter[columnCount];
+        var keyCandidates = new KeyCandidate[columnCount];
+        var mins = new Comparable<?>[columnCount];
+        var maxes = new Comparable<?>[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            counters[i] = new DistinctCounter();
+            keyCandidates[i] = new KeyCandidate();
+        }
+
+        long rowCount = 0;
+        try (Enumerator<Object[]> enumerator = rows.enumerator()) {
+            while (enumerator.moveNext()) {
+                Object[] row = enumerator.current();
+                for (int i = 0; i < columnCount; i++) {
+                    Object value = row[i];
+                    keyCandidates[i].add(value);
+                    if (value == null) continue;
+                    counters[i].add(value);
+                    mins[i] = min(mins[i], value);
+                    maxes[i] = max(maxes[i], value);
+                }
+                rowCount++;
+            }
+        }
+
+        var keys = new ArrayList<ImmutableBitSet>();
+        var columns = new ArrayList<ColumnStatistics>();
+        for (int i = 0; i < columnCount; i++) {
+            if (keyCandidates[i].isKey()) keys.add(ImmutableBitSet.of(i));
+            columns.add(new ColumnStatistics(counters[i].estimate(), mins[i], maxes[i]));
+        }
+        return new CsvStatistics(stamp, rowCount, List.copyOf(keys), List.copyOf(columns));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Comparable<?> min(Comparable<?> current, Object value) {
+        if (current == null || ((Comparable) value).compareTo(current) < 0) return (Comparable<?>) value;
+        return current;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Comparable<?> max(Comparable<?> current, Object value) {
+        if (current == null || ((Comparable) value).compareTo(current) > 0) return (Comparable<?>) value;
+        return current;
+    }
+
+    /**
+     * Counts distinct values with a "k minimum values" sketch. Each value is hashed and only the {@code K} smallest
+     * hashes are kept. If there are fewer than {@code K} distinct values, the count is exact. Otherwise, the density of
+     * the smallest hashes gives the estimate: if {@code K} hashes fit in the fraction {@code f} of the hash space, there
+     * are about {@code (K - 1) / f} distinct hashes overall.
+     */
+    private static final class DistinctCounter {
+
+        static final int K = 4096;
+
+        private final TreeSet<Long> smallest = new TreeSet<>();
+
+        void add(Object value) {
+            long hash = mix(value.hashCode());
+            if (smallest.size() == K && hash >= smallest.last()) return;
+            if (smallest.add(hash) && smallest.size() > K) smallest.pollLast();
+        }
+
+        double estimate() {
+            if (smallest.size() < K) return smallest.size();
+            double fraction = ((smallest.last() ^ Long.MIN_VALUE) >>> 1) / (double) Long.MAX_VALUE;
+            return (K - 1) / fraction;
+        }
+
+        /**
+         * The 64-bit finalizer of MurmurHash3. Java hash codes of small integers are the integers themselves, so they
+         * need to be spread over the hash space.
+         */
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            // Compare hashes as unsigned numbers by flipping the sign bit, so that TreeSet's natural order works.
+            return h ^ Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Tracks whether a column is (so far) a unique key.
+     */
+    private static final class KeyCandidate {
+
+        private Set<Object> seen = new HashSet<>();
+
+        void add(Object value) {
+            if (seen == null) return;
+            if (value == null || !seen.add(value) || seen.size() > KEY_DETECTION_LIMIT) seen = null;
+        }
+
+        boolean isKey() {
+            return seen != null;
+        }
+    }
+
+    static Path statisticsPath(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Read the persisted statistics of a CSV file.
+     *
+     * @return the statistics, or {@code null} if there are none or they are stale
+     */
+    static CsvStatistics read(Path csv, FileStamp stamp) {
+        Path path = statisticsPath(csv);
+        if (!Files.exists(path)) return null;
+
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            log.warn("Failed to read the statistics file '{}'", path, e);
+            return null;
+        }
+
+        // A truncated or hand-edited file fails to parse. That is no worse than having no statistics file.
+        try {
+            var persistedStamp = new FileStamp(Long.parseLong(properties.getProperty("source.mtime")),
+                    Long.parseLong(properties.getProperty("source.size")));
+            if (!persistedStamp.equals(stamp)) {
+                log.debug("Ignoring the statistics file '{}' because the CSV file has changed since it was written", path);
+                return null;
+            }
+
+            var keys = new ArrayList<ImmutableBitSet>();
+            for (String key : properties.getProperty("keys").split(";")) {
+                if (key.isEmpty()) continue;
+                var columns = new ArrayList<Integer>();
+                for (String column : key.split(",")) columns.add(Integer.parseInt(column));
+                keys.add(ImmutableBitSet.of(columns));
+            }
+
+            int columnCount = Integer.parseInt(properties.getProperty("columns"));
+            var columns = new ArrayList<ColumnStatistics>();
+            for (int i = 0; i < columnCount; i++) {
+                var prefix = "column." + i + ".";
+                columns.add(new ColumnStatistics(Double.parseDouble(properties.getProperty(prefix + "distinct")),
+                        decode(properties.getProperty(prefix + "min")),
+                        decode(properties.getProperty(prefix + "max"))));
+            }
+
+            log.debug("Read the statistics file '{}'", path);
+            return new CsvStatistics(stamp, Double.parseDouble(properties.getProperty("rowCount")), List.copyOf(keys), List.copyOf(columns));
+        } catch (RuntimeException e) {
+            log.warn("Failed to parse the statistics file '{}'", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Persist the statistics next to the CSV file. Failing to do so is not fatal, they are just recomputed next time.
+     */
+    void write(Path csv) {
+        var properties = new Properties();
+        properties.setProperty("source.size", Long.toString(stamp.size()));
+        properties.setProperty("source.mtime", Long.toString(stamp.lastModifiedNanos()));
+        properties.setProperty("rowCount", Double.toString(rowCount));
+
+        var keysText = new StringBuilder();
+        for (ImmutableBitSet key : keys) {
+            if (!keysText.isEmpty()) keysText.append(';');
+            keysText.append(String.join(",", key.asList().stream().map(String::valueOf).toList()));
+        }
+        properties.setProperty("keys", keysText.toString());
+
+        properties.setProperty("columns", Integer.toString(columns.size()));
+        for (int i = 0; i < columns.size(); i++) {
+            var prefix = "column." + i + ".";
+            var column = columns.get(i);
+            properties.setProperty(prefix + "distinct", Double.toString(column.distinctCount()));
+            var min = encode(column.min());
+            var max = encode(column.max());
+            if (min != null) properties.setProperty(prefix + "min", min);
+            if (max != null) properties.setProperty(prefix + "max", max);
+        }
+
+        Path path = statisticsPath(csv);
+        try {
+            Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temporary)) {
+                properties.store(writer, "Planner statistics for " + csv.getFileName());
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote the statistics file '{}'", path);
+        } catch (IOException e) {
+            log.warn("Failed to write the statistics file '{}'", path, e);
+        }
+    }
+
+    /**
+     * Encode a min/max value with its type, like "Integer:80301". Values of other types are not persisted.
+     */
+    private static String encode(Comparable<?> value) {
+        return switch (value) {
+            case Byte v -> "Byte:" + v;
+            case Short v -> "Short:" + v;
+            case Integer v -> "Integer:" + v;
+            case Long v -> "Long:" + v;
+            case Float v -> "Float:" + v;
+            case Double v -> "Double:" + v;
+            case BigDecimal v -> "BigDecimal:" + v;
+            case Boolean v -> "Boolean:" + v;
+            case String v -> "String:" + v;
+            case null, default -> null;
+        };
+    }
+
+    private static Comparable<?> decode(String text) {
+        if (text == null) return null;
+        int colon = text.indexOf(':');
+        var type = text.substring(0, colon);
+        var value = text.substring(colon + 1);
+        return switch (type) {
+            case "Byte" -> Byte.parseByte(value);
+            case "Short" -> Short.parseShort(value);
+            case "Integer" -> Integer.parseInt(value);
+            case "Long" -> Long.parseLong(value);
+            case "Float" -> Float.parseFloat(value);
+            case "Double" -> Double.parseDouble(value);
+            case "BigDecimal" -> new BigDecimal(value);
+            case "Boolean" -> Boolean.parseBoolean(value);
+            default -> value;
+        };
+    }
+}
@@ -0,0 +1,196 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.StreamableTable;
+import org.apache.calcite.schema.Table;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The stream of rows appended to an append-only CSV file, for {@code SELECT STREAM} queries.
+ * <p>
+ * Calcite won't let a {@link StreamableTable} be queried as a plain relation (and vice versa), so this can't just be
+ * another face of {@link CsvTable}. It is a companion table instead, registered in the schema with a "_STREAM" suffix,
+ * e.g. {@code SELECT STREAM * FROM ZIPS_STREAM}. It shares the {@link CsvTable}'s metadata cache.
+ * <p>
+ * The table remembers the byte offset up to which the file has been consumed. Each scan claims the rows between that
+ * offset and the last complete line of the file, and moves the offset past them. So the first {@code SELECT STREAM}
+ * query returns every row in the file, and each later one returns only the rows appended since the previous one. A
+ * trailing line without a line break is still being written, so it is left for the next scan.
+ * <p>
+ * The rows are claimed when the enumerator is opened, not when they are read. If a query is cancelled part way, the
+ * rest of its rows are not returned again. If the file shrinks, it must have been replaced rather than appended to, so
+ * the offset starts over at the top of the file.
+ */
+final class CsvStreamTable extends AbstractTable implements ProjectableFilterableTable, StreamableTable {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvStreamTable.class);
+
+    private final Path path;
+    private final CsvMetadataCache metadataCache;
+
+    /**
+     * The file position just after the last consumed line, or 0 if nothing has been consumed (not even the header).
+     */
+    private long offset;
+
+    CsvStreamTable(Path path, CsvMetadataCache metadataCache) {
+        this.path = path;
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * The planner scans the table that this returns for a {@code SELECT STREAM} query. It's the same table, because
+     * the scan of this table already is the stream.
+     */
+    @Override
+    public Table stream() {
+        return this;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return metadataCache.get((JavaTypeFactory) typeFactory).rowType();
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root, List<RexNode> filters, int[] projects) {
+        CsvMetadataCache.Metadata metadata = metadataCache.get(root.getTypeFactory());
+        List<CsvFilter> pushedFilters = CsvFilter.pushDown(filters, metadata.fieldTypes());
+        AtomicBoolean cancelFlag = DataContext.Variable.CANCEL_FLAG.get(root);
+
+        return new AbstractEnumerable<>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new TailEnumerator(new CsvRowReader(metadata.converters(), projects, pushedFilters, null), cancelFlag);
+            }
+        };
+    }
+
+    /**
+     * Claim the lines appended since the last claim.
+     *
+     * @return the claimed byte range of the file, which may be empty
+     */
+    private synchronized MappedCsvEnumerable.Range claim(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < offset) {
+            log.info("The file '{}' is smaller than the consumed offset ({} < {}). It must have been replaced. Reading it from the top.", path, size, offset);
+            offset = 0;
+        }
+
+        long start = offset == 0 ? MappedCsvEnumerable.skipLine(channel, 0, size) : offset;
+        long end = Math.max(start, lastLineEnd(channel, start, size));
+        offset = end;
+        log.debug("Claimed bytes [{}, {}) of '{}'", start, end, path);
+        return new MappedCsvEnumerable.Range(start, end);
+    }
+
+    /**
+     * @return the file position just after the last line break in {@code [start, size)}, or {@code start} if there is
+     * none
+     */
+    private static long lastLineEnd(FileChannel channel, long start, long size) throws IOException {
+        var buffer = ByteBuffer.allocate(8 * 1024);
+        long end = size;
+        while (end > start) {
+            long position = Math.max(start, end - buffer.capacity());
+            buffer.clear().limit((int) (end - position));
+            channel.read(buffer, position);
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            end = position;
+        }
+        return start;
+    }
+
+    /**
+     * Reads the claimed range one line-aligned chunk at a time, so that the first scan of a big file doesn't hold all
+     * of its rows at once.
+     */
+    private class TailEnumerator implements Enumerator<Object[]> {
+
+        private final CsvRowReader reader;
+        private final AtomicBoolean cancelFlag;
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private Object[][] rows = new Object[0][];
+        private int rowIndex = -1;
+        private Object[] current;
+
+        TailEnumerator(CsvRowReader reader, AtomicBoolean cancelFlag) {
+            this.reader = reader;
+            this.cancelFlag = cancelFlag;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                var range = claim(channel);
+                position = range.start();
+                end = range.end();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open '%s' for a stream scan".formatted(path), e);
+            }
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (true) {
+                if (cancelFlag.get()) return false;
+                if (++rowIndex < rows.length) {
+                    current = rows[rowIndex];
+                    return true;
+                }
+                if (position >= end) return false;
+                try {
+                    long chunkEnd = position + MappedCsvEnumerable.DEFAULT_RANGE_SIZE >= end
+                            ? end
+                            : MappedCsvEnumerable.skipLine(channel, position + MappedCsvEnumerable.DEFAULT_RANGE_SIZE, end);
+                    var buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, chunkEnd - position);
+                    rows = reader.readRows(buffer, cancelFlag);
+                    rowIndex = -1;
+                    position = chunkEnd;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -6,56 +6,357 @@ import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.linq4j.AbstractEnumerable;
 import org.apache.calcite.linq4j.Enumerable;
 import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
 import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
-import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
 import org.apache.calcite.schema.impl.AbstractTable;
-import org.apache.calcite.util.ImmutableIntList;
 import org.apache.calcite.util.Source;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A Calcite {@link org.apache.calcite.schema.Table} backed by a CSV file.
+ * A Calcite {@link org.apache.calcite.schema.Table} backed by a CSV file, which may be compressed (see
+ * {@link CsvCompression}).
  * <p>
- * This is similar to the official CSV example in the Calcite codebase.
+ * This is similar to the official CSV example in the Calcite codebase. One difference is that this table implements
+ * {@link ProjectableFilterableTable} instead of {@link org.apache.calcite.schema.ScannableTable}. The planner pushes
+ * the projected columns and the filter conjuncts into {@link #scan(DataContext, List, int[])} so that the table can
+ * skip the columns that nobody asked for and drop non-matching rows while it reads the file.
+ * <p>
+ * For CSV files that are append-only logs, the table has a companion {@link CsvStreamTable} that {@code SELECT STREAM}
+ * queries can tail.
+ * <p>
+ * When zone maps are enabled, in the memory-mapped scan modes, a scan of the file (without the column cache) also builds
+ * a {@link CsvZoneMap} of it. Later scans with filters use the zone map to skip the parts of the file that can't have
+ * matching rows.
  */
-public class CsvTable extends AbstractTable implements ScannableTable {
+public class CsvTable extends AbstractTable implements ProjectableFilterableTable {
+
+    /**
+     * How the table reads its file when it is scanned.
+     */
+    public enum ScanMode {
+        /**
+         * Read the file line by line on the calling thread with Calcite's {@link CsvEnumerator}. It uses opencsv, so it
+         * handles the whole CSV dialect, including quoted fields that span lines.
+         */
+        SEQUENTIAL,
 
+        /**
+         * Memory-map the file and parse it on the calling thread. See {@link MappedCsvEnumerable}. The parser is faster
+         * but its dialect is smaller than opencsv's (see {@link CsvLineParser}).
+         */
+        MAPPED,
+
+        /**
+         * Memory-map the file, cut it into line-aligned byte ranges, and parse the ranges in parallel on a fork-join
+         * pool. See {@link MappedCsvEnumerable}. The dialect is the same as {@link #MAPPED}.
+         */
+        PARALLEL_MAPPED
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CsvTable.class);
     private final Source source;
-    private RelDataType rowType;
+    private final CsvOptions options;
+    private final CsvMetadataCache metadataCache;
+    private volatile CsvStatistics statistics;
+    private volatile CsvZoneMap zoneMap;
+    private volatile boolean zoneMapRead;
+    private final CsvCompression compression;
+    private final CsvStreamTable streamTable;
 
     public CsvTable(Source source) {
+        this(source, CsvOptions.defaults());
+    }
+
+    public CsvTable(Source source, CsvOptions options) {
         this.source = source;
+        this.options = options;
+        this.metadataCache = new CsvMetadataCache(source);
+        this.compression = source.fileOpt().map(file -> CsvCompression.of(file.toPath())).orElse(CsvCompression.NONE);
+        // A compressed file can't be tailed by byte offset
+        this.streamTable = compression == CsvCompression.NONE
+                ? source.fileOpt().map(file -> new CsvStreamTable(file.toPath(), metadataCache)).orElse(null)
+                : null;
+    }
+
+    Source source() {
+        return source;
+    }
+
+    /**
+     * @return the stream of rows appended to the file, or {@code null} if the source is not a local file. The same
+     * object is returned every time, because it remembers how much of the file has been consumed.
+     */
+    CsvStreamTable streamTable() {
+        return streamTable;
+    }
+
+    /**
+     * Forget everything that is cached about the file, in memory and in the column cache. The caches are keyed by the
+     * file's stamp, so this isn't needed for correctness, but when a file is known to have changed (or to be gone) it
+     * frees the memory right away instead of at the next scan.
+     */
+    void invalidate() {
+        metadataCache.invalidate();
+        statistics = null;
+        zoneMap = null;
+        zoneMapRead = false;
+        CsvColumnCache columnCache = options.columnCache();
+        if (columnCache != null) columnCache.invalidate(source.path());
     }
 
+    /**
+     * @return the pool to parse the file on, or {@code null} to parse it on the calling thread
+     */
+    private ForkJoinPool pool() {
+        return options.scanMode() == ScanMode.PARALLEL_MAPPED ? ForkJoinPool.commonPool() : null;
+    }
+
+    /**
+     * The planner calls this while it plans each query that uses the table. When statistics are enabled, the first call
+     * (after the file changes) reads the persisted statistics, or collects them with a full scan of the file and
+     * persists them.
+     */
     @Override
-    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
-        if (rowType == null) {
-            // The Calcite CSV example implements this lazy initialization. I'm curious why it can't be done in the
-            // constructor. It's clear that this is because the type factory isn't available that early (based on a
-            // surface-level understanding of the API). But why?
-            rowType = CsvEnumerator.deduceRowType((JavaTypeFactory) typeFactory, source, null, false);
+    public Statistic getStatistic() {
+        var file = source.fileOpt();
+        if (!options.statistics() || file.isEmpty()) return Statistics.UNKNOWN;
+
+        Path path = file.get().toPath();
+        FileStamp stamp = FileStamp.of(path);
+        CsvStatistics current = statistics;
+        if (current != null && current.stamp().equals(stamp)) return current;
+
+        synchronized (this) {
+            current = statistics;
+            if (current != null && current.stamp().equals(stamp)) return current;
+
+            // There is no type factory here, but the converters don't depend on which factory made the types.
+            var metadata = metadataCache.get(new JavaTypeFactoryImpl());
+            current = CsvStatistics.read(path, stamp);
+            if (current == null || current.columns().size() != metadata.fieldTypes().size()) {
+                long start = System.nanoTime();
+                var allRows = allRows(path, metadata, pool());
+                current = CsvStatistics.collect(stamp, allRows, metadata.fieldTypes().size());
+                log.debug("Collected statistics for '{}' in {} ms: {} rows, keys {}", source.path(),
+                        (System.nanoTime() - start) / 1_000_000, current.rowCount(), current.keys());
+                current.write(path);
+            }
+            statistics = current;
+            return current;
         }
-        return rowType;
     }
 
+    /**
+     * The default metadata handlers for a table scan ask the table for a handler of their own. When statistics are
+     * enabled, the table hands out the ones that use its {@link CsvStatistics}.
+     */
     @Override
-    public Enumerable<Object[]> scan(DataContext root) {
-        JavaTypeFactory typeFactory = root.getTypeFactory();
-        List<RelDataType> fieldTypes = new ArrayList<>();
-        CsvEnumerator.deduceRowType(typeFactory, source, fieldTypes, false);
+    public <C> C unwrap(Class<C> aClass) {
+        if (aClass == BuiltInMetadata.RowCount.Handler.class || aClass == BuiltInMetadata.Selectivity.Handler.class
+                || aClass == BuiltInMetadata.DistinctRowCount.Handler.class) {
+            if (!(getStatistic() instanceof CsvStatistics current)) return null;
+            if (aClass == BuiltInMetadata.RowCount.Handler.class) return aClass.cast(current.rowCountHandler());
+            if (aClass == BuiltInMetadata.Selectivity.Handler.class) return aClass.cast(current.selectivityHandler());
+            return aClass.cast(current.distinctRowCountHandler());
+        }
+        return super.unwrap(aClass);
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        // The Calcite CSV example implements this with lazy initialization. I'm curious why it can't be done in the
+        // constructor. It's clear that this is because the type factory isn't available that early (based on a
+        // surface-level understanding of the API). But why?
+        return metadataCache.get((JavaTypeFactory) typeFactory).rowType();
+    }
+
+    /**
+     * Scan the file.
+     * <p>
+     * The filters that this table can evaluate by itself (see {@link CsvFilter#pushDown}) are removed from
+     * {@code filters}. That is the contract with the planner: whatever is left in the list is evaluated by Calcite.
+     *
+     * @param projects the columns to return, or {@code null} for all columns
+     */
+    @Override
+    public Enumerable<Object[]> scan(DataContext root, List<RexNode> filters, int[] projects) {
+        CsvMetadataCache.Metadata metadata = metadataCache.get(root.getTypeFactory());
+        List<RelDataType> fieldTypes = metadata.fieldTypes();
 
-        List<Integer> fields = ImmutableIntList.identity(fieldTypes.size());
         AtomicBoolean cancelFlag = DataContext.Variable.CANCEL_FLAG.get(root);
-        return new AbstractEnumerable<>() {
+        List<CsvFilter> pushedFilters = CsvFilter.pushDown(filters, fieldTypes);
+
+        log.debug("Scanning '{}' with projects {}, pushed-down filters {} and remaining filters {}", source.path(),
+                Arrays.toString(projects), pushedFilters, filters);
+
+        var file = source.fileOpt();
+        if (file.isEmpty()) {
+            // This isn't a local file so it can't be memory-mapped
+            return sequentialScan(fieldTypes, pushedFilters, projects, cancelFlag);
+        }
+        return scan(metadata, file.get().toPath(), pushedFilters, projects, cancelFlag);
+    }
+
+    /**
+     * Scan the local file with filters that are already translated. This is also how a {@link CsvPartitionedTable}
+     * scans each of its partitions.
+     */
+    Enumerable<Object[]> scan(JavaTypeFactory typeFactory, List<CsvFilter> pushedFilters, int[] projects, AtomicBoolean cancelFlag) {
+        var file = source.fileOpt().orElseThrow(() -> new IllegalStateException("The source '%s' is not a local file".formatted(source.path())));
+        return scan(metadataCache.get(typeFactory), file.toPath(), pushedFilters, projects, cancelFlag);
+    }
+
+    private Enumerable<Object[]> scan(CsvMetadataCache.Metadata metadata, Path path, List<CsvFilter> pushedFilters,
+                                      int[] projects, AtomicBoolean cancelFlag) {
+        List<RelDataType> fieldTypes = metadata.fieldTypes();
+        ForkJoinPool pool = pool();
+        CsvColumnCache columnCache = options.columnCache();
+        if (columnCache != null) {
+            FileStamp stamp = FileStamp.of(path);
+            ColumnarCsvData data = columnCache.get(source.path(), stamp, () -> loadColumns(columnCache, path, stamp, metadata, pool));
+            return data.scan(projects, pushedFilters, cancelFlag);
+        }
+
+        if (compression != CsvCompression.NONE) {
+            // Zone maps are keyed by byte ranges of the file, which don't mean anything for a compressed file
+            return new CompressedCsvEnumerable(path, compression, metadata.converters(), projects, pushedFilters, cancelFlag, pool);
+        }
+
+        if (options.scanMode() == ScanMode.SEQUENTIAL) {
+            return sequentialScan(fieldTypes, pushedFilters, projects, cancelFlag);
+        }
+
+        if (!options.zoneMaps()) {
+            return new MappedCsvEnumerable(path, metadata.converters(), projects, pushedFilters, cancelFlag, pool);
+        }
+
+        FileStamp stamp = FileStamp.of(path);
+        CsvZoneMap currentZoneMap = zoneMap(path, stamp);
+        if (currentZoneMap != null) {
+            return new MappedCsvEnumerable(path, metadata.converters(), projects, pushedFilters, cancelFlag, pool,
+                    currentZoneMap.rangeSize(), currentZoneMap, null, null, null);
+        }
+
+        // There is no zone map yet. Build one as a side effect of this scan.
+        return new MappedCsvEnumerable(path, metadata.converters(), projects, pushedFilters, cancelFlag, pool,
+                MappedCsvEnumerable.DEFAULT_RANGE_SIZE, null, stamp, CsvZoneMap.trackedColumns(fieldTypes),
+                built -> zoneMapBuilt(path, built));
+    }
+
+    /**
+     * Read the file with Calcite's {@link CsvEnumerator}. Its converter only converts the projected columns and the
+     * columns that the filters need, and the filters are applied to the converted values.
+     */
+    private Enumerable<Object[]> sequentialScan(List<RelDataType> fieldTypes, List<CsvFilter> pushedFilters,
+                                                int[] projects, AtomicBoolean cancelFlag) {
+        int[] outputs = projects != null ? projects : CsvRowReader.identity(fieldTypes.size());
+
+        // Read the projected columns, followed by the filtered columns that aren't projected. Each filter is re-pointed at
+        // the position of its column in that list.
+        var fields = new ArrayList<Integer>();
+        for (int output : outputs) fields.add(output);
+        var filters = new ArrayList<CsvFilter>();
+        for (CsvFilter filter : pushedFilters) {
+            int position = fields.indexOf(filter.column());
+            if (position < 0) {
+                position = fields.size();
+                fields.add(filter.column());
+            }
+            filters.add(new CsvFilter(position, filter.kind(), filter.value()));
+        }
+
+        Enumerable<Object[]> rows = new AbstractEnumerable<>() {
             @Override
             public Enumerator<Object[]> enumerator() {
                 return new CsvEnumerator<>(source, cancelFlag, false, null,
                         CsvEnumerator.arrayConverter(fieldTypes, fields, false));
             }
         };
+        if (filters.isEmpty()) return rows;
+
+        Enumerable<Object[]> matching = rows.where(row -> {
+            for (CsvFilter filter : filters) {
+                if (!filter.test(row[filter.column()])) return false;
+            }
+            return true;
+        });
+        return fields.size() == outputs.length ? matching : matching.select(row -> Arrays.copyOf(row, outputs.length));
+    }
+
+    /**
+     * @return the zone map of the file, read from its persisted copy if it hasn't been read yet, or {@code null} if there
+     * is no up-to-date zone map
+     */
+    private CsvZoneMap zoneMap(Path path, FileStamp stamp) {
+        CsvZoneMap current = zoneMap;
+        if (current != null && current.stamp().equals(stamp)) return current;
+        if (zoneMapRead) return null;
+
+        synchronized (this) {
+            if (!zoneMapRead) {
+                zoneMapRead = true;
+                current = CsvZoneMap.read(path, stamp, MappedCsvEnumerable.DEFAULT_RANGE_SIZE);
+                if (current != null) zoneMap = current;
+            }
+        }
+        current = zoneMap;
+        return current != null && current.stamp().equals(stamp) ? current : null;
+    }
+
+    /**
+     * A scan read the whole file and built a zone map along the way. Keep it, and persist it for the next process.
+     */
+    private void zoneMapBuilt(Path path, CsvZoneMap built) {
+        CsvZoneMap current = zoneMap;
+        if (current != null && current.stamp().equals(built.stamp())) return;
+        // The file changed while it was being scanned
+        if (!built.stamp().equals(FileStamp.of(path))) return;
+        zoneMap = built;
+        built.write(path);
+    }
+
+    /**
+     * @return every row of the file, with every column
+     */
+    private Enumerable<Object[]> allRows(Path path, CsvMetadataCache.Metadata metadata, ForkJoinPool pool) {
+        if (compression != CsvCompression.NONE) {
+            return new CompressedCsvEnumerable(path, compression, metadata.converters(), null, List.of(), new AtomicBoolean(), pool);
+        }
+        if (options.scanMode() == ScanMode.SEQUENTIAL) {
+            return sequentialScan(metadata.fieldTypes(), List.of(), null, new AtomicBoolean());
+        }
+        return new MappedCsvEnumerable(path, metadata.converters(), null, List.of(), new AtomicBoolean(), pool);
+    }
+
+    /**
+     * Load the whole file into columns for the column cache, preferring a valid sidecar over parsing the file.
+     */
+    private ColumnarCsvData loadColumns(CsvColumnCache columnCache, Path path, FileStamp stamp,
+                                        CsvMetadataCache.Metadata metadata, ForkJoinPool pool) {
+        if (columnCache.sidecars()) {
+            var data = CsvSidecar.read(path, stamp);
+            if (data != null) return data;
+        }
+
+        // Load every column and every row, regardless of this scan's projection and filters. The point is to serve all
+        // the later scans from memory.
+        var allRows = allRows(path, metadata, pool);
+        var data = ColumnarCsvData.load(stamp, allRows, metadata.fieldTypes());
+        if (columnCache.sidecars()) CsvSidecar.write(path, data);
+        return data;
     }
 }
@@ -0,0 +1,210 @@
+package dgroomes;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A "zone map" of a CSV file: for each byte range that {@link MappedCsvEnumerable} cuts the file into, the min and max
+ * value of each integer-valued column.
+ * <p>
+ * A filtered scan can skip a range entirely when the range's min/max show that no row in it can match. For example, a
+ * range whose POPULATION values are all between 1,000 and 20,000 can't have a row with {@code POPULATION > 30000}.
+ * This pays off for files that are sorted or clustered on the filtered column, where most ranges have narrow,
+ * non-overlapping min/max values. For files in random order, nearly every range spans the whole domain and nothing is
+ * skipped (but nothing is lost either).
+ * <p>
+ * Zone maps are opt-in (see {@link CsvOptions#zoneMaps()}). The zone map is built during the first full scan of the
+ * file and persisted next to it (e.g. {@code ZIPS.csv.zones}), keyed by the file's {@link FileStamp} and the range
+ * size.
+ *
+ * @param tracked whether each column has min/max values. Only integer-valued columns (including dates and times,
+ *                which Calcite represents as integers) are tracked.
+ * @param mins    the min value of each tracked column, for each range. A range with no non-null values in a column has
+ *                a min greater than its max.
+ */
+record CsvZoneMap(FileStamp stamp, long rangeSize, List<MappedCsvEnumerable.Range> ranges, boolean[] tracked,
+                  long[][] mins, long[][] maxes) {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvZoneMap.class);
+
+    static final String SUFFIX = ".zones";
+    private static final long MAGIC = 0x43535a4f4e453031L; // "CSZONE01"
+
+    /**
+     * @return whether each column is integer-valued and should be tracked
+     */
+    static boolean[] trackedColumns(List<RelDataType> fieldTypes) {
+        var tracked = new boolean[fieldTypes.size()];
+        for (int i = 0; i < tracked.length; i++) {
+            tracked[i] = switch (fieldTypes.get(i).getSqlTypeName()) {
+                case TINYINT, SMALLINT, INTEGER, BIGINT, DATE, TIME, TIMESTAMP -> true;
+                default -> false;
+            };
+        }
+        return tracked;
+    }
+
+    /**
+     * Could any row in the range pass all the filters?
+     */
+    boolean mayMatch(int range, List<CsvFilter> filters) {
+        for (CsvFilter filter : filters) {
+            int column = filter.column();
+            if (!tracked[column]) continue;
+
+            long min = mins[range][column];
+            long max = maxes[range][column];
+            // Only nulls in this range, and a comparison with null is never true
+            if (min > max) return false;
+
+            long value = ((Number) filter.value()).longValue();
+            boolean mayMatch = switch (filter.kind()) {
+                case EQUALS -> min <= value && value <= max;
+                case NOT_EQUALS -> !(min == value && max == value);
+                case LESS_THAN -> min < value;
+                case LESS_THAN_OR_EQUAL -> min <= value;
+                case GREATER_THAN -> max > value;
+                case GREATER_THAN_OR_EQUAL -> max >= value;
+                default -> true;
+            };
+            if (!mayMatch) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collects the min/max values of each range as the ranges are parsed, possibly on different threads.
+     */
+    static final class Builder {
+
+        private final FileStamp stamp;
+        private final long rangeSize;
+        private final List<MappedCsvEnumerable.Range> ranges;
+        private final boolean[] tracked;
+        private final long[][] mins;
+        private final long[][] maxes;
+
+        Builder(FileStamp stamp, long rangeSize, List<MappedCsvEnumerable.Range> ranges, boolean[] tracked) {
+            this.stamp = stamp;
+            this.rangeSize = rangeSize;
+            this.ranges = ranges;
+            this.tracked = tracked;
+            this.mins = new long[ranges.size()][];
+            this.maxes = new long[ranges.size()][];
+        }
+
+        boolean[] tracked() {
+            return tracked;
+        }
+
+        /**
+         * Record the min/max values of one range. Each range is recorded by exactly one thread.
+         */
+        void record(int range, long[] rangeMins, long[] rangeMaxes) {
+            mins[range] = rangeMins;
+            maxes[range] = rangeMaxes;
+        }
+
+        /**
+         * Called after every range has been recorded. The enumerator joins every range's task before this, which is
+         * what makes the other threads' writes to the arrays visible here.
+         */
+        CsvZoneMap build() {
+            return new CsvZoneMap(stamp, rangeSize, List.copyOf(ranges), tracked, mins, maxes);
+        }
+    }
+
+    static Path zoneMapPath(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Read the persisted zone map of a CSV file.
+     *
+     * @return the zone map, or {@code null} if there is none or it is stale
+     */
+    static CsvZoneMap read(Path csv, FileStamp stamp, long rangeSize) {
+        Path path = zoneMapPath(csv);
+        if (!Files.exists(path)) return null;
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readLong() != MAGIC) return null;
+            var persistedStamp = new FileStamp(in.readLong(), in.readLong());
+            if (!persistedStamp.equals(stamp) || in.readLong() != rangeSize) {
+                log.debug("Ignoring the zone map '{}' because the CSV file has changed since it was written", path);
+                return null;
+            }
+
+            int rangeCount = in.readInt();
+            var tracked = new boolean[in.readInt()];
+            for (int i = 0; i < tracked.length; i++) tracked[i] = in.readBoolean();
+
+            var ranges = new ArrayList<MappedCsvEnumerable.Range>(rangeCount);
+            var mins = new long[rangeCount][tracked.length];
+            var maxes = new long[rangeCount][tracked.length];
+            for (int range = 0; range < rangeCount; range++) {
+                ranges.add(new MappedCsvEnumerable.Range(in.readLong(), in.readLong()));
+                for (int column = 0; column < tracked.length; column++) {
+                    if (!tracked[column]) continue;
+                    mins[range][column] = in.readLong();
+                    maxes[range][column] = in.readLong();
+                }
+            }
+            log.debug("Read the zone map '{}' ({} ranges)", path, rangeCount);
+            return new CsvZoneMap(stamp, rangeSize, List.copyOf(ranges), tracked, mins, maxes);
+        } catch (IOException e) {
+            log.warn("Failed to read the zone map '{}'", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Persist the zone map next to the CSV file. Failing to do so is not fatal, it is just rebuilt next time.
+     */
+    void write(Path csv) {
+        Path path = zoneMapPath(csv);
+        try {
+            Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeLong(MAGIC);
+                out.writeLong(stamp.lastModifiedNanos());
+                out.writeLong(stamp.size());
+                out.writeLong(rangeSize);
+                out.writeInt(ranges.size());
+                out.writeInt(tracked.length);
+                for (boolean t : tracked) out.writeBoolean(t);
+                for (int range = 0; range < ranges.size(); range++) {
+                    out.writeLong(ranges.get(range).start());
+                    out.writeLong(ranges.get(range).end());
+                    for (int column = 0; column < tracked.length; column++) {
+                        if (!tracked[column]) continue;
+                        out.writeLong(mins[range][column]);
+                        out.writeLong(maxes[range][column]);
+                    }
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote the zone map '{}' ({} ranges)", path, ranges.size());
+        } catch (IOException e) {
+            log.warn("Failed to write the zone map '{}'", path, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CsvZoneMap[ranges=%d, tracked=%s]".formatted(ranges.size(), Arrays.toString(tracked));
+    }
+}
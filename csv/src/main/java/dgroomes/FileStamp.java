@@ -0,0 +1,27 @@
+package dgroomes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last-modified time and size of a file. Anything that is derived from a file's contents and cached in memory
+ * remembers the stamp of the file it was derived from, and it is stale once the file's current stamp is different.
+ * <p>
+ * This is the same cheap heuristic that build tools use. Reading the attributes is a single {@code stat} call, which
+ * is much cheaper than opening and reading the file.
+ */
+record FileStamp(long lastModifiedNanos, long size) {
+
+    static FileStamp of(Path path) {
+        try {
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileStamp(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the attributes of '%s'".formatted(path), e);
+        }
+    }
+}
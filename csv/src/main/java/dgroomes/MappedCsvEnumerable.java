@@ -0,0 +1,266 @@
+package dgroomes;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * An {@link org.apache.calcite.linq4j.Enumerable} over the rows of a CSV file that reads the file through memory-mapped
+ * byte ranges, optionally in parallel.
+ * <p>
+ * The file is cut into byte ranges of roughly {@code rangeSize} bytes. Each range boundary is nudged forward to the
+ * next line break so that every range holds only whole rows. Each range is memory-mapped and parsed by a
+ * {@link CsvRowReader}, which applies the scan's projection and filters.
+ * <p>
+ * In parallel mode, each range is parsed as a task on a {@link ForkJoinPool}. The enumerator hands the rows back to
+ * Calcite in file order: it always waits on the oldest range, and it keeps a bounded number of ranges in flight ahead
+ * of it so that memory use stays bounded even for a file that is many gigabytes. In sequential mode, each range is
+ * parsed on the calling thread when the enumerator reaches it.
+ * <p>
+ * The ranges double as the blocks of a {@link CsvZoneMap}. Given a zone map, the enumerable only reads the ranges that
+ * could have rows that match its filters. Without one, it can build one as a side effect of reading the whole file.
+ */
+class MappedCsvEnumerable extends AbstractEnumerable<Object[]> {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedCsvEnumerable.class);
+
+    /**
+     * 8 MiB is big enough that the per-task overhead is noise, and small enough that a modest file still fans out
+     * over all cores.
+     */
+    static final long DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+
+    private final Path path;
+    private final CsvFieldConverter[] converters;
+    private final int[] projects;
+    private final List<CsvFilter> filters;
+    private final AtomicBoolean cancelFlag;
+    private final ForkJoinPool pool;
+    private final long rangeSize;
+    private final CsvZoneMap zoneMap;
+    private final FileStamp stamp;
+    private final boolean[] zoneColumns;
+    private final Consumer<CsvZoneMap> zoneMapSink;
+
+    /**
+     * @param pool the pool to parse ranges on, or {@code null} to parse them sequentially on the calling thread
+     */
+    MappedCsvEnumerable(Path path, CsvFieldConverter[] converters, int[] projects, List<CsvFilter> filters,
+                        AtomicBoolean cancelFlag, ForkJoinPool pool) {
+        this(path, converters, projects, filters, cancelFlag, pool, DEFAULT_RANGE_SIZE, null, null, null, null);
+    }
+
+    /**
+     * @param zoneMap     a zone map of the file to skip ranges with, or {@code null}
+     * @param stamp       the stamp of the file, for the zone map that is built if there is no {@code zoneMap}
+     * @param zoneColumns the columns to track in that zone map
+     * @param zoneMapSink receives that zone map if the scan reads the whole file, or {@code null} to not build one
+     */
+    MappedCsvEnumerable(Path path, CsvFieldConverter[] converters, int[] projects, List<CsvFilter> filters,
+                        AtomicBoolean cancelFlag, ForkJoinPool pool, long rangeSize, CsvZoneMap zoneMap,
+                        FileStamp stamp, boolean[] zoneColumns, Consumer<CsvZoneMap> zoneMapSink) {
+        this.path = path;
+        this.converters = converters;
+        this.projects = projects;
+        this.filters = filters;
+        this.cancelFlag = cancelFlag;
+        this.pool = pool;
+        this.rangeSize = rangeSize;
+        this.zoneMap = zoneMap;
+        this.stamp = stamp;
+        this.zoneColumns = zoneColumns;
+        this.zoneMapSink = zoneMapSink;
+    }
+
+    @Override
+    public Enumerator<Object[]> enumerator() {
+        FileChannel channel;
+        List<Range> ranges;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            ranges = zoneMap != null ? zoneMap.ranges() : splitIntoRanges(channel, rangeSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open '%s' for a mapped scan".formatted(path), e);
+        }
+
+        if (zoneMap != null) {
+            var matching = new ArrayList<Range>();
+            for (int i = 0; i < ranges.size(); i++) {
+                if (zoneMap.mayMatch(i, filters)) matching.add(ranges.get(i));
+            }
+            if (!filters.isEmpty()) {
+                log.debug("The zone map of '{}' rules out {} of its {} ranges", path, ranges.size() - matching.size(), ranges.size());
+            }
+            return new RangeEnumerator(channel, matching, null);
+        }
+
+        var zoneMapBuilder = zoneMapSink != null ? new CsvZoneMap.Builder(stamp, rangeSize, ranges, zoneColumns) : null;
+        return new RangeEnumerator(channel, ranges, zoneMapBuilder);
+    }
+
+    /**
+     * A half-open byte range {@code [start, end)} of the file that starts at the beginning of a line and ends just
+     * after a line break (or at the end of the file).
+     */
+    record Range(long start, long end) {}
+
+    /**
+     * Split the file into line-aligned ranges. The first line is the header, so the first range starts after it.
+     */
+    static List<Range> splitIntoRanges(FileChannel channel, long rangeSize) throws IOException {
+        long size = channel.size();
+        var ranges = new ArrayList<Range>();
+        long start = skipLine(channel, 0, size);
+        while (start < size) {
+            long end = start + rangeSize >= size ? size : skipLine(channel, start + rangeSize, size);
+            ranges.add(new Range(start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the file position just after the next line break at or after {@code position}, or {@code size} if
+     * there is none
+     */
+    static long skipLine(FileChannel channel, long position, long size) throws IOException {
+        var buffer = ByteBuffer.allocate(8 * 1024);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Parse all the rows in one range. In parallel mode this runs on a pool thread.
+     *
+     * @param zoneMapBuilder records the min/max values of the range, or {@code null}
+     */
+    private Object[][] parseRange(FileChannel channel, int rangeIndex, Range range, CsvZoneMap.Builder zoneMapBuilder) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range.start(), range.end() - range.start());
+        var reader = new CsvRowReader(converters, projects, filters, zoneMapBuilder == null ? null : zoneMapBuilder.tracked());
+        var rows = reader.readRows(buffer, cancelFlag);
+        if (zoneMapBuilder != null) zoneMapBuilder.record(rangeIndex, reader.zoneMins(), reader.zoneMaxes());
+        return rows;
+    }
+
+    private class RangeEnumerator implements Enumerator<Object[]> {
+
+        private final FileChannel channel;
+        private final List<Range> ranges;
+        private final ArrayDeque<ForkJoinTask<Object[][]>> inFlight = new ArrayDeque<>();
+        private final int maxInFlight;
+        private CsvZoneMap.Builder zoneMapBuilder;
+        private int nextRange;
+        private Object[][] rows = new Object[0][];
+        private int rowIndex = -1;
+        private Object[] current;
+
+        RangeEnumerator(FileChannel channel, List<Range> ranges, CsvZoneMap.Builder zoneMapBuilder) {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.zoneMapBuilder = zoneMapBuilder;
+            this.maxInFlight = pool == null ? 0 : Math.max(2, pool.getParallelism() * 2);
+            submitRanges();
+        }
+
+        private void submitRanges() {
+            while (inFlight.size() < maxInFlight && nextRange < ranges.size()) {
+                int rangeIndex = nextRange++;
+                var range = ranges.get(rangeIndex);
+                var builder = zoneMapBuilder;
+                inFlight.add(pool.submit(() -> parseRange(channel, rangeIndex, range, builder)));
+            }
+        }
+
+        /**
+         * @return the rows of the next range, or {@code null} if there are no more ranges
+         */
+        private Object[][] nextRows() {
+            if (pool == null) {
+                if (nextRange >= ranges.size()) return finish();
+                try {
+                    int rangeIndex = nextRange++;
+                    return parseRange(channel, rangeIndex, ranges.get(rangeIndex), zoneMapBuilder);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            var task = inFlight.poll();
+            if (task == null) return finish();
+            var next = task.join();
+            submitRanges();
+            return next;
+        }
+
+        /**
+         * Every range has been read. If this scan was building a zone map (and wasn't cancelled part way), it's complete.
+         */
+        private Object[][] finish() {
+            if (zoneMapBuilder != null && !cancelFlag.get()) {
+                zoneMapSink.accept(zoneMapBuilder.build());
+            }
+            zoneMapBuilder = null;
+            return null;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (true) {
+                if (cancelFlag.get()) return false;
+                if (++rowIndex < rows.length) {
+                    current = rows[rowIndex];
+                    return true;
+                }
+                var next = nextRows();
+                if (next == null) return false;
+                rows = next;
+                rowIndex = -1;
+            }
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            inFlight.forEach(task -> task.cancel(false));
+            inFlight.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
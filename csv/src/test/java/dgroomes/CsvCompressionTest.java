@@ -0,0 +1,207 @@
+package dgroomes;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A compressed file that is made of several members or frames is decompressed a block at a time (see
+ * {@link CsvCompression}), and it must read as exactly the rows of the uncompressed file.
+ */
+class CsvCompressionTest {
+
+    @TempDir
+    Path directory;
+
+    private CalciteConnection connection;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:calcite:").unwrap(CalciteConnection.class);
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    /**
+     * The file as it would be uncompressed. It's cut into pieces at arbitrary bytes (not at line breaks), so each
+     * piece ends in the middle of a line.
+     */
+    private static byte[][] pieces(int pieceCount) {
+        var text = new StringBuilder("ZIP:int,CITY:string\n");
+        for (int i = 0; i < 5000; i++) text.append(10000 + i).append(",City ").append(i).append('\n');
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        var pieces = new byte[pieceCount][];
+        for (int i = 0; i < pieceCount; i++) {
+            pieces[i] = Arrays.copyOfRange(bytes, bytes.length * i / pieceCount, bytes.length * (i + 1) / pieceCount);
+        }
+        return pieces;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        var out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static byte[] gzipMember(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A gzip member with a file name in its header. GZIPOutputStream can't write one, so the member is put together by
+     * hand.
+     */
+    private static byte[] gzipMemberWithName(byte[] data, byte[] name) {
+        var out = new ByteArrayOutputStream();
+        // The magic, deflate, the FNAME flag, no modification time, no extra flags, and an unknown OS
+        out.writeBytes(new byte[]{0x1f, (byte) 0x8b, 8, 8, 0, 0, 0, 0, 0, (byte) 0xff});
+        out.writeBytes(name);
+        out.write(0);
+
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        var buffer = new byte[8192];
+        while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+
+        var crc = new CRC32();
+        crc.update(data);
+        var trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue()).putInt(data.length);
+        out.writeBytes(trailer.array());
+        return out.toByteArray();
+    }
+
+    private static byte[] zstdFrame(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var zstd = new ZstdOutputStream(out)) {
+            zstd.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the rows of the table, in each scan mode
+     */
+    private List<List<String>> query(String table) throws SQLException {
+        var rowsPerMode = new ArrayList<List<String>>();
+        for (CsvTable.ScanMode scanMode : List.of(CsvTable.ScanMode.SEQUENTIAL, CsvTable.ScanMode.PARALLEL_MAPPED)) {
+            String schemaName = "TEST_" + scanMode;
+            if (connection.getRootSchema().getSubSchema(schemaName) == null) {
+                connection.getRootSchema().add(schemaName, CsvSchema.create(directory.toFile(), CsvOptions.defaults().withScanMode(scanMode)));
+            }
+            var rows = new ArrayList<String>();
+            try (var statement = connection.createStatement();
+                 var resultSet = statement.executeQuery("select zip, city from %s.%s".formatted(schemaName, table))) {
+                while (resultSet.next()) rows.add(resultSet.getInt(1) + "," + resultSet.getString(2));
+            }
+            rowsPerMode.add(rows);
+        }
+        return rowsPerMode;
+    }
+
+    private void assertSameRowsAsUncompressed(byte[][] pieces, String compressedTable) throws IOException, SQLException {
+        Files.write(directory.resolve("PLAIN.csv"), concat(pieces));
+        var expected = query("PLAIN").getFirst();
+
+        assertEquals(5000, expected.size());
+        assertEquals(List.of(expected, expected), query(compressedTable));
+    }
+
+    @Test
+    void multiMemberGzipFile() throws IOException, SQLException {
+        var pieces = pieces(3);
+        byte[] file = concat(gzipMember(pieces[0]), gzipMember(pieces[1]), gzipMember(pieces[2]));
+        Files.write(directory.resolve("ZIPS.csv.gz"), file);
+
+        assertEquals(3, CsvCompression.GZIP.blocks(ByteBuffer.wrap(file)).size());
+        assertSameRowsAsUncompressed(pieces, "ZIPS");
+    }
+
+    @Test
+    void falseGzipMemberBoundaryInsideAMember() throws IOException, SQLException {
+        var pieces = pieces(2);
+        // The bytes of a member header (with a valid flags byte and OS byte) inside the header of a real member
+        byte[] name = {0x1f, (byte) 0x8b, 8, 1, 1, 1, 1, 1, 1, 3};
+        byte[] file = concat(gzipMemberWithName(pieces[0], name), gzipMember(pieces[1]));
+        Files.write(directory.resolve("ZIPS.csv.gz"), file);
+
+        assertEquals(3, CsvCompression.GZIP.blocks(ByteBuffer.wrap(file)).size());
+        assertSameRowsAsUncompressed(pieces, "ZIPS");
+    }
+
+    @Test
+    void multiFrameZstdFile() throws IOException, SQLException {
+        var pieces = pieces(3);
+        byte[] file = concat(zstdFrame(pieces[0]), zstdFrame(pieces[1]), zstdFrame(pieces[2]));
+        Files.write(directory.resolve("ZIPS.csv.zst"), file);
+
+        assertEquals(3, CsvCompression.ZSTD.blocks(ByteBuffer.wrap(file)).size());
+        assertSameRowsAsUncompressed(pieces, "ZIPS");
+    }
+
+    @Test
+    void uncompressedFileWinsOverACompressedFileOfTheSameTable() throws IOException, SQLException {
+        Path csv = directory.resolve("ZIPS.csv");
+        Path gz = directory.resolve("ZIPS.csv.gz");
+        Files.writeString(csv, "ZIP:int,CITY:string\n80301,Boulder\n");
+        Files.write(gz, gzipMember("ZIP:int,CITY:string\n31401,Savannah\n".getBytes(StandardCharsets.UTF_8)));
+        var schema = CsvSchema.create(directory.toFile(), CsvOptions.defaults());
+        connection.getRootSchema().add("TEST", schema);
+
+        assertEquals(List.of("80301,Boulder"), rows("select zip, city from test.zips"));
+
+        // A change to the file that is ignored doesn't change the table
+        schema.refresh(gz);
+        assertEquals(List.of("80301,Boulder"), rows("select zip, city from test.zips"));
+
+        // When the file that the table reads is gone, it reads the other one
+        Files.delete(csv);
+        schema.refresh(csv);
+        assertEquals(List.of("31401,Savannah"), rows("select zip, city from test.zips"));
+        assertFalse(schema.getTableNames().contains("ZIPS" + CsvSchema.STREAM_SUFFIX));
+
+        Files.delete(gz);
+        schema.refresh(gz);
+        assertTrue(schema.getTableNames().isEmpty());
+    }
+
+    private List<String> rows(String sql) throws SQLException {
+        var rows = new ArrayList<String>();
+        try (var statement = connection.createStatement(); var resultSet = statement.executeQuery(sql)) {
+            while (resultSet.next()) rows.add(resultSet.getInt(1) + "," + resultSet.getString(2));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,90 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CsvFilterTest {
+
+    private final JavaTypeFactoryImpl typeFactory = new JavaTypeFactoryImpl();
+    private final RexBuilder rexBuilder = new RexBuilder(typeFactory);
+    private final RelDataType integer = typeFactory.createSqlType(SqlTypeName.INTEGER);
+    private final RelDataType varchar = typeFactory.createSqlType(SqlTypeName.VARCHAR);
+    private final List<RelDataType> fieldTypes = List.of(integer, varchar);
+
+    private RexNode population() {
+        return rexBuilder.makeInputRef(integer, 0);
+    }
+
+    private RexNode state() {
+        return rexBuilder.makeInputRef(varchar, 1);
+    }
+
+    private RexNode number(long value) {
+        return rexBuilder.makeExactLiteral(BigDecimal.valueOf(value));
+    }
+
+    @Test
+    void columnComparedToALiteral() {
+        var filter = CsvFilter.tryCreate(rexBuilder.makeCall(SqlStdOperatorTable.GREATER_THAN, population(), number(30_000)), fieldTypes);
+
+        assertEquals(new CsvFilter(0, SqlKind.GREATER_THAN, filter.value()), filter);
+        assertEquals(30_000, filter.value());
+        assertTrue(filter.test(30_001));
+        assertFalse(filter.test(30_000));
+        assertFalse(filter.test((Object) null));
+    }
+
+    @Test
+    void literalOnTheLeftIsFlipped() {
+        var filter = CsvFilter.tryCreate(rexBuilder.makeCall(SqlStdOperatorTable.LESS_THAN, number(30_000), population()), fieldTypes);
+
+        assertEquals(SqlKind.GREATER_THAN, filter.kind());
+        assertTrue(filter.test((Object) 40_000));
+        assertFalse(filter.test((Object) 20_000));
+    }
+
+    @Test
+    void lossyLiteralsAreNotPushedDown() {
+        var fraction = rexBuilder.makeExactLiteral(new BigDecimal("2.5"));
+        var tooBig = number(Long.MAX_VALUE);
+
+        assertNull(CsvFilter.tryCreate(rexBuilder.makeCall(SqlStdOperatorTable.EQUALS, population(), fraction), fieldTypes));
+        assertNull(CsvFilter.tryCreate(rexBuilder.makeCall(SqlStdOperatorTable.EQUALS, population(), tooBig), fieldTypes));
+    }
+
+    @Test
+    void nullSafeComparisonsAreNotPushedDown() {
+        var notDistinct = rexBuilder.makeCall(SqlStdOperatorTable.IS_NOT_DISTINCT_FROM, population(), number(1));
+
+        assertNull(CsvFilter.tryCreate(notDistinct, fieldTypes));
+    }
+
+    @Test
+    void pushDownRemovesOnlyTheTranslatedFilters() {
+        var equalsState = rexBuilder.makeCall(SqlStdOperatorTable.EQUALS, state(), rexBuilder.makeLiteral("CO"));
+        var like = rexBuilder.makeCall(SqlStdOperatorTable.LIKE, state(), rexBuilder.makeLiteral("C%"));
+        var filters = new ArrayList<>(List.of(equalsState, like));
+
+        var pushed = CsvFilter.pushDown(filters, fieldTypes);
+
+        assertEquals(1, pushed.size());
+        assertEquals(new CsvFilter(1, SqlKind.EQUALS, pushed.getFirst().value()), pushed.getFirst());
+        assertEquals("CO", pushed.getFirst().value());
+        assertEquals(List.of(like), filters);
+    }
+}
@@ -0,0 +1,151 @@
+package dgroomes;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CsvLineParserTest {
+
+    /**
+     * Parse every line of the text, skipping blank lines like the scans do.
+     */
+    private static List<String[]> parse(CsvLineParser parser, String text, int fieldCount) {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        int limit = buffer.limit();
+        var rows = new ArrayList<String[]>();
+        int position = 0;
+        while (position < limit) {
+            if (CsvLineParser.isBlankLine(buffer, position, limit)) {
+                position = CsvLineParser.nextLine(buffer, position, limit);
+                continue;
+            }
+            var fields = new String[fieldCount];
+            position = parser.parseLine(buffer, position, limit, fields);
+            rows.add(fields);
+        }
+        return rows;
+    }
+
+    @Test
+    void plainFields() {
+        var rows = parse(new CsvLineParser(), "80301,18174,1\n80302,29384,1\n", 3);
+
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"80301", "18174", "1"}, rows.get(0));
+        assertArrayEquals(new String[]{"80302", "29384", "1"}, rows.get(1));
+    }
+
+    @Test
+    void crlfLineEndings() {
+        var rows = parse(new CsvLineParser(), "a,b\r\nc,\"d\"\r\n", 2);
+
+        assertArrayEquals(new String[]{"a", "b"}, rows.get(0));
+        assertArrayEquals(new String[]{"c", "d"}, rows.get(1));
+    }
+
+    @Test
+    void lastLineWithoutLineBreak() {
+        var rows = parse(new CsvLineParser(), "a,b\nc,d", 2);
+
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"c", "d"}, rows.get(1));
+    }
+
+    @Test
+    void quotedFieldsWithSeparatorsAndEscapedQuotes() {
+        var rows = parse(new CsvLineParser(), "\"Boulder, CO\",\"say \"\"hi\"\"\",\"\"\n", 3);
+
+        assertArrayEquals(new String[]{"Boulder, CO", "say \"hi\"", ""}, rows.get(0));
+    }
+
+    @Test
+    void emptyFieldsAreEmptyStrings() {
+        var rows = parse(new CsvLineParser(), ",x,\n", 3);
+
+        assertArrayEquals(new String[]{"", "x", ""}, rows.get(0));
+    }
+
+    @Test
+    void missingFieldsAreNullAndExtraFieldsAreIgnored() {
+        var rows = parse(new CsvLineParser(), "a\nb,c,d,e\n", 3);
+
+        assertArrayEquals(new String[]{"a", null, null}, rows.get(0));
+        assertArrayEquals(new String[]{"b", "c", "d"}, rows.get(1));
+    }
+
+    @Test
+    void blankLinesAreSkipped() {
+        var rows = parse(new CsvLineParser(), "a\n\n\r\nb\n\n", 1);
+
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"a"}, rows.get(0));
+        assertArrayEquals(new String[]{"b"}, rows.get(1));
+    }
+
+    @Test
+    void multiByteCharacters() {
+        var rows = parse(new CsvLineParser(), "Zürich,\"Ñuñoa, Chile\"\n", 2);
+
+        assertArrayEquals(new String[]{"Zürich", "Ñuñoa, Chile"}, rows.get(0));
+    }
+
+    @Test
+    void longFieldsGrowTheScratchBuffer() {
+        String longValue = "x".repeat(10_000);
+        var rows = parse(new CsvLineParser(), longValue + ",\"" + longValue + "\"\n", 2);
+
+        assertArrayEquals(new String[]{longValue, longValue}, rows.get(0));
+    }
+
+    @Test
+    void unwantedFieldsAreSkipped() {
+        var parser = new CsvLineParser(new boolean[]{false, true, false});
+        var rows = parse(parser, "\"a,b\",c,d\n\"e\",\"f,g\",h\n", 3);
+
+        // A quoted separator in a skipped field doesn't shift the fields after it
+        assertArrayEquals(new String[]{null, "c", null}, rows.get(0));
+        assertArrayEquals(new String[]{null, "f,g", null}, rows.get(1));
+    }
+
+    @Test
+    void theRestOfTheLineAfterTheLastWantedFieldIsNotTokenized() {
+        var parser = new CsvLineParser(new boolean[]{true});
+        var rows = parse(parser, "a,\"unterminated\nb,c\n", 2);
+
+        // The unterminated quote is after the last wanted field, so it can't swallow the next line
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"a", null}, rows.get(0));
+        assertArrayEquals(new String[]{"b", null}, rows.get(1));
+    }
+
+    @Test
+    void blankLineDetection() {
+        ByteBuffer buffer = ByteBuffer.wrap("\n\r\nx\r".getBytes(StandardCharsets.US_ASCII));
+        int limit = buffer.limit();
+
+        assertTrue(CsvLineParser.isBlankLine(buffer, 0, limit));
+        assertTrue(CsvLineParser.isBlankLine(buffer, 1, limit));
+        assertFalse(CsvLineParser.isBlankLine(buffer, 3, limit));
+        assertTrue(CsvLineParser.isBlankLine(buffer, 4, limit));
+        assertTrue(CsvLineParser.isBlankLine(buffer, limit, limit));
+    }
+
+    @Test
+    void nextLine() {
+        ByteBuffer buffer = ByteBuffer.wrap("ab\ncd".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals(3, CsvLineParser.nextLine(buffer, 0, buffer.limit()));
+        assertEquals(3, CsvLineParser.nextLine(buffer, 2, buffer.limit()));
+        assertEquals(5, CsvLineParser.nextLine(buffer, 3, buffer.limit()));
+        assertEquals(List.of("ab"), Arrays.asList(parse(new CsvLineParser(), "ab\n", 1).getFirst()));
+    }
+}
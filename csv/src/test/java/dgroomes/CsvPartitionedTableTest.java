@@ -0,0 +1,109 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvPartitionedTableTest {
+
+    @TempDir
+    Path directory;
+
+    private CalciteConnection connection;
+
+    @BeforeEach
+    void connect() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:calcite:").unwrap(CalciteConnection.class);
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    private void addSchema() {
+        connection.getRootSchema().add("TEST", CsvSchema.create(directory.toFile(), CsvOptions.defaults()));
+    }
+
+    private List<String> query(String sql) throws SQLException {
+        var rows = new ArrayList<String>();
+        try (var statement = connection.createStatement(); var resultSet = statement.executeQuery(sql)) {
+            int columnCount = resultSet.getMetaData().getColumnCount();
+            while (resultSet.next()) {
+                var row = new ArrayList<String>();
+                for (int i = 1; i <= columnCount; i++) row.add(resultSet.getString(i));
+                rows.add(String.join(",", row));
+            }
+        }
+        return rows;
+    }
+
+    private static void writePartition(Path file, int firstZip, int rowCount) throws IOException {
+        Files.createDirectories(file.getParent());
+        var text = new StringBuilder("ZIP:int\n");
+        for (int i = 0; i < rowCount; i++) text.append(firstZip + i).append('\n');
+        Files.writeString(file, text);
+    }
+
+    @Test
+    void rowsComeBackInPartitionOrder() throws IOException, SQLException {
+        // Enough rows for each partition to be handed over in several chunks
+        for (int i = 0; i < 12; i++) {
+            writePartition(directory.resolve("ZIPS/part-%02d.csv".formatted(i)), i * 3000, 3000);
+        }
+        addSchema();
+
+        var expected = IntStream.range(0, 12 * 3000).mapToObj(String::valueOf).toList();
+        assertEquals(expected, query("select zip from test.zips"));
+    }
+
+    @Test
+    void partitionColumnsComeFromThePath() throws IOException, SQLException {
+        writePartition(directory.resolve("ZIPS/state=CO/part-1.csv"), 80301, 2);
+        writePartition(directory.resolve("ZIPS/state=GA/part-1.csv"), 31401, 1);
+        writePartition(directory.resolve("ZIPS/part-0.csv"), 10001, 1);
+        addSchema();
+
+        assertEquals(List.of("10001,null", "80301,CO", "80302,CO", "31401,GA"), query("select zip, state from test.zips"));
+        assertEquals(List.of("CO,80302", "CO,80301"),
+                query("select state, zip from test.zips where state = 'CO' order by zip desc"));
+    }
+
+    @Test
+    void addedFileIsPickedUp() throws IOException, SQLException {
+        writePartition(directory.resolve("ZIPS/part-1.csv"), 80301, 2);
+        addSchema();
+        assertEquals(List.of("2"), query("select count(*) from test.zips"));
+
+        writePartition(directory.resolve("ZIPS/part-2.csv"), 31401, 1);
+        // Some file systems only keep the last-modified time to the second, so make sure the directory looks changed
+        Files.setLastModifiedTime(directory.resolve("ZIPS"), FileTime.fromMillis(0));
+
+        assertEquals(List.of("3"), query("select count(*) from test.zips"));
+    }
+
+    @Test
+    void closingEarlyStopsTheScans() throws IOException, SQLException {
+        for (int i = 0; i < 12; i++) {
+            writePartition(directory.resolve("ZIPS/part-%02d.csv".formatted(i)), i * 3000, 3000);
+        }
+        addSchema();
+
+        assertEquals(List.of("0", "1"), query("select zip from test.zips limit 2"));
+        assertEquals(List.of("36000"), query("select count(*) from test.zips"));
+    }
+}
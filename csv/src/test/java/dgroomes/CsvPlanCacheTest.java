@@ -0,0 +1,169 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvPlanCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private CalciteConnection connection;
+    private CsvSchema schema;
+
+    @BeforeEach
+    void connect() throws IOException, SQLException {
+        Files.writeString(directory.resolve("CITIES.csv"), "NAME:string\nBoulder\nSavannah\n");
+        Files.writeString(directory.resolve("STATES.csv"), "CODE:string\nCO\nGA\n");
+        connection = DriverManager.getConnection("jdbc:calcite:").unwrap(CalciteConnection.class);
+        schema = CsvSchema.create(directory.toFile(), CsvOptions.defaults());
+        connection.getRootSchema().add("TEST", schema);
+        connection.setSchema("TEST");
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        connection.close();
+    }
+
+    private static List<String> query(CsvPlanCache planCache, String sql) throws SQLException {
+        var values = new ArrayList<String>();
+        planCache.query(sql, resultSet -> values.add(resultSet.getString(1)));
+        return values;
+    }
+
+    @Test
+    void normalizeCollapsesWhitespaceOutsideOfQuotes() {
+        assertEquals("select a from t where b = 1", CsvPlanCache.normalize("  select a\n  from t\twhere b =  1 ;"));
+        assertEquals("select 'a  b', \"c\n d\" from t", CsvPlanCache.normalize("select  'a  b',  \"c\n d\"  from t"));
+        assertEquals("select 'it''s  here' from t", CsvPlanCache.normalize("select  'it''s  here'   from t"));
+    }
+
+    @Test
+    void onlyThePlansThatReadAChangedTableAreDropped() throws IOException, SQLException {
+        try (var planCache = new CsvPlanCache(connection, 10, schema)) {
+            query(planCache, "select name from cities order by name");
+            query(planCache, "select code from states order by code");
+
+            Path cities = directory.resolve("CITIES.csv");
+            Files.writeString(cities, "NAME:string\nAustin\n");
+            schema.refresh(cities);
+
+            assertEquals(List.of("Austin"), query(planCache, "select name from cities order by name"));
+            assertEquals(List.of("CO", "GA"), query(planCache, "select code from states order by code"));
+            assertEquals(new CsvPlanCache.Stats(1, 3, 0, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void newOrRemovedTableOnlyDropsThePlansThatReadIt() throws IOException, SQLException {
+        try (var planCache = new CsvPlanCache(connection, 10, schema)) {
+            query(planCache, "select code from states");
+            query(planCache, "select name from cities");
+
+            Path zips = directory.resolve("ZIPS.csv");
+            Files.writeString(zips, "ZIP_CODE:int\n80301\n");
+            schema.refresh(zips);
+            query(planCache, "select code from states");
+
+            Path cities = directory.resolve("CITIES.csv");
+            Files.delete(cities);
+            schema.refresh(cities);
+            query(planCache, "select code from states");
+
+            assertEquals(new CsvPlanCache.Stats(2, 2, 0, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void refreshedPartitionedTableDropsItsPlans() throws IOException, SQLException {
+        Path zips = directory.resolve("ZIPS");
+        Files.createDirectories(zips);
+        Files.writeString(zips.resolve("part-1.csv"), "ZIP_CODE:int\n80301\n");
+        schema.refresh(zips);
+
+        try (var planCache = new CsvPlanCache(connection, 10, schema)) {
+            query(planCache, "select count(*) from zips");
+            query(planCache, "select code from states");
+
+            Files.writeString(zips.resolve("part-2.csv"), "ZIP_CODE:int\n31401\n");
+            schema.refresh(zips);
+
+            assertEquals(List.of("2"), query(planCache, "select count(*) from zips"));
+            query(planCache, "select code from states");
+            assertEquals(new CsvPlanCache.Stats(1, 3, 0, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void planThatIsExecutingIsNotShared() throws SQLException {
+        try (var planCache = new CsvPlanCache(connection, 10, schema)) {
+            var inner = new ArrayList<String>();
+            // The same query, while the cached plan is executing
+            planCache.query("select code from states order by code", resultSet -> {
+                if (inner.isEmpty()) inner.addAll(query(planCache, "select code from states order by code"));
+            });
+
+            assertEquals(List.of("CO", "GA"), inner);
+            assertEquals(new CsvPlanCache.Stats(0, 1, 1, 0), planCache.stats());
+        }
+    }
+
+    @Test
+    void planThatIsEvictedWhileItIsExecutingFinishesFirst() throws SQLException {
+        try (var planCache = new CsvPlanCache(connection, 1, schema)) {
+            var outer = new ArrayList<String>();
+            // The inner query evicts the plan of the outer one, which still has rows to go
+            planCache.query("select code from states order by code", resultSet -> {
+                outer.add(resultSet.getString(1));
+                query(planCache, "select name from cities where name <> '" + resultSet.getString(1) + "'");
+            });
+
+            assertEquals(List.of("CO", "GA"), outer);
+            assertEquals(List.of("CO", "GA"), query(planCache, "select code from states order by code"));
+            assertEquals(new CsvPlanCache.Stats(0, 4, 0, 3), planCache.stats());
+        }
+    }
+
+    @Test
+    void evictingAPlanThatAnotherThreadIsExecutingDoesNotWait() throws Exception {
+        try (var planCache = new CsvPlanCache(connection, 1, schema)) {
+            var other = Executors.newSingleThreadExecutor();
+            try {
+                var outer = new ArrayList<String>();
+                // The row handler waits for a query on another thread, which evicts the plan that is executing here
+                planCache.query("select code from states order by code", resultSet -> {
+                    outer.add(resultSet.getString(1));
+                    if (outer.size() > 1) return;
+                    try {
+                        assertEquals(List.of("Boulder", "Savannah"),
+                                other.submit(() -> query(planCache, "select name from cities order by name")).get(10, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                });
+
+                assertEquals(List.of("CO", "GA"), outer);
+                assertEquals(new CsvPlanCache.Stats(0, 2, 0, 1), planCache.stats());
+                assertEquals(List.of("CO", "GA"), query(planCache, "select code from states order by code"));
+            } finally {
+                other.shutdownNow();
+            }
+        }
+    }
+}
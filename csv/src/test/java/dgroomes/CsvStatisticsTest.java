@@ -0,0 +1,99 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CsvStatisticsTest {
+
+    @TempDir
+    Path directory;
+
+    private static CsvStatistics collect(FileStamp stamp) {
+        List<Object[]> rows = List.of(
+                new Object[]{1, "Boulder", null},
+                new Object[]{2, "Savannah", 2.5},
+                new Object[]{3, "Boulder", 1.0});
+        return CsvStatistics.collect(stamp, Linq4j.asEnumerable(rows), 3);
+    }
+
+    @Test
+    void collect() {
+        var statistics = collect(new FileStamp(1, 2));
+
+        assertEquals(3, statistics.rowCount());
+        // The names repeat and the third column has a null, so only the first column is a key
+        assertEquals(List.of(ImmutableBitSet.of(0)), statistics.keys());
+        assertEquals(List.of(
+                new CsvStatistics.ColumnStatistics(3, 1, 3),
+                new CsvStatistics.ColumnStatistics(2, "Boulder", "Savannah"),
+                new CsvStatistics.ColumnStatistics(2, 1.0, 2.5)), statistics.columns());
+    }
+
+    @Test
+    void readWhatWasWritten() {
+        Path csv = directory.resolve("CITIES.csv");
+        var stamp = new FileStamp(1_700_000_000_000_000_000L, 42);
+        var statistics = collect(stamp);
+
+        statistics.write(csv);
+
+        assertEquals(statistics, CsvStatistics.read(csv, stamp));
+    }
+
+    @Test
+    void statisticsOfAnOlderFileAreIgnored() {
+        Path csv = directory.resolve("CITIES.csv");
+        collect(new FileStamp(1, 42)).write(csv);
+
+        assertNull(CsvStatistics.read(csv, new FileStamp(2, 42)));
+        assertNull(CsvStatistics.read(csv, new FileStamp(1, 43)));
+    }
+
+    @Test
+    void missingOrUnparseableFileReadsAsNoStatistics() throws IOException {
+        Path csv = directory.resolve("CITIES.csv");
+        var stamp = new FileStamp(1, 42);
+        assertNull(CsvStatistics.read(csv, stamp));
+
+        Files.writeString(CsvStatistics.statisticsPath(csv), "source.mtime=1\nsource.size=42\nrowCount=many\n");
+        assertNull(CsvStatistics.read(csv, stamp));
+
+        // Truncated after the header
+        Files.writeString(CsvStatistics.statisticsPath(csv), "source.mtime=1\nsource.size=42\n");
+        assertNull(CsvStatistics.read(csv, stamp));
+    }
+
+    @Test
+    void unparseableFileIsReplacedWhenATableIsPlanned() throws IOException, SQLException {
+        Path csv = directory.resolve("CITIES.csv");
+        Files.writeString(csv, "NAME:string,POPULATION:int\nBoulder,108250\nSavannah,147780\n");
+        Files.writeString(CsvStatistics.statisticsPath(csv), "this is not a statistics file");
+
+        try (var connection = DriverManager.getConnection("jdbc:calcite:").unwrap(CalciteConnection.class)) {
+            connection.getRootSchema().add("TEST", CsvSchema.create(directory.toFile(), CsvOptions.defaults().withStatistics(true)));
+            try (var statement = connection.createStatement();
+                 var resultSet = statement.executeQuery("select count(*) from test.cities where population > 120000")) {
+                resultSet.next();
+                assertEquals(1, resultSet.getInt(1));
+            }
+        }
+
+        var statistics = CsvStatistics.read(csv, FileStamp.of(csv));
+        assertNotNull(statistics);
+        assertEquals(2, statistics.rowCount());
+    }
+}
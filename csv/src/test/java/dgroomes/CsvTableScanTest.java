@@ -0,0 +1,100 @@
+package dgroomes;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Every scan mode must return the same rows, with the filters that are pushed down into the scan and the ones that are
+ * left for Calcite. The sequential mode is the reference: it's Calcite's own CSV reader.
+ */
+class CsvTableScanTest {
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void writeTable() throws IOException {
+        Files.writeString(directory.resolve("ZIPS.csv"), """
+                ZIP_CODE:int,POPULATION:int,CITY:string,STATE:string
+                80301,18174,"Boulder, CO",CO
+                80302,29384,"Boulder, CO",CO
+                80303,39860,"Boulder, CO",CO
+                80304,21550,"Boulder, CO",CO
+                31401,37153,"Savannah, GA",GA
+                31404,,"Savannah, GA",GA
+                31405,31418,"Savannah, GA",GA
+                """);
+    }
+
+    private List<List<Object>> query(CsvOptions options, String sql) throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:calcite:");
+             var calciteConnection = connection.unwrap(CalciteConnection.class)) {
+            calciteConnection.getRootSchema().add("TEST", CsvSchema.create(directory.toFile(), options));
+            calciteConnection.setSchema("TEST");
+            try (var statement = connection.createStatement(); var resultSet = statement.executeQuery(sql)) {
+                var rows = new ArrayList<List<Object>>();
+                int columnCount = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    var row = new ArrayList<>();
+                    for (int i = 1; i <= columnCount; i++) row.add(resultSet.getObject(i));
+                    rows.add(row);
+                }
+                return rows;
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(CsvTable.ScanMode.class)
+    void filterOnAColumnThatIsNotProjected(CsvTable.ScanMode scanMode) throws SQLException {
+        var rows = query(CsvOptions.defaults().withScanMode(scanMode),
+                "select zip_code from zips where population > 30000 order by zip_code");
+
+        assertEquals(List.of(List.of(31401), List.of(31405), List.of(80303)), rows);
+    }
+
+    @ParameterizedTest
+    @EnumSource(CsvTable.ScanMode.class)
+    void pushedAndRemainingFiltersTogether(CsvTable.ScanMode scanMode) throws SQLException {
+        // The equality is pushed down. The LIKE is left for Calcite.
+        var rows = query(CsvOptions.defaults().withScanMode(scanMode),
+                "select city, population from zips where state = 'GA' and city like 'Sav%' order by zip_code");
+
+        assertEquals(List.of(List.of("Savannah, GA", 37153), Arrays.asList("Savannah, GA", null),
+                List.of("Savannah, GA", 31418)), rows);
+    }
+
+    @ParameterizedTest
+    @EnumSource(CsvTable.ScanMode.class)
+    void emptyNumbersAreNullAndNeverMatch(CsvTable.ScanMode scanMode) throws SQLException {
+        var options = CsvOptions.defaults().withScanMode(scanMode);
+
+        assertEquals(List.of(List.of(31404)), query(options, "select zip_code from zips where population is null"));
+        assertEquals(List.of(List.of(6L)), query(options, "select count(*) from zips where population <> 0"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CsvTable.ScanMode.class, names = {"MAPPED", "PARALLEL_MAPPED"})
+    void zoneMapsDontChangeTheResult(CsvTable.ScanMode scanMode) throws SQLException {
+        var options = CsvOptions.defaults().withScanMode(scanMode).withZoneMaps(true);
+        String sql = "select zip_code from zips where zip_code >= 80302 and zip_code < 80304 order by zip_code";
+
+        // The first scan builds the zone map, and the second one uses it
+        assertEquals(List.of(List.of(80302), List.of(80303)), query(options, sql));
+        assertEquals(List.of(List.of(80302), List.of(80303)), query(options, sql));
+    }
+}
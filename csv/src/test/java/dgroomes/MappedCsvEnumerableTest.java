@@ -0,0 +1,123 @@
+package dgroomes;
+
+import org.apache.calcite.sql.SqlKind;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedCsvEnumerableTest {
+
+    private static final int ROWS = 5_000;
+
+    /**
+     * A range size this small cuts the file into a couple hundred ranges, so that many are in flight at once.
+     */
+    private static final long RANGE_SIZE = 100;
+
+    private static final CsvFieldConverter[] CONVERTERS = {Integer::parseInt, text -> text};
+
+    private static ForkJoinPool pool;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void closePool() {
+        pool.close();
+    }
+
+    private Path writeFile(boolean trailingLineBreak) throws IOException {
+        var text = new StringBuilder("ID:int,NAME:string\n");
+        for (int i = 0; i < ROWS; i++) {
+            text.append(i).append(",name-").append(i);
+            if (i < ROWS - 1 || trailingLineBreak) text.append('\n');
+        }
+        Path file = directory.resolve("ROWS.csv");
+        Files.writeString(file, text);
+        return file;
+    }
+
+    private static List<Object[]> read(MappedCsvEnumerable enumerable) {
+        var rows = new ArrayList<Object[]>();
+        try (var enumerator = enumerable.enumerator()) {
+            while (enumerator.moveNext()) rows.add(enumerator.current());
+        }
+        return rows;
+    }
+
+    private static MappedCsvEnumerable enumerable(Path file, int[] projects, List<CsvFilter> filters, ForkJoinPool pool) {
+        return new MappedCsvEnumerable(file, CONVERTERS, projects, filters, new AtomicBoolean(), pool, RANGE_SIZE,
+                null, null, null, null);
+    }
+
+    @Test
+    void parallelScanReturnsTheRowsInFileOrder() throws IOException {
+        var rows = read(enumerable(writeFile(true), new int[]{0, 1}, List.of(), pool));
+
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i, rows.get(i)[0]);
+            assertEquals("name-" + i, rows.get(i)[1]);
+        }
+    }
+
+    @Test
+    void sequentialScanReturnsTheSameRows() throws IOException {
+        Path file = writeFile(false);
+        var parallel = read(enumerable(file, new int[]{1, 0}, List.of(), pool));
+        var sequential = read(enumerable(file, new int[]{1, 0}, List.of(), null));
+
+        assertEquals(ROWS, sequential.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(List.of(parallel.get(i)), List.of(sequential.get(i)));
+            assertEquals(List.of("name-" + i, i), List.of(sequential.get(i)));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void filteredScanKeepsTheOrder() throws IOException {
+        var filter = new CsvFilter(0, SqlKind.GREATER_THAN_OR_EQUAL, (Comparable<Object>) (Comparable<?>) 4_000);
+        var rows = read(enumerable(writeFile(true), new int[]{0}, List.of(filter), pool));
+
+        assertEquals(1_000, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(4_000 + i, rows.get(i)[0]);
+        }
+    }
+
+    @Test
+    void rangesAreLineAlignedAndCoverTheFileAfterTheHeader() throws IOException {
+        Path file = writeFile(true);
+        byte[] bytes = Files.readAllBytes(file);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var ranges = MappedCsvEnumerable.splitIntoRanges(channel, RANGE_SIZE);
+
+            assertEquals("ID:int,NAME:string\n".length(), ranges.getFirst().start());
+            assertEquals(bytes.length, ranges.getLast().end());
+            for (int i = 0; i < ranges.size(); i++) {
+                var range = ranges.get(i);
+                assertEquals('\n', bytes[(int) range.end() - 1]);
+                if (i > 0) assertEquals(ranges.get(i - 1).end(), range.start());
+            }
+        }
+    }
+}
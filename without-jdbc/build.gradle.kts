@@ -11,6 +11,14 @@ dependencies {
     implementation(libs.slf4j.api)
     implementation(libs.slf4j.simple)
     implementation(libs.calcite.core)
+
+    testImplementation(platform(libs.junit.bom))
+    testImplementation(libs.junit.jupiter)
+    testRuntimeOnly(libs.junit.platform.launcher)
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 application {
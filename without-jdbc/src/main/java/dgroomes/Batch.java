@@ -0,0 +1,114 @@
+package dgroomes;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+
+import java.util.List;
+
+/**
+ * A batch of up to {@link #CAPACITY} rows, stored by column. This is what the operators of a {@link VectorizedRel}
+ * pass to each other instead of one row at a time.
+ * <p>
+ * Each column is a vector: a primitive array for a column that can't be null, and an {@code Object[]} for anything else
+ * (see {@link Kind}). The vectors always have {@link #CAPACITY} elements, and positions {@code 0} up to {@link #size}
+ * are filled in.
+ * <p>
+ * A filter doesn't move any values around. It only shrinks the selection vector: the positions of the rows that are
+ * still in the batch, in increasing order. The expressions are computed at every position anyway (see
+ * {@link VectorExpression}), in plain loops over arrays, which is the kind of loop the JIT can unroll and vectorize.
+ */
+final class Batch {
+
+    static final int CAPACITY = 1024;
+
+    /**
+     * How a column is stored in a vector. The numeric kinds are in order from the narrowest to the widest.
+     */
+    enum Kind {
+        INT,
+        LONG,
+        DOUBLE,
+        BOOLEAN,
+        OBJECT;
+
+        /**
+         * The primitive kinds are only for types that can't be null.
+         */
+        static Kind of(RelDataType type) {
+            if (type.isNullable()) return OBJECT;
+            return switch (type.getSqlTypeName()) {
+                case INTEGER -> INT;
+                case BIGINT -> LONG;
+                case DOUBLE -> DOUBLE;
+                case BOOLEAN -> BOOLEAN;
+                default -> OBJECT;
+            };
+        }
+
+        Object allocate() {
+            return switch (this) {
+                case INT -> new int[CAPACITY];
+                case LONG -> new long[CAPACITY];
+                case DOUBLE -> new double[CAPACITY];
+                case BOOLEAN -> new boolean[CAPACITY];
+                case OBJECT -> new Object[CAPACITY];
+            };
+        }
+    }
+
+    final Object[] vectors;
+    int size;
+    int[] selection;
+    int selected;
+
+    Batch(Object[] vectors, int[] selection) {
+        this.vectors = vectors;
+        this.selection = selection;
+    }
+
+    /**
+     * A batch with a vector for each field of the row type, and its own selection vector.
+     */
+    static Batch of(RelDataType rowType) {
+        List<RelDataTypeField> fields = rowType.getFieldList();
+        var vectors = new Object[fields.size()];
+        for (int i = 0; i < vectors.length; i++) vectors[i] = Kind.of(fields.get(i).getType()).allocate();
+        return new Batch(vectors, new int[CAPACITY]);
+    }
+
+    /**
+     * Select every position from 0 up to the size.
+     */
+    void selectAll() {
+        for (int i = 0; i < size; i++) selection[i] = i;
+        selected = size;
+    }
+
+    /**
+     * Box the value at a position of a vector.
+     */
+    static Object get(Object vector, int position) {
+        return switch (vector) {
+            case int[] values -> values[position];
+            case long[] values -> values[position];
+            case double[] values -> values[position];
+            case boolean[] values -> values[position];
+            case Object[] values -> values[position];
+            default -> throw new IllegalArgumentException("Not a vector: " + vector);
+        };
+    }
+
+    /**
+     * Unbox a value into a position of a vector.
+     */
+    static void set(Object vector, int position, Object value) {
+        switch (vector) {
+            case int[] values -> values[position] = ((Number) value).intValue();
+            case long[] values -> values[position] = ((Number) value).longValue();
+            case double[] values -> values[position] = ((Number) value).doubleValue();
+            case boolean[] values -> values[position] = (Boolean) value;
+            case Object[] values -> values[position] = value;
+            default -> throw new IllegalArgumentException("Not a vector: " + vector);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package dgroomes;
+
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An operator that produces {@link Batch}es of rows. The operators are pulled like iterators: each one asks its input
+ * for the next batch, works on the whole batch in tight loops over the vectors, and hands it on.
+ * <p>
+ * An operator reuses its output batch and vectors, so a batch is only good until the next call to {@link #next()}.
+ * Nothing is allocated per row, except for a new group in an aggregate.
+ */
+interface BatchOperator {
+
+    /**
+     * @return the next batch, which has at least one row selected, or null when there are no more
+     */
+    Batch next();
+
+    /**
+     * Make the operators for a relational expression: a scan of a {@link ColumnarTable}, with filters, projects and
+     * aggregates on top. The expressions in the filters and projects have to be ones that {@link VectorExpression}
+     * supports, and the aggregates have to be ones that {@link Aggregation} supports.
+     *
+     * @return the operators, or null if something in the expression isn't supported
+     */
+    static BatchOperator of(RelNode node) {
+        switch (node) {
+            case TableScan scan -> {
+                var table = scan.getTable().unwrap(ColumnarTable.class);
+                return table == null ? null : new Scan(table, scan.getRowType());
+            }
+            case Filter filter -> {
+                VectorExpression condition = VectorExpression.compile(filter.getCondition(), true);
+                if (condition == null || condition.kind() != Batch.Kind.BOOLEAN) return null;
+                BatchOperator input = of(filter.getInput());
+                return input == null ? null : new Selection(input, condition);
+            }
+            case Project project -> {
+                var expressions = new ArrayList<VectorExpression>();
+                for (RexNode rex : project.getProjects()) {
+                    VectorExpression expression = VectorExpression.compile(rex, false);
+                    if (expression == null) return null;
+                    expressions.add(expression);
+                }
+                BatchOperator input = of(project.getInput());
+                return input == null ? null : new Projection(input, expressions);
+            }
+            case Aggregate aggregate -> {
+                if (aggregate.getGroupType() != Aggregate.Group.SIMPLE) return null;
+                RelDataType inputType = aggregate.getInput().getRowType();
+                int[] groupFields = aggregate.getGroupSet().toArray();
+                var calls = new ArrayList<Aggregation.Call>();
+                for (int i = 0; i < aggregate.getAggCallList().size(); i++) {
+                    AggregateCall call = aggregate.getAggCallList().get(i);
+                    Aggregation.Call compiled = Aggregation.Call.of(call, inputType);
+                    if (compiled == null) return null;
+                    calls.add(compiled);
+                }
+                BatchOperator input = of(aggregate.getInput());
+                return input == null ? null : new Aggregation(input, inputType, groupFields, calls, aggregate.getRowType());
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read a columnar table a batch at a time. Each column is copied into its vector with one array copy (or decoded,
+     * for a string).
+     */
+    final class Scan implements BatchOperator {
+
+        private final ColumnarTable table;
+        private final Batch batch;
+        private int row;
+
+        Scan(ColumnarTable table, RelDataType rowType) {
+            this.table = table;
+            this.batch = Batch.of(rowType);
+        }
+
+        @Override
+        public Batch next() {
+            if (row >= table.rowCount()) return null;
+            int length = Math.min(Batch.CAPACITY, table.rowCount() - row);
+            for (int c = 0; c < batch.vectors.length; c++) table.read(c, row, length, batch.vectors[c]);
+            batch.size = length;
+            batch.selectAll();
+            row += length;
+            return batch;
+        }
+    }
+
+    /**
+     * A filter. It evaluates the condition over the batch, and then keeps the selected positions where it's true. The
+     * loop doesn't branch on the condition: it always writes the position, and only moves past it when it's kept.
+     */
+    final class Selection implements BatchOperator {
+
+        private final BatchOperator input;
+        private final VectorExpression condition;
+
+        Selection(BatchOperator input, VectorExpression condition) {
+            this.input = input;
+            this.condition = condition;
+        }
+
+        @Override
+        public Batch next() {
+            for (Batch batch = input.next(); batch != null; batch = input.next()) {
+                var keep = (boolean[]) condition.evaluate(batch);
+                int[] selection = batch.selection;
+                int kept = 0;
+                for (int i = 0; i < batch.selected; i++) {
+                    int position = selection[i];
+                    selection[kept] = position;
+                    kept += keep[position] ? 1 : 0;
+                }
+                batch.selected = kept;
+                if (kept > 0) return batch;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A project. A field that is just passed through keeps the input's vector, and the output has the input's
+     * selection, so only computed fields cost anything.
+     */
+    final class Projection implements BatchOperator {
+
+        private final BatchOperator input;
+        private final List<VectorExpression> expressions;
+        private final Batch batch;
+
+        Projection(BatchOperator input, List<VectorExpression> expressions) {
+            this.input = input;
+            this.expressions = expressions;
+            this.batch = new Batch(new Object[expressions.size()], null);
+        }
+
+        @Override
+        public Batch next() {
+            Batch in = input.next();
+            if (in == null) return null;
+            for (int i = 0; i < expressions.size(); i++) batch.vectors[i] = expressions.get(i).evaluate(in);
+            batch.size = in.size;
+            batch.selection = in.selection;
+            batch.selected = in.selected;
+            return batch;
+        }
+    }
+
+    /**
+     * A hash aggregate. It reads all of its input on the first call to {@link #next()}, and then hands out the groups a
+     * batch at a time.
+     * <p>
+     * For each input batch, it first turns the values of each group field into long codes, a vector at a time: an int,
+     * long or boolean is its own code, a double is its bits, and an object gets a code from a dictionary. Then it finds
+     * the group of each selected row in an open-addressing hash table over the codes, and then it adds each aggregate's
+     * argument vector into the accumulators of the groups.
+     */
+    final class Aggregation implements BatchOperator {
+
+        /**
+         * An aggregate function: COUNT, SUM, SUM0, MIN or MAX.
+         *
+         * @param field the field of the argument, or -1 for {@code COUNT(*)}
+         */
+        record Call(SqlKind function, int field, Batch.Kind kind, SqlTypeName resultType) {
+
+            /**
+             * @return the call, or null if it's not supported. A sum, minimum or maximum has to be over a field that
+             * can't be null, and its result has to be an INTEGER, BIGINT or DOUBLE.
+             */
+            static Call of(AggregateCall call, RelDataType inputType) {
+                if (call.isDistinct() || call.hasFilter() || call.getArgList().size() > 1) return null;
+                if (!call.getCollation().getFieldCollations().isEmpty()) return null;
+                int field = call.getArgList().isEmpty() ? -1 : call.getArgList().get(0);
+                Batch.Kind kind = field < 0 ? null : Batch.Kind.of(inputType.getFieldList().get(field).getType());
+                SqlTypeName resultType = call.getType().getSqlTypeName();
+                SqlKind function = call.getAggregation().getKind();
+                return switch (function) {
+                    case COUNT -> new Call(function, field, kind, resultType);
+                    case SUM, SUM0, MIN, MAX -> {
+                        boolean numeric = kind == Batch.Kind.INT || kind == Batch.Kind.LONG || kind == Batch.Kind.DOUBLE;
+                        boolean boxable = resultType == SqlTypeName.INTEGER || resultType == SqlTypeName.BIGINT
+                                || resultType == SqlTypeName.DOUBLE;
+                        yield numeric && boxable ? new Call(function, field, kind, resultType) : null;
+                    }
+                    default -> null;
+                };
+            }
+        }
+
+        private final BatchOperator input;
+        private final Batch.Kind[] groupKinds;
+        private final int[] groupFields;
+        private final List<Call> calls;
+        private final Batch output;
+
+        // The codes of the group fields of the current input batch, and the group of each of its rows
+        private final long[][] codes;
+        private final int[] groupOf = new int[Batch.CAPACITY];
+        private final List<Map<Object, Integer>> dictionaries = new ArrayList<>();
+
+        // The hash table, and the values of the group fields of each group (only these are allocated per group)
+        private int[] slots = new int[16];
+        private long[] groupKeys;
+        private final List<Object[]> groupValues = new ArrayList<>();
+
+        // The accumulators of each call, indexed by group
+        private long[] rowCounts = new long[8];
+        private final long[][] counts;
+        private final long[][] longs;
+        private final double[][] doubles;
+
+        private boolean aggregated;
+        private int emitted;
+
+        Aggregation(BatchOperator input, RelDataType inputType, int[] groupFields, List<Call> calls, RelDataType rowType) {
+            this.input = input;
+            this.groupFields = groupFields;
+            this.calls = calls;
+            this.output = Batch.of(rowType);
+            this.groupKinds = new Batch.Kind[groupFields.length];
+            for (int k = 0; k < groupFields.length; k++) {
+                groupKinds[k] = Batch.Kind.of(inputType.getFieldList().get(groupFields[k]).getType());
+                dictionaries.add(groupKinds[k] == Batch.Kind.OBJECT ? new HashMap<>() : null);
+            }
+            this.codes = new long[groupFields.length][Batch.CAPACITY];
+            this.groupKeys = new long[8 * Math.max(1, groupFields.length)];
+            this.counts = new long[calls.size()][8];
+            this.longs = new long[calls.size()][8];
+            this.doubles = new double[calls.size()][8];
+            Arrays.fill(slots, -1);
+        }
+
+        @Override
+        public Batch next() {
+            if (!aggregated) {
+                aggregate();
+                aggregated = true;
+            }
+            if (emitted >= groupValues.size()) return null;
+
+            int length = Math.min(Batch.CAPACITY, groupValues.size() - emitted);
+            int width = groupFields.length;
+            for (int i = 0; i < length; i++) {
+                int group = emitted + i;
+                Object[] values = groupValues.get(group);
+                for (int k = 0; k < width; k++) Batch.set(output.vectors[k], i, values[k]);
+                for (int c = 0; c < calls.size(); c++) Batch.set(output.vectors[width + c], i, result(c, group));
+            }
+            output.size = length;
+            output.selectAll();
+            emitted += length;
+            return output;
+        }
+
+        private void aggregate() {
+            if (groupFields.length == 0) {
+                // One group for all the rows, even when there are none
+                newGroup(new Object[0]);
+            }
+            for (Batch batch = input.next(); batch != null; batch = input.next()) {
+                encode(batch);
+                findGroups(batch);
+                accumulate(batch);
+            }
+        }
+
+        private void encode(Batch batch) {
+            int n = batch.size;
+            for (int k = 0; k < groupFields.length; k++) {
+                Object vector = batch.vectors[groupFields[k]];
+                long[] out = codes[k];
+                switch (groupKinds[k]) {
+                    case INT -> {
+                        int[] values = (int[]) vector;
+                        for (int p = 0; p < n; p++) out[p] = values[p];
+                    }
+                    case LONG -> System.arraycopy(vector, 0, out, 0, n);
+                    case DOUBLE -> {
+                        double[] values = (double[]) vector;
+                        // Plus and minus zero are the same group
+                        for (int p = 0; p < n; p++) out[p] = Double.doubleToLongBits(values[p] + 0.0);
+                    }
+                    case BOOLEAN -> {
+                        boolean[] values = (boolean[]) vector;
+                        for (int p = 0; p < n; p++) out[p] = values[p] ? 1 : 0;
+                    }
+                    case OBJECT -> {
+                        Object[] values = (Object[]) vector;
+                        Map<Object, Integer> dictionary = dictionaries.get(k);
+                        for (int i = 0; i < batch.selected; i++) {
+                            int p = batch.selection[i];
+                            Integer code = dictionary.get(values[p]);
+                            if (code == null) {
+                                code = dictionary.size();
+                                dictionary.put(values[p], code);
+                            }
+                            out[p] = code;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void findGroups(Batch batch) {
+            int width = groupFields.length;
+            if (width == 0) {
+                for (int i = 0; i < batch.selected; i++) groupOf[batch.selection[i]] = 0;
+                return;
+            }
+            for (int i = 0; i < batch.selected; i++) {
+                int p = batch.selection[i];
+                int mask = slots.length - 1;
+                int slot = hash(p) & mask;
+                int group;
+                while (true) {
+                    group = slots[slot];
+                    if (group == -1 || sameKey(group, p)) break;
+                    slot = (slot + 1) & mask;
+                }
+                if (group == -1) {
+                    group = groupValues.size();
+                    slots[slot] = group;
+                    if ((group + 1) * width > groupKeys.length) groupKeys = Arrays.copyOf(groupKeys, groupKeys.length * 2);
+                    var values = new Object[width];
+                    for (int k = 0; k < width; k++) {
+                        groupKeys[group * width + k] = codes[k][p];
+                        values[k] = Batch.get(batch.vectors[groupFields[k]], p);
+                    }
+                    newGroup(values);
+                    // Keep the slots at most half full
+                    if (groupValues.size() * 2 > slots.length) rehash();
+                }
+                groupOf[p] = group;
+            }
+        }
+
+        private int hash(int position) {
+            long hash = 1;
+            for (long[] code : codes) hash = 31 * hash + code[position];
+            return mix(hash);
+        }
+
+        private int hashOfGroup(int group) {
+            long hash = 1;
+            int width = groupFields.length;
+            for (int k = 0; k < width; k++) hash = 31 * hash + groupKeys[group * width + k];
+            return mix(hash);
+        }
+
+        /**
+         * Spread the bits, because the slot comes from the low bits and the codes are often small consecutive numbers.
+         */
+        private static int mix(long hash) {
+            hash *= 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        private boolean sameKey(int group, int position) {
+            int width = groupFields.length;
+            for (int k = 0; k < width; k++) {
+                if (groupKeys[group * width + k] != codes[k][position]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            Arrays.fill(slots, -1);
+            int mask = slots.length - 1;
+            for (int group = 0; group < groupValues.size(); group++) {
+                int slot = hashOfGroup(group) & mask;
+                while (slots[slot] != -1) slot = (slot + 1) & mask;
+                slots[slot] = group;
+            }
+        }
+
+        private void newGroup(Object[] values) {
+            int group = groupValues.size();
+            groupValues.add(values);
+            if (group >= rowCounts.length) {
+                int capacity = rowCounts.length * 2;
+                rowCounts = Arrays.copyOf(rowCounts, capacity);
+                for (int c = 0; c < calls.size(); c++) {
+                    counts[c] = Arrays.copyOf(counts[c], capacity);
+                    longs[c] = Arrays.copyOf(longs[c], capacity);
+                    doubles[c] = Arrays.copyOf(doubles[c], capacity);
+                }
+            }
+            for (int c = 0; c < calls.size(); c++) {
+                longs[c][group] = switch (calls.get(c).function()) {
+                    case MIN -> Long.MAX_VALUE;
+                    case MAX -> Long.MIN_VALUE;
+                    default -> 0;
+                };
+                doubles[c][group] = switch (calls.get(c).function()) {
+                    case MIN -> Double.POSITIVE_INFINITY;
+                    case MAX -> Double.NEGATIVE_INFINITY;
+                    default -> 0;
+                };
+            }
+        }
+
+        private void accumulate(Batch batch) {
+            int[] selection = batch.selection;
+            int selected = batch.selected;
+            for (int i = 0; i < selected; i++) rowCounts[groupOf[selection[i]]]++;
+
+            for (int c = 0; c < calls.size(); c++) {
+                Call call = calls.get(c);
+                if (call.function() == SqlKind.COUNT) {
+                    // A count of a field that can't be null is the row count
+                    if (call.kind() != Batch.Kind.OBJECT) continue;
+                    Object[] values = (Object[]) batch.vectors[call.field()];
+                    long[] count = counts[c];
+                    for (int i = 0; i < selected; i++) {
+                        int p = selection[i];
+                        if (values[p] != null) count[groupOf[p]]++;
+                    }
+                    continue;
+                }
+
+                Object vector = batch.vectors[call.field()];
+                if (call.kind() == Batch.Kind.DOUBLE) {
+                    double[] values = (double[]) vector;
+                    double[] accumulator = doubles[c];
+                    switch (call.function()) {
+                        case MIN -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.min(accumulator[groupOf[p]], values[p]); } }
+                        case MAX -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.max(accumulator[groupOf[p]], values[p]); } }
+                        default -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] += values[p]; } }
+                    }
+                } else {
+                    long[] accumulator = longs[c];
+                    if (vector instanceof int[] values) {
+                        switch (call.function()) {
+                            case MIN -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.min(accumulator[groupOf[p]], values[p]); } }
+                            case MAX -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.max(accumulator[groupOf[p]], values[p]); } }
+                            default -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] += values[p]; } }
+                        }
+                    } else {
+                        long[] values = (long[]) vector;
+                        switch (call.function()) {
+                            case MIN -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.min(accumulator[groupOf[p]], values[p]); } }
+                            case MAX -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] = Math.max(accumulator[groupOf[p]], values[p]); } }
+                            default -> { for (int i = 0; i < selected; i++) { int p = selection[i]; accumulator[groupOf[p]] += values[p]; } }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Box the result of a call for a group as its SQL type. The sum, minimum and maximum of no rows are null.
+         */
+        private Object result(int c, int group) {
+            Call call = calls.get(c);
+            long rows = rowCounts[group];
+            if (call.function() == SqlKind.COUNT) {
+                return call.kind() == Batch.Kind.OBJECT ? counts[c][group] : rows;
+            }
+            if (rows == 0 && call.function() != SqlKind.SUM0) return null;
+            boolean isDouble = call.kind() == Batch.Kind.DOUBLE;
+            return switch (call.resultType()) {
+                case INTEGER -> (int) (isDouble ? doubles[c][group] : longs[c][group]);
+                case BIGINT -> isDouble ? (long) doubles[c][group] : longs[c][group];
+                default -> isDouble ? doubles[c][group] : (double) longs[c][group];
+            };
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.interpreter.InterpretableRel;
+import org.apache.calcite.interpreter.Node;
+import org.apache.calcite.interpreter.Row;
+import org.apache.calcite.interpreter.Sink;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.AbstractRelNode;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An aggregate computed straight from the columns of a {@link ColumnarTable}. It's a leaf: it takes the place of an
+ * aggregate over a scan of the table. See {@link ColumnarAggregateRule} for when that happens.
+ * <p>
+ * It runs both ways that {@link DriverlessExecutor} runs a plan. For the {@link org.apache.calcite.interpreter.Interpreter}
+ * it's an {@link InterpretableRel} whose node sends the groups to its sink. For the compiled path it's an
+ * {@link EnumerableRel} whose generated code calls {@link ColumnarTable#aggregate}. The calling convention in its traits
+ * says which one it's meant for.
+ */
+public class ColumnarAggregate extends AbstractRelNode implements InterpretableRel, EnumerableRel {
+
+    private final RelOptTable table;
+    private final int[] groupColumns;
+    private final ColumnarTable.Aggregation[] aggregations;
+
+    /**
+     * @param table        a table that is a {@link ColumnarTable}
+     * @param rowType      the row type of the aggregate that this replaces
+     * @param groupColumns the columns of the table to group by
+     * @param aggregations the aggregate functions over the columns of the table
+     */
+    public ColumnarAggregate(RelOptCluster cluster, RelTraitSet traits, RelOptTable table, RelDataType rowType,
+                             int[] groupColumns, ColumnarTable.Aggregation[] aggregations) {
+        super(cluster, traits);
+        this.table = table;
+        this.rowType = rowType;
+        this.groupColumns = groupColumns;
+        this.aggregations = aggregations;
+    }
+
+    private ColumnarTable columnarTable() {
+        return requireNonNull(table.unwrap(ColumnarTable.class), "The table is not a columnar table");
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new ColumnarAggregate(getCluster(), traitSet, table, rowType, groupColumns, aggregations);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("table", table.getQualifiedName())
+                .item("groupColumns", Arrays.toString(groupColumns))
+                .item("aggregations", Arrays.toString(aggregations));
+    }
+
+    /**
+     * The product of the numbers of distinct values of the group columns, but no more than the number of rows.
+     */
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        var columnar = columnarTable();
+        double groups = 1;
+        for (int column : groupColumns) groups *= columnar.distinctValues(column);
+        return groupColumns.length == 0 ? 1 : Math.min(groups, columnar.rowCount());
+    }
+
+    /**
+     * Each row of the table is read once, without making a row object for it.
+     */
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        return planner.getCostFactory().makeCost(estimateRowCount(mq), columnarTable().rowCount(), 0);
+    }
+
+    @Override
+    public Node implement(InterpreterImplementor implementor) {
+        Sink sink = implementor.compiler.sink(this);
+        var columnar = columnarTable();
+        return () -> {
+            for (Object[] row : columnar.aggregate(groupColumns, aggregations)) {
+                sink.send(Row.of(row));
+            }
+            sink.end();
+        };
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        var builder = new BlockBuilder();
+        Expression tableExpression = implementor.stash(columnarTable(), ColumnarTable.class);
+        Expression groupColumnsExpression = implementor.stash(groupColumns, int[].class);
+        Expression aggregationsExpression = implementor.stash(aggregations, ColumnarTable.Aggregation[].class);
+        builder.add(Expressions.return_(null, Expressions.call(tableExpression, "aggregate",
+                groupColumnsExpression, aggregationsExpression)));
+
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY, false);
+        return implementor.result(physType, builder.toBlock());
+    }
+}
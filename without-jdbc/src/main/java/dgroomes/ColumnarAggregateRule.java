@@ -0,0 +1,126 @@
+package dgroomes;
+
+import org.apache.calcite.plan.Convention;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.tools.RelBuilderFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A planner rule that turns an aggregate over a scan of a {@link ColumnarTable} into a {@link ColumnarAggregate}.
+ * <p>
+ * There may be a project between the aggregate and the scan, as long as it only picks columns. The rule only matches
+ * when the table can do the whole aggregate itself: a plain group by of int, boolean or string columns, and counts,
+ * sums, minimums and maximums without DISTINCT or FILTER (see {@link ColumnarTable#groupable} and
+ * {@link ColumnarTable#aggregatable}).
+ */
+public class ColumnarAggregateRule extends RelRule<ColumnarAggregateRule.Config> {
+
+    protected ColumnarAggregateRule(Config config) {
+        super(config);
+    }
+
+    /**
+     * @param convention the calling convention of the aggregates to make: {@link Convention#NONE} for a plan that is
+     *                   interpreted, or the enumerable convention for a plan that is compiled
+     * @return the rule for an aggregate right over a scan, and the rule for an aggregate over a project over a scan
+     */
+    public static List<RelOptRule> of(Convention convention) {
+        return List.of(Config.of(convention, false).toRule(), Config.of(convention, true).toRule());
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalAggregate aggregate = call.rel(0);
+        TableScan scan = call.rel(config.project() ? 2 : 1);
+        var table = scan.getTable().unwrap(ColumnarTable.class);
+        if (table == null || aggregate.getGroupType() != Aggregate.Group.SIMPLE) return;
+
+        // The column of the table behind each field of the aggregate's input
+        var inputColumns = new ArrayList<Integer>();
+        if (config.project()) {
+            LogicalProject project = call.rel(1);
+            for (RexNode expression : project.getProjects()) {
+                if (!(expression instanceof RexInputRef ref)) return;
+                inputColumns.add(ref.getIndex());
+            }
+        } else {
+            for (int i = 0; i < scan.getRowType().getFieldCount(); i++) inputColumns.add(i);
+        }
+
+        int[] groupColumns = aggregate.getGroupSet().asList().stream().mapToInt(inputColumns::get).toArray();
+        for (int column : groupColumns) {
+            if (!table.groupable(column)) return;
+        }
+
+        var aggregations = new ColumnarTable.Aggregation[aggregate.getAggCallList().size()];
+        for (int i = 0; i < aggregations.length; i++) {
+            AggregateCall aggregateCall = aggregate.getAggCallList().get(i);
+            if (aggregateCall.isDistinct() || aggregateCall.hasFilter() || aggregateCall.getArgList().size() > 1) return;
+
+            ColumnarTable.Function function = switch (aggregateCall.getAggregation().getKind()) {
+                case COUNT -> ColumnarTable.Function.COUNT;
+                case SUM -> ColumnarTable.Function.SUM;
+                case SUM0 -> ColumnarTable.Function.SUM0;
+                case MIN -> ColumnarTable.Function.MIN;
+                case MAX -> ColumnarTable.Function.MAX;
+                default -> null;
+            };
+            if (function == null) return;
+            int column = aggregateCall.getArgList().isEmpty() ? -1 : inputColumns.get(aggregateCall.getArgList().get(0));
+            if (!table.aggregatable(function, column)) return;
+            aggregations[i] = new ColumnarTable.Aggregation(function, column);
+        }
+
+        call.transformTo(new ColumnarAggregate(aggregate.getCluster(), aggregate.getTraitSet().replace(config.convention()),
+                scan.getTable(), aggregate.getRowType(), groupColumns, aggregations));
+    }
+
+    /**
+     * @param convention the calling convention of the aggregates to make
+     * @param project    whether the rule matches an aggregate over a project over a scan, instead of right over a scan
+     */
+    public record Config(RelBuilderFactory relBuilderFactory, String description, OperandTransform operandSupplier,
+                         Convention convention, boolean project) implements RelRule.Config {
+
+        static Config of(Convention convention, boolean project) {
+            OperandTransform scan = b -> b.operand(TableScan.class).noInputs();
+            OperandTransform operands = project
+                    ? b -> b.operand(LogicalAggregate.class).oneInput(b2 -> b2.operand(LogicalProject.class).oneInput(scan))
+                    : b -> b.operand(LogicalAggregate.class).oneInput(scan);
+            String description = "ColumnarAggregateRule(%s%s)".formatted(convention.getName(), project ? ", project" : "");
+            return new Config(RelFactories.LOGICAL_BUILDER, description, operands, convention, project);
+        }
+
+        @Override
+        public ColumnarAggregateRule toRule() {
+            return new ColumnarAggregateRule(this);
+        }
+
+        @Override
+        public Config withRelBuilderFactory(RelBuilderFactory relBuilderFactory) {
+            return new Config(relBuilderFactory, description, operandSupplier, convention, project);
+        }
+
+        @Override
+        public Config withDescription(String description) {
+            return new Config(relBuilderFactory, description, operandSupplier, convention, project);
+        }
+
+        @Override
+        public Config withOperandSupplier(OperandTransform operandSupplier) {
+            return new Config(relBuilderFactory, description, operandSupplier, convention, project);
+        }
+    }
+}
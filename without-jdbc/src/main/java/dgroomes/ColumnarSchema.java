@@ -0,0 +1,46 @@
+package dgroomes;
+
+import org.apache.calcite.schema.Table;
+import org.apache.calcite.schema.impl.AbstractSchema;
+
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A schema over the arrays of a POJO, like {@link org.apache.calcite.adapter.java.ReflectiveSchema}, but the data is
+ * stored by column.
+ * <p>
+ * Each public array field of the object is a table with the name of the field, and each public field of the array's
+ * element class is a column of that table. The rows are transposed into primitive columns once, when the schema is made
+ * (see {@link ColumnarTable}). {@code ReflectiveSchema} instead reads the fields of the objects with reflection and
+ * boxes them every time the table is scanned. And its tables don't have statistics, so Calcite guesses 100 rows for each
+ * of them. These tables know their exact row counts.
+ */
+public class ColumnarSchema extends AbstractSchema {
+
+    private final Map<String, Table> tables;
+
+    public ColumnarSchema(Object target) {
+        var tables = new HashMap<String, Table>();
+        for (var field : target.getClass().getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || !field.getType().isArray()) continue;
+            Class<?> elementType = field.getType().getComponentType();
+            if (elementType.isPrimitive()) continue;
+
+            Object[] rows;
+            try {
+                rows = (Object[]) field.get(target);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Unexpected error while reading the field '%s'".formatted(field.getName()), e);
+            }
+            tables.put(field.getName(), ColumnarTable.of(rows, elementType));
+        }
+        this.tables = Map.copyOf(tables);
+    }
+
+    @Override
+    protected Map<String, Table> getTableMap() {
+        return tables;
+    }
+}
@@ -0,0 +1,437 @@
+package dgroomes;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.util.ImmutableBitSet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A table that stores an array of objects by column, in primitive arrays. See {@link ColumnarSchema}.
+ * <p>
+ * Each public field of the objects becomes a column:
+ * <ul>
+ *     <li>{@code int}, {@code long}, {@code double} and {@code boolean} fields are stored in primitive arrays</li>
+ *     <li>{@code String} fields are dictionary-encoded: an {@code int[]} of codes, and an array of the distinct
+ *     strings</li>
+ *     <li>any other field is stored in an {@code Object[]}</li>
+ * </ul>
+ * The row type is the same as what {@link org.apache.calcite.adapter.java.ReflectiveSchema} makes for the same class.
+ * <p>
+ * A scan still makes an {@code Object[]} per row, because that's what a row is to Calcite. But an aggregate over the
+ * table (see {@link ColumnarAggregate}) is computed straight from the arrays. It reads the group keys as ints (a string
+ * is grouped by its code) and adds the values into primitive accumulators, so it allocates nothing per row.
+ */
+public final class ColumnarTable extends AbstractTable implements ScannableTable {
+
+    /**
+     * The code of a null string.
+     */
+    private static final int NULL_CODE = -1;
+
+    private sealed interface Column permits IntColumn, LongColumn, DoubleColumn, BooleanColumn, StringColumn, ObjectColumn {
+        Object get(int row);
+    }
+
+    private record IntColumn(int[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+    }
+
+    private record LongColumn(long[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+    }
+
+    private record DoubleColumn(double[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+    }
+
+    private record BooleanColumn(boolean[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+    }
+
+    private record StringColumn(int[] codes, String[] dictionary) implements Column {
+        public Object get(int row) {
+            int code = codes[row];
+            return code == NULL_CODE ? null : dictionary[code];
+        }
+    }
+
+    private record ObjectColumn(Object[] values) implements Column {
+        public Object get(int row) {
+            return values[row];
+        }
+    }
+
+    public enum Function {
+        COUNT,
+        SUM,
+        SUM0,
+        MIN,
+        MAX
+    }
+
+    /**
+     * An aggregate function over a column.
+     *
+     * @param column the column, or -1 for {@code COUNT(*)}
+     */
+    public record Aggregation(Function function, int column) {}
+
+    private final Class<?> elementType;
+    private final int rowCount;
+    private final Column[] columns;
+    private final int[] distinctValues;
+
+    private ColumnarTable(Class<?> elementType, int rowCount, Column[] columns, int[] distinctValues) {
+        this.elementType = elementType;
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.distinctValues = distinctValues;
+    }
+
+    /**
+     * Transpose an array of objects into columns.
+     */
+    static ColumnarTable of(Object[] rows, Class<?> elementType) {
+        try {
+            return transpose(rows, elementType);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unexpected error while reading the fields of '%s'".formatted(elementType.getName()), e);
+        }
+    }
+
+    private static ColumnarTable transpose(Object[] rows, Class<?> elementType) throws IllegalAccessException {
+        var fields = Arrays.stream(elementType.getFields())
+                .filter(field -> !Modifier.isStatic(field.getModifiers()))
+                .toList();
+        int rowCount = rows.length;
+        var columns = new Column[fields.size()];
+        var distinctValues = new int[fields.size()];
+
+        for (int c = 0; c < fields.size(); c++) {
+            Field field = fields.get(c);
+            Class<?> type = field.getType();
+            var distinct = new HashSet<>();
+            Column column;
+            if (type == int.class) {
+                var values = new int[rowCount];
+                for (int r = 0; r < rowCount; r++) values[r] = field.getInt(rows[r]);
+                for (int value : values) distinct.add(value);
+                column = new IntColumn(values);
+            } else if (type == long.class) {
+                var values = new long[rowCount];
+                for (int r = 0; r < rowCount; r++) values[r] = field.getLong(rows[r]);
+                for (long value : values) distinct.add(value);
+                column = new LongColumn(values);
+            } else if (type == double.class) {
+                var values = new double[rowCount];
+                for (int r = 0; r < rowCount; r++) values[r] = field.getDouble(rows[r]);
+                for (double value : values) distinct.add(value);
+                column = new DoubleColumn(values);
+            } else if (type == boolean.class) {
+                var values = new boolean[rowCount];
+                for (int r = 0; r < rowCount; r++) values[r] = field.getBoolean(rows[r]);
+                for (boolean value : values) distinct.add(value);
+                column = new BooleanColumn(values);
+            } else if (type == String.class) {
+                var codes = new int[rowCount];
+                var codesByString = new HashMap<String, Integer>();
+                var dictionary = new ArrayList<String>();
+                for (int r = 0; r < rowCount; r++) {
+                    var value = (String) field.get(rows[r]);
+                    codes[r] = value == null ? NULL_CODE : codesByString.computeIfAbsent(value, key -> {
+                        dictionary.add(key);
+                        return dictionary.size() - 1;
+                    });
+                }
+                distinct.addAll(dictionary);
+                column = new StringColumn(codes, dictionary.toArray(new String[0]));
+            } else {
+                var values = new Object[rowCount];
+                for (int r = 0; r < rowCount; r++) values[r] = field.get(rows[r]);
+                distinct.addAll(Arrays.asList(values));
+                column = new ObjectColumn(values);
+            }
+            columns[c] = column;
+            distinctValues[c] = distinct.size();
+        }
+        return new ColumnarTable(elementType, rowCount, columns, distinctValues);
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the number of distinct values in the column (a null counts as a value)
+     */
+    public int distinctValues(int column) {
+        return distinctValues[column];
+    }
+
+    /**
+     * @return whether the aggregate can group by the column: an int, boolean or string column
+     */
+    public boolean groupable(int column) {
+        return columns[column] instanceof IntColumn || columns[column] instanceof BooleanColumn
+                || columns[column] instanceof StringColumn;
+    }
+
+    /**
+     * @return whether the aggregate can compute the function over the column. Sums, minimums and maximums work on int
+     * and long columns. A count works on any column that can't be null (then it's the same as {@code COUNT(*)}).
+     */
+    public boolean aggregatable(Function function, int column) {
+        if (column < 0) return function == Function.COUNT;
+        Column col = columns[column];
+        if (function == Function.COUNT) {
+            return col instanceof IntColumn || col instanceof LongColumn || col instanceof DoubleColumn
+                    || col instanceof BooleanColumn;
+        }
+        return col instanceof IntColumn || col instanceof LongColumn;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return ((JavaTypeFactory) typeFactory).createType(elementType);
+    }
+
+    /**
+     * The exact row count, and the columns that are keys (every value is distinct and not null).
+     */
+    @Override
+    public Statistic getStatistic() {
+        var keys = new ArrayList<ImmutableBitSet>();
+        for (int c = 0; c < columns.length; c++) {
+            boolean nullable = columns[c] instanceof StringColumn || columns[c] instanceof ObjectColumn;
+            if (!nullable && distinctValues[c] == rowCount) keys.add(ImmutableBitSet.of(c));
+        }
+        return Statistics.of(rowCount, keys);
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root) {
+        return Linq4j.asEnumerable(() -> new Iterator<>() {
+            int row = 0;
+
+            @Override
+            public boolean hasNext() {
+                return row < rowCount;
+            }
+
+            @Override
+            public Object[] next() {
+                var values = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) values[c] = columns[c].get(row);
+                row++;
+                return values;
+            }
+        });
+    }
+
+    /**
+     * Copy some rows of a column into a vector of a {@link Batch}. An int, long, double or boolean column is copied into
+     * an array of the same primitive type, a string column is decoded into an {@code Object[]}, and any other column is
+     * copied into an {@code Object[]}. That's the {@link Batch.Kind} of the column's type in {@link #getRowType}.
+     */
+    void read(int column, int from, int length, Object vector) {
+        switch (columns[column]) {
+            case IntColumn col -> System.arraycopy(col.values(), from, vector, 0, length);
+            case LongColumn col -> System.arraycopy(col.values(), from, vector, 0, length);
+            case DoubleColumn col -> System.arraycopy(col.values(), from, vector, 0, length);
+            case BooleanColumn col -> System.arraycopy(col.values(), from, vector, 0, length);
+            case ObjectColumn col -> System.arraycopy(col.values(), from, vector, 0, length);
+            case StringColumn col -> {
+                var values = (Object[]) vector;
+                for (int i = 0; i < length; i++) {
+                    int code = col.codes()[from + i];
+                    values[i] = code == NULL_CODE ? null : col.dictionary()[code];
+                }
+            }
+        }
+    }
+
+    /**
+     * Group the rows by some columns and aggregate each group. This is called from the code that
+     * {@link ColumnarAggregate} generates, and from its interpreter node.
+     * <p>
+     * The groups are found with an open-addressing hash table over the int keys of the group columns, stored in flat int
+     * arrays. Looking up the group of a row reads its keys straight from the columns, so nothing is allocated per row.
+     *
+     * @param groupColumns the columns to group by (see {@link #groupable}). With none, there is one group, even when the
+     *                     table is empty.
+     * @param aggregations the aggregate functions (see {@link #aggregatable})
+     * @return a row per group: the group columns, then the aggregates. The groups are in the order they were first
+     * seen.
+     */
+    public Enumerable<Object[]> aggregate(int[] groupColumns, Aggregation[] aggregations) {
+        int width = groupColumns.length;
+        var keys = new int[width];
+
+        int capacity = 16;
+        var slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        var groupKeys = new int[capacity / 2 * Math.max(1, width)];
+        var counts = new long[capacity / 2];
+        var accumulators = new long[aggregations.length][capacity / 2];
+        int groups = 0;
+        if (width == 0) {
+            // One group for the whole table
+            slots[0] = 0;
+            groups = 1;
+            initialize(accumulators, aggregations, 0);
+        }
+
+        for (int row = 0; row < rowCount; row++) {
+            for (int k = 0; k < width; k++) keys[k] = key(groupColumns[k], row);
+
+            int mask = capacity - 1;
+            int slot = width == 0 ? 0 : hash(keys, 0, width) & mask;
+            int group;
+            while (true) {
+                group = slots[slot];
+                if (group == -1 || Arrays.equals(groupKeys, group * width, group * width + width, keys, 0, width)) break;
+                slot = (slot + 1) & mask;
+            }
+
+            if (group == -1) {
+                group = groups++;
+                slots[slot] = group;
+                if (groups > counts.length) {
+                    int groupCapacity = counts.length * 2;
+                    groupKeys = Arrays.copyOf(groupKeys, groupCapacity * Math.max(1, width));
+                    counts = Arrays.copyOf(counts, groupCapacity);
+                    for (int a = 0; a < aggregations.length; a++) {
+                        accumulators[a] = Arrays.copyOf(accumulators[a], groupCapacity);
+                    }
+                }
+                System.arraycopy(keys, 0, groupKeys, group * width, width);
+                initialize(accumulators, aggregations, group);
+
+                // Keep the slots at most half full
+                if (groups * 2 > capacity) {
+                    capacity *= 2;
+                    slots = rehash(groupKeys, groups, width, capacity);
+                }
+            }
+
+            counts[group]++;
+            for (int a = 0; a < aggregations.length; a++) {
+                var aggregation = aggregations[a];
+                if (aggregation.function() == Function.COUNT) continue;
+                long value = value(aggregation.column(), row);
+                long[] accumulator = accumulators[a];
+                switch (aggregation.function()) {
+                    case SUM, SUM0 -> accumulator[group] += value;
+                    case MIN -> accumulator[group] = Math.min(accumulator[group], value);
+                    case MAX -> accumulator[group] = Math.max(accumulator[group], value);
+                    default -> throw new IllegalStateException();
+                }
+            }
+        }
+
+        var rows = new ArrayList<Object[]>(groups);
+        for (int group = 0; group < groups; group++) {
+            var row = new Object[width + aggregations.length];
+            for (int k = 0; k < width; k++) row[k] = groupValue(groupColumns[k], groupKeys[group * width + k]);
+            for (int a = 0; a < aggregations.length; a++) {
+                row[width + a] = result(aggregations[a], accumulators[a][group], counts[group]);
+            }
+            rows.add(row);
+        }
+        return Linq4j.asEnumerable(rows);
+    }
+
+    private static void initialize(long[][] accumulators, Aggregation[] aggregations, int group) {
+        for (int a = 0; a < aggregations.length; a++) {
+            accumulators[a][group] = switch (aggregations[a].function()) {
+                case MIN -> Long.MAX_VALUE;
+                case MAX -> Long.MIN_VALUE;
+                default -> 0;
+            };
+        }
+    }
+
+    private static int hash(int[] keys, int from, int width) {
+        int hash = 1;
+        for (int k = from; k < from + width; k++) hash = 31 * hash + keys[k];
+        // Spread the bits, because the slot comes from the low bits and the keys are often small consecutive ints
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int[] rehash(int[] groupKeys, int groups, int width, int capacity) {
+        var slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        int mask = capacity - 1;
+        for (int group = 0; group < groups; group++) {
+            int slot = hash(groupKeys, group * width, width) & mask;
+            while (slots[slot] != -1) slot = (slot + 1) & mask;
+            slots[slot] = group;
+        }
+        return slots;
+    }
+
+    /**
+     * The group key of a row as an int: the value of an int column, the code of a string, or 0 or 1 for a boolean.
+     */
+    private int key(int column, int row) {
+        return switch (columns[column]) {
+            case IntColumn col -> col.values()[row];
+            case StringColumn col -> col.codes()[row];
+            case BooleanColumn col -> col.values()[row] ? 1 : 0;
+            default -> throw new IllegalArgumentException("Can't group by column %d".formatted(column));
+        };
+    }
+
+    private Object groupValue(int column, int key) {
+        return switch (columns[column]) {
+            case IntColumn ignored -> key;
+            case StringColumn col -> key == NULL_CODE ? null : col.dictionary()[key];
+            case BooleanColumn ignored -> key == 1;
+            default -> throw new IllegalArgumentException("Can't group by column %d".formatted(column));
+        };
+    }
+
+    private long value(int column, int row) {
+        return switch (columns[column]) {
+            case IntColumn col -> col.values()[row];
+            case LongColumn col -> col.values()[row];
+            default -> throw new IllegalArgumentException("Can't aggregate column %d".formatted(column));
+        };
+    }
+
+    /**
+     * Box the result as the type that Calcite expects: a count is a BIGINT, and the sum, minimum and maximum of an INTEGER
+     * column are an INTEGER. The sum, minimum and maximum of no rows are null.
+     */
+    private Object result(Aggregation aggregation, long accumulator, long count) {
+        if (aggregation.function() == Function.COUNT) return count;
+        if (count == 0 && aggregation.function() != Function.SUM0) return null;
+        if (count == 0) accumulator = 0;
+        return columns[aggregation.column()] instanceof IntColumn ? (Object) (int) accumulator : (Object) accumulator;
+    }
+}
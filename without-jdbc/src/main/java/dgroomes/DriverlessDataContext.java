@@ -6,6 +6,8 @@ import org.apache.calcite.linq4j.QueryProvider;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.schema.SchemaPlus;
 
+import java.util.Map;
+
 /**
  * A {@link DataContext} that is not backed by a JDBC driver.
  * <p>
@@ -15,14 +17,24 @@ import org.apache.calcite.schema.SchemaPlus;
  * <p>
  * This is adapted from a <a href="https://github.com/apache/calcite/blob/3c5345c988e43622e7dd1e8197972c7664514da1/core/src/test/java/org/apache/calcite/test/InterpreterTest.java#L82">Calcite test suite</a>.
  * I'm so glad I found this otherwise I was about to give up (I had kind of given up before finding this).
+ * <p>
+ * Compiled code (see {@link DriverlessExecutor}) also reads values out of the data context by name. When a plan is
+ * compiled, objects that can't be written as Java literals are "stashed" in a map of parameters, and the generated code
+ * looks them up with {@link #get}. The JDBC driver does that for us. Here, the parameters are passed in.
  */
 public class DriverlessDataContext implements DataContext {
     private final SchemaPlus rootSchema;
     private final JavaTypeFactory typeFactory;
+    private final Map<String, Object> parameters;
 
     DriverlessDataContext(SchemaPlus rootSchema, RelNode rel) {
+        this(rootSchema, rel, Map.of());
+    }
+
+    DriverlessDataContext(SchemaPlus rootSchema, RelNode rel, Map<String, Object> parameters) {
         this.rootSchema = rootSchema;
         this.typeFactory = (JavaTypeFactory) rel.getCluster().getTypeFactory();
+        this.parameters = parameters;
     }
 
     @Override
@@ -42,6 +54,6 @@ public class DriverlessDataContext implements DataContext {
 
     @Override
     public Object get(String name) {
-        return null;
+        return parameters.get(name);
     }
 }
@@ -0,0 +1,244 @@
+package dgroomes;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableInterpretable;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.interpreter.Interpreter;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelVisitor;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.runtime.Bindable;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.tools.Program;
+import org.apache.calcite.tools.Programs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Execute relational expressions without JDBC, either with the {@link Interpreter} or as compiled code.
+ * <p>
+ * The Interpreter walks the plan node by node and passes rows between the nodes. It's ready to go right away, but every
+ * row pays for that. The compiled path is what Calcite's JDBC driver does under the covers, minus the driver:
+ * <ol>
+ *     <li>Optimize the plan into the enumerable calling convention (operators that know how to generate Java code)</li>
+ *     <li>Generate the code and compile it with Janino into a {@link Bindable}</li>
+ *     <li>Bind it to a {@link DriverlessDataContext} and enumerate the rows</li>
+ * </ol>
+ * The optimizing and compiling take tens to hundreds of milliseconds, which is much longer than it takes to interpret a
+ * query over a few rows. So there are four modes:
+ * <ul>
+ *     <li>{@link Mode#INTERPRETED}: always interpret</li>
+ *     <li>{@link Mode#VECTORIZED}: always interpret, but run the scans, filters, projects and aggregates over columnar
+ *     tables a batch of rows at a time (see {@link VectorizedRel})</li>
+ *     <li>{@link Mode#COMPILED}: always compile (the compiled plans are cached)</li>
+ *     <li>{@link Mode#ADAPTIVE}: interpret a query the first time it's executed, unless its table scans read at least
+ *     the threshold number of rows. Compile it when it's executed again, because then it's likely to be executed
+ *     again and again.</li>
+ * </ul>
+ * A query is identified by its plan printed without the IDs of the nodes, like in the class-relationships plan cache.
+ * The cache holds at most a fixed number of queries and evicts the least recently used one.
+ */
+public class DriverlessExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(DriverlessExecutor.class);
+
+    public enum Mode {
+        INTERPRETED,
+        VECTORIZED,
+        COMPILED,
+        ADAPTIVE
+    }
+
+    /**
+     * @param interpreted  executions that were interpreted a row at a time
+     * @param vectorized   executions that were interpreted with the vectorized parts of the plan
+     * @param compiled     executions that ran compiled code
+     * @param compilations plans that were compiled
+     */
+    public record Stats(long interpreted, long vectorized, long compiled, long compilations) {}
+
+    /**
+     * The parameters are filled in while the plan is compiled, and the compiled code needs the same ones every time it
+     * runs.
+     */
+    private record Compiled(Bindable<?> bindable, Map<String, Object> parameters) {}
+
+    private static final class Entry {
+        /** Guarded by {@link #entries}. */
+        int executions;
+        /** Guarded by the entry. */
+        Compiled compiled;
+    }
+
+    private final SchemaPlus rootSchema;
+    private final Mode mode;
+    private final double compileThreshold;
+    private final UnaryOperator<RelNode> beforeInterpreting;
+    private final List<? extends RelOptRule> compileRules;
+
+    /**
+     * Guarded by itself. The map is in access order, which makes its iteration order least-recently-used first.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long interpreted;
+    private long vectorized;
+    private long compiled;
+    private long compilations;
+
+    /**
+     * @param rootSchema         the root schema. The compiled code finds the tables from the root.
+     * @param compileThreshold   in adaptive mode, the fewest rows read by the table scans of a query for it to be
+     *                           compiled the first time
+     * @param capacity           the maximum number of queries to remember
+     * @param beforeInterpreting a rewrite of the plan to apply before it is interpreted (it's not applied to the plans
+     *                           that are compiled)
+     * @param compileRules       more rules for the optimizer to use, on top of the standard ones, when it optimizes a
+     *                           plan to compile it
+     */
+    public DriverlessExecutor(SchemaPlus rootSchema, Mode mode, double compileThreshold, int capacity,
+                              UnaryOperator<RelNode> beforeInterpreting, List<? extends RelOptRule> compileRules) {
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1 but was %d".formatted(capacity));
+        this.rootSchema = rootSchema;
+        this.mode = mode;
+        this.compileThreshold = compileThreshold;
+        this.beforeInterpreting = beforeInterpreting;
+        this.compileRules = List.copyOf(compileRules);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Execute a relational expression (of logical operators, like the ones from a {@link org.apache.calcite.tools.RelBuilder}
+     * or converted from SQL).
+     *
+     * @return the number of rows
+     */
+    public int execute(RelNode node, Consumer<Object[]> rowHandler) {
+        String key = RelOptUtil.toString(node, SqlExplainLevel.DIGEST_ATTRIBUTES);
+        Entry entry;
+        int executions;
+        synchronized (entries) {
+            entry = entries.computeIfAbsent(key, k -> new Entry());
+            executions = ++entry.executions;
+        }
+
+        boolean compile = switch (mode) {
+            case INTERPRETED, VECTORIZED -> false;
+            case COMPILED -> true;
+            case ADAPTIVE -> executions > 1 || scannedRows(node) >= compileThreshold;
+        };
+
+        if (!compile) {
+            synchronized (this) {
+                if (mode == Mode.VECTORIZED) vectorized++;
+                else interpreted++;
+            }
+            return interpret(node, rowHandler);
+        }
+
+        // Compile under the entry's lock, so that two threads that execute the same query for the first time at the
+        // same time compile it once. The other one waits for the compiled plan.
+        Compiled compiledPlan;
+        synchronized (entry) {
+            if (entry.compiled == null) entry.compiled = compile(node);
+            compiledPlan = entry.compiled;
+        }
+        synchronized (this) {
+            compiled++;
+        }
+        return run(compiledPlan, node, rowHandler);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(interpreted, vectorized, compiled, compilations);
+    }
+
+    private int interpret(RelNode node, Consumer<Object[]> rowHandler) {
+        RelNode rewritten = beforeInterpreting.apply(node);
+        if (mode == Mode.VECTORIZED) {
+            rewritten = VectorizedRel.vectorize(rewritten);
+            log.debug("Vectorized plan:\n{}", RelOptUtil.toString(rewritten));
+        }
+        var dataContext = new DriverlessDataContext(rootSchema, rewritten);
+        int[] rowCount = {0};
+        try (Interpreter interpreter = new Interpreter(dataContext, rewritten)) {
+            interpreter.forEach(row -> {
+                rowCount[0]++;
+                rowHandler.accept(row);
+            });
+        }
+        return rowCount[0];
+    }
+
+    private Compiled compile(RelNode node) {
+        var start = Instant.now();
+        var planner = node.getCluster().getPlanner();
+        // The standard rules plus the extra rules. Then, like the JDBC driver does, turn the projects and filters into
+        // calcs, because only a calc knows how to generate their code.
+        var rules = new ArrayList<RelOptRule>(Programs.RULE_SET);
+        rules.addAll(compileRules);
+        Program program = Programs.sequence(Programs.ofRules(rules), Programs.CALC_PROGRAM);
+        // Running the program clears the planner and sets its rules and its root, and the plans of different queries
+        // (or the same query executed on two threads) may share a cluster and so its planner. So only one of them may
+        // use it at a time.
+        EnumerableRel enumerable;
+        synchronized (planner) {
+            enumerable = (EnumerableRel) program.run(planner, node,
+                    node.getTraitSet().replace(EnumerableConvention.INSTANCE), List.of(), List.of());
+        }
+        log.debug("Enumerable plan:\n{}", RelOptUtil.toString(enumerable));
+
+        var parameters = new HashMap<String, Object>();
+        Bindable<?> bindable = EnumerableInterpretable.toBindable(parameters, null, enumerable, EnumerableRel.Prefer.ARRAY);
+        synchronized (this) {
+            compilations++;
+        }
+        log.debug("Compiled the plan in {}", Duration.between(start, Instant.now()));
+        return new Compiled(bindable, Map.copyOf(parameters));
+    }
+
+    private int run(Compiled compiledPlan, RelNode node, Consumer<Object[]> rowHandler) {
+        var dataContext = new DriverlessDataContext(rootSchema, node, compiledPlan.parameters());
+        boolean singleColumn = node.getRowType().getFieldCount() == 1;
+        int rowCount = 0;
+        for (Object row : compiledPlan.bindable().bind(dataContext)) {
+            // A row of one column may come as the value itself instead of an array of one
+            rowHandler.accept(singleColumn && !(row instanceof Object[]) ? new Object[]{row} : (Object[]) row);
+            rowCount++;
+        }
+        return rowCount;
+    }
+
+    /**
+     * @return the total of the estimated row counts of the tables that the expression scans
+     */
+    private static double scannedRows(RelNode node) {
+        double[] rows = {0};
+        new RelVisitor() {
+            @Override
+            public void visit(RelNode node, int ordinal, RelNode parent) {
+                if (node instanceof TableScan scan) rows[0] += scan.getTable().getRowCount();
+                super.visit(node, ordinal, parent);
+            }
+        }.go(node);
+        return rows[0];
+    }
+}
@@ -0,0 +1,88 @@
+package dgroomes;
+
+import org.apache.calcite.interpreter.InterpretableRel;
+import org.apache.calcite.interpreter.Node;
+import org.apache.calcite.interpreter.Row;
+import org.apache.calcite.interpreter.Sink;
+import org.apache.calcite.interpreter.Source;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.BiRel;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An inner equi-join that partitions both inputs and joins the partitions on many threads. See
+ * {@link PartitionedHashJoin} for the algorithm and {@link PartitionedHashJoinRule} for when this replaces a join.
+ * <p>
+ * The {@link org.apache.calcite.interpreter.Interpreter} knows how to run a relational expression that implements
+ * {@link InterpretableRel}: it asks the expression for a {@link Node}, and hands the node a source of rows for each
+ * input and a sink for its output. This node drains both sources, joins the rows and sends them to the sink.
+ */
+public class InterpretablePartitionedHashJoin extends BiRel implements InterpretableRel {
+
+    private final int[] leftKeys;
+    private final int[] rightKeys;
+    private final int threads;
+
+    /**
+     * @param rowType   the row type of the join
+     * @param leftKeys  the join columns of the left input
+     * @param rightKeys the join columns of the right input, in the same order
+     * @param threads   the number of threads to join with
+     */
+    public InterpretablePartitionedHashJoin(RelOptCluster cluster, RelTraitSet traits, RelNode left, RelNode right,
+                                            RelDataType rowType, int[] leftKeys, int[] rightKeys, int threads) {
+        super(cluster, traits, left, right);
+        this.rowType = rowType;
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+        this.threads = threads;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new InterpretablePartitionedHashJoin(getCluster(), traitSet, inputs.get(0), inputs.get(1), rowType,
+                leftKeys, rightKeys, threads);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("leftKeys", Arrays.toString(leftKeys))
+                .item("rightKeys", Arrays.toString(rightKeys))
+                .item("threads", threads);
+    }
+
+    @Override
+    public Node implement(InterpreterImplementor implementor) {
+        Source left = implementor.compiler.source(this, 0);
+        Source right = implementor.compiler.source(this, 1);
+        Sink sink = implementor.compiler.sink(this);
+        var join = new PartitionedHashJoin(leftKeys, rightKeys, threads);
+        return () -> {
+            for (Object[] row : join.join(drain(left), drain(right))) {
+                sink.send(Row.of(row));
+            }
+            sink.end();
+        };
+    }
+
+    private static Object[][] drain(Source source) {
+        var rows = new ArrayList<Object[]>();
+        for (Row row = source.receive(); row != null; row = source.receive()) {
+            rows.add(row.copyValues());
+        }
+        return rows.toArray(Object[][]::new);
+    }
+}
@@ -0,0 +1,176 @@
+package dgroomes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * An inner equi-join of two arrays of rows that uses many threads. This is what the Interpreter runs for an
+ * {@link InterpretablePartitionedHashJoin}.
+ * <p>
+ * An ordinary hash join builds one hash table over one input and probes it with the other, on one thread. This one
+ * splits the work so that the threads don't share anything:
+ * <ol>
+ *     <li>Radix-partition both inputs by the hash of their join keys. Each thread counts the rows per partition in its
+ *     own chunk of the input, the counts are added up into the position of each (chunk, partition) in one output array,
+ *     and then each thread copies its rows to their positions. Nothing is locked, and nothing is allocated per row.</li>
+ *     <li>Join each pair of partitions on its own: build a hash table over the smaller side's partition and probe it with
+ *     the other side's partition. Matching rows are always in the same pair of partitions.</li>
+ * </ol>
+ * The rows come out grouped by partition, not in the order of either input.
+ * <p>
+ * A row with a null key is dropped, because null is not equal to anything.
+ */
+public final class PartitionedHashJoin {
+
+    private static final int MIN_ROWS_PER_CHUNK = 4096;
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    private final int[] leftKeys;
+    private final int[] rightKeys;
+    private final int threads;
+    private final int partitionBits;
+
+    public PartitionedHashJoin(int[] leftKeys, int[] rightKeys, int threads) {
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+        this.threads = threads;
+        // A few partitions per thread, so that a big partition doesn't leave the other threads idle
+        this.partitionBits = Math.min(10, 32 - Integer.numberOfLeadingZeros(Math.max(1, threads * 8 - 1)));
+    }
+
+    /**
+     * @return the joined rows: the columns of the left row followed by the columns of the right row
+     */
+    public List<Object[]> join(Object[][] leftRows, Object[][] rightRows) {
+        // The pools are shared by all the joins with the same number of threads. Their threads are daemons, and they
+        // go away when they've been idle for a while.
+        ForkJoinPool pool = pools.computeIfAbsent(threads, ForkJoinPool::new);
+        var left = pool.submit(() -> partition(leftRows, leftKeys)).join();
+        var right = pool.submit(() -> partition(rightRows, rightKeys)).join();
+        boolean buildLeft = left.rows().length <= right.rows().length;
+
+        List<List<Object[]>> outputs = pool.submit(() -> IntStream.range(0, 1 << partitionBits).parallel()
+                .mapToObj(partition -> joinPartition(left, right, partition, buildLeft))
+                .toList()).join();
+
+        var rows = new ArrayList<Object[]>(outputs.stream().mapToInt(List::size).sum());
+        outputs.forEach(rows::addAll);
+        return rows;
+    }
+
+    /**
+     * The rows grouped by partition. Partition {@code p} is {@code rows[starts[p]]} up to {@code rows[starts[p + 1]]}.
+     */
+    private record Partitioned(Object[][] rows, int[] starts) {}
+
+    private Partitioned partition(Object[][] rows, int[] keys) {
+        int partitionCount = 1 << partitionBits;
+        int chunks = Math.max(1, Math.min(threads, rows.length / MIN_ROWS_PER_CHUNK));
+        var partitionOf = new int[rows.length];
+        var counts = new int[chunks][partitionCount];
+
+        // Count the rows of each partition in each chunk. Remember the partition of each row for the second pass.
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            for (int i = chunkStart(chunk, chunks, rows.length); i < chunkStart(chunk + 1, chunks, rows.length); i++) {
+                int partition = partitionOf(rows[i], keys);
+                partitionOf[i] = partition;
+                if (partition >= 0) counts[chunk][partition]++;
+            }
+        });
+
+        // Where each chunk writes the rows of each partition: after all the rows of the earlier partitions, and after
+        // this partition's rows from the earlier chunks
+        var starts = new int[partitionCount + 1];
+        var positions = new int[chunks][partitionCount];
+        int position = 0;
+        for (int partition = 0; partition < partitionCount; partition++) {
+            starts[partition] = position;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                positions[chunk][partition] = position;
+                position += counts[chunk][partition];
+            }
+        }
+        starts[partitionCount] = position;
+
+        var partitioned = new Object[position][];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            for (int i = chunkStart(chunk, chunks, rows.length); i < chunkStart(chunk + 1, chunks, rows.length); i++) {
+                int partition = partitionOf[i];
+                if (partition >= 0) partitioned[positions[chunk][partition]++] = rows[i];
+            }
+        });
+        return new Partitioned(partitioned, starts);
+    }
+
+    private static int chunkStart(int chunk, int chunks, int rows) {
+        return (int) ((long) chunk * rows / chunks);
+    }
+
+    /**
+     * @return the partition of the row, or -1 if a key is null
+     */
+    private int partitionOf(Object[] row, int[] keys) {
+        int hash = 1;
+        for (int key : keys) {
+            Object value = row[key];
+            if (value == null) return -1;
+            hash = 31 * hash + value.hashCode();
+        }
+        if (partitionBits == 0) return 0;
+        // Mix the bits (the finalizer of MurmurHash3), because the partition comes from the high bits and the hash codes
+        // of small integers only use the low bits
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash >>> (32 - partitionBits);
+    }
+
+    private List<Object[]> joinPartition(Partitioned left, Partitioned right, int partition, boolean buildLeft) {
+        Partitioned build = buildLeft ? left : right;
+        Partitioned probe = buildLeft ? right : left;
+        int[] buildKeys = buildLeft ? leftKeys : rightKeys;
+        int[] probeKeys = buildLeft ? rightKeys : leftKeys;
+
+        int buildStart = build.starts()[partition];
+        int buildEnd = build.starts()[partition + 1];
+        int probeStart = probe.starts()[partition];
+        int probeEnd = probe.starts()[partition + 1];
+        if (buildStart == buildEnd || probeStart == probeEnd) return List.of();
+
+        var table = new HashMap<Object, List<Object[]>>((buildEnd - buildStart) * 4 / 3 + 1);
+        for (int i = buildStart; i < buildEnd; i++) {
+            Object[] row = build.rows()[i];
+            table.computeIfAbsent(key(row, buildKeys), key -> new ArrayList<>(1)).add(row);
+        }
+
+        var output = new ArrayList<Object[]>();
+        for (int i = probeStart; i < probeEnd; i++) {
+            Object[] probeRow = probe.rows()[i];
+            List<Object[]> matches = table.get(key(probeRow, probeKeys));
+            if (matches == null) continue;
+            for (Object[] buildRow : matches) {
+                Object[] leftRow = buildLeft ? buildRow : probeRow;
+                Object[] rightRow = buildLeft ? probeRow : buildRow;
+                var row = Arrays.copyOf(leftRow, leftRow.length + rightRow.length);
+                System.arraycopy(rightRow, 0, row, leftRow.length, rightRow.length);
+                output.add(row);
+            }
+        }
+        return output;
+    }
+
+    private static Object key(Object[] row, int[] keys) {
+        if (keys.length == 1) return row[keys[0]];
+        var key = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) key[i] = row[keys[i]];
+        return Arrays.asList(key);
+    }
+}
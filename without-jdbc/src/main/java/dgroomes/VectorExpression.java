@@ -0,0 +1,413 @@
+package dgroomes;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A scalar expression (a {@link RexNode}) evaluated over a whole {@link Batch} at a time.
+ * <p>
+ * An expression writes its values into its own vector, and returns it. It's computed at every position of the batch,
+ * selected or not, so that the loops are plain loops over arrays with no branches. Computing values that nobody looks
+ * at is cheaper than jumping around the selection vector. The exceptions are division and MOD, which are only computed
+ * at the selected positions, because a row that was filtered out may divide by zero. Within an {@code AND} or an
+ * {@code OR}, the selected positions are only the ones that the operands before haven't decided yet (see
+ * {@link Logical}).
+ * <p>
+ * Only some expressions are supported (see {@link #compile}). For anything else, the operator that has the expression
+ * isn't vectorized, and the Interpreter runs it.
+ */
+interface VectorExpression {
+
+    Batch.Kind kind();
+
+    /**
+     * @return the vector of values. It belongs to the expression (or to the batch), and it's overwritten by the next
+     * evaluation.
+     */
+    Object evaluate(Batch batch);
+
+    /**
+     * Compile an expression over the fields of a batch.
+     * <p>
+     * These are supported: field references; non-null literals of INTEGER, BIGINT, DOUBLE, BOOLEAN and character
+     * types; {@code + - * /} of INTEGER, BIGINT and DOUBLE values that can't be null, and MOD of INTEGER and BIGINT
+     * values; a CAST of a string to VARCHAR, and a CAST that widens a number; comparisons of values that can't
+     * be null; {@code =} and {@code <>} of values of the same type that can be null; {@code AND}, {@code OR}, {@code NOT},
+     * {@code IS NULL} and {@code IS NOT NULL}.
+     * <p>
+     * A boolean vector can't hold "unknown", which is what a comparison with a null is. But a filter treats unknown the
+     * same as false, and so do {@code AND} and {@code OR} as far as the filter can tell. So a comparison of values that
+     * can be null is only supported in a filter's condition, and not under a {@code NOT}.
+     *
+     * @param predicate whether the expression is (a part of) the condition of a filter, where unknown can be false
+     * @return the compiled expression, or null if it's not supported
+     */
+    static VectorExpression compile(RexNode rex, boolean predicate) {
+        VectorExpression expression = compileUnchecked(rex, predicate);
+        if (expression == null) return null;
+        // Outside a condition, the vector must be able to hold every value of the expression's type
+        if (!predicate && expression.kind() != Batch.Kind.of(rex.getType())) return null;
+        return expression;
+    }
+
+    private static VectorExpression compileUnchecked(RexNode rex, boolean predicate) {
+        if (rex instanceof RexInputRef ref) {
+            return new InputRef(ref.getIndex(), Batch.Kind.of(ref.getType()));
+        }
+        if (rex instanceof RexLiteral literal) {
+            return Constant.of(literal);
+        }
+        if (!(rex instanceof RexCall call)) return null;
+
+        SqlKind op = call.getKind();
+        switch (op) {
+            case PLUS, MINUS, TIMES, DIVIDE, MOD -> {
+                if (call.getOperands().size() != 2) return null;
+                Batch.Kind kind = Batch.Kind.of(call.getType());
+                if (kind != Batch.Kind.INT && kind != Batch.Kind.LONG && kind != Batch.Kind.DOUBLE) return null;
+                if (op == SqlKind.MOD && kind == Batch.Kind.DOUBLE) return null;
+                VectorExpression left = widen(compile(call.getOperands().get(0), false), kind);
+                VectorExpression right = widen(compile(call.getOperands().get(1), false), kind);
+                if (left == null || right == null) return null;
+                return new Arithmetic(op, kind, left, right, kind.allocate());
+            }
+            case EQUALS, NOT_EQUALS, LESS_THAN, LESS_THAN_OR_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL -> {
+                VectorExpression left = compile(call.getOperands().get(0), false);
+                VectorExpression right = compile(call.getOperands().get(1), false);
+                if (left == null || right == null) return null;
+                // Compare an INTEGER to a BIGINT as two BIGINTs, for example
+                if (left.kind() != right.kind()) {
+                    Batch.Kind kind = left.kind().ordinal() > right.kind().ordinal() ? left.kind() : right.kind();
+                    left = widen(left, kind);
+                    right = widen(right, kind);
+                    if (left == null || right == null) return null;
+                }
+                boolean equality = op == SqlKind.EQUALS || op == SqlKind.NOT_EQUALS;
+                if (left.kind() == Batch.Kind.BOOLEAN && !equality) return null;
+                if (left.kind() == Batch.Kind.OBJECT) {
+                    if (!equality || !predicate) return null;
+                    // Objects are compared with equals, and an Integer never equals a Long. So a nullable INTEGER and a
+                    // nullable BIGINT are left to the Interpreter. Strings are Strings, whatever their SQL type.
+                    RelDataType leftType = call.getOperands().get(0).getType();
+                    RelDataType rightType = call.getOperands().get(1).getType();
+                    boolean strings = leftType.getFamily() == SqlTypeFamily.CHARACTER
+                            && rightType.getFamily() == SqlTypeFamily.CHARACTER;
+                    if (!strings && leftType.getSqlTypeName() != rightType.getSqlTypeName()) return null;
+                }
+                return new Comparison(op, left, right, new boolean[Batch.CAPACITY]);
+            }
+            case AND, OR -> {
+                var operands = new ArrayList<VectorExpression>();
+                for (RexNode operand : call.getOperands()) {
+                    VectorExpression compiled = compileUnchecked(operand, predicate);
+                    if (compiled == null || compiled.kind() != Batch.Kind.BOOLEAN) return null;
+                    operands.add(compiled);
+                }
+                return new Logical(op, operands, new boolean[Batch.CAPACITY], new int[Batch.CAPACITY]);
+            }
+            case NOT -> {
+                VectorExpression operand = compile(call.getOperands().get(0), false);
+                if (operand == null || operand.kind() != Batch.Kind.BOOLEAN) return null;
+                return new Not(operand, new boolean[Batch.CAPACITY]);
+            }
+            case CAST -> {
+                VectorExpression operand = compile(call.getOperands().get(0), false);
+                if (operand == null) return null;
+                RelDataType from = call.getOperands().get(0).getType();
+                RelDataType to = call.getType();
+                // A string is already a VARCHAR of any length
+                if (from.getFamily() == SqlTypeFamily.CHARACTER && to.getSqlTypeName() == SqlTypeName.VARCHAR
+                        && to.getPrecision() == RelDataType.PRECISION_NOT_SPECIFIED) {
+                    return operand;
+                }
+                Batch.Kind kind = Batch.Kind.of(to);
+                if (operand.kind() == kind && from.getSqlTypeName() == to.getSqlTypeName()) return operand;
+                return operand.kind() == kind ? null : widen(operand, kind);
+            }
+            case IS_NULL, IS_NOT_NULL -> {
+                VectorExpression operand = compile(call.getOperands().get(0), false);
+                if (operand == null) return null;
+                return new NullTest(op == SqlKind.IS_NULL, operand, new boolean[Batch.CAPACITY]);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the expression as the given kind: itself, or widened from INTEGER to BIGINT or DOUBLE, or from BIGINT to
+     * DOUBLE. Null if it's null, or if it can't be widened to the kind.
+     */
+    private static VectorExpression widen(VectorExpression expression, Batch.Kind kind) {
+        if (expression == null || expression.kind() == kind) return expression;
+        boolean widening = (expression.kind() == Batch.Kind.INT && (kind == Batch.Kind.LONG || kind == Batch.Kind.DOUBLE))
+                || (expression.kind() == Batch.Kind.LONG && kind == Batch.Kind.DOUBLE);
+        return widening ? new Widening(expression, kind, kind.allocate()) : null;
+    }
+
+    record InputRef(int index, Batch.Kind kind) implements VectorExpression {
+        public Object evaluate(Batch batch) {
+            return batch.vectors[index];
+        }
+    }
+
+    /**
+     * A literal, repeated at every position once, up front.
+     */
+    record Constant(Batch.Kind kind, Object vector) implements VectorExpression {
+
+        static Constant of(RexLiteral literal) {
+            if (literal.isNull()) return null;
+            Batch.Kind kind = Batch.Kind.of(literal.getType());
+            Object value = switch (kind) {
+                case INT -> literal.getValueAs(Integer.class);
+                case LONG -> literal.getValueAs(Long.class);
+                case DOUBLE -> literal.getValueAs(Double.class);
+                case BOOLEAN -> literal.getValueAs(Boolean.class);
+                case OBJECT -> literal.getType().getFamily() == SqlTypeFamily.CHARACTER
+                        ? literal.getValueAs(String.class)
+                        : null;
+            };
+            if (value == null) return null;
+            Object vector = kind.allocate();
+            switch (vector) {
+                case int[] values -> Arrays.fill(values, (Integer) value);
+                case long[] values -> Arrays.fill(values, (Long) value);
+                case double[] values -> Arrays.fill(values, (Double) value);
+                case boolean[] values -> Arrays.fill(values, (Boolean) value);
+                case Object[] values -> Arrays.fill(values, value);
+                default -> throw new IllegalStateException();
+            }
+            return new Constant(kind, vector);
+        }
+
+        public Object evaluate(Batch batch) {
+            return vector;
+        }
+    }
+
+    record Arithmetic(SqlKind op, Batch.Kind kind, VectorExpression left, VectorExpression right,
+                      Object output) implements VectorExpression {
+
+        public Object evaluate(Batch batch) {
+            Object l = left.evaluate(batch);
+            Object r = right.evaluate(batch);
+            int n = batch.size;
+            int[] sel = batch.selection;
+            int selected = batch.selected;
+            switch (kind) {
+                case INT -> {
+                    int[] a = (int[]) l, b = (int[]) r, out = (int[]) output;
+                    switch (op) {
+                        case PLUS -> { for (int p = 0; p < n; p++) out[p] = a[p] + b[p]; }
+                        case MINUS -> { for (int p = 0; p < n; p++) out[p] = a[p] - b[p]; }
+                        case TIMES -> { for (int p = 0; p < n; p++) out[p] = a[p] * b[p]; }
+                        case MOD -> { for (int i = 0; i < selected; i++) { int p = sel[i]; out[p] = a[p] % b[p]; } }
+                        default -> { for (int i = 0; i < selected; i++) { int p = sel[i]; out[p] = a[p] / b[p]; } }
+                    }
+                }
+                case LONG -> {
+                    long[] a = (long[]) l, b = (long[]) r, out = (long[]) output;
+                    switch (op) {
+                        case PLUS -> { for (int p = 0; p < n; p++) out[p] = a[p] + b[p]; }
+                        case MINUS -> { for (int p = 0; p < n; p++) out[p] = a[p] - b[p]; }
+                        case TIMES -> { for (int p = 0; p < n; p++) out[p] = a[p] * b[p]; }
+                        case MOD -> { for (int i = 0; i < selected; i++) { int p = sel[i]; out[p] = a[p] % b[p]; } }
+                        default -> { for (int i = 0; i < selected; i++) { int p = sel[i]; out[p] = a[p] / b[p]; } }
+                    }
+                }
+                default -> {
+                    double[] a = (double[]) l, b = (double[]) r, out = (double[]) output;
+                    switch (op) {
+                        case PLUS -> { for (int p = 0; p < n; p++) out[p] = a[p] + b[p]; }
+                        case MINUS -> { for (int p = 0; p < n; p++) out[p] = a[p] - b[p]; }
+                        case TIMES -> { for (int p = 0; p < n; p++) out[p] = a[p] * b[p]; }
+                        default -> { for (int i = 0; i < selected; i++) { int p = sel[i]; out[p] = a[p] / b[p]; } }
+                    }
+                }
+            }
+            return output;
+        }
+    }
+
+    /**
+     * A CAST from INTEGER to BIGINT or DOUBLE, or from BIGINT to DOUBLE.
+     */
+    record Widening(VectorExpression operand, Batch.Kind kind, Object output) implements VectorExpression {
+
+        public Object evaluate(Batch batch) {
+            Object values = operand.evaluate(batch);
+            int n = batch.size;
+            switch (output) {
+                case long[] out -> { int[] a = (int[]) values; for (int p = 0; p < n; p++) out[p] = a[p]; }
+                case double[] out when values instanceof int[] a -> { for (int p = 0; p < n; p++) out[p] = a[p]; }
+                case double[] out -> { long[] a = (long[]) values; for (int p = 0; p < n; p++) out[p] = a[p]; }
+                default -> throw new IllegalStateException();
+            }
+            return output;
+        }
+    }
+
+    /**
+     * A comparison of two vectors of the same kind. Equality of objects is false when either one is null, which is what
+     * a filter makes of unknown.
+     */
+    record Comparison(SqlKind op, VectorExpression left, VectorExpression right,
+                      boolean[] output) implements VectorExpression {
+
+        public Batch.Kind kind() {
+            return Batch.Kind.BOOLEAN;
+        }
+
+        public Object evaluate(Batch batch) {
+            Object l = left.evaluate(batch);
+            Object r = right.evaluate(batch);
+            int n = batch.size;
+            boolean[] out = output;
+            switch (left.kind()) {
+                case INT -> {
+                    int[] a = (int[]) l, b = (int[]) r;
+                    switch (op) {
+                        case EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] == b[p]; }
+                        case NOT_EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] != b[p]; }
+                        case LESS_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] < b[p]; }
+                        case LESS_THAN_OR_EQUAL -> { for (int p = 0; p < n; p++) out[p] = a[p] <= b[p]; }
+                        case GREATER_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] > b[p]; }
+                        default -> { for (int p = 0; p < n; p++) out[p] = a[p] >= b[p]; }
+                    }
+                }
+                case LONG -> {
+                    long[] a = (long[]) l, b = (long[]) r;
+                    switch (op) {
+                        case EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] == b[p]; }
+                        case NOT_EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] != b[p]; }
+                        case LESS_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] < b[p]; }
+                        case LESS_THAN_OR_EQUAL -> { for (int p = 0; p < n; p++) out[p] = a[p] <= b[p]; }
+                        case GREATER_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] > b[p]; }
+                        default -> { for (int p = 0; p < n; p++) out[p] = a[p] >= b[p]; }
+                    }
+                }
+                case DOUBLE -> {
+                    double[] a = (double[]) l, b = (double[]) r;
+                    switch (op) {
+                        case EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] == b[p]; }
+                        case NOT_EQUALS -> { for (int p = 0; p < n; p++) out[p] = a[p] != b[p]; }
+                        case LESS_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] < b[p]; }
+                        case LESS_THAN_OR_EQUAL -> { for (int p = 0; p < n; p++) out[p] = a[p] <= b[p]; }
+                        case GREATER_THAN -> { for (int p = 0; p < n; p++) out[p] = a[p] > b[p]; }
+                        default -> { for (int p = 0; p < n; p++) out[p] = a[p] >= b[p]; }
+                    }
+                }
+                case BOOLEAN -> {
+                    boolean[] a = (boolean[]) l, b = (boolean[]) r;
+                    boolean equals = op == SqlKind.EQUALS;
+                    for (int p = 0; p < n; p++) out[p] = (a[p] == b[p]) == equals;
+                }
+                case OBJECT -> {
+                    Object[] a = (Object[]) l, b = (Object[]) r;
+                    boolean equals = op == SqlKind.EQUALS;
+                    for (int p = 0; p < n; p++) out[p] = a[p] != null && b[p] != null && a[p].equals(b[p]) == equals;
+                }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * {@code AND} or {@code OR}. Like Java's {@code &&} and {@code ||}, an operand is only evaluated at the positions
+     * where the operands before it haven't decided the result yet: after each operand, the batch's selection is
+     * narrowed (in a selection vector of the expression's own) to the positions that are still true for {@code AND}, or
+     * still false for {@code OR}. Otherwise, a division in a later operand would run on the rows that an earlier operand
+     * was there to keep away from it, like in {@code x <> 0 AND y / x > 1}. The batch's selection is put back at the end.
+     */
+    record Logical(SqlKind op, List<VectorExpression> operands, boolean[] output,
+                   int[] selection) implements VectorExpression {
+
+        public Batch.Kind kind() {
+            return Batch.Kind.BOOLEAN;
+        }
+
+        public Object evaluate(Batch batch) {
+            int n = batch.size;
+            boolean[] out = output;
+            boolean and = op == SqlKind.AND;
+            Arrays.fill(out, 0, n, and);
+            int[] incomingSelection = batch.selection;
+            int incomingSelected = batch.selected;
+            try {
+                for (int o = 0; o < operands.size(); o++) {
+                    boolean[] values = (boolean[]) operands.get(o).evaluate(batch);
+                    if (and) {
+                        for (int p = 0; p < n; p++) out[p] &= values[p];
+                    } else {
+                        for (int p = 0; p < n; p++) out[p] |= values[p];
+                    }
+                    if (o == operands.size() - 1) break;
+
+                    // The positions that the next operand can still change. The batch's selection may be this
+                    // expression's own by now, but the loop never writes ahead of where it reads.
+                    int[] sel = batch.selection;
+                    int selected = batch.selected;
+                    int kept = 0;
+                    for (int i = 0; i < selected; i++) {
+                        int p = sel[i];
+                        selection[kept] = p;
+                        kept += out[p] == and ? 1 : 0;
+                    }
+                    if (kept == 0) break;
+                    batch.selection = selection;
+                    batch.selected = kept;
+                }
+            } finally {
+                batch.selection = incomingSelection;
+                batch.selected = incomingSelected;
+            }
+            return out;
+        }
+    }
+
+    record Not(VectorExpression operand, boolean[] output) implements VectorExpression {
+
+        public Batch.Kind kind() {
+            return Batch.Kind.BOOLEAN;
+        }
+
+        public Object evaluate(Batch batch) {
+            boolean[] values = (boolean[]) operand.evaluate(batch);
+            for (int p = 0; p < batch.size; p++) output[p] = !values[p];
+            return output;
+        }
+    }
+
+    /**
+     * {@code IS NULL} or {@code IS NOT NULL}. Only an object vector can have nulls.
+     */
+    record NullTest(boolean isNull, VectorExpression operand, boolean[] output) implements VectorExpression {
+
+        public Batch.Kind kind() {
+            return Batch.Kind.BOOLEAN;
+        }
+
+        public Object evaluate(Batch batch) {
+            Object vector = operand.evaluate(batch);
+            int n = batch.size;
+            if (vector instanceof Object[] values) {
+                for (int p = 0; p < n; p++) output[p] = (values[p] == null) == isNull;
+            } else {
+                Arrays.fill(output, 0, n, !isNull);
+            }
+            return output;
+        }
+    }
+}
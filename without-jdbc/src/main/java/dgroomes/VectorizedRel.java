@@ -0,0 +1,116 @@
+package dgroomes;
+
+import org.apache.calcite.interpreter.InterpretableRel;
+import org.apache.calcite.interpreter.Node;
+import org.apache.calcite.interpreter.Row;
+import org.apache.calcite.interpreter.Sink;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.AbstractRelNode;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of a plan that runs a batch at a time (see {@link BatchOperator}), inside a plan that the
+ * {@link org.apache.calcite.interpreter.Interpreter} runs a row at a time.
+ * <p>
+ * The Interpreter sends one {@code Object[]} row at a time from node to node, through a virtual call or two per row per
+ * node. A {@link Batch} instead carries about a thousand rows in primitive vectors, and each operator works on it in
+ * loops that the JIT can compile well. See {@link #vectorize} for which parts of a plan can run that way. Everything
+ * else is left to the Interpreter, and this node is a leaf of the Interpreter's plan: it runs its operators and turns
+ * the batches that come out of them into rows.
+ */
+public class VectorizedRel extends AbstractRelNode implements InterpretableRel {
+
+    private final RelNode plan;
+
+    /**
+     * @param plan the part of the plan to run a batch at a time. It must be one that {@link BatchOperator#of} supports.
+     */
+    public VectorizedRel(RelOptCluster cluster, RelTraitSet traits, RelNode plan) {
+        super(cluster, traits);
+        this.plan = plan;
+        this.rowType = plan.getRowType();
+    }
+
+    /**
+     * Replace each part of a plan that can run a batch at a time with a {@link VectorizedRel}: the biggest subtrees of
+     * filters, projects and aggregates over a scan of a {@link ColumnarTable}, where {@link BatchOperator#of} supports
+     * all of the expressions and aggregate functions.
+     */
+    public static RelNode vectorize(RelNode node) {
+        if (BatchOperator.of(node) != null) {
+            return new VectorizedRel(node.getCluster(), node.getTraitSet(), node);
+        }
+        var inputs = new ArrayList<RelNode>();
+        boolean changed = false;
+        for (RelNode input : node.getInputs()) {
+            RelNode vectorized = vectorize(input);
+            inputs.add(vectorized);
+            changed |= vectorized != input;
+        }
+        return changed ? node.copy(node.getTraitSet(), inputs) : node;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new VectorizedRel(getCluster(), traitSet, plan);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return plan.getRowType();
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw).item("operators", describe(plan));
+    }
+
+    /**
+     * The operators from the top down, like "Aggregate({0}, [COUNT()]) <- Filter(>=($1, 20000)) <- Scan(zips)".
+     */
+    private static String describe(RelNode node) {
+        String operator = switch (node) {
+            case TableScan scan -> "Scan(%s)".formatted(scan.getTable().getQualifiedName().getLast());
+            case Filter filter -> "Filter(%s)".formatted(filter.getCondition());
+            case Project project -> "Project(%s)".formatted(project.getProjects());
+            case Aggregate aggregate -> "Aggregate(%s, %s)".formatted(aggregate.getGroupSet(), aggregate.getAggCallList());
+            default -> node.getRelTypeName();
+        };
+        return node.getInputs().isEmpty() ? operator : operator + " <- " + describe(node.getInput(0));
+    }
+
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        return mq.getRowCount(plan);
+    }
+
+    @Override
+    public Node implement(InterpreterImplementor implementor) {
+        Sink sink = implementor.compiler.sink(this);
+        // Make the operators for this run. They hold the state of the run, like the position of the scan.
+        BatchOperator operator = BatchOperator.of(plan);
+        int fieldCount = rowType.getFieldCount();
+        return () -> {
+            for (Batch batch = operator.next(); batch != null; batch = operator.next()) {
+                for (int i = 0; i < batch.selected; i++) {
+                    int position = batch.selection[i];
+                    var values = new Object[fieldCount];
+                    for (int f = 0; f < fieldCount; f++) values[f] = Batch.get(batch.vectors[f], position);
+                    sink.send(Row.of(values));
+                }
+            }
+            sink.end();
+        };
+    }
+}
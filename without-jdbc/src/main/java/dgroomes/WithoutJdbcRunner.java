@@ -1,11 +1,15 @@
 package dgroomes;
 
-import org.apache.calcite.adapter.java.ReflectiveSchema;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
 import org.apache.calcite.avatica.util.Casing;
-import org.apache.calcite.interpreter.Interpreter;
+import org.apache.calcite.plan.Convention;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.hep.HepPlanner;
+import org.apache.calcite.plan.hep.HepProgramBuilder;
 import org.apache.calcite.plan.RelOptUtil;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.rules.CoreRules;
 import org.apache.calcite.schema.SchemaPlus;
 import org.apache.calcite.sql.SqlNode;
 import org.apache.calcite.sql.parser.SqlParseException;
@@ -15,7 +19,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.NumberFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.function.Consumer;
 
 /**
  * Please see the README for more context.
@@ -24,8 +33,29 @@ public class WithoutJdbcRunner {
 
     private static final Logger log = LoggerFactory.getLogger(WithoutJdbcRunner.class);
 
+    private final int parallelJoinThreads;
+    private final long parallelJoinThreshold;
+    private final DriverlessExecutor.Mode executionMode;
+    private final long compileThreshold;
     private FrameworkConfig frameworkConfig;
     private SchemaPlus geographiesSchema;
+    private DriverlessExecutor executor;
+
+    /**
+     * @param parallelJoinThreads   the number of threads for a partitioned hash join (see {@link PartitionedHashJoinRule}),
+     *                              or 1 to never use one
+     * @param parallelJoinThreshold the fewest input rows for a join to be considered for a partitioned hash join
+     * @param executionMode         whether to interpret the queries, compile them, or decide per query (see
+     *                              {@link DriverlessExecutor})
+     * @param compileThreshold      in adaptive mode, the fewest scanned rows for a query to be compiled right away
+     */
+    public WithoutJdbcRunner(int parallelJoinThreads, long parallelJoinThreshold, DriverlessExecutor.Mode executionMode,
+                             long compileThreshold) {
+        this.parallelJoinThreads = parallelJoinThreads;
+        this.parallelJoinThreshold = parallelJoinThreshold;
+        this.executionMode = executionMode;
+        this.compileThreshold = compileThreshold;
+    }
 
     public static class City {
 
@@ -76,22 +106,84 @@ public class WithoutJdbcRunner {
 
     public static void main(String[] args) {
         log.info("Let's engage core Apache Calcite APIs like the relational algebra API!");
-        new WithoutJdbcRunner().run();
+
+        int parallelJoinThreads;
+        String parallelJoinThreadsEnv = System.getenv("PARALLEL_JOIN_THREADS");
+        if (parallelJoinThreadsEnv != null) {
+            try {
+                parallelJoinThreads = Integer.parseInt(parallelJoinThreadsEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'PARALLEL_JOIN_THREADS' ('%s') is not a number.".formatted(parallelJoinThreadsEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            parallelJoinThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        long parallelJoinThreshold;
+        String parallelJoinThresholdEnv = System.getenv("PARALLEL_JOIN_THRESHOLD");
+        if (parallelJoinThresholdEnv != null) {
+            try {
+                parallelJoinThreshold = Long.parseLong(parallelJoinThresholdEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'PARALLEL_JOIN_THRESHOLD' ('%s') is not a number.".formatted(parallelJoinThresholdEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            parallelJoinThreshold = 100_000;
+        }
+
+        DriverlessExecutor.Mode executionMode;
+        String executionModeEnv = System.getenv("EXECUTION_MODE");
+        if (executionModeEnv != null) {
+            try {
+                executionMode = DriverlessExecutor.Mode.valueOf(executionModeEnv);
+            } catch (IllegalArgumentException e) {
+                var msg = "The value in the environment variable 'EXECUTION_MODE' ('%s') is not one of %s.".formatted(executionModeEnv, Arrays.toString(DriverlessExecutor.Mode.values()));
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            executionMode = DriverlessExecutor.Mode.ADAPTIVE;
+        }
+
+        long compileThreshold;
+        String compileThresholdEnv = System.getenv("COMPILE_THRESHOLD");
+        if (compileThresholdEnv != null) {
+            try {
+                compileThreshold = Long.parseLong(compileThresholdEnv);
+            } catch (NumberFormatException e) {
+                var msg = "The value in the environment variable 'COMPILE_THRESHOLD' ('%s') is not a number.".formatted(compileThresholdEnv);
+                throw new IllegalArgumentException(msg);
+            }
+        } else {
+            compileThreshold = 10_000;
+        }
+
+        new WithoutJdbcRunner(parallelJoinThreads, parallelJoinThreshold, executionMode, compileThreshold).run();
     }
 
     public void run() {
         {
             // Let's create the schema objects and wire in some data. For convenience, let's use a POJO-based data set
-            // that represents ZIP codes and cities ("geographies").
+            // that represents ZIP codes and cities ("geographies"). The columnar schema copies the objects into
+            // primitive columns, one table per array.
             var rootSchema = Frameworks.createRootSchema(true);
-            var reflectiveSchema = new ReflectiveSchema(new Geographies());
-            geographiesSchema = rootSchema.add("geographies", reflectiveSchema);
+            var columnarSchema = new ColumnarSchema(new Geographies());
+            geographiesSchema = rootSchema.add("geographies", columnarSchema);
+
+            // A compiled plan can compute an aggregate over a columnar table from the columns, and so can an interpreted
+            // one (see rewriteForInterpreter)
+            var compileRules = new ArrayList<RelOptRule>(ColumnarAggregateRule.of(EnumerableConvention.INSTANCE));
+            compileRules.add(CoreRules.AGGREGATE_PROJECT_MERGE);
+            compileRules.add(CoreRules.AGGREGATE_JOIN_TRANSPOSE_EXTENDED);
+            executor = new DriverlessExecutor(rootSchema, executionMode, compileThreshold, 100, this::rewriteForInterpreter,
+                    compileRules);
         }
 
         frameworkConfig = Frameworks.newConfigBuilder().defaultSchema(geographiesSchema)
                 // The default behavior of the framework config is to uppercase the SQL.
-                // This is generally a useful normalization but the reflective schema does
-                // not uppercase its table names (e.g. the 'cities' array list is represented
+                // This is generally a useful normalization but the columnar schema (like the
+                // reflective schema) does not uppercase its table names (e.g. the 'cities' array list is represented
                 // as a 'cities' table. So there is a mismatch at the SQL validation time.
                 // To work around this, we can use the "unquoted casing unchanged" option.
                 .parserConfig(SqlParser.Config.DEFAULT.withUnquotedCasing(Casing.UNCHANGED))
@@ -100,6 +192,12 @@ public class WithoutJdbcRunner {
 
         cityPop_relationalExpression();
         cityPop_sql();
+        bigZips_sql();
+
+        // The same query again. In the adaptive mode, the first execution of a query over a few rows is interpreted, but
+        // a query that's executed again is compiled.
+        cityPop_relationalExpression();
+        log.info("Executions: {}", executor.stats());
     }
 
     private void cityPop_relationalExpression() {
@@ -123,17 +221,13 @@ public class WithoutJdbcRunner {
                         builder.field("city_population"))
                 .build();
 
-        var dataContext = new DriverlessDataContext(geographiesSchema, node);
-
-        try (Interpreter interpreter = new Interpreter(dataContext, node)) {
-            interpreter.forEach(row -> {
-                var cityName = row[0];
-                var cityOid = row[1];
-                //noinspection DataFlowIssue
-                var population = formatInteger((int) row[2]);
-                log.info("City '{}' ({}) has a population of {}", cityName, cityOid, population);
-            });
-        }
+        query(node, row -> {
+            var cityName = row[0];
+            var cityOid = row[1];
+            //noinspection DataFlowIssue
+            var population = formatInteger((int) row[2]);
+            log.info("City '{}' ({}) has a population of {}", cityName, cityOid, population);
+        });
     }
 
     /**
@@ -173,17 +267,70 @@ public class WithoutJdbcRunner {
 
         RelNode node = convertSqlToRelationalExpression(sql);
 
-        var dataContext = new DriverlessDataContext(geographiesSchema, node);
+        query(node, row -> {
+            var cityName = row[0];
+            var cityOid = row[1];
+            //noinspection DataFlowIssue
+            var population = formatInteger((int) row[2]);
+            log.info("City '{}' ({}) has a population of {}", cityName, cityOid, population);
+        });
+    }
+
+    private void bigZips_sql() {
+        log.info("Count and sum up the big ZIP codes of each city (SQL)...");
+
+        // There's a filter between the aggregate and the scan, so this aggregate isn't a ColumnarAggregate. In the
+        // vectorized mode, the scan, filter and aggregate all run a batch at a time.
+        var sql = """
+                select cityOid, count(*), sum(population)
+                from zips
+                where population >= 20000
+                group by cityOid""";
+
+        RelNode node = convertSqlToRelationalExpression(sql);
 
-        try (Interpreter interpreter = new Interpreter(dataContext, node)) {
-            interpreter.forEach(row -> {
-                var cityName = row[0];
-                var cityOid = row[1];
-                //noinspection DataFlowIssue
-                var population = formatInteger((int) row[2]);
-                log.info("City '{}' ({}) has a population of {}", cityName, cityOid, population);
-            });
+        query(node, row -> {
+            var cityOid = row[0];
+            var zipCount = row[1];
+            //noinspection DataFlowIssue
+            var population = formatInteger((int) row[2]);
+            log.info("City {} has {} ZIP codes with at least 20,000 people, and they have a population of {}", cityOid, zipCount, population);
+        });
+    }
+
+    /**
+     * Execute a relational expression without JDBC, interpreted or compiled (see {@link DriverlessExecutor}).
+     */
+    private void query(RelNode node, Consumer<Object[]> rowHandler) {
+        var start = Instant.now();
+        int rowCount = executor.execute(node, rowHandler);
+        log.info("Query executed in {}. Fetched {} rows.", Duration.between(start, Instant.now()), rowCount);
+    }
+
+    /**
+     * Rewrite a plan before it's interpreted. The Interpreter runs the plan as it's given, apart from a few rewrites of
+     * its own, so this is the place to pick the physical operators. A compiled plan picks them with the cost-based
+     * optimizer instead.
+     * <ol>
+     *     <li>Push aggregates below joins, and turn an aggregate over a scan of a columnar table into a
+     *     {@link ColumnarAggregate} that is computed from the columns (see {@link ColumnarAggregateRule})</li>
+     *     <li>Replace the joins of big inputs with partitioned hash joins that run on many threads (see
+     *     {@link PartitionedHashJoinRule})</li>
+     * </ol>
+     */
+    private RelNode rewriteForInterpreter(RelNode node) {
+        var builder = new HepProgramBuilder()
+                .addRuleInstance(CoreRules.AGGREGATE_PROJECT_MERGE)
+                .addRuleInstance(CoreRules.AGGREGATE_JOIN_TRANSPOSE_EXTENDED)
+                .addRuleCollection(ColumnarAggregateRule.of(Convention.NONE));
+        if (parallelJoinThreads > 1) {
+            builder.addRuleInstance(PartitionedHashJoinRule.of(parallelJoinThreshold, parallelJoinThreads));
         }
+        var hepPlanner = new HepPlanner(builder.build());
+        hepPlanner.setRoot(node);
+        RelNode optimized = hepPlanner.findBestExp();
+        log.debug("Relational algebra expression (rewritten for the interpreter):\n{}", RelOptUtil.toString(optimized));
+        return optimized;
     }
 
     /**
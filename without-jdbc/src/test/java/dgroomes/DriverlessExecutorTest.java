@@ -0,0 +1,220 @@
+package dgroomes;
+
+import org.apache.calcite.avatica.util.Casing;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.parser.SqlParser;
+import org.apache.calcite.tools.FrameworkConfig;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.Planner;
+import org.apache.calcite.tools.RelBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The vectorized mode must return the same rows as the Interpreter, and so must the compiled code. The table has a few
+ * batches of rows, and columns of each kind of vector (see {@link Batch.Kind}), including nullable ones.
+ */
+class DriverlessExecutorTest {
+
+    public static class Measurement {
+        public final int id;
+        public final long reading;
+        public final double ratio;
+        public final boolean flagged;
+        public final Integer small;
+        public final Long big;
+        public final String label;
+
+        public Measurement(int id, long reading, double ratio, boolean flagged, Integer small, Long big, String label) {
+            this.id = id;
+            this.reading = reading;
+            this.ratio = ratio;
+            this.flagged = flagged;
+            this.small = small;
+            this.big = big;
+            this.label = label;
+        }
+    }
+
+    public static class Measurements {
+        public final Measurement[] measurements;
+
+        Measurements(Measurement[] measurements) {
+            this.measurements = measurements;
+        }
+    }
+
+    private SchemaPlus rootSchema;
+    private FrameworkConfig frameworkConfig;
+
+    @BeforeEach
+    void createSchema() {
+        var random = new Random(7);
+        var measurements = new Measurement[3 * Batch.CAPACITY + 100];
+        for (int i = 0; i < measurements.length; i++) {
+            Integer small = random.nextInt(10) == 0 ? null : random.nextInt(20);
+            Long big = random.nextInt(10) == 0 ? null : (long) random.nextInt(20);
+            String label = random.nextInt(10) == 0 ? null : List.of("a", "b", "c").get(random.nextInt(3));
+            measurements[i] = new Measurement(i, random.nextInt(1000), random.nextInt(100) / 4.0, random.nextBoolean(),
+                    small, big, label);
+        }
+
+        rootSchema = Frameworks.createRootSchema(true);
+        SchemaPlus schema = rootSchema.add("test", new ColumnarSchema(new Measurements(measurements)));
+        frameworkConfig = Frameworks.newConfigBuilder()
+                .parserConfig(SqlParser.Config.DEFAULT.withUnquotedCasing(Casing.UNCHANGED))
+                .defaultSchema(schema)
+                .build();
+    }
+
+    private RelNode sql(String sql) {
+        Planner planner = Frameworks.getPlanner(frameworkConfig);
+        try {
+            return planner.rel(planner.validate(planner.parse(sql))).rel;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the rows, sorted, because only some of the queries have an order
+     */
+    private List<List<Object>> execute(DriverlessExecutor.Mode mode, RelNode node) {
+        var executor = new DriverlessExecutor(rootSchema, mode, Double.MAX_VALUE, 10, UnaryOperator.identity(), List.of());
+        var rows = new ArrayList<List<Object>>();
+        executor.execute(node, row -> rows.add(Arrays.asList(row)));
+        rows.sort(Comparator.comparing(Object::toString));
+        return rows;
+    }
+
+    /**
+     * Execute the query in each mode. Each mode gets its own copy of the plan, because compiling a plan uses the
+     * planner of its cluster.
+     */
+    private void assertSameRowsInEachMode(Function<DriverlessExecutorTest, RelNode> query) {
+        var interpreted = execute(DriverlessExecutor.Mode.INTERPRETED, query.apply(this));
+
+        assertFalse(interpreted.isEmpty());
+        assertEquals(interpreted, execute(DriverlessExecutor.Mode.VECTORIZED, query.apply(this)));
+        assertEquals(interpreted, execute(DriverlessExecutor.Mode.COMPILED, query.apply(this)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "select id, reading * 2, ratio + 1 from measurements where mod(id, 7) = 3 and flagged",
+            "select id from measurements where reading >= 500 and ratio < 10.5 and not flagged",
+            "select label, count(*), sum(reading), min(id), max(ratio) from measurements where reading >= 500 group by label",
+            "select flagged, count(*), sum(ratio) from measurements group by flagged",
+            "select id from measurements where small > 10 or big is null",
+            "select id, label from measurements where label = 'b' and id < 1000",
+            "select id from measurements where label is null",
+            // A nullable INTEGER compared to a nullable BIGINT
+            "select id, small, big from measurements where small = big",
+            "select id from measurements where small <> big",
+            "select id, small + big from measurements where id < 200",
+            // A division that an earlier operand of the AND or OR keeps away from zero
+            "select id from measurements where id <> 0 and reading / id > 1",
+            "select id from measurements where id = 0 or mod(1000, id) = 0",
+            "select id from measurements where flagged and (id = 0 or reading / id > 1)",
+            "select id from measurements where not (id = 0 or ratio / id < 1e-2)",
+    })
+    void sameRowsInEachMode(String sql) {
+        assertSameRowsInEachMode(test -> test.sql(sql));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void nullableIntegerEqualsNullableBigintWithoutACast(boolean equals) {
+        // The builder doesn't cast the INTEGER to a BIGINT like the SQL validator does
+        assertSameRowsInEachMode(test -> {
+            RelBuilder builder = RelBuilder.create(test.frameworkConfig);
+            builder.scan("measurements");
+            return builder
+                    .filter(equals
+                            ? builder.equals(builder.field("small"), builder.field("big"))
+                            : builder.notEquals(builder.field("small"), builder.field("big")))
+                    .project(builder.field("id"))
+                    .build();
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "select id from measurements where reading >= 500",
+            "select label, count(*) from measurements where flagged group by label",
+    })
+    void filtersOverAColumnarTableAreVectorized(String sql) {
+        RelNode vectorized = VectorizedRel.vectorize(sql(sql));
+
+        assertTrue(vectorized instanceof VectorizedRel || vectorized.getInputs().stream().anyMatch(VectorizedRel.class::isInstance),
+                vectorized.explain());
+    }
+
+    @Test
+    void vectorizedExecutionsAreCountedOnTheirOwn() {
+        var executor = new DriverlessExecutor(rootSchema, DriverlessExecutor.Mode.VECTORIZED, Double.MAX_VALUE, 10,
+                UnaryOperator.identity(), List.of());
+        executor.execute(sql("select id from measurements where reading >= 500"), row -> {});
+        executor.execute(sql("select id from measurements where reading >= 500"), row -> {});
+
+        assertEquals(new DriverlessExecutor.Stats(0, 2, 0, 0), executor.stats());
+    }
+
+    /**
+     * The plans of both queries are on one cluster, so every compilation uses the same planner.
+     */
+    @Test
+    void queriesOnOneClusterCompiledOnManyThreads() throws Exception {
+        RelBuilder builder = RelBuilder.create(frameworkConfig);
+        RelNode byReading = builder.scan("measurements")
+                .filter(builder.greaterThanOrEqual(builder.field("reading"), builder.literal(500)))
+                .project(builder.field("id"))
+                .build();
+        RelNode byRatio = builder.scan("measurements")
+                .filter(builder.lessThan(builder.field("ratio"), builder.literal(10)))
+                .project(builder.field("id"))
+                .build();
+        List<List<Object>> expectedByReading = execute(DriverlessExecutor.Mode.INTERPRETED, byReading);
+        List<List<Object>> expectedByRatio = execute(DriverlessExecutor.Mode.INTERPRETED, byRatio);
+
+        var executor = new DriverlessExecutor(rootSchema, DriverlessExecutor.Mode.COMPILED, Double.MAX_VALUE, 10,
+                UnaryOperator.identity(), List.of());
+        var threads = Executors.newFixedThreadPool(4);
+        try {
+            var results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                RelNode node = i % 2 == 0 ? byReading : byRatio;
+                List<List<Object>> expected = i % 2 == 0 ? expectedByReading : expectedByRatio;
+                results.add(threads.submit(() -> {
+                    var rows = new ArrayList<List<Object>>();
+                    executor.execute(node, row -> rows.add(Arrays.asList(row)));
+                    rows.sort(Comparator.comparing(Object::toString));
+                    return rows.equals(expected);
+                }));
+            }
+            for (var result : results) assertTrue(result.get(30, TimeUnit.SECONDS));
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(new DriverlessExecutor.Stats(0, 0, 8, 2), executor.stats());
+    }
+}
@@ -0,0 +1,182 @@
+package dgroomes;
+
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.hep.HepPlanner;
+import org.apache.calcite.plan.hep.HepProgram;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.RelBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionedHashJoinTest {
+
+    public static class Owner {
+        public final Integer id;
+        public final String name;
+
+        public Owner(Integer id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    public static class Pet {
+        public final Integer ownerId;
+        public final String name;
+
+        public Pet(Integer ownerId, String name) {
+            this.ownerId = ownerId;
+            this.name = name;
+        }
+    }
+
+    public static class Pets {
+        public final Owner[] owners = {new Owner(1, "Ann"), new Owner(null, "Nobody")};
+        public final Pet[] pets = {new Pet(1, "Rex"), new Pet(1, "Tom"), new Pet(null, "Stray")};
+    }
+
+    /**
+     * Rows of a key column that is sometimes null, a second key column, and a payload.
+     */
+    private static Object[][] rows(Random random, int count, String payloadPrefix) {
+        var rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            Integer key = random.nextInt(20) == 0 ? null : random.nextInt(500);
+            rows[i] = new Object[]{key, "k" + random.nextInt(3), payloadPrefix + i};
+        }
+        return rows;
+    }
+
+    /**
+     * The rows of a nested loop join with "=" on the keys, counted. Null doesn't equal anything.
+     */
+    private static Map<List<Object>, Long> nestedLoopJoin(Object[][] left, Object[][] right, int[] leftKeys, int[] rightKeys) {
+        var rows = new ArrayList<List<Object>>();
+        for (Object[] leftRow : left) {
+            for (Object[] rightRow : right) {
+                boolean match = true;
+                for (int i = 0; i < leftKeys.length && match; i++) {
+                    Object value = leftRow[leftKeys[i]];
+                    match = value != null && Objects.equals(value, rightRow[rightKeys[i]]);
+                }
+                if (match) {
+                    var row = new ArrayList<>(Arrays.asList(leftRow));
+                    row.addAll(Arrays.asList(rightRow));
+                    rows.add(row);
+                }
+            }
+        }
+        return count(rows);
+    }
+
+    private static Map<List<Object>, Long> count(List<List<Object>> rows) {
+        return rows.stream().collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+    }
+
+    private static Map<List<Object>, Long> partitionedHashJoin(Object[][] left, Object[][] right, int[] leftKeys,
+                                                              int[] rightKeys, int threads) {
+        var join = new PartitionedHashJoin(leftKeys, rightKeys, threads);
+        return count(join.join(left, right).stream().map(Arrays::asList).toList());
+    }
+
+    @Test
+    void sameRowsAsANestedLoopJoin() {
+        var random = new Random(42);
+        // Enough rows for each thread to get a chunk of its own when partitioning
+        Object[][] left = rows(random, 20_000, "left-");
+        Object[][] right = rows(random, 2_000, "right-");
+        int[] leftKeys = {0, 1};
+        int[] rightKeys = {0, 1};
+
+        var expected = nestedLoopJoin(left, right, leftKeys, rightKeys);
+
+        assertEquals(expected, partitionedHashJoin(left, right, leftKeys, rightKeys, 4));
+        assertEquals(expected, partitionedHashJoin(left, right, leftKeys, rightKeys, 1));
+        // The smaller side is the build side, whichever side that is
+        assertEquals(nestedLoopJoin(right, left, rightKeys, leftKeys), partitionedHashJoin(right, left, rightKeys, leftKeys, 4));
+    }
+
+    @Test
+    void nullKeysAreDropped() {
+        Object[][] left = {{null, "a"}, {1, "b"}};
+        Object[][] right = {{null, "c"}, {1, "d"}};
+
+        var rows = new PartitionedHashJoin(new int[]{0}, new int[]{0}, 2).join(left, right);
+
+        assertEquals(1, rows.size());
+        assertEquals(List.of(1, "b", 1, "d"), Arrays.asList(rows.getFirst()));
+    }
+
+    /**
+     * A join of the owners and their pets.
+     */
+    private static RelNode join(SchemaPlus rootSchema, SqlOperator operator) {
+        var frameworkConfig = Frameworks.newConfigBuilder().defaultSchema(rootSchema.getSubSchema("pets")).build();
+        RelBuilder builder = RelBuilder.create(frameworkConfig);
+        return builder
+                .scan("owners")
+                .scan("pets")
+                .join(JoinRelType.INNER, builder.call(operator,
+                        builder.field(2, 0, "id"),
+                        builder.field(2, 1, "ownerId")))
+                .project(builder.field(1, "owners", "name"), builder.field(1, "pets", "name"))
+                .build();
+    }
+
+    private static SchemaPlus rootSchema() {
+        SchemaPlus rootSchema = Frameworks.createRootSchema(true);
+        rootSchema.add("pets", new ColumnarSchema(new Pets()));
+        return rootSchema;
+    }
+
+    /**
+     * Rewrite the plan with the rule (with no threshold), like {@link WithoutJdbcRunner} does before it interprets a
+     * plan.
+     */
+    private static RelNode rewrite(RelNode node) {
+        var planner = new HepPlanner(HepProgram.builder().addRuleInstance(PartitionedHashJoinRule.of(0, 4)).build());
+        planner.setRoot(node);
+        return planner.findBestExp();
+    }
+
+    @Test
+    void equalsBecomesAPartitionedHashJoinAndNullKeysDontMatch() {
+        SchemaPlus rootSchema = rootSchema();
+        RelNode join = join(rootSchema, SqlStdOperatorTable.EQUALS);
+        String plan = RelOptUtil.toString(rewrite(join));
+
+        var executor = new DriverlessExecutor(rootSchema, DriverlessExecutor.Mode.INTERPRETED, Double.MAX_VALUE, 1,
+                PartitionedHashJoinTest::rewrite, List.of());
+        var rows = new ArrayList<List<Object>>();
+        executor.execute(join, row -> rows.add(Arrays.asList(row)));
+        rows.sort(Comparator.comparing(row -> (String) row.get(1)));
+
+        assertTrue(plan.contains("InterpretablePartitionedHashJoin"), plan);
+        assertEquals(List.of(List.of("Ann", "Rex"), List.of("Ann", "Tom")), rows);
+    }
+
+    @Test
+    void isNotDistinctFromIsLeftAlone() {
+        String plan = RelOptUtil.toString(rewrite(join(rootSchema(), SqlStdOperatorTable.IS_NOT_DISTINCT_FROM)));
+
+        assertFalse(plan.contains("InterpretablePartitionedHashJoin"), plan);
+    }
+}